@@ -373,6 +373,8 @@ public final class LogicMail extends UiApplication {
             // Don't fail if file permissions are denied
         }
 
+        MailManager.getInstance().flushFolderMessageCache();
+
         PermissionsHandler.unregisterReasonProvider();
         LogicMailRuntimeState.getInstance().setApplicationInstance(null);
 
@@ -15,6 +15,8 @@ public class LogicMailResource {
 	public static final String CONFIG_ACCOUNTS="Accounts";
 	public static final String CONFIG_ACCOUNT_ABOVE_THE_QUOTE="above the quote";
 	public static final String CONFIG_ACCOUNT_BELOW_THE_QUOTE="below the quote";
+	public static final String CONFIG_ACCOUNT_CONTENT_CACHE_GLOBAL="Use global";
+	public static final String CONFIG_ACCOUNT_CONTENT_CACHE_LIMIT="Message cache limit:";
 	public static final String CONFIG_ACCOUNT_DRAFT_MESSAGE_FOLDER="Draft message folder:";
 	public static final String CONFIG_ACCOUNT_FOLDERS_TO_REFRESH="Folders to refresh";
 	public static final String CONFIG_ACCOUNT_IDENTITY="Identity:";
@@ -64,6 +66,8 @@ public class LogicMailResource {
 	public static final String CONFIG_ACCOUNT_USERNAME="Username:";
 	public static final String CONFIG_GLOBAL_AUTO_STARTUP="Auto startup";
 	public static final String CONFIG_GLOBAL_CONNECTION_DEBUGGING="Connection debugging";
+	public static final String CONFIG_GLOBAL_CONTENT_CACHE_LIMIT="Message cache limit:";
+	public static final String CONFIG_GLOBAL_CONTENT_CACHE_UNLIMITED="Unlimited";
 	public static final String CONFIG_GLOBAL_ENABLE_HANDOVER="Switch to WiFi on coverage changes";
 	public static final String CONFIG_GLOBAL_ENABLE_WIFI="Use WiFi if available";
 	public static final String CONFIG_GLOBAL_EXPUNGE_ALWAYS="Always";
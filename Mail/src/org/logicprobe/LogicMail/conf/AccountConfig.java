@@ -65,6 +65,7 @@ public abstract class AccountConfig extends ConnectionConfig {
     private int initialFolderMessages;
     private int folderMessageIncrement;
     private int maximumFolderMessages;
+    private int contentCacheLimit;
 
     public static final int REFRESH_ON_STARTUP_NEVER = 0;
     public static final int REFRESH_ON_STARTUP_STATUS = 1;
@@ -132,6 +133,7 @@ public abstract class AccountConfig extends ConnectionConfig {
         initialFolderMessages = 30;
         folderMessageIncrement = 10;
         maximumFolderMessages = 100;
+        contentCacheLimit = 0;
     }
 
     /* (non-Javadoc)
@@ -547,6 +549,30 @@ public abstract class AccountConfig extends ConnectionConfig {
         }
     }
 
+    /**
+     * Gets the maximum size of the cached message content for this account.
+     * Cached content is also limited by the global limit.
+     *
+     * @return the limit, in megabytes, or <code>0</code> if only the global
+     *     limit applies
+     */
+    public int getContentCacheLimit() {
+        return contentCacheLimit;
+    }
+
+    /**
+     * Sets the maximum size of the cached message content for this account.
+     *
+     * @param contentCacheLimit the new limit, in megabytes, or <code>0</code>
+     *     if only the global limit applies
+     */
+    public void setContentCacheLimit(int contentCacheLimit) {
+        if(this.contentCacheLimit != contentCacheLimit) {
+            this.contentCacheLimit = contentCacheLimit;
+            changeType |= CHANGE_TYPE_LIMITS;
+        }
+    }
+
     /* (non-Javadoc)
      * @see org.logicprobe.LogicMail.conf.ConnectionConfig#writeConfigItems(org.logicprobe.LogicMail.util.SerializableHashtable)
      */
@@ -568,6 +594,7 @@ public abstract class AccountConfig extends ConnectionConfig {
         table.put("account_initialFolderMessages", new Integer(initialFolderMessages));
         table.put("account_folderMessageIncrement", new Integer(folderMessageIncrement));
         table.put("account_maximumFolderMessages", new Integer(maximumFolderMessages));
+        table.put("account_contentCacheLimit", new Integer(contentCacheLimit));
     }
 
     /* (non-Javadoc)
@@ -645,5 +672,8 @@ public abstract class AccountConfig extends ConnectionConfig {
 
         value = table.get("account_maximumFolderMessages");
         if(value instanceof Integer) { maximumFolderMessages = ((Integer)value).intValue(); }
+
+        value = table.get("account_contentCacheLimit");
+        if(value instanceof Integer) { contentCacheLimit = ((Integer)value).intValue(); }
     }
 }
@@ -79,6 +79,8 @@ public class GlobalConfig implements Serializable {
     private boolean dispOrder;
     /** Filesystem for local file storage */
     private String filesystemRoot = "";
+    /** Maximum size of cached message content, in megabytes */
+    private int contentCacheLimit;
     /** Preferred network transport type */
     private int transportType;
     /** Whether WiFi should be used if available */
@@ -140,6 +142,7 @@ public class GlobalConfig implements Serializable {
         this.hideDeletedMsg = true;
         this.localHostname = "";
         this.filesystemRoot = "";
+        this.contentCacheLimit = 100;
         this.promptOnDelete = true;
         this.expungeMode = GlobalConfig.EXPUNGE_PROMPT;
         this.autoStartupEnabled = false;
@@ -278,6 +281,27 @@ public class GlobalConfig implements Serializable {
         }
     }
 
+    /**
+     * Gets the maximum size of the cached message content for all accounts.
+     *
+     * @return the limit, in megabytes, or <code>0</code> for no limit
+     */
+    public int getContentCacheLimit() {
+        return contentCacheLimit;
+    }
+
+    /**
+     * Sets the maximum size of the cached message content for all accounts.
+     *
+     * @param contentCacheLimit the new limit, in megabytes, or <code>0</code> for no limit
+     */
+    public void setContentCacheLimit(int contentCacheLimit) {
+        if(this.contentCacheLimit != contentCacheLimit) {
+            this.contentCacheLimit = contentCacheLimit;
+            changeType |= CHANGE_TYPE_DATA;
+        }
+    }
+
     /**
      * Gets the preferred network transport type.
      * 
@@ -501,6 +525,7 @@ public class GlobalConfig implements Serializable {
         table.put("global_messageDisplayFormat", new Integer(messageDisplayFormat));
         table.put("global_dispOrder", new Boolean(dispOrder));
         table.put("global_filesystemRoot", filesystemRoot);
+        table.put("global_contentCacheLimit", new Integer(contentCacheLimit));
         table.put("global_transportType", new Integer(transportType));
         table.put("global_enableWiFi", new Boolean(enableWiFi));
         table.put("global_connectionHandoverEnabled", new Boolean(connectionHandoverEnabled));
@@ -548,6 +573,10 @@ public class GlobalConfig implements Serializable {
         if (value instanceof String) {
             this.filesystemRoot = (String)value;
         }
+        value = table.get("global_contentCacheLimit");
+        if(value instanceof Integer) {
+            contentCacheLimit = ((Integer)value).intValue();
+        }
         value = table.get("global_transportType");
         if(value instanceof Integer) {
             transportType = ((Integer)value).intValue();
@@ -44,12 +44,17 @@ import org.logicprobe.LogicMail.message.MimeMessagePart;
  */
 public abstract class AbstractIncomingMailClient implements IncomingMailClient {
     protected IncomingMailClientListener clientListener;
+    protected volatile PartContentStore partContentStore;
     private boolean idleEnabled = true;
 
     public void setListener(IncomingMailClientListener listener) {
         this.clientListener = listener;
     }
     
+    public void setPartContentStore(PartContentStore partContentStore) {
+        this.partContentStore = partContentStore;
+    }
+    
     public boolean isLoginRequired() {
         return true;
     }
@@ -32,6 +32,7 @@
 package org.logicprobe.LogicMail.mail;
 
 import java.io.IOException;
+import java.util.Enumeration;
 
 import net.rim.device.api.i18n.ResourceBundle;
 import net.rim.device.api.system.EventLogger;
@@ -39,7 +40,7 @@ import net.rim.device.api.system.EventLogger;
 import org.logicprobe.LogicMail.AnalyticsDataCollector;
 import org.logicprobe.LogicMail.AppInfo;
 import org.logicprobe.LogicMail.LogicMailResource;
-import org.logicprobe.LogicMail.util.Queue;
+import org.logicprobe.LogicMail.util.MultiLevelQueue;
 
 /**
  * This class is responsible for managing the lifecycle of a mail
@@ -51,14 +52,22 @@ public abstract class AbstractMailConnectionHandler {
 	private ConnectionThread connectionThread;
 	private int state;
 	private boolean transitionSilent;
-	private Queue requestQueue;
+	private MultiLevelQueue requestQueue;
 	private int retryCount;
 	private boolean invalidLogin;
 	private boolean shutdownInProgress;
 	private ConnectionHandlerRequest requestInProgress;
+	private int coalescedRequestCount;
+	private int preemptingRequestCount;
 	
 	private static final int RETRY_LIMIT = 2;
 	
+	/**
+	 * Number of times a waiting lower priority request may be passed over
+	 * before it is handled ahead of higher priority requests.
+	 */
+	private static final int AGING_LIMIT = 4;
+	
     public static final int REQUEST_DISCONNECT = 1;
     public static final int REQUEST_DISCONNECT_TIMEOUT = 2;
     
@@ -74,7 +83,8 @@ public abstract class AbstractMailConnectionHandler {
 		this.client = client;
 		this.connectionThread = new ConnectionThread();
 		this.state = STATE_CLOSED;
-		this.requestQueue = new Queue();
+		this.requestQueue = new MultiLevelQueue(
+		        ConnectionHandlerRequest.PRIORITY_MAINTENANCE + 1, AGING_LIMIT);
 		this.retryCount = 0;
 		this.invalidLogin = false;
 		this.shutdownInProgress = false;
@@ -141,21 +151,96 @@ public abstract class AbstractMailConnectionHandler {
 	
 	/**
 	 * Add a request to the queue.
+	 * The request is placed behind any other waiting requests of the
+	 * same priority.
 	 * If the connection is shutting down, all requests will be ignored.
 	 * 
 	 * @param request Request object to be added
 	 */
 	public void addRequest(ConnectionHandlerRequest request) {
 		synchronized(requestQueue) {
-			if(!shutdownInProgress) {
-				requestQueue.add(request);
+			if(!shutdownInProgress && !coalesceRequest(request)) {
+				requestQueue.add(request, request.getPriority());
 				requestQueue.notifyAll();
 			}
 		}
 	}
 	
+	/**
+	 * Offers a new request to each request waiting in the queue, to see if
+	 * any of them can take over its work.  Only requests of the same or a
+	 * higher priority are considered, so coalescing never delays the new
+	 * request.  This must be called while holding the lock on the request
+	 * queue.
+	 * 
+	 * @param request Request object being added
+	 * @return True if the request was coalesced, false if it should be added
+	 */
+	private boolean coalesceRequest(ConnectionHandlerRequest request) {
+	    int priority = request.getPriority();
+	    for(int level = 0; level <= priority && level < requestQueue.getLevelCount(); level++) {
+	        Enumeration e = requestQueue.elements(level);
+	        while(e.hasMoreElements()) {
+	            ConnectionHandlerRequest pendingRequest = (ConnectionHandlerRequest)e.nextElement();
+	            boolean adjacent = (level == priority) && !e.hasMoreElements();
+	            if(pendingRequest.coalesce(request, adjacent)) {
+	                if(request.isDeliberate()) {
+	                    pendingRequest.setDeliberate(true);
+	                }
+	                coalescedRequestCount++;
+	                if(EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+	                    EventLogger.logEvent(AppInfo.GUID,
+	                            ("Coalesced request: " + request.getClass().getName()
+	                                    + ", queue depth: " + requestQueue.size()
+	                                    + ", total coalesced: " + coalescedRequestCount).getBytes(),
+	                            EventLogger.DEBUG_INFO);
+	                }
+	                return true;
+	            }
+	        }
+	    }
+	    return false;
+	}
+	
+	/**
+	 * Gets the number of requests waiting in the queue, not including the
+	 * request currently in progress.
+	 * 
+	 * @return the queue depth
+	 */
+	public int getQueueDepth() {
+	    synchronized(requestQueue) {
+	        return requestQueue.size();
+	    }
+	}
+	
+	/**
+	 * Gets the number of requests that have been coalesced into requests
+	 * already in the queue, instead of being added to it.
+	 * 
+	 * @return the coalesced request count
+	 */
+	public int getCoalescedRequestCount() {
+	    synchronized(requestQueue) {
+	        return coalescedRequestCount;
+	    }
+	}
+	
+	/**
+	 * Gets the number of requests that have been handled by preempting a
+	 * lower priority request that was already in progress.
+	 * 
+	 * @return the preempting request count
+	 */
+	public int getPreemptingRequestCount() {
+	    synchronized(requestQueue) {
+	        return preemptingRequestCount;
+	    }
+	}
+	
     /**
-     * Pushes a request onto the head of the queue.
+     * Pushes a request onto the head of the queue, ahead of any waiting
+     * requests regardless of their priority.
      * If the connection is shutting down, all requests will be ignored.
      * 
      * @param request Request object to be pushed
@@ -260,14 +345,16 @@ public abstract class AbstractMailConnectionHandler {
      * @throws MailException on protocol errors
      */
 	private void handlePendingRequests() throws IOException, MailException {
-		Queue requestQueue = getRequestQueue();
+		MultiLevelQueue requestQueue = getRequestQueue();
 		Object element;
 		synchronized(requestQueue) {
 			element = requestQueue.element();
 		}
 		while(element != null) {
 			synchronized (requestQueue) {
-				requestQueue.remove();
+				// A higher priority request may have been added since the
+				// last check, so the removed element is the one handled.
+				element = requestQueue.remove();
 			}
 			ConnectionHandlerRequest request = (ConnectionHandlerRequest)element;
 			
@@ -288,6 +375,85 @@ public abstract class AbstractMailConnectionHandler {
 		setConnectionState(STATE_IDLE);
 	}
 
+	/**
+	 * Handles any waiting requests that have a higher priority than the
+	 * request currently in progress.  This is called by long-running
+	 * requests, through their progress handler, at points where they can
+	 * safely be interrupted.  The waiting requests are executed on the
+	 * connection thread before control returns to the interrupted request.
+	 * <p>
+	 * Non-fatal errors from a preempting request only fail that request.
+	 * Fatal errors put the preempting request back at the head of the queue,
+	 * and are then thrown so they are handled as errors of the interrupted
+	 * request.
+	 * </p>
+	 * 
+	 * @return true if any requests were handled, false otherwise
+     * @throws IOException on I/O errors
+     * @throws MailException on fatal protocol errors
+	 */
+	public boolean handlePreemptingRequests() throws IOException, MailException {
+	    ConnectionHandlerRequest preemptedRequest = requestInProgress;
+	    if(preemptedRequest == null || Thread.currentThread() != connectionThread) {
+	        return false;
+	    }
+	    
+	    int priority = preemptedRequest.getPriority();
+	    boolean handled = false;
+	    while(true) {
+	        ConnectionHandlerRequest request;
+	        synchronized(requestQueue) {
+	            int level = requestQueue.getFirstLevel();
+	            if(level == -1 || level >= priority || shutdownInProgress) { break; }
+	            request = (ConnectionHandlerRequest)requestQueue.element(level);
+	            if(request.getPriority() >= priority) { break; }
+	            requestQueue.remove(level);
+	            preemptingRequestCount++;
+	        }
+	        
+	        if(EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+	            EventLogger.logEvent(AppInfo.GUID,
+	                    ("Preempting request: " + preemptedRequest.getClass().getName()
+	                            + " with: " + request.getClass().getName()).getBytes(),
+	                    EventLogger.DEBUG_INFO);
+	        }
+	        
+	        requestInProgress = request;
+	        try {
+	            if(request.isAdministrative()) {
+	                handleAdministrativeRequest(request);
+	            }
+	            else {
+	                showInitialStatusIfDeliberate(request);
+	                handleRequest(request);
+	            }
+	        } catch (IOException e) {
+	            requestInProgress = preemptedRequest;
+	            synchronized(requestQueue) {
+	                requestQueue.push(request);
+	            }
+	            throw e;
+	        } catch (MailException e) {
+	            requestInProgress = preemptedRequest;
+	            if(e.isFatal() || e.getCause() == REQUEST_DISCONNECT
+	                    || e.getCause() == REQUEST_DISCONNECT_TIMEOUT) {
+	                synchronized(requestQueue) {
+	                    requestQueue.push(request);
+	                }
+	                throw e;
+	            }
+	            EventLogger.logEvent(AppInfo.GUID, e.toString().getBytes(), EventLogger.ERROR);
+	            if(request.isDeliberate()) {
+	                showError(e.getMessage());
+	            }
+	            handleRequestFailed(request, e, true);
+	        }
+	        requestInProgress = preemptedRequest;
+	        handled = true;
+	    }
+	    return handled;
+	}
+
 	/**
 	 * Handles a specific request during the REQUESTS state.
 	 * <p>
@@ -500,7 +666,7 @@ public abstract class AbstractMailConnectionHandler {
 	 * 
 	 * @return Request queue
 	 */
-	protected Queue getRequestQueue() {
+	protected MultiLevelQueue getRequestQueue() {
 		return this.requestQueue;
 	}
 	
@@ -37,6 +37,24 @@ import java.io.IOException;
  * Interface used by the connection handler to manage requests. 
  */
 public interface ConnectionHandlerRequest {
+    /**
+     * Priority for requests made in response to direct user action, which
+     * the user is waiting on.
+     */
+    public static final int PRIORITY_INTERACTIVE = 0;
+    
+    /**
+     * Priority for background requests that fetch data the user is likely
+     * to want soon, such as message content.
+     */
+    public static final int PRIORITY_PREFETCH = 1;
+    
+    /**
+     * Priority for background requests that keep the mail store up to date,
+     * such as automated refreshes, status checks, and connection management.
+     */
+    public static final int PRIORITY_MAINTENANCE = 2;
+    
     /**
      * Sets whether this is a deliberate request.
      * Deliberate requests are created in response to direct user action,
@@ -58,6 +76,17 @@ public interface ConnectionHandlerRequest {
      */
     boolean isAdministrative();
     
+    /**
+     * Gets the priority class of this request, which determines where it is
+     * placed in the connection handler's request queue.  Requests of a
+     * higher priority are handled first, and may preempt a long-running
+     * request of a lower priority at convenient points in its execution.
+     *
+     * @return one of {@link #PRIORITY_INTERACTIVE},
+     *     {@link #PRIORITY_PREFETCH}, or {@link #PRIORITY_MAINTENANCE}
+     */
+    int getPriority();
+    
     /**
      * Requests are normally responsible for showing their own status messages.
      * This method is called prior to processing a request, so that its initial
@@ -71,6 +100,19 @@ public interface ConnectionHandlerRequest {
      */
     void execute(MailClient client) throws IOException, MailException;
     
+    /**
+     * Attempts to coalesce a request that is being added to the queue into
+     * this request, which is already waiting in the queue.  If successful,
+     * this request takes over the work of the other request, and notifies
+     * the other request's callbacks along with its own.
+     *
+     * @param request the request being added to the queue
+     * @param adjacent true if this request is at the tail of the queue, so
+     *     no other requests would have been executed between the two
+     * @return true if the request was coalesced, and should not be queued
+     */
+    boolean coalesce(ConnectionHandlerRequest request, boolean adjacent);
+    
     /**
      * Notifies a request that it has failed.
      * This can be caused either by an exception being thrown during its
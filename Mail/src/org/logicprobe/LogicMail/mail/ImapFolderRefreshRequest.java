@@ -42,21 +42,30 @@ import org.logicprobe.LogicMail.LogicMailResource;
 import org.logicprobe.LogicMail.mail.imap.ImapClient;
 import org.logicprobe.LogicMail.message.FolderMessage;
 
-class ImapFolderRefreshRequest extends NetworkMailStoreRequest implements MailStoreRequest {
+class ImapFolderRefreshRequest extends NetworkMailStoreRequest implements FolderRefreshRequest {
+    /** Index of the UIDVALIDITY value within the synchronization state */
+    private static final int SYNC_UIDVALIDITY = 0;
+    /** Index of the HIGHESTMODSEQ value within the synchronization state */
+    private static final int SYNC_HIGHESTMODSEQ = 1;
+    
     private final String statusMessage;
     private final FolderTreeItem folder;
     private final Hashtable loadedMessageMap;
+    private final long[] loadedSyncState;
+    private long[] resultSyncState;
     private int messageRetentionLimit;
     private volatile boolean checkAllTokens;
     private volatile boolean recentMessageAvailable;
     private Vector secondaryMessageTokensToFetch;
     private boolean bypassRequest;
     
-    ImapFolderRefreshRequest(NetworkMailStore mailStore, FolderTreeItem folder, FolderMessage[] loadedMessages) {
+    ImapFolderRefreshRequest(NetworkMailStore mailStore, FolderTreeItem folder, FolderMessage[] loadedMessages, long[] syncState) {
         super(mailStore);
         this.statusMessage = LogicMailResource.MAILCONNECTION_REQUEST_FOLDER_MESSAGES;
         this.folder = folder;
         this.loadedMessageMap = new Hashtable();
+        this.loadedSyncState = (loadedMessages != null
+                && syncState != null && syncState.length > SYNC_HIGHESTMODSEQ) ? syncState : null;
         if(loadedMessages != null) {
             for(int i=0; i<loadedMessages.length; i++) {
                 loadedMessageMap.put(
@@ -70,6 +79,29 @@ class ImapFolderRefreshRequest extends NetworkMailStoreRequest implements MailSt
         return folder;
     }
     
+    public long[] getSyncState() {
+        return resultSyncState;
+    }
+    
+    /**
+     * Coalesces a later refresh request for the same folder, since this
+     * request will already bring that folder up to date.
+     */
+    public boolean coalesce(ConnectionHandlerRequest request, boolean adjacent) {
+        if(!(request instanceof ImapFolderRefreshRequest)) { return false; }
+        ImapFolderRefreshRequest refreshRequest = (ImapFolderRefreshRequest)request;
+        if(refreshRequest.mailStore != mailStore
+                || !refreshRequest.folder.getPath().equals(folder.getPath())) {
+            return false;
+        }
+        addCoalescedRequest(refreshRequest);
+        return true;
+    }
+    
+    protected void copyResultTo(NetworkMailStoreRequest request) {
+        ((ImapFolderRefreshRequest)request).resultSyncState = resultSyncState;
+    }
+    
     public boolean isAdministrative() {
         // If this request enters the queue during IMAP IDLE, and it is for the
         // same folder that is currently being idled on, then mark it as
@@ -104,15 +136,6 @@ class ImapFolderRefreshRequest extends NetworkMailStoreRequest implements MailSt
         }
     }
 
-    protected void handleSetActiveFolder(IncomingMailClient incomingClient, FolderTreeItem folder) throws IOException, MailException {
-        boolean isStateValid = incomingClient.setActiveFolder(folder, true);
-        
-        if(!isStateValid) {
-            // Set a local flag, instead of firing an event
-            checkAllTokens = true;
-        }
-    }
-    
     public void execute(MailClient client) throws IOException, MailException {
         ImapClient incomingClient = (ImapClient)client;
         
@@ -123,24 +146,102 @@ class ImapFolderRefreshRequest extends NetworkMailStoreRequest implements MailSt
         
         this.messageRetentionLimit = incomingClient.getAcctConfig().getMaximumFolderMessages();
         
-        if(!checkActiveFolder(incomingClient, folder)) {
+        FolderTreeItem activeFolder = incomingClient.getActiveFolder();
+        if(activeFolder != null && activeFolder.getPath().equals(folder.getPath())) {
             // Shortcut out if the folder selection has not changed, and a
             // refresh is not required.
             fireMailStoreRequestComplete();
             return;
         }
         
-        // Fetch new folder messages from the mail store
+        // Flags for the cached messages are fetched along with the folder
+        // selection and the new message flags, so the commands can be
+        // pipelined.  Only the ones that actually need to be verified are
+        // used once the new message flags are known.
+        MessageToken[] loadedTokens;
+        if(messageRetentionLimit > 0) {
+            loadedTokens = new MessageToken[loadedMessageMap.size()];
+            int index = 0;
+            for(Enumeration e = loadedMessageMap.elements(); e.hasMoreElements() ;) {
+                loadedTokens[index++] = ((FolderMessage)e.nextElement()).getMessageToken();
+            }
+        }
+        else {
+            loadedTokens = new MessageToken[0];
+        }
+        
+        // Select the folder and fetch new folder messages from the mail store
         Vector folderMessages = new Vector();
-        incomingClient.getNewFolderMessages(
-                true,
-                new GetFolderMessageCallback(folderMessages, true),
-                getProgressHandler(statusMessage));
+        final Vector loadedFolderMessages = new Vector();
+        FolderMessageCallback loadedCallback = new FolderMessageCallback() {
+            public void folderMessageUpdate(FolderMessage folderMessage) {
+                if(folderMessage != null) {
+                    loadedFolderMessages.addElement(folderMessage);
+                }
+            }
+        };
+        
+        boolean isStateValid;
+        Vector vanishedTokens = null;
+        if(loadedSyncState != null && loadedTokens.length > 0 && incomingClient.hasQuickResync()) {
+            // The cached messages were persisted along with a mod-sequence,
+            // so the server only needs to tell us what has changed since.
+            vanishedTokens = new Vector();
+            boolean resynchronized = incomingClient.resyncActiveFolder(
+                    folder,
+                    loadedTokens,
+                    (int)loadedSyncState[SYNC_UIDVALIDITY],
+                    loadedSyncState[SYNC_HIGHESTMODSEQ],
+                    vanishedTokens,
+                    new GetFolderMessageCallback(folderMessages, true),
+                    loadedCallback,
+                    getProgressHandler(statusMessage));
+            
+            if(resynchronized) {
+                // Every cached message that has not vanished still exists
+                checkAllTokens = true;
+                isStateValid = true;
+            }
+            else {
+                vanishedTokens = null;
+                incomingClient.getFolderMessages(
+                        loadedTokens,
+                        true,
+                        loadedCallback,
+                        getProgressHandler(statusMessage));
+                isStateValid = false;
+            }
+        }
+        else {
+            isStateValid = incomingClient.setActiveFolder(
+                    folder,
+                    loadedTokens,
+                    new GetFolderMessageCallback(folderMessages, true),
+                    loadedCallback,
+                    getProgressHandler(statusMessage));
+        }
         
-        initialFlagsRefreshComplete(incomingClient, folderMessages);
+        if(!isStateValid) {
+            checkAllTokens = true;
+        }
+        
+        initialFlagsRefreshComplete(folderMessages, loadedFolderMessages, vanishedTokens);
+        
+        finalFolderMessageFetch(incomingClient);
+        
+        // Once the folder has been selected, the cache has been reconciled
+        // with the server, even if nothing was cached beforehand.  So the
+        // sync state is kept whenever the server provides one, allowing the
+        // next refresh to be a quick resynchronization.
+        long highestModSeq = incomingClient.getActiveFolderHighestModSeq();
+        if(highestModSeq > 0) {
+            resultSyncState = new long[2];
+            resultSyncState[SYNC_UIDVALIDITY] = incomingClient.getActiveFolderUidValidity();
+            resultSyncState[SYNC_HIGHESTMODSEQ] = highestModSeq;
+        }
     }
 
-    private void initialFlagsRefreshComplete(ImapClient incomingClient, Vector pendingFlagUpdates) throws IOException, MailException {
+    private void initialFlagsRefreshComplete(Vector pendingFlagUpdates, Vector loadedFlagUpdates, Vector vanishedTokens) {
         secondaryMessageTokensToFetch = new Vector();
         MessageToken oldestFetchedToken = null;
         Comparator tokenComparator = null;
@@ -176,44 +277,49 @@ class ImapFolderRefreshRequest extends NetworkMailStoreRequest implements MailSt
         pendingFlagUpdates.removeAllElements();
         
         // Build a collection of messages in the cache that still need to be verified
-        Vector cachedTokensToCheck = new Vector();
+        Hashtable cachedTokensToCheck = new Hashtable();
         if(checkAllTokens) {
             for(Enumeration e = loadedMessageMap.elements(); e.hasMoreElements() ;) {
                 MessageToken token = ((FolderMessage)e.nextElement()).getMessageToken();
-                cachedTokensToCheck.addElement(token);
+                cachedTokensToCheck.put(token.getMessageUid(), token);
             }
         }
         else if(oldestFetchedToken != null) {
             for(Enumeration e = loadedMessageMap.elements(); e.hasMoreElements() ;) {
                 MessageToken token = ((FolderMessage)e.nextElement()).getMessageToken();
                 if(tokenComparator.compare(token, oldestFetchedToken) < 0) {
-                    cachedTokensToCheck.addElement(token);
+                    cachedTokensToCheck.put(token.getMessageUid(), token);
                 }
             }
         }
         checkAllTokens = false;
         
-        if(cachedTokensToCheck.size() > 0 && messageRetentionLimit > 0) {
-            // Perform a second flags fetch
-            MessageToken[] tokens = new MessageToken[cachedTokensToCheck.size()];
-            cachedTokensToCheck.copyInto(tokens);
-            
+        if(cachedTokensToCheck.size() > 0 && messageRetentionLimit > 0 && vanishedTokens != null) {
+            resyncRefreshComplete(cachedTokensToCheck, loadedFlagUpdates, vanishedTokens);
+        }
+        else if(cachedTokensToCheck.size() > 0 && messageRetentionLimit > 0) {
+            // Use the flags that were fetched along with the folder selection
             Vector folderMessages = new Vector();
-            incomingClient.getFolderMessages(
-                    tokens,
-                    true,
-                    new GetFolderMessageCallback(folderMessages, true),
-                    getProgressHandler(statusMessage));
+            GetFolderMessageCallback callback = new GetFolderMessageCallback(folderMessages, true);
+            size = loadedFlagUpdates.size();
+            for(int i=0; i<size; i++) {
+                FolderMessage message = (FolderMessage)loadedFlagUpdates.elementAt(i);
+                if(cachedTokensToCheck.containsKey(message.getMessageToken().getMessageUid())) {
+                    callback.folderMessageUpdate(message);
+                }
+            }
+            callback.folderMessageUpdate(null);
+            loadedFlagUpdates.removeAllElements();
             
-            secondaryFlagsRefreshComplete(incomingClient, folderMessages);
+            secondaryFlagsRefreshComplete(folderMessages);
         }
         else {
+            loadedFlagUpdates.removeAllElements();
             removeOrphanedMessages();
-            finalFolderMessageFetch(incomingClient);
         }
     }
     
-    private void secondaryFlagsRefreshComplete(ImapClient incomingClient, Vector pendingFlagUpdates) throws IOException, MailException {
+    private void secondaryFlagsRefreshComplete(Vector pendingFlagUpdates) {
         int size = pendingFlagUpdates.size();
         BigVector messagesUpdated = new BigVector(size);
         Comparator folderMessageComparator = FolderMessage.getComparator();
@@ -244,26 +350,90 @@ class ImapFolderRefreshRequest extends NetworkMailStoreRequest implements MailSt
         }
         
         removeOrphanedMessages();
-        finalFolderMessageFetch(incomingClient);
+    }
+
+    private void resyncRefreshComplete(Hashtable cachedTokensToCheck, Vector changedFlagUpdates, Vector vanishedTokens) {
+        // Messages that have been expunged are left in the orphan set
+        int size = vanishedTokens.size();
+        for(int i=0; i<size; i++) {
+            MessageToken token = (MessageToken)vanishedTokens.elementAt(i);
+            cachedTokensToCheck.remove(token.getMessageUid());
+        }
+        vanishedTokens.removeAllElements();
+        
+        // Only messages that have changed since the last refresh had their
+        // flags fetched, so provide updates for those
+        GetFolderMessageCallback callback = new GetFolderMessageCallback(true);
+        size = changedFlagUpdates.size();
+        for(int i=0; i<size; i++) {
+            FolderMessage message = (FolderMessage)changedFlagUpdates.elementAt(i);
+            if(cachedTokensToCheck.containsKey(message.getMessageToken().getMessageUid())) {
+                callback.folderMessageUpdate(message);
+            }
+        }
+        callback.folderMessageUpdate(null);
+        changedFlagUpdates.removeAllElements();
+        
+        // Every other message still exists, so determine how many of them
+        // we can keep
+        size = cachedTokensToCheck.size();
+        BigVector tokensRetained = new BigVector(size);
+        Comparator tokenComparator = null;
+        for(Enumeration e = cachedTokensToCheck.elements(); e.hasMoreElements() ;) {
+            MessageToken token = (MessageToken)e.nextElement();
+            if(tokenComparator == null) {
+                tokenComparator = token.getComparator();
+            }
+            tokensRetained.addElement(token);
+        }
+        if(tokenComparator != null) {
+            tokensRetained.sort(tokenComparator);
+        }
+        
+        int splitIndex = Math.max(0, size - messageRetentionLimit);
+        for(int i=splitIndex; i<size; i++) {
+            MessageToken token = (MessageToken)tokensRetained.elementAt(i);
+            loadedMessageMap.remove(token.getMessageUid());
+        }
+        
+        removeOrphanedMessages();
     }
 
     private void finalFolderMessageFetch(ImapClient incomingClient) throws IOException, MailException {
-        // Queue a fetch for messages missing from the cache
-        if(!secondaryMessageTokensToFetch.isEmpty()) {
-            MessageToken[] fetchArray = new MessageToken[secondaryMessageTokensToFetch.size()];
-            secondaryMessageTokensToFetch.copyInto(fetchArray);
-            secondaryMessageTokensToFetch.removeAllElements();
-            
+        MessageToken[] fetchArray = new MessageToken[secondaryMessageTokensToFetch.size()];
+        secondaryMessageTokensToFetch.copyInto(fetchArray);
+        secondaryMessageTokensToFetch.removeAllElements();
+        loadedMessageMap.clear();
+        
+        // Queue a fetch for messages missing from the cache, handling the
+        // unlikely-but-possible case of an untagged new message notification
+        // during the folder refresh process.  If both are needed, they are
+        // pipelined together.
+        boolean fetchRecent = recentMessageAvailable;
+        recentMessageAvailable = false;
+        if(fetchArray.length > 0 && fetchRecent) {
+            incomingClient.getFolderMessages(
+                    fetchArray,
+                    new GetFolderMessageCallback(false),
+                    new GetFolderMessageCallback(false),
+                    getProgressHandler(statusMessage));
+        }
+        else if(fetchArray.length > 0) {
             incomingClient.getFolderMessages(
                     fetchArray,
                     false,
                     new GetFolderMessageCallback(false),
                     getProgressHandler(statusMessage));
         }
-        loadedMessageMap.clear();
-
-        // Handle the unlikely-but-possible case of an untagged new message
-        // notification during the folder refresh process.
+        else if(fetchRecent) {
+            incomingClient.getNewFolderMessages(
+                    false,
+                    new GetFolderMessageCallback(false),
+                    getProgressHandler(statusMessage));
+        }
+        
+        // A new message notification could also arrive while the above
+        // fetches were in progress.
         if(recentMessageAvailable) {
             incomingClient.getNewFolderMessages(
                     false,
@@ -80,6 +80,16 @@ public interface IncomingMailClient extends MailClient {
      */
     void setListener(IncomingMailClientListener listener);
     
+    /**
+     * Set the store used to hold the content of large message parts while
+     * they are being fetched, instead of holding it in memory.
+     * Clients that cannot stream part content may ignore this.
+     * 
+     * @param partContentStore the store to set, or <code>null</code> to
+     *     always fetch content into memory
+     */
+    void setPartContentStore(PartContentStore partContentStore);
+    
     /**
      * Get the account configuration.
      * Should probably find a way to remove the need for this.
@@ -301,7 +311,7 @@ public interface IncomingMailClient extends MailClient {
      * expunge.
      * <p>
      * The list of expunged messages will be provided asynchronously via
-     * {@link IncomingMailClientListener#folderMessageExpunged(MessageToken)}.
+     * {@link IncomingMailClientListener#folderMessagesExpunged(MessageToken[], MessageToken[])}.
      * </p>
      * 
      * @throws IOException on I/O errors
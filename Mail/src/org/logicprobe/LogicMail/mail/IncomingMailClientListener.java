@@ -59,13 +59,14 @@ public interface IncomingMailClientListener {
     void folderMessageFlagsChanged(MessageToken token, MessageFlags messageFlags);
     
     /**
-     * Called to indicate that a message has been expunged from the active
+     * Called to indicate that messages have been expunged from the active
      * mailbox.
      *  
-     * @param expungedToken the token of the expunged message, or null if unavailable
+     * @param expungedTokens the tokens of the expunged messages, with null
+     *     entries for any that are unavailable
      * @param updatedTokens the tokens with updated data as a result of the expunge operation
      */
-    void folderMessageExpunged(MessageToken expungedToken, MessageToken[] updatedTokens);
+    void folderMessagesExpunged(MessageToken[] expungedTokens, MessageToken[] updatedTokens);
     
     /**
      * Called to indicate that idle processing has prematurely terminated
@@ -32,8 +32,6 @@
 package org.logicprobe.LogicMail.mail;
 
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import net.rim.device.api.system.Backlight;
 import net.rim.device.api.system.DeviceInfo;
@@ -44,7 +42,8 @@ import org.logicprobe.LogicMail.conf.AccountConfig;
 import org.logicprobe.LogicMail.conf.ConnectionConfig;
 import org.logicprobe.LogicMail.conf.MailSettings;
 import org.logicprobe.LogicMail.message.MessageFlags;
-import org.logicprobe.LogicMail.util.Queue;
+import org.logicprobe.LogicMail.util.MultiLevelQueue;
+import org.logicprobe.LogicMail.util.TimerWheel;
 
 public class IncomingMailConnectionHandler extends AbstractMailConnectionHandler {
     private final NetworkMailStore mailStore;
@@ -77,16 +76,15 @@ public class IncomingMailConnectionHandler extends AbstractMailConnectionHandler
      */
     private static final int LOCKED_INTERVAL = 15000;
     
-    private final Timer idleTimer = new Timer();
-    private TimerTask idleTimerTask;
+    private TimerWheel.Timeout idleTimerTask;
     private boolean idleTimeout;
     private boolean idleRecentMessagesRequested;
     private long idleStartTime;
     private boolean idleEnabledAtBegin;
     
     private volatile long accumulatedIdleTime;
-    private final Timer pollingTimer = new Timer();
-    private TimerTask pollingTimerTask;
+    private final Object pollingTimerLock = new Object();
+    private TimerWheel.Timeout pollingTimerTask;
     
     private static final int MS_PER_MIN = 60000;
     private static final int REFRESH_TOLERANCE = 60000;
@@ -105,8 +103,8 @@ public class IncomingMailConnectionHandler extends AbstractMailConnectionHandler
         public void folderMessageFlagsChanged(MessageToken token, MessageFlags messageFlags) {
             handleFolderMessageFlagsChanged(token, messageFlags);
         }
-        public void folderMessageExpunged(MessageToken expungedToken, MessageToken[] updatedTokens) {
-            handleFolderMessageExpunged(expungedToken, updatedTokens);
+        public void folderMessagesExpunged(MessageToken[] expungedTokens, MessageToken[] updatedTokens) {
+            handleFolderMessagesExpunged(expungedTokens, updatedTokens);
         }
         public void idleModeError() {
             handleIdleModeError();
@@ -173,16 +171,16 @@ public class IncomingMailConnectionHandler extends AbstractMailConnectionHandler
         mailStore.fireMessageFlagsChanged(token, messageFlags);
     }
 
-    private void handleFolderMessageExpunged(MessageToken expungedToken, MessageToken[] updatedTokens) {
+    private void handleFolderMessagesExpunged(MessageToken[] expungedTokens, MessageToken[] updatedTokens) {
         // This notification just updates local data, so it does not need to
         // break out of the idle state.
         
-        mailStore.fireFolderExpunged(incomingClient.getActiveFolder(), new MessageToken[] { expungedToken }, updatedTokens);
+        mailStore.fireFolderExpunged(incomingClient.getActiveFolder(), expungedTokens, updatedTokens);
     }
 
     private void handleIdleModeError() {
         idleTimerTask.cancel();
-        Queue requestQueue = getRequestQueue();
+        MultiLevelQueue requestQueue = getRequestQueue();
         synchronized(requestQueue) {
             requestQueue.notifyAll();
         }
@@ -230,18 +228,17 @@ public class IncomingMailConnectionHandler extends AbstractMailConnectionHandler
     private void startIdleTimer(int timeout) {
         idleRecentMessagesRequested = false;
         idleTimeout = false;
-        idleTimerTask = new TimerTask() {
+        idleTimerTask = TimerWheel.getInstance().schedule(new Runnable() {
             public void run() {
                 handleIdleModeTimeout();
             }
-        };
-        idleTimer.schedule(idleTimerTask, timeout);
+        }, timeout);
     }
     
     private void startLockedFoldersIdleTimer() {
         idleRecentMessagesRequested = false;
         idleTimeout = false;
-        idleTimerTask = new TimerTask() {
+        idleTimerTask = TimerWheel.getInstance().schedule(new Runnable() {
             public void run() {
                 boolean handleTimeout = false;
                 long timeInIdle = System.currentTimeMillis() - idleStartTime;
@@ -271,13 +268,12 @@ public class IncomingMailConnectionHandler extends AbstractMailConnectionHandler
                     handleIdleModeTimeout();
                 }
             }
-        };
-        idleTimer.scheduleAtFixedRate(idleTimerTask, LOCKED_INTERVAL, LOCKED_INTERVAL);
+        }, LOCKED_INTERVAL, LOCKED_INTERVAL);
     }
 
     protected void handleIdleModeTimeout() {
         idleTimeout = true;
-        Queue requestQueue = getRequestQueue();
+        MultiLevelQueue requestQueue = getRequestQueue();
         synchronized(requestQueue) {
             requestQueue.notifyAll();
         }
@@ -478,7 +474,7 @@ public class IncomingMailConnectionHandler extends AbstractMailConnectionHandler
 
     public void startPollingThread() {
         long refreshFrequency = 0;
-        synchronized(pollingTimer) {
+        synchronized(pollingTimerLock) {
             if(getConnectionState() == STATE_CLOSED && pollingTimerTask == null) {
                 refreshFrequency = accountConfig.getRefreshFrequency() * MS_PER_MIN;
             }
@@ -489,23 +485,22 @@ public class IncomingMailConnectionHandler extends AbstractMailConnectionHandler
     }
 
     private void schedulePollingRefresh(long nextRefresh) {
-        synchronized(pollingTimer) {
+        synchronized(pollingTimerLock) {
             if(pollingTimerTask != null) {
                 pollingTimerTask.cancel();
                 pollingTimerTask = null;
             }
-            pollingTimerTask = new TimerTask() {
+            pollingTimerTask = TimerWheel.getInstance().schedule(new Runnable() {
                 public void run() {
                     accumulatedIdleTime = 0;
                     mailStore.fireRefreshRequired(false);
                 }
-            };
-            pollingTimer.schedule(pollingTimerTask, nextRefresh);
+            }, nextRefresh);
         }
     }
     
     private void cleanupIdleState() {
-        synchronized(pollingTimer) {
+        synchronized(pollingTimerLock) {
             if(pollingTimerTask != null) {
                 pollingTimerTask.cancel();
                 pollingTimerTask = null;
@@ -30,6 +30,8 @@
  */
 package org.logicprobe.LogicMail.mail;
 
+import java.io.IOException;
+
 /**
  * Interface for mail progress handlers.
  * <p>
@@ -62,4 +64,21 @@ public interface MailProgressHandler {
 	 * @param max the maximum value the count may reach, or -1 if not known
 	 */
 	void mailProgress(int type, int count, int max);
+	
+	/**
+	 * Called by long-running operations at points where they can safely be
+	 * interrupted, such as between the increments of a message body fetch.
+	 * <p>
+	 * Implementers may use this opportunity to execute any waiting requests
+	 * of a higher priority on the same connection, before returning control
+	 * to the interrupted operation.  If this method returns true, then the
+	 * caller must assume that any protocol state it depends on, such as the
+	 * selected mailbox, has changed and needs to be restored.
+	 * </p>
+	 * 
+	 * @return true if other requests were executed, false otherwise
+	 * @throws IOException on I/O errors from the executed requests
+	 * @throws MailException on fatal protocol errors from the executed requests
+	 */
+	boolean yieldToWaitingRequests() throws IOException, MailException;
 }
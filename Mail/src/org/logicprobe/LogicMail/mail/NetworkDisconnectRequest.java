@@ -48,6 +48,11 @@ class NetworkDisconnectRequest extends NetworkMailStoreRequest implements MailSt
         return type;
     }
     
+    public int getPriority() {
+        // Connection management must never preempt other requests
+        return PRIORITY_MAINTENANCE;
+    }
+    
     protected String getInitialStatus() {
         return null;
     }
@@ -47,6 +47,31 @@ class NetworkFolderStatusRequest extends NetworkMailStoreRequest implements Fold
         return folders;
     }
 
+    /**
+     * Coalesces a later status request if this request already covers all
+     * of its folders, since it will then be superseded by this one.
+     */
+    public boolean coalesce(ConnectionHandlerRequest request, boolean adjacent) {
+        if(!(request instanceof NetworkFolderStatusRequest)) { return false; }
+        NetworkFolderStatusRequest statusRequest = (NetworkFolderStatusRequest)request;
+        if(statusRequest.mailStore != mailStore) { return false; }
+        
+        for(int i=0; i<statusRequest.folders.length; i++) {
+            if(!containsFolder(statusRequest.folders[i])) { return false; }
+        }
+        addCoalescedRequest(statusRequest);
+        return true;
+    }
+    
+    private boolean containsFolder(FolderTreeItem folder) {
+        for(int i=0; i<folders.length; i++) {
+            if(folders[i].getPath().equals(folder.getPath())) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     protected String getInitialStatus() {
         return LogicMailResource.MAILCONNECTION_REQUEST_FOLDER_STATUS;
     }
@@ -48,6 +48,11 @@ class NetworkHandoverRequest extends NetworkMailStoreRequest implements MailStor
         super(mailStore);
     }
 
+    public int getPriority() {
+        // Connection management must never preempt other requests
+        return PRIORITY_MAINTENANCE;
+    }
+    
     protected String getInitialStatus() {
         return null;
     }
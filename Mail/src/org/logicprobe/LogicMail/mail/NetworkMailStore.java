@@ -76,6 +76,17 @@ public class NetworkMailStore extends AbstractMailStore {
 		}
 	}
 	
+	/**
+	 * Sets the store used to hold the content of large message parts while
+	 * they are being fetched.
+	 * 
+	 * @param partContentStore the store to set
+	 * @see IncomingMailClient#setPartContentStore(PartContentStore)
+	 */
+	public void setPartContentStore(PartContentStore partContentStore) {
+		client.setPartContentStore(partContentStore);
+	}
+	
 	public boolean isLocal() {
 		return false;
 	}
@@ -224,11 +235,13 @@ public class NetworkMailStore extends AbstractMailStore {
 	 * @param loadedMessages Collection of {@link FolderMessage} objects
 	 *     for messages that have already been loaded for this folder prior to
 	 *     the start of the refresh operation. 
+	 * @param syncState The synchronization state that was persisted along
+	 *     with the loaded messages, or <code>null</code> if not available.
 	 * @return the request object
 	 */
-	public MailStoreRequest createFolderRefreshRequest(FolderTreeItem folder, FolderMessage[] loadedMessages) {
+	public FolderRefreshRequest createFolderRefreshRequest(FolderTreeItem folder, FolderMessage[] loadedMessages, long[] syncState) {
 	    if(client instanceof ImapClient) {
-            return new ImapFolderRefreshRequest(this, folder, loadedMessages);
+            return new ImapFolderRefreshRequest(this, folder, loadedMessages, syncState);
 	    }
 	    else if(client instanceof PopClient) {
 	        return new PopFolderRefreshRequest(this, folder, loadedMessages);
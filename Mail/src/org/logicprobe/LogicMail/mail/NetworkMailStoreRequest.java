@@ -32,6 +32,7 @@
 package org.logicprobe.LogicMail.mail;
 
 import java.io.IOException;
+import java.util.Vector;
 
 import net.rim.device.api.i18n.MessageFormat;
 
@@ -43,6 +44,9 @@ abstract class NetworkMailStoreRequest extends AbstractMailStoreRequest implemen
     protected final AccountConfig config;
     private boolean deliberate = true;
     
+    /** Requests that were coalesced into this one, and complete along with it */
+    private Vector coalescedRequests;
+    
     NetworkMailStoreRequest(NetworkMailStore mailStore) {
         this.mailStore = mailStore;
         this.config = mailStore.getAccountConfig();
@@ -64,6 +68,16 @@ abstract class NetworkMailStoreRequest extends AbstractMailStoreRequest implemen
         return false;
     }
     
+    /**
+     * Deliberate requests are interactive, while all other requests are
+     * considered maintenance by default.  Subclasses that fetch data ahead
+     * of the user, or that manage the connection itself, should override
+     * this method.
+     */
+    public int getPriority() {
+        return deliberate ? PRIORITY_INTERACTIVE : PRIORITY_MAINTENANCE;
+    }
+    
     protected abstract String getInitialStatus();
     
     public void showInitialStatus() {
@@ -74,6 +88,61 @@ abstract class NetworkMailStoreRequest extends AbstractMailStoreRequest implemen
         fireMailStoreRequestFailed(exception, isFinal);
     }
     
+    /**
+     * Requests cannot be coalesced by default.  Subclasses that can take
+     * over the work of another request should override this method, and
+     * call {@link #addCoalescedRequest(NetworkMailStoreRequest)} if they do.
+     */
+    public boolean coalesce(ConnectionHandlerRequest request, boolean adjacent) {
+        return false;
+    }
+    
+    /**
+     * Adds a request whose work has been taken over by this request, so its
+     * callbacks are notified whenever this request completes or fails.
+     *
+     * @param request the coalesced request
+     */
+    protected void addCoalescedRequest(NetworkMailStoreRequest request) {
+        if(coalescedRequests == null) {
+            coalescedRequests = new Vector();
+        }
+        coalescedRequests.addElement(request);
+    }
+    
+    /**
+     * Called before notifying the callback of a coalesced request that this
+     * request has completed.  Subclasses that have results should override
+     * this method to copy them into the coalesced request.
+     *
+     * @param request the coalesced request
+     */
+    protected void copyResultTo(NetworkMailStoreRequest request) {
+    }
+    
+    protected void fireMailStoreRequestComplete() {
+        super.fireMailStoreRequestComplete();
+        if(coalescedRequests != null) {
+            int size = coalescedRequests.size();
+            for(int i=0; i<size; i++) {
+                NetworkMailStoreRequest request = (NetworkMailStoreRequest)coalescedRequests.elementAt(i);
+                copyResultTo(request);
+                request.fireMailStoreRequestComplete();
+            }
+        }
+    }
+    
+    protected void fireMailStoreRequestFailed(Throwable exception, boolean isFinal) {
+        super.fireMailStoreRequestFailed(exception, isFinal);
+        if(coalescedRequests != null) {
+            int size = coalescedRequests.size();
+            for(int i=0; i<size; i++) {
+                ((NetworkMailStoreRequest)coalescedRequests.elementAt(i))
+                    .fireMailStoreRequestFailed(exception, isFinal);
+            }
+        }
+    }
+    
     protected boolean checkActiveFolder(IncomingMailClient incomingClient, FolderTreeItem requestFolder) throws IOException, MailException {
         if(incomingClient.getActiveFolder() == null || !incomingClient.getActiveFolder().getPath().equals(requestFolder.getPath())) {
             handleSetActiveFolder(incomingClient, requestFolder);
@@ -166,5 +235,17 @@ abstract class NetworkMailStoreRequest extends AbstractMailStoreRequest implemen
                 showStatus(processingMessageFormat.format(new Object[] { message, Integer.toString(count) }));
             }
         }
+        
+        public boolean yieldToWaitingRequests() throws IOException, MailException {
+            if(mailStore.getConnectionHandler().handlePreemptingRequests()) {
+                // Restore the status message of the preempted request
+                lastTotal = total;
+                showStatus(networkMessageFormat.format(new Object[] { message, StringParser.toDataSizeString(total) }));
+                return true;
+            }
+            else {
+                return false;
+            }
+        }
     };
 }
@@ -32,13 +32,14 @@
 package org.logicprobe.LogicMail.mail;
 
 import java.io.IOException;
+import java.util.Vector;
 
 import org.logicprobe.LogicMail.LogicMailResource;
 import org.logicprobe.LogicMail.message.MessageFlags;
 
 class NetworkMessageFlagChangeRequest extends NetworkMailStoreRequest implements MessageFlagChangeRequest {
-    private final MessageToken messageToken;
-    private final MessageToken[] messageTokens;
+    private MessageToken messageToken;
+    private MessageToken[] messageTokens;
     private final MessageFlags messageFlags;
     private final boolean addOrRemove;
     private final String initialStatus;
@@ -89,6 +90,54 @@ class NetworkMessageFlagChangeRequest extends NetworkMailStoreRequest implements
         return addOrRemove;
     }
     
+    /**
+     * Coalesces an immediately following request that marks messages as
+     * seen into this one, if this request also only marks messages as seen.
+     * The combined request sends a single command per folder.
+     */
+    public boolean coalesce(ConnectionHandlerRequest request, boolean adjacent) {
+        if(!adjacent || !(request instanceof NetworkMessageFlagChangeRequest)) { return false; }
+        NetworkMessageFlagChangeRequest flagRequest = (NetworkMessageFlagChangeRequest)request;
+        if(flagRequest.mailStore != mailStore
+                || !isSeenChange() || !flagRequest.isSeenChange()) {
+            return false;
+        }
+        
+        MessageToken[] tokens = getTokenArray();
+        MessageToken[] otherTokens = flagRequest.getTokenArray();
+        MessageToken[] combinedTokens = new MessageToken[tokens.length + otherTokens.length];
+        System.arraycopy(tokens, 0, combinedTokens, 0, tokens.length);
+        System.arraycopy(otherTokens, 0, combinedTokens, tokens.length, otherTokens.length);
+        messageToken = null;
+        messageTokens = combinedTokens;
+        
+        addCoalescedRequest(flagRequest);
+        return true;
+    }
+    
+    /**
+     * Checks whether this request only marks messages as seen, which is the
+     * only change that can be made on a set of messages.
+     */
+    private boolean isSeenChange() {
+        return addOrRemove && messageFlags.isSeen()
+            && !messageFlags.isDeleted()
+            && !messageFlags.isAnswered()
+            && !messageFlags.isForwarded();
+    }
+    
+    private MessageToken[] getTokenArray() {
+        if(messageToken != null) {
+            return new MessageToken[] { messageToken };
+        }
+        else if(messageTokens != null) {
+            return messageTokens;
+        }
+        else {
+            return new MessageToken[0];
+        }
+    }
+    
     protected String getInitialStatus() {
         return initialStatus;
     }
@@ -141,10 +190,37 @@ class NetworkMessageFlagChangeRequest extends NetworkMailStoreRequest implements
     private void executeWithMessageSet(IncomingMailClient incomingClient) throws IOException, MailException {
         // Currently only implementing flag changes on message sets for marking
         // messages as seen, since that is all that is currently required.
-        if(messageFlags.isSeen()) {
-            checkActiveFolder(incomingClient, messageTokens[0]);
-            if(addOrRemove) {
-                incomingClient.messageSeen(messageTokens);
+        if(messageFlags.isSeen() && addOrRemove) {
+            // Coalesced requests may contain messages from several folders,
+            // so handle the tokens one folder at a time.
+            Vector remainingTokens = new Vector(messageTokens.length);
+            for(int i=0; i<messageTokens.length; i++) {
+                remainingTokens.addElement(messageTokens[i]);
+            }
+            while(!remainingTokens.isEmpty()) {
+                checkActiveFolder(incomingClient, (MessageToken)remainingTokens.elementAt(0));
+                FolderTreeItem activeFolder = incomingClient.getActiveFolder();
+                
+                // Split the tokens in a single forward pass, keeping their
+                // order, rather than removing them from the middle of the
+                // vector one at a time.
+                int size = remainingTokens.size();
+                Vector folderTokens = new Vector(size);
+                Vector otherTokens = new Vector(size);
+                for(int i=0; i<size; i++) {
+                    MessageToken token = (MessageToken)remainingTokens.elementAt(i);
+                    if(i == 0 || (activeFolder != null && token.containedWithin(activeFolder))) {
+                        folderTokens.addElement(token);
+                    }
+                    else {
+                        otherTokens.addElement(token);
+                    }
+                }
+                remainingTokens = otherTokens;
+                
+                MessageToken[] tokens = new MessageToken[folderTokens.size()];
+                folderTokens.copyInto(tokens);
+                incomingClient.messageSeen(tokens);
             }
         }
     }
@@ -81,6 +81,10 @@ class NetworkMessageRequest extends NetworkMailStoreRequest implements MessageRe
         return messageParts;
     }
     
+    public int getPriority() {
+        return isDeliberate() ? PRIORITY_INTERACTIVE : PRIORITY_PREFETCH;
+    }
+    
     protected String getInitialStatus() {
         return LogicMailResource.MAILCONNECTION_REQUEST_MESSAGE;
     }
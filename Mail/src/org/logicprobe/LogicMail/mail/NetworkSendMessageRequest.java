@@ -33,11 +33,13 @@ package org.logicprobe.LogicMail.mail;
 
 import java.io.IOException;
 
+import net.rim.device.api.i18n.MessageFormat;
 import net.rim.device.api.i18n.ResourceBundle;
 
 import org.logicprobe.LogicMail.LogicMailResource;
 import org.logicprobe.LogicMail.message.Message;
 import org.logicprobe.LogicMail.message.MessageEnvelope;
+import org.logicprobe.LogicMail.util.StringParser;
 
 class NetworkSendMessageRequest implements ConnectionHandlerRequest {
     
@@ -67,6 +69,10 @@ class NetworkSendMessageRequest implements ConnectionHandlerRequest {
         return false;
     }
     
+    public int getPriority() {
+        return deliberate ? PRIORITY_INTERACTIVE : PRIORITY_MAINTENANCE;
+    }
+    
     public void showInitialStatus() {
         MailConnectionManager.getInstance().fireMailConnectionStatus(
                 mailSender.getOutgoingConfig(), this,
@@ -77,7 +83,8 @@ class NetworkSendMessageRequest implements ConnectionHandlerRequest {
         OutgoingMailClient outgoingClient = (OutgoingMailClient)client;
         
         showStatus(outgoingClient, LogicMailResource.MAILCONNECTION_REQUEST_SEND_MESSAGE);
-		byte[] rawMessage = outgoingClient.sendMessage(envelope, message);
+		byte[] rawMessage = outgoingClient.sendMessage(envelope, message,
+		        new SendProgressHandler(outgoingClient, LogicMailResource.MAILCONNECTION_REQUEST_SEND_MESSAGE));
 		String messageSource;
 		if(rawMessage != null && rawMessage.length > 0) {
 		    messageSource = new String(rawMessage);
@@ -89,6 +96,10 @@ class NetworkSendMessageRequest implements ConnectionHandlerRequest {
         mailSender.fireMessageSent(envelope, message, messageSource);
     }
     
+    public boolean coalesce(ConnectionHandlerRequest request, boolean adjacent) {
+        return false;
+    }
+    
     public void notifyConnectionRequestFailed(Throwable exception, boolean isFinal) {
         fireMailStoreRequestFailed(exception, isFinal);
     }
@@ -97,6 +108,35 @@ class NetworkSendMessageRequest implements ConnectionHandlerRequest {
         MailConnectionManager.getInstance().fireMailConnectionStatus(outgoingClient.getConnectionConfig(), this, message);
     }
 
+    private static final MessageFormat networkMessageFormat = new MessageFormat("{0} ({1})...");
+    
+    /**
+     * Progress handler that appends the amount of data sent so far to the
+     * request's status message.
+     */
+    private class SendProgressHandler implements MailProgressHandler {
+        private final OutgoingMailClient outgoingClient;
+        private final String message;
+        private int total = 0;
+        
+        public SendProgressHandler(OutgoingMailClient outgoingClient, String message) {
+            this.outgoingClient = outgoingClient;
+            this.message = message;
+        }
+        
+        public void mailProgress(int type, int count, int max) {
+            if(type == MailProgressHandler.TYPE_NETWORK) {
+                total += count;
+                showStatus(outgoingClient, networkMessageFormat.format(new Object[] { message, StringParser.toDataSizeString(total) }));
+            }
+        }
+        
+        public boolean yieldToWaitingRequests() {
+            // Message content cannot be interrupted once it is being sent
+            return false;
+        }
+    }
+    
     public void fireMailStoreRequestFailed(Throwable exception, boolean isFinal) {
         mailSender.fireMessageSendFailed(envelope, message, exception, isFinal);
     }
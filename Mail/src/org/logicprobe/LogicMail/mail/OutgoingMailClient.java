@@ -44,9 +44,10 @@ public interface OutgoingMailClient extends MailClient {
      *
      * @param envelope Envelope of the message to send.
      * @param message Message to send.
+     * @param progressHandler the progress handler
      * @return Actual raw message text that was sent.
      * @throws IOException on I/O errors
      * @throws MailException on protocol errors
      */
-    public abstract byte[] sendMessage(MessageEnvelope envelope, Message message) throws IOException, MailException;
+    public abstract byte[] sendMessage(MessageEnvelope envelope, Message message, MailProgressHandler progressHandler) throws IOException, MailException;
 }
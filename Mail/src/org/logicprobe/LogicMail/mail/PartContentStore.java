@@ -0,0 +1,73 @@
+/*-
+ * Copyright (c) 2011, Derek Konigsberg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.logicprobe.LogicMail.mail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.logicprobe.LogicMail.message.MimeMessageContent;
+import org.logicprobe.LogicMail.message.MimeMessagePart;
+
+/**
+ * Provides somewhere other than memory to put the decoded content of large
+ * message parts, as it is fetched from the server.  This lets a mail client
+ * fetch a part without ever holding all of it in memory.
+ */
+public interface PartContentStore {
+    /**
+     * Opens a stream for the decoded content of a message part.
+     *
+     * @param messageToken the token for the message
+     * @param part the message part the content belongs to
+     * @return the stream, or <code>null</code> if the content cannot be stored
+     * @throws IOException on I/O errors
+     */
+    OutputStream openPartContent(MessageToken messageToken, MimeMessagePart part) throws IOException;
+    
+    /**
+     * Finishes storing the content written to a stream from
+     * {@link #openPartContent(MessageToken, MimeMessagePart)}, and creates
+     * a content object from the stored data.
+     *
+     * @param output the stream the content was written to
+     * @return the content, or <code>null</code> if it could not be created
+     * @throws IOException on I/O errors
+     */
+    MimeMessageContent commitPartContent(OutputStream output) throws IOException;
+    
+    /**
+     * Discards the content written to a stream from
+     * {@link #openPartContent(MessageToken, MimeMessagePart)}.
+     *
+     * @param output the stream the content was written to
+     */
+    void abortPartContent(OutputStream output);
+}
@@ -44,7 +44,7 @@ import org.logicprobe.LogicMail.LogicMailResource;
 import org.logicprobe.LogicMail.mail.pop.PopClient;
 import org.logicprobe.LogicMail.message.FolderMessage;
 
-class PopFolderRefreshRequest extends NetworkMailStoreRequest implements MailStoreRequest {
+class PopFolderRefreshRequest extends NetworkMailStoreRequest implements FolderRefreshRequest {
     private final String statusMessage;
     private final FolderTreeItem folder;
     private final Hashtable loadedMessageMap;
@@ -63,6 +63,14 @@ class PopFolderRefreshRequest extends NetworkMailStoreRequest implements MailSto
         }
     }
     
+    public FolderTreeItem getFolder() {
+        return folder;
+    }
+    
+    public long[] getSyncState() {
+        return null;
+    }
+    
     protected String getInitialStatus() {
         return statusMessage + "...";
     }
@@ -31,12 +31,16 @@
 
 package org.logicprobe.LogicMail.mail.imap;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
 
 import net.rim.device.api.system.EventLogger;
+import net.rim.device.api.util.Arrays;
+import net.rim.device.api.util.IntHashtable;
 
 import org.logicprobe.LogicMail.AppInfo;
 import org.logicprobe.LogicMail.conf.AccountConfig;
@@ -52,6 +56,7 @@ import org.logicprobe.LogicMail.mail.FolderTreeItem;
 import org.logicprobe.LogicMail.mail.MailException;
 import org.logicprobe.LogicMail.mail.MailProgressHandler;
 import org.logicprobe.LogicMail.mail.MessageToken;
+import org.logicprobe.LogicMail.mail.PartContentStore;
 import org.logicprobe.LogicMail.mail.imap.ImapProtocol.FetchEnvelopeResponse;
 import org.logicprobe.LogicMail.message.FolderMessage;
 import org.logicprobe.LogicMail.message.Message;
@@ -63,10 +68,12 @@ import org.logicprobe.LogicMail.message.MimeMessagePartFactory;
 import org.logicprobe.LogicMail.message.MultiPart;
 import org.logicprobe.LogicMail.message.UnsupportedContentException;
 import org.logicprobe.LogicMail.message.UnsupportedPart;
+import org.logicprobe.LogicMail.util.Base64DecoderOutputStream;
 import org.logicprobe.LogicMail.util.Connection;
 import org.logicprobe.LogicMail.util.NetworkConnector;
 import org.logicprobe.LogicMail.util.DataStore;
 import org.logicprobe.LogicMail.util.DataStoreFactory;
+import org.logicprobe.LogicMail.util.SerializableHashtable;
 import org.logicprobe.LogicMail.util.Watchdog;
 import org.logicprobe.LogicMail.util.WatchdogListener;
 
@@ -130,12 +137,34 @@ public class ImapClient extends AbstractIncomingMailClient {
      */
     private final Hashtable knownMailboxes = new Hashtable();
 
+    /**
+     * Persisted snapshots of the known mailbox state, used to restore index
+     * maps that are still valid across application restarts.  This is loaded
+     * on first use, and saved when the connection is closed.
+     * (<code>String</code> folder path to <code>byte[]</code> snapshot)
+     */
+    private SerializableHashtable mailboxSnapshots;
+
+    /**
+     * Set if quick mailbox resynchronization has been enabled
+     * for the current connection.
+     */
+    private boolean qresyncEnabled;
+
     private static String INBOX = "INBOX";
     private static String CAPABILITY_CHILDREN = "CHILDREN";
     private static String CAPABILITY_NAMESPACE = "NAMESPACE";
     private static String CAPABILITY_STARTTLS = "STARTTLS";
     private static String CAPABILITY_IDLE = "IDLE";
     private static String CAPABILITY_COMPRESS = "COMPRESS=DEFLATE";
+    private static String CAPABILITY_QRESYNC = "QRESYNC";
+    private static String CAPABILITY_BINARY = "BINARY";
+    
+    /**
+     * Encoded size at which non-text parts are fetched into the part content
+     * store, if one is available, instead of into memory.
+     */
+    private static final int STREAM_THRESHOLD = 32768;
     
     public ImapClient(NetworkConnector networkConnector, GlobalConfig globalConfig, ImapConfig accountConfig) {
         this(networkConnector, globalConfig, accountConfig, new ImapProtocol());
@@ -251,6 +280,12 @@ public class ImapClient extends AbstractIncomingMailClient {
                 }
             }
             
+            // Enable quick mailbox resynchronization, if supported
+            qresyncEnabled = false;
+            if(capabilities.containsKey(CAPABILITY_QRESYNC)) {
+                qresyncEnabled = imapProtocol.executeEnable(CAPABILITY_QRESYNC);
+            }
+            
             // Get the namespaces, if supported
             if(capabilities.containsKey(CAPABILITY_NAMESPACE)) {
                 ImapProtocol.NamespaceResponse nsResponse = imapProtocol.executeNamespace();
@@ -305,6 +340,7 @@ public class ImapClient extends AbstractIncomingMailClient {
             connection = null;
         }
         if(watchdog.isStarted()) { watchdog.cancel(); }
+        saveMailboxSnapshots();
     }
 
     /* (non-Javadoc)
@@ -695,10 +731,315 @@ public class ImapClient extends AbstractIncomingMailClient {
         return (mapValid ? null : mailbox);
     }
 
+    /**
+     * Sets the active folder, and fetches flags for its new messages along
+     * with a set of already known messages.  The commands are sent to the
+     * server as a single pipeline wherever they do not depend on each other,
+     * so this takes a single network round-trip for a mailbox that has
+     * already been seen during this session.
+     * <p>
+     * The new messages are determined exactly as they would be by calling
+     * {@link #getNewFolderMessages(boolean, FolderMessageCallback, MailProgressHandler)}
+     * with <code>flagsOnly</code> set, after selecting the folder.
+     * </p>
+     *
+     * @param mailbox the new active folder
+     * @param knownTokens tokens for known messages to also fetch flags for
+     * @param newMessageCallback the callback for flags of new messages
+     * @param knownMessageCallback the callback for flags of known messages
+     * @param progressHandler the progress handler
+     * @return true, if the mailbox index map is still valid
+     */
+    public boolean setActiveFolder(
+            FolderTreeItem mailbox,
+            MessageToken[] knownTokens,
+            FolderMessageCallback newMessageCallback,
+            FolderMessageCallback knownMessageCallback,
+            MailProgressHandler progressHandler) throws IOException, MailException {
+        
+        FetchFlagsCollector knownFlagsCollector = new FetchFlagsCollector();
+        PipelinedSelectCallback selectCallback = setActiveFolderPipelined(
+                mailbox, knownTokens, 0, 0, newMessageCallback, knownFlagsCollector, progressHandler);
+        
+        handleKnownFlagsResponse(knownFlagsCollector.getResponses(), knownMessageCallback);
+        
+        return selectCallback.isMapValid();
+    }
+    
+    /**
+     * Gets whether the server supports quick mailbox resynchronization,
+     * and it has been enabled for this connection.
+     *
+     * @return true, if {@link #resyncActiveFolder(FolderTreeItem, MessageToken[], int, long, Vector, FolderMessageCallback, FolderMessageCallback, MailProgressHandler)}
+     *     can be used
+     */
+    public boolean hasQuickResync() {
+        return qresyncEnabled;
+    }
+    
+    /**
+     * Sets the active folder using quick mailbox resynchronization
+     * (RFC 7162), and fetches flags for its new messages.  Instead of
+     * fetching flags for every known message, only the known messages that
+     * have changed or been expunged since the provided state are reported.
+     * <p>
+     * If the server does not accept the provided state, such as when the
+     * UIDVALIDITY of the folder has changed, then the folder is still
+     * selected and new messages are still fetched, but nothing is reported
+     * for the known messages.  In that case, the caller must check them
+     * through some other means.
+     * </p>
+     *
+     * @param mailbox the new active folder
+     * @param knownTokens tokens for known messages
+     * @param uidValidity the UIDVALIDITY value for the known messages
+     * @param highestModSeq the HIGHESTMODSEQ value for the known messages
+     * @param vanishedTokens empty <code>Vector</code> to be populated with
+     *        the known messages that have been expunged
+     * @param newMessageCallback the callback for flags of new messages
+     * @param changedMessageCallback the callback for flags of changed messages
+     * @param progressHandler the progress handler
+     * @return true, if the folder was resynchronized
+     * @see #getActiveFolderUidValidity()
+     * @see #getActiveFolderHighestModSeq()
+     */
+    public boolean resyncActiveFolder(
+            FolderTreeItem mailbox,
+            MessageToken[] knownTokens,
+            int uidValidity,
+            long highestModSeq,
+            Vector vanishedTokens,
+            FolderMessageCallback newMessageCallback,
+            FolderMessageCallback changedMessageCallback,
+            MailProgressHandler progressHandler) throws IOException, MailException {
+        
+        if(!qresyncEnabled || uidValidity == 0 || highestModSeq <= 0) {
+            uidValidity = 0;
+            highestModSeq = 0;
+        }
+        
+        PipelinedSelectCallback selectCallback = setActiveFolderPipelined(
+                mailbox, knownTokens, uidValidity, highestModSeq, newMessageCallback, null, progressHandler);
+        
+        ImapProtocol.SelectResponse response = selectCallback.getResponse();
+        if(highestModSeq == 0 || response.uidValidity != uidValidity || response.highestModSeq <= 0) {
+            return false;
+        }
+        
+        if(response.changedMessages != null) {
+            handleKnownFlagsResponse(response.changedMessages, changedMessageCallback);
+        }
+        else {
+            changedMessageCallback.folderMessageUpdate(null);
+        }
+        
+        if(response.vanishedUids != null && knownTokens != null) {
+            findVanishedTokens(knownTokens, response.vanishedUids, vanishedTokens);
+        }
+        return true;
+    }
+    
+    /**
+     * Finds the tokens contained within a set of vanished UID ranges.
+     * The ranges are matched against a sorted copy of the known UIDs, since
+     * both sets may be very large.
+     */
+    private static void findVanishedTokens(MessageToken[] knownTokens, int[] vanishedUids, Vector vanishedTokens) {
+        IntHashtable tokenMap = new IntHashtable(knownTokens.length);
+        int[] knownUids = new int[knownTokens.length];
+        for(int i=0; i<knownTokens.length; i++) {
+            knownUids[i] = ((ImapMessageToken)knownTokens[i]).getImapMessageUid();
+            tokenMap.put(knownUids[i], knownTokens[i]);
+        }
+        Arrays.sort(knownUids, 0, knownUids.length);
+        
+        for(int i=0; i<vanishedUids.length; i+=2) {
+            // Find the first known UID within the range
+            int low = 0;
+            int high = knownUids.length;
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if(knownUids[mid] < vanishedUids[i]) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            
+            for(int j=low; j<knownUids.length && knownUids[j] <= vanishedUids[i + 1]; j++) {
+                Object token = tokenMap.remove(knownUids[j]);
+                if(token != null) {
+                    vanishedTokens.addElement(token);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Gets the UIDVALIDITY value of the active folder.
+     *
+     * @return the UIDVALIDITY value, or 0 if no folder is active
+     */
+    public int getActiveFolderUidValidity() {
+        MailboxState mailboxState = (MailboxState)knownMailboxes.get(activeMailbox);
+        return (mailboxState != null) ? mailboxState.getUidValidity() : 0;
+    }
+    
+    /**
+     * Gets the HIGHESTMODSEQ value of the active folder, as of the time it
+     * was selected.
+     *
+     * @return the HIGHESTMODSEQ value, or 0 if not available
+     */
+    public long getActiveFolderHighestModSeq() {
+        MailboxState mailboxState = (MailboxState)knownMailboxes.get(activeMailbox);
+        return (mailboxState != null) ? mailboxState.getHighestModSeq() : 0;
+    }
+    
+    private PipelinedSelectCallback setActiveFolderPipelined(
+            FolderTreeItem mailbox,
+            MessageToken[] knownTokens,
+            int uidValidity,
+            long highestModSeq,
+            FolderMessageCallback newMessageCallback,
+            FetchFlagsCollector knownFlagsCollector,
+            MailProgressHandler progressHandler) throws IOException, MailException {
+        
+        // If this mailbox has already been seen, then new messages are
+        // fetched speculatively from the previous UIDNEXT value, and the
+        // results are filtered once the SELECT response has been processed.
+        int previousUidNext = -1;
+        if(seenMailboxes.containsKey(mailbox)) {
+            MailboxState mailboxState = (MailboxState)knownMailboxes.get(mailbox);
+            if(mailboxState != null) {
+                previousUidNext = mailboxState.getUidNext();
+            }
+        }
+        
+        int[] knownUids = null;
+        if(knownTokens != null) {
+            knownUids = new int[knownTokens.length];
+            for(int i=0; i<knownTokens.length; i++) {
+                knownUids[i] = ((ImapMessageToken)knownTokens[i]).getImapMessageUid();
+            }
+        }
+        
+        ImapProtocol.CommandPipeline pipeline = imapProtocol.createPipeline();
+        
+        PipelinedSelectCallback selectCallback = new PipelinedSelectCallback(mailbox);
+        if(highestModSeq > 0) {
+            pipeline.addSelect(mailbox.getPath(), uidValidity, highestModSeq, knownUids, selectCallback);
+        }
+        else {
+            pipeline.addSelect(mailbox.getPath(), selectCallback);
+        }
+        
+        FetchFlagsCollector newFlagsCollector = null;
+        if(previousUidNext != -1) {
+            newFlagsCollector = new FetchFlagsCollector();
+            pipeline.addFetchFlagsUid(previousUidNext, newFlagsCollector);
+        }
+        
+        if(knownFlagsCollector != null && knownUids != null) {
+            pipeline.addFetchFlagsUid(knownUids, knownFlagsCollector);
+        }
+        
+        pipeline.execute(progressHandler);
+        
+        MailboxState mailboxState = (MailboxState)knownMailboxes.get(activeMailbox);
+        if(newFlagsCollector != null && selectCallback.isMapValid()
+                && mailboxState.getUidNext() >= previousUidNext) {
+            handleNewFlagsResponse(
+                    filterNewFlagsResponse(newFlagsCollector.getResponses(), mailboxState.getUidNext()),
+                    mailboxState, newMessageCallback);
+        }
+        else {
+            getNewFolderMessages(true, newMessageCallback, progressHandler);
+        }
+        
+        return selectCallback;
+    }
+    
+    private void handleKnownFlagsResponse(ImapProtocol.FetchFlagsResponse[] flagsResponse, FolderMessageCallback callback) {
+        MailboxState mailboxState = (MailboxState)knownMailboxes.get(activeMailbox);
+        FolderMessage[] result = prepareFolderMessagesFlags(flagsResponse);
+        for(int i=0; i<result.length; i++) {
+            mailboxState.messageFetched(result[i].getMessageToken());
+            callback.folderMessageUpdate(result[i]);
+        }
+        callback.folderMessageUpdate(null);
+    }
+    
+    /**
+     * Filters the results of a speculative <tt>UID FETCH</tt> from an older
+     * UIDNEXT value, so they match what would have been returned by a fetch
+     * from the current UIDNEXT value.  That includes the case where the
+     * server returns the highest message when no UID is at least UIDNEXT.
+     */
+    private static ImapProtocol.FetchFlagsResponse[] filterNewFlagsResponse(
+            ImapProtocol.FetchFlagsResponse[] response, int uidNext) {
+        Vector result = new Vector(response.length);
+        ImapProtocol.FetchFlagsResponse lastResponse = null;
+        for(int i=0; i<response.length; i++) {
+            if(response[i].uid >= uidNext) {
+                result.addElement(response[i]);
+            }
+            if(lastResponse == null || response[i].uid > lastResponse.uid) {
+                lastResponse = response[i];
+            }
+        }
+        if(result.isEmpty() && lastResponse != null) {
+            result.addElement(lastResponse);
+        }
+        ImapProtocol.FetchFlagsResponse[] resultArray = new ImapProtocol.FetchFlagsResponse[result.size()];
+        result.copyInto(resultArray);
+        return resultArray;
+    }
+    
+    private class PipelinedSelectCallback implements ImapProtocol.SelectCallback {
+        private final FolderTreeItem mailbox;
+        private ImapProtocol.SelectResponse response;
+        private boolean mapValid;
+        public PipelinedSelectCallback(FolderTreeItem mailbox) {
+            this.mailbox = mailbox;
+        }
+        public void responseAvailable(ImapProtocol.SelectResponse response) {
+            // This is invoked before any responses to the rest of the
+            // pipeline, so untagged responses apply to the correct mailbox.
+            this.response = response;
+            mapValid = mailboxSelected(mailbox, response, true);
+        }
+        public ImapProtocol.SelectResponse getResponse() {
+            return response;
+        }
+        public boolean isMapValid() {
+            return mapValid;
+        }
+    }
+    
+    private static class FetchFlagsCollector implements ImapProtocol.FetchFlagsCallback {
+        private final Vector responses = new Vector();
+        public void responseAvailable(ImapProtocol.FetchFlagsResponse response) {
+            if(response != null) {
+                responses.addElement(response);
+            }
+        }
+        public ImapProtocol.FetchFlagsResponse[] getResponses() {
+            ImapProtocol.FetchFlagsResponse[] result = new ImapProtocol.FetchFlagsResponse[responses.size()];
+            responses.copyInto(result);
+            return result;
+        }
+    }
+    
     private boolean setActiveFolderImpl(FolderTreeItem mailbox, boolean notifyAvailable) throws IOException, MailException {
         // Change active mailbox
         ImapProtocol.SelectResponse response = imapProtocol.executeSelect(mailbox.getPath());
-
+        
+        return mailboxSelected(mailbox, response, notifyAvailable);
+    }
+    
+    private boolean mailboxSelected(FolderTreeItem mailbox, ImapProtocol.SelectResponse response, boolean notifyAvailable) {
         this.activeMailbox = mailbox;
         activeMailbox.setMsgCount(response.exists);
         activeMailbox.setUnseenCount(response.unseen);
@@ -708,7 +1049,16 @@ public class ImapClient extends AbstractIncomingMailClient {
         // the previous SELECT of this mailbox
         MailboxState mailboxState = (MailboxState)knownMailboxes.get(activeMailbox);
         if(mailboxState == null) {
+            // If this is the first SELECT of this mailbox since startup, then
+            // try to restore the index map from the previous session
             mailboxState = new MailboxState();
+            byte[] snapshot = (byte[])getMailboxSnapshots().get(mailbox.getPath());
+            if(mailboxState.restoreSnapshot(mailbox.getPath(), snapshot, response)
+                    && EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+                EventLogger.logEvent(AppInfo.GUID,
+                        ("Restored mailbox state: " + mailbox.getPath()).getBytes(),
+                        EventLogger.DEBUG_INFO);
+            }
             knownMailboxes.put(activeMailbox, mailboxState);
         }
         else if(response.uidNext == -1) {
@@ -731,6 +1081,46 @@ public class ImapClient extends AbstractIncomingMailClient {
         return mapValid;
     }
     
+    private SerializableHashtable getMailboxSnapshots() {
+        if(mailboxSnapshots == null) {
+            DataStore dataStore = DataStoreFactory.getConnectionCacheStore();
+            Object loadedObject = dataStore.getNamedObject(Long.toString(accountConfig.getUniqueId()) + "_MAILBOXES");
+            if(loadedObject instanceof SerializableHashtable) {
+                mailboxSnapshots = (SerializableHashtable)loadedObject;
+            }
+            else {
+                mailboxSnapshots = new SerializableHashtable();
+            }
+        }
+        return mailboxSnapshots;
+    }
+    
+    /**
+     * Saves snapshots of the state of all mailboxes that have been selected
+     * during this session, so their index maps can be restored after the
+     * application is restarted.
+     */
+    private void saveMailboxSnapshots() {
+        if(knownMailboxes.isEmpty()) { return; }
+        
+        SerializableHashtable snapshots = getMailboxSnapshots();
+        Enumeration e = knownMailboxes.keys();
+        while(e.hasMoreElements()) {
+            FolderTreeItem mailbox = (FolderTreeItem)e.nextElement();
+            byte[] snapshot = ((MailboxState)knownMailboxes.get(mailbox)).getSnapshot();
+            if(snapshot != null) {
+                snapshots.put(mailbox.getPath(), snapshot);
+            }
+            else {
+                snapshots.remove(mailbox.getPath());
+            }
+        }
+        
+        DataStore dataStore = DataStoreFactory.getConnectionCacheStore();
+        dataStore.putNamedObject(Long.toString(accountConfig.getUniqueId()) + "_MAILBOXES", snapshots);
+        dataStore.save();
+    }
+    
     private FolderTreeItem getFolderForPath(String folderPath) {
         FolderTreeItem mailbox = null;
         Enumeration e = knownMailboxes.keys();
@@ -921,7 +1311,6 @@ public class ImapClient extends AbstractIncomingMailClient {
             seenMailboxes.put(activeMailbox, Boolean.TRUE);
         }
         else {
-            FolderMessage[] result;
             MailboxState mailboxState = (MailboxState)knownMailboxes.get(activeMailbox);
             int uidNext = mailboxState.getUidNext();
             
@@ -936,22 +1325,61 @@ public class ImapClient extends AbstractIncomingMailClient {
             if(flagsOnly) {
                 ImapProtocol.FetchFlagsResponse[] flagsResponse =
                     imapProtocol.executeFetchFlagsUid(uidNext, progressHandler);
-                result = prepareFolderMessagesFlags(flagsResponse);
-                if(result.length > 0) {
-                    uidNext = result[result.length-1].getUid() + 1;
-                    mailboxState.setUidNext(uidNext);
-                }
-                for(int i=0; i<result.length; i++) {
-                    mailboxState.messageFetched(result[i].getMessageToken());
-                    callback.folderMessageUpdate(result[i]);
-                }
-                callback.folderMessageUpdate(null);
+                handleNewFlagsResponse(flagsResponse, mailboxState, callback);
             }
             else {
                 imapProtocol.executeFetchEnvelopeUid(uidNext, new ImapNewFetchEnvelopeCallback(callback), progressHandler);
             }
         }
     }
+    
+    private void handleNewFlagsResponse(ImapProtocol.FetchFlagsResponse[] flagsResponse, MailboxState mailboxState, FolderMessageCallback callback) {
+        FolderMessage[] result = prepareFolderMessagesFlags(flagsResponse);
+        if(result.length > 0) {
+            int uidNext = result[result.length-1].getUid() + 1;
+            mailboxState.setUidNext(uidNext);
+        }
+        for(int i=0; i<result.length; i++) {
+            mailboxState.messageFetched(result[i].getMessageToken());
+            callback.folderMessageUpdate(result[i]);
+        }
+        callback.folderMessageUpdate(null);
+    }
+
+    /**
+     * Gets envelopes for the provided messages, along with any messages that
+     * are new since the last fetch.  When the folder has already been seen,
+     * both fetches are sent to the server as a single pipeline.
+     *
+     * @param messageTokens the messages to get envelopes for
+     * @param callback the callback for the provided messages
+     * @param newMessageCallback the callback for new messages
+     * @param progressHandler the progress handler
+     */
+    public void getFolderMessages(MessageToken[] messageTokens, FolderMessageCallback callback, FolderMessageCallback newMessageCallback, MailProgressHandler progressHandler)
+    throws IOException, MailException {
+        // Sanity check
+        if(activeMailbox == null) {
+            throw new MailException("Mailbox not selected");
+        }
+        
+        MailboxState mailboxState = (MailboxState)knownMailboxes.get(activeMailbox);
+        if(!seenMailboxes.containsKey(activeMailbox) || mailboxState.getUidNext() == -1) {
+            getFolderMessages(messageTokens, false, callback, progressHandler);
+            getNewFolderMessages(false, newMessageCallback, progressHandler);
+            return;
+        }
+        
+        int[] uids = new int[messageTokens.length];
+        for(int i=0; i<messageTokens.length; i++) {
+            uids[i] = ((ImapMessageToken)messageTokens[i]).getImapMessageUid();
+        }
+        
+        ImapProtocol.CommandPipeline pipeline = imapProtocol.createPipeline();
+        pipeline.addFetchEnvelopeUid(uids, new ImapFetchEnvelopeCallback(callback));
+        pipeline.addFetchEnvelopeUid(mailboxState.getUidNext(), new ImapNewFetchEnvelopeCallback(newMessageCallback));
+        pipeline.execute(progressHandler);
+    }
 
     private FolderMessage prepareFolderMessagesEnvelope(ImapProtocol.FetchEnvelopeResponse response) {
         ImapMessageToken token = new ImapMessageToken(activeMailbox.getPath(), response.uid);
@@ -1042,15 +1470,48 @@ public class ImapClient extends AbstractIncomingMailClient {
         if(!(messageToken instanceof ImapMessageToken)) { return null; }
 
 
-        byte[] data = getMessageBody(imapMessageToken.getImapMessageUid(), partAddress, progressHandler);
+        // Large attachments are written out as they are decoded, so they
+        // never have to fit in memory all at once
+        PartContentStore store = partContentStore;
+        OutputStream output = null;
+        if(store != null && mimeMessagePart.getSize() >= STREAM_THRESHOLD
+                && !mimeType.equalsIgnoreCase("text")) {
+            output = openPartContent(store, imapMessageToken, mimeMessagePart);
+        }
+
         MimeMessageContent content;
         try {
-            content = MimeMessageContentFactory.createContentEncoded(mimeMessagePart, data);
+            if(output != null) {
+                content = getMessageContentStreamed(
+                        store,
+                        output,
+                        imapMessageToken,
+                        mimeMessagePart,
+                        progressHandler);
+            }
+            else {
+                content = getMessageContent(
+                        imapMessageToken.getImapMessageUid(),
+                        mimeMessagePart,
+                        mimeMessagePart.getSize(),
+                        progressHandler);
+            }
         } catch (UnsupportedContentException e) {
             content = null;
         }
         return content;
     }
+    
+    private static OutputStream openPartContent(PartContentStore store, MessageToken messageToken, MimeMessagePart part) {
+        try {
+            return store.openPartContent(messageToken, part);
+        } catch (IOException e) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("Unable to open part content store: " + e.getMessage()).getBytes(),
+                    EventLogger.WARNING);
+            return null;
+        }
+    }
 
     private MimeMessagePart getMessagePart(
             Hashtable contentMap,
@@ -1062,12 +1523,9 @@ public class ImapClient extends AbstractIncomingMailClient {
     {
         MimeMessagePart part;
         if(MimeMessagePartFactory.isMimeMessagePartSupported(structure.type, structure.subtype)) {
-            byte[] data;
-            if(structure.type.equalsIgnoreCase("multipart"))
-                data = null;
-            else {
+            boolean isMultipart = structure.type.equalsIgnoreCase("multipart");
+            if(!isMultipart) {
                 if(structure.size < maxSize) {
-                    data = getMessageBody(uid, structure.address, progressHandler);
                     maxSize -= structure.size;
                 }
                 else {
@@ -1086,7 +1544,12 @@ public class ImapClient extends AbstractIncomingMailClient {
                     structure.size,
                     structure.address);
             try {
-                contentMap.put(part, MimeMessageContentFactory.createContentEncoded(part, data));
+                if(isMultipart) {
+                    contentMap.put(part, MimeMessageContentFactory.createContentEncoded(part, null));
+                }
+                else {
+                    contentMap.put(part, getMessageContent(uid, part, structure.size, progressHandler));
+                }
             } catch (UnsupportedContentException e) {
                 EventLogger.logEvent(AppInfo.GUID,
                         ("UnsupportedContentException: " + e.getMessage()).getBytes(),
@@ -1176,11 +1639,204 @@ public class ImapClient extends AbstractIncomingMailClient {
         return item;
     }
 
-    private byte[] getMessageBody(int uid, String address, MailProgressHandler progressHandler) throws IOException, MailException {
+    /**
+     * Fetches the body of a message part, and creates its content object.
+     * <p>
+     * If the part has a transfer encoding, the body is decoded as each
+     * increment arrives from the server, so the encoded form is never
+     * accumulated.  The decoded content is still collected in a single
+     * buffer, since the content object needs it as one array, so large parts
+     * should be fetched with
+     * {@link #getMessageContentStreamed(PartContentStore, OutputStream, ImapMessageToken, MimeMessagePart, MailProgressHandler)}
+     * where possible.  If the server supports the BINARY extension, it is
+     * asked to do the decoding instead.
+     * </p>
+     *
+     * @param uid the message UID
+     * @param part the message part to fetch the content for
+     * @param size the encoded size of the part, as provided by the server
+     * @param progressHandler the progress handler
+     * @return the message content
+     */
+    private MimeMessageContent getMessageContent(int uid, MimeMessagePart part, int size, MailProgressHandler progressHandler)
+    throws IOException, MailException, UnsupportedContentException {
         if(activeMailbox == null) {
             throw new MailException("Mailbox not selected");
         }
-        return imapProtocol.executeFetchBody(uid, address, progressHandler);
+        
+        // Higher priority requests may run between fetch increments, so make
+        // sure this mailbox is selected again before the fetch continues
+        if(progressHandler != null) {
+            progressHandler = new MailboxRestoringProgressHandler(progressHandler, activeMailbox);
+        }
+        
+        // Base64 is the only common encoding that shrinks the content
+        // significantly, so the decoded size is only estimated for it.
+        ContentBuffer buffer = new ContentBuffer();
+        OutputStream decoder = MimeMessageContentFactory.createDecoderStream(part, buffer);
+        buffer.ensureCapacity((decoder instanceof Base64DecoderOutputStream) ? size / 4 * 3 : size);
+        
+        if(decoder != null && capabilities.containsKey(CAPABILITY_BINARY)) {
+            // Let the server decode the content, so it is transferred
+            // in its smaller binary form.  The decoded size is not requested
+            // separately, since that would cost another round trip, so the
+            // buffer is grown from the estimate as the literals arrive.
+            try {
+                imapProtocol.executeFetchBinary(uid, part.getTag(), buffer, progressHandler);
+                return MimeMessageContentFactory.createContentRaw(part, buffer.getBytes());
+            } catch (MailException e) {
+                if(e.isFatal()) { throw e; }
+                EventLogger.logEvent(AppInfo.GUID,
+                        ("Unable to fetch binary content: " + e.getMessage()).getBytes(),
+                        EventLogger.WARNING);
+                
+                // Fall through to fetching the encoded content
+                buffer.reset();
+            }
+        }
+        
+        if(decoder != null) {
+            imapProtocol.executeFetchBody(uid, part.getTag(), decoder, progressHandler);
+            decoder.close();
+            return MimeMessageContentFactory.createContentRaw(part, buffer.getBytes());
+        }
+        else {
+            imapProtocol.executeFetchBody(uid, part.getTag(), buffer, progressHandler);
+            return MimeMessageContentFactory.createContentEncoded(part, buffer.getBytes());
+        }
+    }
+
+    /**
+     * Fetches the body of a message part into the part content store, and
+     * creates its content object from the stored data.
+     * <p>
+     * This works like {@link #getMessageContent(int, MimeMessagePart, int, MailProgressHandler)},
+     * except that each decoded increment is written to the store as soon as
+     * it arrives, so no more than about one increment of the content is held
+     * in memory while it is being fetched.
+     * </p>
+     *
+     * @param store the part content store
+     * @param output the stream opened from the store for this part
+     * @param messageToken the message token
+     * @param part the message part to fetch the content for
+     * @param progressHandler the progress handler
+     * @return the message content
+     */
+    private MimeMessageContent getMessageContentStreamed(
+            PartContentStore store,
+            OutputStream output,
+            ImapMessageToken messageToken,
+            MimeMessagePart part,
+            MailProgressHandler progressHandler)
+    throws IOException, MailException, UnsupportedContentException {
+        int uid = messageToken.getImapMessageUid();
+        boolean fetched = false;
+        try {
+            if(activeMailbox == null) {
+                throw new MailException("Mailbox not selected");
+            }
+            
+            MailProgressHandler fetchProgressHandler = progressHandler;
+            if(fetchProgressHandler != null) {
+                fetchProgressHandler = new MailboxRestoringProgressHandler(fetchProgressHandler, activeMailbox);
+            }
+            
+            OutputStream decoder = MimeMessageContentFactory.createDecoderStream(part, output);
+            if(decoder != null && capabilities.containsKey(CAPABILITY_BINARY)) {
+                try {
+                    imapProtocol.executeFetchBinary(uid, part.getTag(), output, fetchProgressHandler);
+                    fetched = true;
+                } catch (MailException e) {
+                    if(e.isFatal()) { throw e; }
+                    EventLogger.logEvent(AppInfo.GUID,
+                            ("Unable to fetch binary content: " + e.getMessage()).getBytes(),
+                            EventLogger.WARNING);
+                    
+                    // Discard anything already written, and fall through to
+                    // fetching the encoded content into a fresh stream
+                    store.abortPartContent(output);
+                    output = openPartContent(store, messageToken, part);
+                    if(output == null) {
+                        return getMessageContent(uid, part, part.getSize(), progressHandler);
+                    }
+                    decoder = MimeMessageContentFactory.createDecoderStream(part, output);
+                }
+            }
+            
+            if(!fetched) {
+                if(decoder != null) {
+                    imapProtocol.executeFetchBody(uid, part.getTag(), decoder, fetchProgressHandler);
+                    decoder.close();
+                }
+                else {
+                    imapProtocol.executeFetchBody(uid, part.getTag(), output, fetchProgressHandler);
+                }
+                fetched = true;
+            }
+        } finally {
+            if(!fetched && output != null) {
+                store.abortPartContent(output);
+            }
+        }
+        
+        return store.commitPartContent(output);
+    }
+
+    /**
+     * Content buffer that can be presized once the expected content length
+     * is known, and that hands over its internal array when the estimate was
+     * exact instead of making another copy of it.
+     */
+    private static class ContentBuffer extends ByteArrayOutputStream {
+        public ContentBuffer() {
+            super(0);
+        }
+        
+        public synchronized void ensureCapacity(int capacity) {
+            if(capacity > buf.length) {
+                byte[] newBuf = new byte[capacity];
+                System.arraycopy(buf, 0, newBuf, 0, count);
+                buf = newBuf;
+            }
+        }
+        
+        public synchronized byte[] getBytes() {
+            if(count == buf.length) {
+                return buf;
+            }
+            else {
+                return toByteArray();
+            }
+        }
+    }
+
+    /**
+     * Progress handler wrapper that reselects the mailbox a fetch was started
+     * in, whenever the wrapped handler yields to other requests.
+     */
+    private class MailboxRestoringProgressHandler implements MailProgressHandler {
+        private final MailProgressHandler progressHandler;
+        private final FolderTreeItem mailbox;
+        
+        public MailboxRestoringProgressHandler(MailProgressHandler progressHandler, FolderTreeItem mailbox) {
+            this.progressHandler = progressHandler;
+            this.mailbox = mailbox;
+        }
+        
+        public void mailProgress(int type, int count, int max) {
+            progressHandler.mailProgress(type, count, max);
+        }
+        
+        public boolean yieldToWaitingRequests() throws IOException, MailException {
+            if(progressHandler.yieldToWaitingRequests()) {
+                setActiveFolder(mailbox, true);
+                return true;
+            }
+            else {
+                return false;
+            }
+        }
     }
 
     /* (non-Javadoc)
@@ -1344,17 +2000,50 @@ public class ImapClient extends AbstractIncomingMailClient {
                 clientListener.recentFolderMessagesAvailable(activeMailbox);
             }
         }
-        public void expungeResponse(int value) {
+        public void expungeResponse(int[] values) {
+            MailboxState mailboxState = (MailboxState)knownMailboxes.get(activeMailbox);
+            if(mailboxState == null) { return; }
+            
+            Vector updatedTokenVector = new Vector();
+            ImapMessageToken[] tokens = mailboxState.messagesExpunged(values, updatedTokenVector);
+            
+            if(clientListener != null) {
+                MessageToken[] updatedTokens = new MessageToken[updatedTokenVector.size()];
+                updatedTokenVector.copyInto(updatedTokens);
+                clientListener.folderMessagesExpunged(tokens, updatedTokens);
+            }
+        }
+        public void vanishedResponse(int[] uids) {
             MailboxState mailboxState = (MailboxState)knownMailboxes.get(activeMailbox);
             if(mailboxState == null) { return; }
             
+            Vector expungedTokenVector = new Vector();
             Vector updatedTokenVector = new Vector();
-            ImapMessageToken token = mailboxState.messageExpunged(value, updatedTokenVector);
+            mailboxState.messagesVanished(uids, expungedTokenVector, updatedTokenVector);
             
             if(clientListener != null) {
+                IntHashtable knownTokens = new IntHashtable(expungedTokenVector.size());
+                for(int i=expungedTokenVector.size() - 1; i>=0; i--) {
+                    ImapMessageToken token = (ImapMessageToken)expungedTokenVector.elementAt(i);
+                    knownTokens.put(token.getImapMessageUid(), token);
+                }
+                
+                Vector tokenVector = new Vector();
+                for(int i=0; i<uids.length; i+=2) {
+                    for(int uid=uids[i]; uid<=uids[i + 1]; uid++) {
+                        ImapMessageToken token = (ImapMessageToken)knownTokens.get(uid);
+                        if(token == null) {
+                            // Unlike with EXPUNGE, the unique ID is always known
+                            token = new ImapMessageToken(activeMailbox.getPath(), uid);
+                        }
+                        tokenVector.addElement(token);
+                    }
+                }
+                MessageToken[] expungedTokens = new MessageToken[tokenVector.size()];
+                tokenVector.copyInto(expungedTokens);
                 MessageToken[] updatedTokens = new MessageToken[updatedTokenVector.size()];
                 updatedTokenVector.copyInto(updatedTokens);
-                clientListener.folderMessageExpunged(token, updatedTokens);
+                clientListener.folderMessagesExpunged(expungedTokens, updatedTokens);
             }
         }
         public void fetchResponse(ImapProtocol.FetchFlagsResponse value) {
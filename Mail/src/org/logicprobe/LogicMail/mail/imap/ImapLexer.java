@@ -0,0 +1,403 @@
+/*-
+ * Copyright (c) 2011, Derek Konigsberg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.logicprobe.LogicMail.mail.imap;
+
+import java.io.UnsupportedEncodingException;
+
+import org.logicprobe.LogicMail.util.StringArrays;
+
+/**
+ * Pull-style lexer for IMAP parenthesized response data.
+ * <p>
+ * Tokens are returned one at a time from the raw response line, and are
+ * only described by their type, offset, and length within that line.
+ * Nothing is copied unless the caller explicitly asks for a token's value,
+ * so parsers built on this class only allocate the fields they keep.
+ * </p>
+ * <p>
+ * Tokenization is done by {@link #next()}, and nested lists are walked by
+ * matching its <code>LPAREN</code> and <code>RPAREN</code> tokens, or
+ * skipped as a whole with {@link #skipValue()}.
+ * </p>
+ */
+final class ImapLexer {
+    /** End of the input has been reached */
+    static final int EOF = 0;
+    /** Opening parenthesis */
+    static final int LPAREN = 1;
+    /** Closing parenthesis */
+    static final int RPAREN = 2;
+    /** Unquoted keyword, number, flag, or <code>NIL</code> */
+    static final int ATOM = 3;
+    /** Quoted string, with the token excluding the quotes */
+    static final int QUOTED = 4;
+    /** Literal string or binary literal, with the token excluding the length prefix */
+    static final int LITERAL = 5;
+
+    private static final String US_ASCII = "US-ASCII";
+    private static final String NIL = "NIL";
+
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private int tokenType;
+    private int tokenOffset;
+    private int tokenLength;
+    private boolean tokenEscaped;
+
+    /**
+     * Instantiates a new lexer.
+     *
+     * @param buffer the buffer containing the response data
+     * @param offset the offset to start lexing from
+     * @param length the length of the data to lex
+     */
+    ImapLexer(byte[] buffer, int offset, int length) {
+        reset(buffer, offset, length);
+    }
+
+    /**
+     * Resets this lexer to start on new response data.
+     *
+     * @param buffer the buffer containing the response data
+     * @param offset the offset to start lexing from
+     * @param length the length of the data to lex
+     */
+    void reset(byte[] buffer, int offset, int length) {
+        if(offset < 0 || offset + length > buffer.length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+        this.tokenType = EOF;
+        this.tokenOffset = offset;
+        this.tokenLength = 0;
+        this.tokenEscaped = false;
+    }
+
+    /**
+     * Advances to the next token.
+     *
+     * @return the type of the token
+     */
+    int next() {
+        tokenEscaped = false;
+
+        while(position < limit && buffer[position] == (byte)' ') {
+            position++;
+        }
+        if(position >= limit) {
+            tokenType = EOF;
+            tokenOffset = limit;
+            tokenLength = 0;
+            return tokenType;
+        }
+
+        byte ch = buffer[position];
+        if(ch == (byte)'(') {
+            setToken(LPAREN, position, 1);
+            position++;
+        }
+        else if(ch == (byte)')') {
+            setToken(RPAREN, position, 1);
+            position++;
+        }
+        else if(ch == (byte)'"') {
+            lexQuoted();
+        }
+        else if(ch == (byte)'{') {
+            lexLiteral();
+        }
+        else if(ch == (byte)'~' && position + 1 < limit && buffer[position + 1] == (byte)'{') {
+            // Binary literal, as defined in RFC 3516
+            position++;
+            lexLiteral();
+        }
+        else {
+            int i = position;
+            while(i < limit && buffer[i] != (byte)' ' && buffer[i] != (byte)')') {
+                i++;
+            }
+            setToken(ATOM, position, i - position);
+            position = i;
+        }
+        return tokenType;
+    }
+
+    private void lexQuoted() {
+        int start = position + 1;
+        int i = start;
+        while(i < limit) {
+            byte ch = buffer[i];
+            if(ch == (byte)'\\') {
+                tokenEscaped = true;
+                i += 2;
+            }
+            else if(ch == (byte)'\r' || ch == (byte)'\n') {
+                tokenEscaped = true;
+                i++;
+            }
+            else if(ch == (byte)'"') {
+                break;
+            }
+            else {
+                i++;
+            }
+        }
+        if(i > limit) { i = limit; }
+        setToken(QUOTED, start, i - start);
+        position = (i < limit) ? i + 1 : limit;
+    }
+
+    private void lexLiteral() {
+        int p = StringArrays.indexOf(buffer, (byte)'}', position);
+        if(p == -1 || p >= limit) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        int length = StringArrays.parseInt(buffer, position + 1, p - position - 1);
+        int start = p + 1;
+        if(start < limit && buffer[start] == (byte)'\r') { start++; }
+        if(start < limit && buffer[start] == (byte)'\n') { start++; }
+        if(start + length > limit) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        setToken(LITERAL, start, length);
+        position = start + length;
+    }
+
+    private void setToken(int type, int offset, int length) {
+        tokenType = type;
+        tokenOffset = offset;
+        tokenLength = length;
+    }
+
+    /**
+     * Gets the type of the current token.
+     */
+    int getTokenType() {
+        return tokenType;
+    }
+
+    /**
+     * Gets the buffer the current token is located in.
+     */
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Gets the offset of the current token within the buffer.
+     */
+    int getTokenOffset() {
+        return tokenOffset;
+    }
+
+    /**
+     * Gets the length of the current token within the buffer.
+     */
+    int getTokenLength() {
+        return tokenLength;
+    }
+
+    /**
+     * Checks whether the current token is a quoted string containing
+     * escapes or line breaks, which means its raw bytes within the buffer
+     * differ from its value.
+     */
+    boolean isTokenEscaped() {
+        return tokenEscaped;
+    }
+
+    /**
+     * Checks whether the current token is a quoted or literal string.
+     */
+    boolean isString() {
+        return tokenType == QUOTED || tokenType == LITERAL;
+    }
+
+    /**
+     * Checks whether the current token is the <code>NIL</code> atom.
+     */
+    boolean isNil() {
+        return tokenType == ATOM && tokenEqualsIgnoreCase(NIL);
+    }
+
+    /**
+     * Checks whether the current token exactly matches the provided text.
+     *
+     * @param text the text to compare against, containing only ASCII characters
+     */
+    boolean tokenEquals(String text) {
+        if(text.length() != tokenLength || tokenEscaped) { return false; }
+        for(int i=0; i<tokenLength; i++) {
+            if(buffer[tokenOffset + i] != (byte)text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the current token matches the provided text,
+     * ignoring case.
+     *
+     * @param text the text to compare against, containing only ASCII characters
+     */
+    boolean tokenEqualsIgnoreCase(String text) {
+        if(text.length() != tokenLength || tokenEscaped) { return false; }
+        for(int i=0; i<tokenLength; i++) {
+            if(toLowerCase(buffer[tokenOffset + i]) != toLowerCase((byte)text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the current token starts with the provided text.
+     *
+     * @param text the text to compare against, containing only ASCII characters
+     */
+    boolean tokenStartsWith(String text) {
+        int length = text.length();
+        if(length > tokenLength || tokenEscaped) { return false; }
+        for(int i=0; i<length; i++) {
+            if(buffer[tokenOffset + i] != (byte)text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte toLowerCase(byte ch) {
+        return (ch >= (byte)'A' && ch <= (byte)'Z') ? (byte)(ch + 32) : ch;
+    }
+
+    /**
+     * Parses the current token as a non-negative integer.
+     *
+     * @return the integer value
+     * @throws NumberFormatException if the token is not a number
+     */
+    int getInt() throws NumberFormatException {
+        if(tokenType != ATOM || tokenLength == 0) {
+            throw new NumberFormatException();
+        }
+        return StringArrays.parseInt(buffer, tokenOffset, tokenLength);
+    }
+
+    /**
+     * Gets the value of the current token as a new byte array, with any
+     * quoted string escapes removed.
+     */
+    byte[] getBytes() {
+        byte[] result;
+        if(tokenEscaped) {
+            byte[] temp = new byte[tokenLength];
+            int j = 0;
+            int end = tokenOffset + tokenLength;
+            for(int i=tokenOffset; i<end; i++) {
+                byte ch = buffer[i];
+                if(ch == (byte)'\\' && i + 1 < end) {
+                    byte ch1 = buffer[++i];
+                    if(ch1 == (byte)'\\' || ch1 == (byte)'"') {
+                        temp[j++] = ch1;
+                    }
+                }
+                else if(ch != (byte)'\r' && ch != (byte)'\n') {
+                    temp[j++] = ch;
+                }
+            }
+            result = new byte[j];
+            System.arraycopy(temp, 0, result, 0, j);
+        }
+        else {
+            result = new byte[tokenLength];
+            System.arraycopy(buffer, tokenOffset, result, 0, tokenLength);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the value of the current token as a string.
+     * Atoms are decoded as US-ASCII, while quoted and literal strings
+     * are decoded using the platform default encoding.
+     */
+    String getString() {
+        if(tokenType == ATOM) {
+            try {
+                return new String(buffer, tokenOffset, tokenLength, US_ASCII);
+            } catch (UnsupportedEncodingException e) {
+                return new String(buffer, tokenOffset, tokenLength);
+            }
+        }
+        else if(tokenEscaped) {
+            return new String(getBytes());
+        }
+        else {
+            return new String(buffer, tokenOffset, tokenLength);
+        }
+    }
+
+    /**
+     * Skips over the value starting with the current token.
+     * If the current token opens a list, then everything up to and including
+     * the matching closing parenthesis is skipped.  Otherwise, nothing is
+     * done since the current token is the entire value.
+     */
+    void skipValue() {
+        if(tokenType == LPAREN) {
+            skipList();
+        }
+    }
+
+    /**
+     * Skips tokens up to and including the next unbalanced closing
+     * parenthesis.  When called after an opening parenthesis, or from within
+     * a list, this skips the remainder of that list.
+     */
+    void skipList() {
+        int depth = 1;
+        while(depth > 0) {
+            int type = next();
+            if(type == LPAREN) {
+                depth++;
+            }
+            else if(type == RPAREN) {
+                depth--;
+            }
+            else if(type == EOF) {
+                break;
+            }
+        }
+    }
+}
@@ -32,7 +32,6 @@ package org.logicprobe.LogicMail.mail.imap;
 
 import net.rim.device.api.system.EventLogger;
 import net.rim.device.api.util.Arrays;
-import net.rim.device.api.util.ByteVector;
 
 import org.logicprobe.LogicMail.AppInfo;
 import org.logicprobe.LogicMail.message.MessageEnvelope;
@@ -53,12 +52,8 @@ import java.util.Vector;
  * needed when using the IMAP protocol
  */
 class ImapParser {
-    private static String NIL = "NIL";
     private static String BODYSTRUCTURE = "BODYSTRUCTURE";
     private static String MODIFIED_BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+,";
-    private static Character LPAREN = new Character('(');
-    private static Character RPAREN = new Character(')');
-    private static String US_ASCII = "US-ASCII";
     private static String NAME = "name";
     private static String CHARSET = "charset";
     static String FLAG_SEEN = "\\Seen";
@@ -74,32 +69,36 @@ class ImapParser {
     private ImapParser() {
     }
 
-    static ImapProtocol.MessageFlags parseMessageFlags(Vector flagsVec) {
+    /**
+     * Parse a list of message flags.
+     *
+     * @param lexer the lexer, positioned on the opening parenthesis of the list
+     * @return the parsed flags
+     */
+    static ImapProtocol.MessageFlags parseMessageFlags(ImapLexer lexer) {
         ImapProtocol.MessageFlags flags = new ImapProtocol.MessageFlags();
 
-        String text;
-        int size = flagsVec.size();
-
-        for (int i = 0; i < size; i++) {
-            if (flagsVec.elementAt(i) instanceof String) {
-                text = (String) flagsVec.elementAt(i);
-
-                if (text.equalsIgnoreCase(FLAG_SEEN)) {
+        int type;
+        while ((type = lexer.next()) != ImapLexer.RPAREN && type != ImapLexer.EOF) {
+            if (type == ImapLexer.LPAREN) {
+                lexer.skipValue();
+            } else if (type == ImapLexer.ATOM) {
+                if (lexer.tokenEqualsIgnoreCase(FLAG_SEEN)) {
                     flags.seen = true;
-                } else if (text.equalsIgnoreCase(FLAG_ANSWERED)) {
+                } else if (lexer.tokenEqualsIgnoreCase(FLAG_ANSWERED)) {
                     flags.answered = true;
-                } else if (text.equalsIgnoreCase(FLAG_FLAGGED)) {
+                } else if (lexer.tokenEqualsIgnoreCase(FLAG_FLAGGED)) {
                     flags.flagged = true;
-                } else if (text.equalsIgnoreCase(FLAG_DELETED)) {
+                } else if (lexer.tokenEqualsIgnoreCase(FLAG_DELETED)) {
                     flags.deleted = true;
-                } else if (text.equalsIgnoreCase(FLAG_DRAFT)) {
+                } else if (lexer.tokenEqualsIgnoreCase(FLAG_DRAFT)) {
                     flags.draft = true;
-                } else if (text.equalsIgnoreCase(FLAG_RECENT)) {
+                } else if (lexer.tokenEqualsIgnoreCase(FLAG_RECENT)) {
                     flags.recent = true;
-                } else if (text.equalsIgnoreCase(FLAG_FORWARDED)) {
+                } else if (lexer.tokenEqualsIgnoreCase(FLAG_FORWARDED)) {
                     flags.forwarded = true;
-                } else if (text.equalsIgnoreCase(FLAG_JUNK0) ||
-                        text.equalsIgnoreCase(FLAG_JUNK1)) {
+                } else if (lexer.tokenEqualsIgnoreCase(FLAG_JUNK0) ||
+                        lexer.tokenEqualsIgnoreCase(FLAG_JUNK1)) {
                     flags.junk = true;
                 }
             }
@@ -166,124 +165,153 @@ class ImapParser {
         return buf.toString();
     }
 
-    static MessageEnvelope parseMessageEnvelope(Vector parsedEnv) {
-        // Sanity checking
-        if (parsedEnv.size() < 10) {
-            EventLogger.logEvent(AppInfo.GUID,
-                "ImapParser.parseMessageEnvelope: Sanity check failed".getBytes(),
-                EventLogger.WARNING);
-
-            return generateDummyEnvelope();
-        }
-
+    /**
+     * Parse a message envelope.
+     *
+     * @param lexer the lexer, positioned on the opening parenthesis of the envelope
+     * @return the parsed envelope
+     */
+    static MessageEnvelope parseMessageEnvelope(ImapLexer lexer) {
         MessageEnvelope env = new MessageEnvelope();
+        env.subject = "";
+        env.inReplyTo = "";
+        env.messageId = "";
 
-        if (parsedEnv.elementAt(0) instanceof byte[]) {
-            try {
-                env.date = StringParser.parseDateString(
-                        new String((byte[]) parsedEnv.elementAt(0)));
-            } catch (Exception e) {
-                env.date = Calendar.getInstance().getTime();
+        int index = 0;
+        int type;
+        while ((type = lexer.next()) != ImapLexer.RPAREN && type != ImapLexer.EOF) {
+            switch (index) {
+            case 0:
+                if (lexer.isString()) {
+                    try {
+                        env.date = StringParser.parseDateString(lexer.getString());
+                    } catch (Exception e) {
+                        env.date = null;
+                    }
+                }
+                break;
+            case 1:
+                if (lexer.isString()) {
+                    env.subject = StringParser.parseEncodedHeader(lexer.getString());
+                }
+                break;
+            case 2:
+                env.from = parseAddressList(lexer);
+                break;
+            case 3:
+                env.sender = parseAddressList(lexer);
+                break;
+            case 4:
+                env.replyTo = parseAddressList(lexer);
+                break;
+            case 5:
+                env.to = parseAddressList(lexer);
+                break;
+            case 6:
+                env.cc = parseAddressList(lexer);
+                break;
+            case 7:
+                env.bcc = parseAddressList(lexer);
+                break;
+            case 8:
+                if (lexer.isString()) {
+                    env.inReplyTo = lexer.getString();
+                }
+                break;
+            case 9:
+                if (lexer.isString()) {
+                    env.messageId = lexer.getString();
+                }
+                break;
             }
-        }
-        else {
-            env.date = Calendar.getInstance().getTime();
-        }
 
-        if (parsedEnv.elementAt(1) instanceof byte[]) {
-            env.subject = StringParser.parseEncodedHeader(
-                    new String((byte[])parsedEnv.elementAt(1)));
-        }
-        else {
-            env.subject = "";
-        }
-
-        if (parsedEnv.elementAt(2) instanceof Vector) {
-            env.from = parseAddressList((Vector) parsedEnv.elementAt(2));
-        }
-
-        if (parsedEnv.elementAt(3) instanceof Vector) {
-            env.sender = parseAddressList((Vector) parsedEnv.elementAt(3));
-        }
-
-        if (parsedEnv.elementAt(4) instanceof Vector) {
-            env.replyTo = parseAddressList((Vector) parsedEnv.elementAt(4));
-        }
-
-        if (parsedEnv.elementAt(5) instanceof Vector) {
-            env.to = parseAddressList((Vector) parsedEnv.elementAt(5));
-        }
-
-        if (parsedEnv.elementAt(6) instanceof Vector) {
-            env.cc = parseAddressList((Vector) parsedEnv.elementAt(6));
+            // Address lists consume themselves, anything else is skipped
+            if (lexer.getTokenType() == ImapLexer.LPAREN) {
+                lexer.skipValue();
+            }
+            index++;
         }
 
-        if (parsedEnv.elementAt(7) instanceof Vector) {
-            env.bcc = parseAddressList((Vector) parsedEnv.elementAt(7));
-        }
+        // Sanity checking
+        if (index < 10) {
+            EventLogger.logEvent(AppInfo.GUID,
+                "ImapParser.parseMessageEnvelope: Sanity check failed".getBytes(),
+                EventLogger.WARNING);
 
-        if (parsedEnv.elementAt(8) instanceof byte[]) {
-            env.inReplyTo = new String((byte[])parsedEnv.elementAt(8));
-        }
-        else {
-            env.inReplyTo = "";
+            return generateDummyEnvelope();
         }
 
-        if (parsedEnv.elementAt(9) instanceof byte[]) {
-            env.messageId = new String((byte[])parsedEnv.elementAt(9));
-        }
-        else {
-            env.messageId = "";
+        if (env.date == null) {
+            env.date = Calendar.getInstance().getTime();
         }
 
         return env;
     }
 
-    static String[] parseAddressList(Vector addrVec) {
-        // Find the number of addresses, and allocate the array
-        String[] addrList = new String[addrVec.size()];
-        int index = 0;
-
-        for (int i = 0; i < addrVec.size(); i++) {
-            if ((addrVec.elementAt(i) instanceof Vector) &&
-                    (((Vector) addrVec.elementAt(i)).size() >= 4)) {
-                Vector entry = (Vector) addrVec.elementAt(i);
-
-                String realName = NIL;
+    /**
+     * Parse an envelope address list.
+     *
+     * @param lexer the lexer, positioned on the start of the list
+     * @return the parsed addresses, or <code>null</code> if the list was <code>NIL</code>
+     */
+    static String[] parseAddressList(ImapLexer lexer) {
+        if (lexer.getTokenType() != ImapLexer.LPAREN) {
+            return null;
+        }
 
-                if (entry.elementAt(0) instanceof byte[]) {
-                    realName = StringParser.parseEncodedHeader(
-                            new String((byte[]) entry.elementAt(0)));
+        Vector addresses = new Vector();
+        int type;
+        while ((type = lexer.next()) != ImapLexer.RPAREN && type != ImapLexer.EOF) {
+            if (type == ImapLexer.LPAREN) {
+                String address = parseAddress(lexer);
+                if (address != null) {
+                    addresses.addElement(address);
                 }
+            }
+        }
 
-                String mbName = NIL;
+        String[] addrList = new String[addresses.size()];
+        addresses.copyInto(addrList);
 
-                if (entry.elementAt(2) instanceof byte[]) {
-                    mbName = new String((byte[]) entry.elementAt(2));
-                }
+        return addrList;
+    }
 
-                String hostName = NIL;
+    private static String parseAddress(ImapLexer lexer) {
+        String realName = null;
+        String mbName = null;
+        String hostName = null;
 
-                if (entry.elementAt(3) instanceof byte[]) {
-                    hostName = new String((byte[]) entry.elementAt(3));
+        int index = 0;
+        int type;
+        while ((type = lexer.next()) != ImapLexer.RPAREN && type != ImapLexer.EOF) {
+            if (type == ImapLexer.LPAREN) {
+                lexer.skipValue();
+            } else if (lexer.isString()) {
+                if (index == 0) {
+                    realName = StringParser.parseEncodedHeader(lexer.getString());
+                } else if (index == 2) {
+                    mbName = lexer.getString();
+                } else if (index == 3) {
+                    hostName = lexer.getString();
                 }
+            }
+            index++;
+        }
 
-                String addrStr = (mbName.equals(NIL) ? "" : mbName) +
-                    (hostName.equals(NIL) ? "" : ('@' + hostName));
+        if (index < 4) {
+            return null;
+        }
 
-                // Now assemble these into a single address entry
-                // (possibly eventually storing them separately)
-                if ((realName.length() > 0) && !realName.equals(NIL)) {
-                    addrList[index] = realName + " <" + addrStr + ">";
-                } else {
-                    addrList[index] = addrStr;
-                }
+        String addrStr = (mbName == null ? "" : mbName) +
+            (hostName == null ? "" : ('@' + hostName));
 
-                index++;
-            }
+        // Now assemble these into a single address entry
+        // (possibly eventually storing them separately)
+        if ((realName != null) && (realName.length() > 0)) {
+            return realName + " <" + addrStr + ">";
+        } else {
+            return addrStr;
         }
-
-        return addrList;
     }
 
     static MessageEnvelope generateDummyEnvelope() {
@@ -303,11 +331,23 @@ class ImapParser {
      * @return Root of the message structure tree
      */
     static MessageSection parseMessageStructure(byte[] rawText) {
-        Vector parsedText = null;
+        MessageSection msgStructure = null;
 
         try {
             int offset = Arrays.getIndex(rawText, (byte)'(');
-            parsedText = ImapParser.parenListParser(rawText, offset, rawText.length - offset);
+            ImapLexer lexer = new ImapLexer(rawText, offset, rawText.length - offset);
+
+            // Find the BODYSTRUCTURE portion of the reply
+            if (lexer.next() == ImapLexer.LPAREN) {
+                while (lexer.next() == ImapLexer.ATOM) {
+                    boolean isStructure = lexer.tokenEqualsIgnoreCase(BODYSTRUCTURE);
+                    if (lexer.next() == ImapLexer.LPAREN && isStructure) {
+                        msgStructure = parseMessageStructureParameter(lexer);
+                    } else {
+                        lexer.skipValue();
+                    }
+                }
+            }
         } catch (Exception exp) {
             EventLogger.logEvent(AppInfo.GUID,
                 ("ImapParser.parseMessageStructure: " +
@@ -317,24 +357,8 @@ class ImapParser {
             return null;
         }
 
-        // Find the BODYSTRUCTURE portion of the reply
-        Vector parsedStruct = null;
-        int size = parsedText.size();
-
-        for (int i = 0; i < size; i++) {
-            if (parsedText.elementAt(i) instanceof String) {
-                String label = (String) parsedText.elementAt(i);
-
-                if (label.equalsIgnoreCase(BODYSTRUCTURE) &&
-                        (i < (size - 1)) &&
-                        parsedText.elementAt(i + 1) instanceof Vector) {
-                    parsedStruct = (Vector) parsedText.elementAt(i + 1);
-                }
-            }
-        }
-
         // Sanity checking
-        if (parsedStruct == null) {
+        if (msgStructure == null) {
             EventLogger.logEvent(AppInfo.GUID,
                 "ImapParser.parseMessageStructure: Sanity check failed".getBytes(),
                 EventLogger.WARNING);
@@ -342,21 +366,19 @@ class ImapParser {
             return null;
         }
 
-        MessageSection msgStructure = parseMessageStructureParameter(parsedStruct);
-
         return msgStructure;
     }
 
     /**
-     * Parse the IMAP message structure tree from a prepared object tree
-     * generated by {@link ImapParser#parenListParser(String)}.
+     * Parse the IMAP message structure tree from the list that follows
+     * a BODYSTRUCTURE string.
      *
-     * @param parsedStruct Tree containing the {@link Vector} that follows a BODYSTRUCTURE string
+     * @param lexer the lexer, positioned on the opening parenthesis of the list
      * @return Root of the message structure tree
      */
-    static MessageSection parseMessageStructureParameter(Vector parsedStruct) {
+    static MessageSection parseMessageStructureParameter(ImapLexer lexer) {
         MessageSection msgStructure = parseMessageStructureHelper(
-                null, 1, parsedStruct);
+                null, 1, lexer);
         fixMessageStructure(msgStructure);
 
         return msgStructure;
@@ -385,7 +407,7 @@ class ImapParser {
     }
 
     private static MessageSection parseMessageStructureHelper(
-        String parentAddress, int index, Vector parsedStruct) {
+        String parentAddress, int index, ImapLexer lexer) {
         // Determine the address of this body part
         String address;
 
@@ -396,111 +418,124 @@ class ImapParser {
         }
 
         // Determine the number of body parts and parse
-        if (parsedStruct.elementAt(0) instanceof byte[]) {
+        int type = lexer.next();
+        if (lexer.isString()) {
             // The first element is a string, so we hit a simple message part
-            MessageSection section = parseMessageStructureSection(parsedStruct);
+            MessageSection section = parseMessageStructureSection(lexer);
             section.address = address;
 
             return section;
-        } else if (parsedStruct.elementAt(0) instanceof Vector) {
-            // The first element is a vector, so we hit a multipart message part
-            int size = parsedStruct.size();
+        } else if (type == ImapLexer.LPAREN) {
+            // The first element is a list, so we hit a multipart message part
             Vector subSectionsVector = new Vector();
+            int i = 0;
 
-            for (int i = 0; i < size; ++i) {
+            while (type == ImapLexer.LPAREN) {
                 // Iterate through the message parts
-                if (parsedStruct.elementAt(i) instanceof Vector) {
-                    subSectionsVector.addElement(parseMessageStructureHelper(
-                            address, i + 1, (Vector) parsedStruct.elementAt(i)));
-                } else if (parsedStruct.elementAt(i) instanceof byte[]) {
-                    MessageSection section = new MessageSection();
-                    section.type = MultiPart.TYPE;
-                    section.subtype = (new String((byte[]) parsedStruct.elementAt(i))).toLowerCase();
-                    section.subsections = new MessageSection[subSectionsVector.size()];
-                    subSectionsVector.copyInto(section.subsections);
-                    section.address = address;
-
-                    return section;
-                }
+                subSectionsVector.addElement(parseMessageStructureHelper(
+                        address, ++i, lexer));
+                type = lexer.next();
             }
-        }
 
-        return null;
+            MessageSection section = null;
+            if (lexer.isString()) {
+                section = new MessageSection();
+                section.type = MultiPart.TYPE;
+                section.subtype = lexer.getString().toLowerCase();
+                section.subsections = new MessageSection[subSectionsVector.size()];
+                subSectionsVector.copyInto(section.subsections);
+                section.address = address;
+            }
+
+            // Skip any extension data
+            if (type != ImapLexer.RPAREN) {
+                lexer.skipList();
+            }
+            return section;
+        } else {
+            if (type != ImapLexer.RPAREN) {
+                lexer.skipList();
+            }
+            return null;
+        }
     }
 
     private static MessageSection parseMessageStructureSection(
-        Vector sectionList) {
+        ImapLexer lexer) {
         MessageSection sec = new MessageSection();
-        Vector tmpVec;
-        int sectionListSize = sectionList.size();
-
-        if (sectionList.elementAt(0) instanceof byte[]) {
-            sec.type = (new String((byte[])sectionList.elementAt(0))).toLowerCase();
-        }
-
-        if (sectionList.elementAt(1) instanceof byte[]) {
-            sec.subtype = (new String((byte[])sectionList.elementAt(1))).toLowerCase();
-        }
-
-        sec.charset = null;
-
-        if (sectionList.elementAt(2) instanceof Vector) {
-            tmpVec = (Vector) sectionList.elementAt(2);
-
-            int size = tmpVec.size();
-
-            for (int i = 0; i < (size - 1); i += 2) {
-                if (tmpVec.elementAt(i) instanceof byte[] &&
-                        tmpVec.elementAt(i + 1) instanceof byte[]) {
-                    String key = new String((byte[]) tmpVec.elementAt(i));
-                    String value = new String((byte[]) tmpVec.elementAt(i + 1));
-
-                    if (key.equalsIgnoreCase(CHARSET)) {
-                        sec.charset = value;
-                    } else if (key.equalsIgnoreCase(NAME)) {
-                        sec.name = StringParser.parseEncodedHeader(value);
+        int dispositionIndex = 8;
+        int index = 0;
+        int type = lexer.getTokenType();
+
+        while (type != ImapLexer.RPAREN && type != ImapLexer.EOF) {
+            if (type == ImapLexer.LPAREN) {
+                if (index == 2) {
+                    parseMessageStructureParameters(lexer, sec);
+                } else if (index == dispositionIndex) {
+                    if (lexer.next() != ImapLexer.RPAREN) {
+                        if (lexer.isString()) {
+                            sec.disposition = lexer.getString().toLowerCase();
+                        }
+                        lexer.skipList();
+                    }
+                } else {
+                    lexer.skipValue();
+                }
+            } else if (lexer.isString()) {
+                if (index == 0) {
+                    sec.type = lexer.getString().toLowerCase();
+
+                    if (TextPart.TYPE.equalsIgnoreCase(sec.type)) {
+                        dispositionIndex = 9;
+                    } else if (MessagePart.TYPE.equalsIgnoreCase(sec.type)) {
+                        dispositionIndex = 11;
                     }
+                } else if (index == 1) {
+                    sec.subtype = lexer.getString().toLowerCase();
+                } else if (index == 3) {
+                    sec.contentId = lexer.getString();
+                } else if (index == 5) {
+                    sec.encoding = lexer.getString().toLowerCase();
+                }
+            } else if (index == 6) {
+                try {
+                    sec.size = lexer.getInt();
+                } catch (Exception exp) {
+                    sec.size = -1;
                 }
             }
-        }
-
-        if (sectionList.elementAt(3) instanceof byte[]) {
-            sec.contentId = new String((byte[]) sectionList.elementAt(3));
-        }
 
-        if (sectionList.elementAt(5) instanceof byte[]) {
-            sec.encoding = new String(((byte[]) sectionList.elementAt(5))).toLowerCase();
+            index++;
+            type = lexer.next();
         }
 
-        if (sectionList.elementAt(6) instanceof String) {
-            try {
-                sec.size = Integer.parseInt((String) sectionList.elementAt(6));
-            } catch (Exception exp) {
-                sec.size = -1;
-            }
-        }
-
-        int dispositionIndex;
-        if(TextPart.TYPE.equalsIgnoreCase(sec.type)) {
-            dispositionIndex = 9;
-        }
-        else if(MessagePart.TYPE.equalsIgnoreCase(sec.type)) {
-            dispositionIndex = 11;
-        }
-        else {
-            dispositionIndex = 8;
-        }
-        
-        if ((sectionListSize > dispositionIndex) &&
-                sectionList.elementAt(dispositionIndex) instanceof Vector) {
-            tmpVec = (Vector) sectionList.elementAt(dispositionIndex);
+        return sec;
+    }
 
-            if (tmpVec.elementAt(0) instanceof byte[]) {
-                sec.disposition = new String((byte[]) tmpVec.elementAt(0)).toLowerCase();
+    private static void parseMessageStructureParameters(
+        ImapLexer lexer, MessageSection sec) {
+        boolean isCharset = false;
+        boolean isName = false;
+        int index = 0;
+        int type;
+
+        while ((type = lexer.next()) != ImapLexer.RPAREN && type != ImapLexer.EOF) {
+            if (type == ImapLexer.LPAREN) {
+                lexer.skipValue();
+                isCharset = false;
+                isName = false;
+            } else if ((index % 2) == 0) {
+                isCharset = lexer.isString() && lexer.tokenEqualsIgnoreCase(CHARSET);
+                isName = lexer.isString() && lexer.tokenEqualsIgnoreCase(NAME);
+            } else if (lexer.isString()) {
+                if (isCharset) {
+                    sec.charset = lexer.getString();
+                } else if (isName) {
+                    sec.name = StringParser.parseEncodedHeader(lexer.getString());
+                }
             }
+            index++;
         }
-
-        return sec;
     }
 
     /**
@@ -553,6 +588,90 @@ class ImapParser {
         return buf.toString();
     }
 
+    /**
+     * Parses an IMAP sequence set of unique IDs, such as
+     * <tt>41,43:116,118</tt>, into an array of ranges.
+     * Each range is stored as a pair of elements containing its first and
+     * last values.  Ranges are not expanded, since servers may report ranges
+     * that span UIDs which never existed.
+     *
+     * @param rawText Text from the server.
+     * @return Array of range pairs.
+     */
+    static int[] parseUidSet(String rawText) {
+        String[] tokens = StringParser.parseTokenString(rawText.trim(), ",");
+        int[] result = new int[tokens.length * 2];
+        int count = 0;
+        for(int i=0; i<tokens.length; i++) {
+            String token = tokens[i].trim();
+            int p = token.indexOf(':');
+            try {
+                int first;
+                int last;
+                if(p == -1) {
+                    first = Integer.parseInt(token);
+                    last = first;
+                }
+                else {
+                    first = Integer.parseInt(token.substring(0, p));
+                    last = Integer.parseInt(token.substring(p + 1));
+                    if(first > last) {
+                        int temp = first;
+                        first = last;
+                        last = temp;
+                    }
+                }
+                result[count++] = first;
+                result[count++] = last;
+            } catch (NumberFormatException e) {
+                // Skip anything that is not a valid range
+            }
+        }
+
+        if(count < result.length) {
+            int[] trimmed = new int[count];
+            System.arraycopy(result, 0, trimmed, 0, count);
+            result = trimmed;
+        }
+        return result;
+    }
+
+    /**
+     * Creates an IMAP sequence set from a list of unique IDs, collapsing
+     * runs of consecutive values into ranges.  This keeps the command short
+     * even when it references a large number of messages.
+     *
+     * @param uids List of unique IDs, which does not need to be sorted.
+     * @return Sequence set string.
+     */
+    static String createUidSetString(int[] uids) {
+        int[] sorted = new int[uids.length];
+        System.arraycopy(uids, 0, sorted, 0, uids.length);
+        Arrays.sort(sorted, 0, sorted.length);
+
+        StringBuffer buf = new StringBuffer();
+        int i = 0;
+        while(i < sorted.length) {
+            int first = sorted[i];
+            int last = first;
+            i++;
+            while(i < sorted.length && sorted[i] <= last + 1) {
+                last = sorted[i];
+                i++;
+            }
+
+            if(buf.length() > 0) {
+                buf.append(',');
+            }
+            buf.append(first);
+            if(last != first) {
+                buf.append(':');
+                buf.append(last);
+            }
+        }
+        return buf.toString();
+    }
+
     /**
      * Decodes the IMAP modification of the UTF-7 modification of Base64.
      *
@@ -605,155 +724,6 @@ class ImapParser {
         }
     }
 
-    static Vector parenListLexer(byte[] rawText, int offset, int length) {
-        if(offset + length > rawText.length) {
-            throw new ArrayIndexOutOfBoundsException();
-        }
-
-        Vector result = new Vector();
-        ByteVector buf = new ByteVector();
-
-        int size = offset + length;
-        int i = offset;
-
-        while (i < size) {
-            byte ch = rawText[i];
-
-            if (ch == (byte)'(') {
-                result.addElement(LPAREN);
-                i++;
-            } else if (ch == (byte)')') {
-                result.addElement(RPAREN);
-                i++;
-            } else if (ch == (byte)'"') {
-                // Quoted string
-                i++;
-                buf.setSize(0);
-
-                while (i < (size - 1)) {
-                    ch = rawText[i];
-
-                    if (ch == (byte)'\\') {
-                        byte ch1 = rawText[i + 1];
-
-                        if (ch1 == (byte)'\\' || ch1 == (byte)'"') {
-                            buf.addElement(ch1);
-                        }
-
-                        i += 2;
-                    } else if (ch == (byte)'\r' || ch == (byte)'\n') {
-                        i++;
-                    } else if (ch == '"') {
-                        result.addElement(buf.toArray());
-                        i++;
-
-                        break;
-                    } else {
-                        buf.addElement(ch);
-                        i++;
-                    }
-                }
-            } else if (ch == '{') {
-                // Literal string
-                int p = StringArrays.indexOf(rawText, (byte)'}', i);
-                int len = StringArrays.parseInt(rawText, i + 1, p - i - 1);
-                i = p + 3;
-                result.addElement(Arrays.copy(rawText, i, len));
-                i += len;
-
-                // Check for invalid length, etc
-            } else if (ch == ' ') {
-                // Skip the space
-                i++;
-            } else {
-                // Keyword
-                int p1 = StringArrays.indexOf(rawText, (byte)' ', i);
-                int p2 = StringArrays.indexOf(rawText, (byte)')', i);
-                int p;
-
-                if (p1 == -1) {
-                    p = p2;
-                } else if (p2 == -1) {
-                    p = p1;
-                } else {
-                    p = Math.min(p1, p2);
-                }
-
-                // check if p == -1, and bomb out
-                if(p == -1) {
-                    p = size;
-                }
-                try {
-                    result.addElement(new String(rawText, i, p - i, US_ASCII));
-                } catch (UnsupportedEncodingException e) {
-                    result.addElement(new String(rawText, i, p - i));
-                }
-
-                i = p;
-            }
-        }
-
-        return result;
-    }
-
-    /**
-     * Recursively parse an IMAP parenthesized string.
-     * <p>
-     * Parses through a string of the form "(A (B C (D) E F))" and
-     * returns a tree of representing its contents.  Each element will either
-     * be a <code>Vector</code>, <code>String</code>, or a <code>byte[]</code>.
-     * Vectors are elements that contain other elements, strings are unquoted
-     * elements (e.g. keywords, flags, numbers), and byte arrays are quoted
-     * text or literals.
-     * </p>
-     *
-     * @param rawText The raw text to be parsed
-     * @return A tree containing the parsed data
-     */
-    static Vector parenListParser(byte[] rawText) {
-        return parenListParser(rawText, 0, rawText.length);
-    }
-    
-    /**
-     * Recursively parse an IMAP parenthesized string.
-     * <p>
-     * Parses through a string of the form "(A (B C (D) E F))" and
-     * returns a tree of representing its contents.  Each element will either
-     * be a <code>Vector</code>, <code>String</code>, or a <code>byte[]</code>.
-     * Vectors are elements that contain other elements, strings are unquoted
-     * elements (e.g. keywords, flags, numbers), and byte arrays are quoted
-     * text or literals.
-     * </p>
-     *
-     * @param rawText The raw text to be parsed
-     * @param The offset to start parsing from
-     * @param length The length of the data to parse
-     * @return A tree containing the parsed data
-     */
-    static Vector parenListParser(byte[] rawText, int offset, int length) {
-        Vector tokenized = parenListLexer(rawText, offset, length);
-        MutableInteger mutableInteger = new MutableInteger();
-        Vector result = parenListParserImpl(tokenized, mutableInteger);
-        return result;
-    }
-
-    static Vector parenListParserImpl(Vector tokenized, MutableInteger index) {
-        Vector result = new Vector();
-        Object element = tokenized.elementAt(++index.value);
-
-        while (element != RPAREN) {
-            if (element == LPAREN) {
-                result.addElement(parenListParserImpl(tokenized, index));
-            } else {
-                result.addElement(element);
-            }
-
-            element = tokenized.elementAt(++index.value);
-        }
-
-        return result;
-    }
-
     /**
      * Simple container for a parsed message structure tree
      */
@@ -769,8 +739,4 @@ class ImapParser {
         public int size;
         public MessageSection[] subsections;
     }
-
-    private static class MutableInteger {
-        public int value = 0;
-    }
 }
@@ -33,7 +33,6 @@ package org.logicprobe.LogicMail.mail.imap;
 import net.rim.device.api.i18n.MessageFormat;
 import net.rim.device.api.system.EventLogger;
 import net.rim.device.api.util.Arrays;
-import net.rim.device.api.util.DataBuffer;
 import net.rim.device.api.util.IntIntHashtable;
 import net.rim.device.api.util.MathUtilities;
 
@@ -50,6 +49,7 @@ import org.logicprobe.LogicMail.util.StringParser;
 import org.logicprobe.LogicMail.util.Watchdog;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 import java.util.Hashtable;
 import java.util.Vector;
@@ -232,7 +232,39 @@ public class ImapProtocol {
         }
         return true;
     }
-    
+
+    /**
+     * Execute the "ENABLE" command
+     * @param capability the extension to enable
+     * @return true, if the server reported the extension as enabled
+     */
+    public boolean executeEnable(String capability) throws IOException, MailException {
+        if (EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("ImapProtocol.executeEnable(\"" + capability + "\")").getBytes(),
+                    EventLogger.DEBUG_INFO);
+        }
+
+        String[] replyText;
+        try {
+            replyText = execute(ENABLE, capability, null);
+        } catch (MailException e) {
+            return false;
+        }
+
+        for (int i = 0; i < replyText.length; i++) {
+            String[] tokens = StringParser.parseTokenString(replyText[i], CHAR_SP);
+            if ((tokens.length > 2) && tokens[1].equals(ENABLED)) {
+                for (int j = 2; j < tokens.length; j++) {
+                    if (tokens[j].equalsIgnoreCase(capability)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Execute the "NAMESPACE" command
      * @return A fully populated Namespace object
@@ -251,103 +283,79 @@ public class ImapProtocol {
             throw new MailException("Unable to query server namespaces");
         }
 
-        // Assume a single-line reply, and modify that reply so its enclosed
-        // within a set of outer parenthesis so that the parser is happy.
-        int offset = Arrays.getIndex(replyText[0], (byte)'(');
-        byte[] data = new byte[(replyText[0].length - offset) + 2];
-        data[0] = (byte)'(';
-        int j = 1;
-        for(int i=offset; i<replyText[0].length; i++) {
-            data[j++] = replyText[0][i];
+        // Assume a single-line reply, and parse the three namespace lists
+        // that follow the response name.
+        NamespaceResponse response = new NamespaceResponse();
+        byte[] rawText = replyText[0];
+        int offset = StringArrays.indexOf(rawText, NAMESPACE.getBytes(), 0);
+        if(offset == -1) {
+            return response;
         }
-        data[j] = (byte)')';
+        offset += NAMESPACE.length();
         
-        Vector tokens = ImapParser.parenListParser(data);
-
-        // Sanity check on results
-        if ((tokens == null) || (tokens.size() < 3)) {
+        try {
+            ImapLexer lexer = new ImapLexer(rawText, offset, rawText.length - offset);
+            
+            // Parse personal namespace(s)
+            lexer.next();
+            response.personal = parseNamespaceList(lexer);
+            
+            // Parse other users' namespace(s)
+            lexer.next();
+            response.other = parseNamespaceList(lexer);
+            
+            // Parse shared namespace(s)
+            lexer.next();
+            response.shared = parseNamespaceList(lexer);
+        } catch (Throwable exp) {
+            EventLogger.logEvent(AppInfo.GUID,
+                ("Parse error: " + exp).getBytes(), EventLogger.ERROR);
             return new NamespaceResponse();
         }
 
-        NamespaceResponse response = new NamespaceResponse();
-        Vector nsTokens;
-        Vector temp;
-        int size;
-        int i;
-
-        // Parse personal namespace(s)
-        if (tokens.elementAt(0) instanceof Vector) {
-            nsTokens = (Vector) tokens.elementAt(0);
-            size = nsTokens.size();
-            response.personal = new Namespace[size];
-
-            for (i = 0; i < nsTokens.size(); i++) {
-                if (nsTokens.elementAt(i) instanceof Vector) {
-                    temp = (Vector) (nsTokens.elementAt(i));
-                    response.personal[i] = new Namespace();
-
-                    if (temp.size() >= 2) {
-                        if (temp.elementAt(0) instanceof byte[]) {
-                            response.personal[i].prefix = new String((byte[]) temp.elementAt(0));
-                        }
+        return response;
+    }
 
-                        if (temp.elementAt(1) instanceof byte[]) {
-                            response.personal[i].delimiter = new String((byte[]) temp.elementAt(1));
-                        }
-                    }
-                }
-            }
+    /**
+     * Parses a single list of namespace descriptions from the NAMESPACE
+     * response.
+     *
+     * @param lexer the lexer, positioned on the start of the list
+     * @return the parsed namespaces, or <code>null</code> if the list was <code>NIL</code>
+     */
+    private static Namespace[] parseNamespaceList(ImapLexer lexer) {
+        if(lexer.getTokenType() != ImapLexer.LPAREN) {
+            return null;
         }
-
-        // Parse other users' namespace(s)
-        if (tokens.elementAt(1) instanceof Vector) {
-            nsTokens = (Vector) tokens.elementAt(1);
-            size = nsTokens.size();
-            response.other = new Namespace[size];
-
-            for (i = 0; i < nsTokens.size(); i++) {
-                if (nsTokens.elementAt(i) instanceof Vector) {
-                    temp = (Vector) (nsTokens.elementAt(i));
-                    response.other[i] = new Namespace();
-
-                    if (temp.size() >= 2) {
-                        if (temp.elementAt(0) instanceof byte[]) {
-                            response.other[i].prefix = new String((byte[]) temp.elementAt(0));
-                        }
-
-                        if (temp.elementAt(1) instanceof byte[]) {
-                            response.other[i].delimiter = new String((byte[]) temp.elementAt(1));
-                        }
+        
+        Vector namespaces = new Vector();
+        int type;
+        while((type = lexer.next()) != ImapLexer.RPAREN && type != ImapLexer.EOF) {
+            if(type != ImapLexer.LPAREN) { continue; }
+            
+            Namespace namespace = new Namespace();
+            int index = 0;
+            while((type = lexer.next()) != ImapLexer.RPAREN && type != ImapLexer.EOF) {
+                if(lexer.isString()) {
+                    if(index == 0) {
+                        namespace.prefix = lexer.getString();
                     }
-                }
-            }
-        }
-
-        // Parse shared namespace(s)
-        if (tokens.elementAt(2) instanceof Vector) {
-            nsTokens = (Vector) tokens.elementAt(2);
-            size = nsTokens.size();
-            response.shared = new Namespace[size];
-
-            for (i = 0; i < nsTokens.size(); i++) {
-                if (nsTokens.elementAt(i) instanceof Vector) {
-                    temp = (Vector) (nsTokens.elementAt(i));
-                    response.shared[i] = new Namespace();
-
-                    if (temp.size() >= 2) {
-                        if (temp.elementAt(0) instanceof byte[]) {
-                            response.shared[i].prefix = new String((byte[]) temp.elementAt(0));
-                        }
-
-                        if (temp.elementAt(1) instanceof byte[]) {
-                            response.shared[i].delimiter = new String((byte[]) temp.elementAt(1));
-                        }
+                    else if(index == 1) {
+                        namespace.delimiter = lexer.getString();
                     }
                 }
+                else {
+                    // Skip namespace response extensions
+                    lexer.skipValue();
+                }
+                index++;
             }
+            namespaces.addElement(namespace);
         }
-
-        return response;
+        
+        Namespace[] result = new Namespace[namespaces.size()];
+        namespaces.copyInto(result);
+        return result;
     }
 
     /**
@@ -366,7 +374,20 @@ public class ImapProtocol {
         String[] replyText = execute(SELECT,
                 CHAR_QUOTE + StringParser.addEscapedChars(mboxpath) +
                 CHAR_QUOTE, null);
+        SelectResponse response = prepareSelectResponse(replyText);
+
+        // Keep track of the selected mailbox for the few commands that
+        // can operate on any mailbox.
+        this.selectedMailbox = mboxpath;
+        
+        return response;
+    }
+
+    private static SelectResponse prepareSelectResponse(String[] replyText) {
         SelectResponse response = new SelectResponse();
+        Vector changedMessages = null;
+        int[] vanishedUids = null;
+        int vanishedCount = 0;
 
         int p;
         int q;
@@ -374,7 +395,32 @@ public class ImapProtocol {
         for (int i = 0; i < replyText.length; i++) {
             String rowText = replyText[i];
 
-            if ((p = rowText.indexOf(_EXISTS)) != -1) {
+            if (rowText.startsWith(VANISHED_EARLIER_)) {
+                // Servers may split a large set of vanished ranges across
+                // many responses, so collect them in a buffer that grows
+                // geometrically instead of reallocating for each response.
+                int[] uids = ImapParser.parseUidSet(
+                        rowText.substring(VANISHED_EARLIER_.length()));
+                if (vanishedUids == null) {
+                    vanishedUids = uids;
+                } else {
+                    if (vanishedCount + uids.length > vanishedUids.length) {
+                        int[] grown = new int[Math.max(vanishedUids.length * 2, vanishedCount + uids.length)];
+                        System.arraycopy(vanishedUids, 0, grown, 0, vanishedCount);
+                        vanishedUids = grown;
+                    }
+                    System.arraycopy(uids, 0, vanishedUids, vanishedCount, uids.length);
+                }
+                vanishedCount += uids.length;
+            } else if (rowText.indexOf(_FETCH_) != -1) {
+                FetchFlagsResponse fetchResponse = prepareFetchFlagsResponse(rowText.getBytes());
+                if (fetchResponse != null) {
+                    if (changedMessages == null) {
+                        changedMessages = new Vector();
+                    }
+                    changedMessages.addElement(fetchResponse);
+                }
+            } else if ((p = rowText.indexOf(_EXISTS)) != -1) {
                 q = p;
                 p = rowText.indexOf(' ');
 
@@ -434,13 +480,33 @@ public class ImapProtocol {
                         response.uidNext = -1;
                     }
                 }
+            } else if ((p = rowText.indexOf(HIGHESTMODSEQ_)) != -1) {
+                p += 13;
+                q = rowText.indexOf(']');
+
+                if ((q != -1) && (p != -1) && (q > p)) {
+                    try {
+                        response.highestModSeq = Long.parseLong(rowText.substring(p +
+                                    1, q));
+                    } catch (NumberFormatException e) {
+                        response.highestModSeq = 0;
+                    }
+                }
             }
         }
 
-        // Keep track of the selected mailbox for the few commands that
-        // can operate on any mailbox.
-        this.selectedMailbox = mboxpath;
+        if (changedMessages != null) {
+            response.changedMessages = new FetchFlagsResponse[changedMessages.size()];
+            changedMessages.copyInto(response.changedMessages);
+        }
         
+        if (vanishedUids != null && vanishedCount < vanishedUids.length) {
+            int[] trimmed = new int[vanishedCount];
+            System.arraycopy(vanishedUids, 0, trimmed, 0, vanishedCount);
+            vanishedUids = trimmed;
+        }
+        response.vanishedUids = vanishedUids;
+
         return response;
     }
 
@@ -456,9 +522,54 @@ public class ImapProtocol {
         
         byte[][] responses = executeResponse(EXPUNGE, null, null);
 
+        // Consecutive expunge responses are reported together, so the
+        // mailbox state only needs to be updated once for each batch
+        int[] expunged = new int[responses.length];
+        int expungedCount = 0;
         for (int i = 0; i < responses.length; i++) {
-            checkForUntaggedValue(responses[i]);
+            int value = parseExpungeResponse(responses[i]);
+            if(value != -1) {
+                expunged[expungedCount++] = value;
+            }
+            else {
+                fireExpungeResponse(expunged, expungedCount);
+                expungedCount = 0;
+                checkForUntaggedValue(responses[i]);
+            }
         }
+        fireExpungeResponse(expunged, expungedCount);
+    }
+    
+    /**
+     * Parses an untagged <tt>EXPUNGE</tt> response.
+     *
+     * @param response the response to parse
+     * @return the index of the expunged message, or -1 if the response is
+     *     not an expunge
+     */
+    private static int parseExpungeResponse(byte[] response) {
+        if(response.length > 2 && response[0] == CHAR_ASTERISK && response[1] == (byte)' ') {
+            int p = StringArrays.indexOf(response, (byte)' ', 2);
+            if(p > 2 && Character.isDigit((char)response[2])
+                    && Arrays.equals(response, p + 1, EXPUNGE_SUFFIX, 0, EXPUNGE_SUFFIX.length)) {
+                try {
+                    return StringArrays.parseInt(response, 2, p - 2);
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+    
+    private void fireExpungeResponse(int[] values, int count) {
+        if(count == 0 || untaggedResponseListener == null) { return; }
+        if(count < values.length) {
+            int[] batch = new int[count];
+            System.arraycopy(values, 0, batch, 0, count);
+            values = batch;
+        }
+        untaggedResponseListener.expungeResponse(values);
     }
 
     public StatusResponse[] executeStatus(String[] mboxpaths,
@@ -664,19 +775,10 @@ public class ImapProtocol {
     }
 
     private static String getUidList(int[] uids) {
-        StringBuffer buf = new StringBuffer();
-
-        for (int i = 0; i < (uids.length - 1); i++) {
-            buf.append(uids[i]);
-            buf.append(',');
-        }
-
-        buf.append(uids[uids.length - 1]);
-
-        return buf.toString();
+        return ImapParser.createUidSetString(uids);
     }
 
-    private FetchFlagsResponse prepareFetchFlagsResponse(byte[] rawText) {
+    private static FetchFlagsResponse prepareFetchFlagsResponse(byte[] rawText) {
         if(rawText == null || rawText.length == 0 || rawText[0] != CHAR_ASTERISK) {
             return null;
         }
@@ -684,42 +786,37 @@ public class ImapProtocol {
         FetchFlagsResponse flagRespItem = new FetchFlagsResponse();
         
         try {
-            Vector parsedText = null;
+            flagRespItem.flags = null;
 
             try {
                 int offset = Arrays.getIndex(rawText, (byte)'(');
                 if(offset == -1) { return null; }
-                parsedText = ImapParser.parenListParser(rawText, offset, rawText.length - offset);
-            } catch (Throwable exp) {
-                parsedText = null;
-                return null;
-            }
-
-            
-            flagRespItem.flags = null;
-
-            // Iterate through results, locating and parsing the
-            // FLAGS and ENVELOPE sections in an order-independent way.
-            int parsedSize = parsedText.size();
-
-            for (int j = 0; j < parsedSize; j++) {
-                if (parsedText.elementAt(j) instanceof String) {
-                    if (((String) parsedText.elementAt(j)).equals(FLAGS) &&
-                            (parsedSize > (j + 1)) &&
-                            parsedText.elementAt(j + 1) instanceof Vector) {
-                        flagRespItem.flags = ImapParser.parseMessageFlags((Vector) parsedText.elementAt(j +
-                                    1));
-                    } else if (((String) parsedText.elementAt(j)).equals(
-                                UID) && (parsedSize > (j + 1)) &&
-                            parsedText.elementAt(j + 1) instanceof String) {
+                ImapLexer lexer = new ImapLexer(rawText, offset, rawText.length - offset);
+                if(lexer.next() != ImapLexer.LPAREN) { return null; }
+
+                // Iterate through results, locating and parsing the
+                // FLAGS and UID sections in an order-independent way.
+                while(lexer.next() == ImapLexer.ATOM) {
+                    if(lexer.tokenEquals(FLAGS)) {
+                        if(lexer.next() == ImapLexer.LPAREN) {
+                            flagRespItem.flags = ImapParser.parseMessageFlags(lexer);
+                        }
+                    }
+                    else if(lexer.tokenEquals(UID)) {
+                        lexer.next();
                         try {
-                            flagRespItem.uid = Integer.parseInt((String) parsedText.elementAt(j +
-                                        1));
+                            flagRespItem.uid = lexer.getInt();
                         } catch (NumberFormatException e) {
                             flagRespItem.uid = -1;
                         }
                     }
+                    else {
+                        lexer.next();
+                    }
+                    lexer.skipValue();
                 }
+            } catch (Throwable exp) {
+                return null;
             }
 
             if (flagRespItem.flags == null) {
@@ -901,12 +998,13 @@ public class ImapProtocol {
         try {
             MessageEnvelope env = null;
             ImapParser.MessageSection structure = null;
-            Vector parsedText = null;
+            ImapLexer lexer;
 
             try {
                 int offset = Arrays.getIndex(rawText, (byte)'(');
                 if(offset == -1) { return false; }
-                parsedText = ImapParser.parenListParser(rawText, offset, rawText.length - offset);
+                lexer = new ImapLexer(rawText, offset, rawText.length - offset);
+                if(lexer.next() != ImapLexer.LPAREN) { return false; }
             } catch (Throwable exp) {
                 return false;
             }
@@ -916,35 +1014,36 @@ public class ImapProtocol {
 
             // Iterate through results, locating and parsing the
             // FLAGS and ENVELOPE sections in an order-independent way.
-            int parsedSize = parsedText.size();
-
-            for (int j = 0; j < parsedSize; j++) {
-                if (FLAGS.equals(parsedText.elementAt(j))
-                        && (parsedSize > (j + 1))
-                        && parsedText.elementAt(j + 1) instanceof Vector) {
-                    envRespItem.flags = ImapParser.parseMessageFlags((Vector) parsedText.elementAt(j + 1));
+            while (lexer.next() == ImapLexer.ATOM) {
+                if (lexer.tokenEquals(FLAGS)) {
+                    if (lexer.next() == ImapLexer.LPAREN) {
+                        envRespItem.flags = ImapParser.parseMessageFlags(lexer);
+                    }
                 }
-                else if (UID.equals(parsedText.elementAt(j))
-                        && (parsedSize > (j + 1))
-                        && parsedText.elementAt(j + 1) instanceof String) {
+                else if (lexer.tokenEquals(UID)) {
+                    lexer.next();
                     try {
-                        envRespItem.uid = Integer.parseInt((String) parsedText.elementAt(j + 1));
+                        envRespItem.uid = lexer.getInt();
                     } catch (NumberFormatException e) {
                         envRespItem.uid = -1;
                     }
                 }
-                else if (ENVELOPE.equals(parsedText.elementAt(j))
-                        && (parsedSize > (j + 1))
-                        && parsedText.elementAt(j + 1) instanceof Vector) {
-                    env = ImapParser.parseMessageEnvelope((Vector) parsedText.elementAt(j + 1));
-                    hasEnvelopeOrStructure = true;
+                else if (lexer.tokenEquals(ENVELOPE)) {
+                    if (lexer.next() == ImapLexer.LPAREN) {
+                        env = ImapParser.parseMessageEnvelope(lexer);
+                        hasEnvelopeOrStructure = true;
+                    }
+                }
+                else if (lexer.tokenEquals(BODYSTRUCTURE)) {
+                    if (lexer.next() == ImapLexer.LPAREN) {
+                        structure = ImapParser.parseMessageStructureParameter(lexer);
+                        hasEnvelopeOrStructure = true;
+                    }
                 }
-                else if (BODYSTRUCTURE.equals(parsedText.elementAt(j))
-                        && (parsedSize > (j + 1))
-                        && parsedText.elementAt(j + 1) instanceof Vector) {
-                    structure = ImapParser.parseMessageStructureParameter((Vector) parsedText.elementAt(j + 1));
-                    hasEnvelopeOrStructure = true;
+                else {
+                    lexer.next();
                 }
+                lexer.skipValue();
             }
 
             if(!hasEnvelopeOrStructure) { return false; }
@@ -1020,40 +1119,98 @@ public class ImapProtocol {
     }
     
     /**
-     * Execute the "FETCH (BODY)" command
+     * Execute the "FETCH (BODY)" command.
+     * The body section is fetched in increments, each of which is written to
+     * the provided stream as soon as it arrives.  That stream is not closed
+     * by this method.
+     * <p>
+     * Between increments, the progress handler is given a chance to yield
+     * the connection to other requests.  If it does, it is responsible for
+     * restoring the selected mailbox before returning.
+     * </p>
+     * 
      * @param uid Unique ID of the message
      * @param address Address of the body section (i.e. "1", "1.2")
+     * @param output Stream to write the raw body section to
      * @param progressHandler the progress handler
-     * @return Body text as a string
+     * @return Number of bytes written to the stream
      */
-    public byte[] executeFetchBody(int uid, String address, MailProgressHandler progressHandler) throws IOException, MailException {
+    public int executeFetchBody(int uid, String address, OutputStream output, MailProgressHandler progressHandler) throws IOException, MailException {
         if (EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
             EventLogger.logEvent(AppInfo.GUID,
                 ("ImapProtocol.executeFetchBody(" + uid + ", \"" + address +
                 "\")").getBytes(), EventLogger.DEBUG_INFO);
         }
 
-        DataBuffer buf = new DataBuffer();
+        return fetchBodyImpl(uid, address, false, output, progressHandler);
+    }
+    
+    /**
+     * Execute the "FETCH (BINARY.PEEK)" command, as defined in RFC 3516.
+     * This works like {@link #executeFetchBody(int, String, OutputStream, MailProgressHandler)},
+     * except that the server removes any content transfer encoding from the
+     * body section before sending it.
+     * <p>
+     * If the server is unable to decode the body section, then this command
+     * will fail with a non-fatal error and nothing will be written to the
+     * output stream.
+     * </p>
+     * 
+     * @param uid Unique ID of the message
+     * @param address Address of the body section (i.e. "1", "1.2")
+     * @param output Stream to write the decoded body section to
+     * @param progressHandler the progress handler
+     * @return Number of bytes written to the stream
+     */
+    public int executeFetchBinary(int uid, String address, OutputStream output, MailProgressHandler progressHandler) throws IOException, MailException {
+        if (EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+            EventLogger.logEvent(AppInfo.GUID,
+                ("ImapProtocol.executeFetchBinary(" + uid + ", \"" + address +
+                "\")").getBytes(), EventLogger.DEBUG_INFO);
+        }
+
+        return fetchBodyImpl(uid, address, true, output, progressHandler);
+    }
+    
+    private int fetchBodyImpl(int uid, String address, boolean binary, OutputStream output, MailProgressHandler progressHandler) throws IOException, MailException {
         int fetchOffset = 0;
         int previousIncrement = -1;
         long previousTime = -1L;
         while(true) {
             int fetchIncrement = getFetchIncrement(previousIncrement, previousTime);
             long time1 = System.currentTimeMillis();
-            int fetched = fetchBodyIncrement(buf, uid, address, fetchOffset, fetchIncrement, progressHandler);
+            int fetched;
+            if(binary) {
+                try {
+                    fetched = fetchBodyIncrement(output, uid, address, true, fetchOffset, fetchIncrement, progressHandler);
+                } catch (MailException e) {
+                    // A failure here means the server could not decode the
+                    // section, which does not affect the connection.
+                    throw new MailException(e.getMessage(), false, -1);
+                }
+            }
+            else {
+                fetched = fetchBodyIncrement(output, uid, address, false, fetchOffset, fetchIncrement, progressHandler);
+            }
             long time2 = System.currentTimeMillis();
             previousTime = Math.abs(time2 - time1);
             previousIncrement = fetchIncrement;
             
+            if(fetched > 0) {
+                fetchOffset += fetched;
+            }
             if(fetched < fetchIncrement) {
                 break;
             }
-            else {
-                fetchOffset += fetched;
+            
+            // Nothing is in flight between increments, so this is where
+            // waiting higher priority requests may take over the connection.
+            if(progressHandler != null) {
+                progressHandler.yieldToWaitingRequests();
             }
         }
         
-        return buf.toArray();
+        return fetchOffset;
     }
 
     /**
@@ -1099,11 +1256,12 @@ public class ImapProtocol {
         return fetchIncrement;
     }
 
-    private int fetchBodyIncrement(DataBuffer buf, int uid, String address, int fetchOffset, int fetchIncrement, MailProgressHandler progressHandler) throws IOException, MailException {
+    private int fetchBodyIncrement(OutputStream output, int uid, String address, boolean binary, int fetchOffset, int fetchIncrement, MailProgressHandler progressHandler) throws IOException, MailException {
         String args = MessageFormat.format(
-                "{0} (BODY[{1}]<{2}.{3}>)",
+                "{0} ({1}[{2}]<{3}.{4}>)",
                 new Object[] {
                         Integer.toString(uid),
+                        binary ? BINARY_PEEK : BODY,
                         address,
                         Integer.toString(fetchOffset),
                         Integer.toString(fetchIncrement)
@@ -1115,30 +1273,41 @@ public class ImapProtocol {
             return -1;
         }
 
-        byte[] rawMessage = null;
+        int messageLength = -1;
         
         for(int i=0; i<rawList.length; i++) {
-            if(rawMessage == null) {
+            if(messageLength == -1) {
                 // If we don't yet have the raw message body, try to find it in
                 // the current response line
                 int offset = Arrays.getIndex(rawList[i], (byte)'(');
                 if(offset != -1) {
-                    Vector parsedList = ImapParser.parenListParser(rawList[i], offset, rawList[i].length - offset);
-                    int size = parsedList.size();
-
-                    for(int j=0; j<(size - 1); j++) {
-                        Object element = parsedList.elementAt(j);
-                        if(element instanceof String
-                                && ((String)element).startsWith(BODY)
-                                && parsedList.elementAt(j + 1) instanceof byte[]) {
-                            rawMessage = (byte[])parsedList.elementAt(j + 1);
+                    ImapLexer lexer = new ImapLexer(rawList[i], offset, rawList[i].length - offset);
+                    if(lexer.next() == ImapLexer.LPAREN) {
+                        while(lexer.next() == ImapLexer.ATOM) {
+                            boolean isBody = lexer.tokenStartsWith(binary ? BINARY : BODY);
+                            lexer.next();
+                            if(isBody && lexer.isString() && messageLength == -1) {
+                                if(lexer.isTokenEscaped()) {
+                                    byte[] rawMessage = lexer.getBytes();
+                                    output.write(rawMessage, 0, rawMessage.length);
+                                    messageLength = rawMessage.length;
+                                }
+                                else {
+                                    // Write directly from the response line,
+                                    // since the content does not need to be
+                                    // unescaped.
+                                    messageLength = lexer.getTokenLength();
+                                    output.write(lexer.getBuffer(), lexer.getTokenOffset(), messageLength);
+                                }
+                            }
+                            lexer.skipValue();
                         }
                     }
                 }
                 
                 // If it wasn't in the current response line, then check for
                 // an untagged response instead
-                if(rawMessage == null) {
+                if(messageLength == -1) {
                     checkForUntaggedValue(rawList[i]);
                 }
             }
@@ -1149,9 +1318,8 @@ public class ImapProtocol {
             }
         }
 
-        if(rawMessage != null && rawMessage.length > 0) {
-            buf.write(rawMessage, 0, rawMessage.length);
-            return rawMessage.length;
+        if(messageLength > 0) {
+            return messageLength;
         }
         else {
             return 0;
@@ -1625,7 +1793,26 @@ public class ImapProtocol {
      */
     private boolean checkForUntaggedValue(byte[] response) {
         boolean result = false;
-        if(response.length > 2 && response[0] == CHAR_ASTERISK && response[1] == (byte)' ') {
+        if(StringArrays.startsWith(response, VANISHED_B)) {
+            // Responses tagged as EARLIER only describe expunges that
+            // happened prior to the current selection of the mailbox.
+            boolean earlier = response.length >= VANISHED_B.length + EARLIER_B.length
+                && Arrays.equals(response, VANISHED_B.length, EARLIER_B, 0, EARLIER_B.length);
+            if(!earlier) {
+                int[] uids = ImapParser.parseUidSet(
+                        new String(response, VANISHED_B.length, response.length - VANISHED_B.length));
+                if(untaggedResponseListener != null && uids.length > 0) {
+                    untaggedResponseListener.vanishedResponse(uids);
+                }
+                result = true;
+                if(EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+                    EventLogger.logEvent(AppInfo.GUID,
+                            ("Untagged: " + (new String(response, 2, response.length - 2))).getBytes(),
+                            EventLogger.DEBUG_INFO);
+                }
+            }
+        }
+        else if(response.length > 2 && response[0] == CHAR_ASTERISK && response[1] == (byte)' ') {
             int p = StringArrays.indexOf(response, (byte)' ', 2);
             
             if(p > 2 && Character.isDigit((char)response[2])) {
@@ -1651,7 +1838,7 @@ public class ImapProtocol {
                 }
                 else if(Arrays.equals(response, p + 1, EXPUNGE_SUFFIX, 0, EXPUNGE_SUFFIX.length)) {
                     if(untaggedResponseListener != null) {
-                        untaggedResponseListener.expungeResponse(value);
+                        untaggedResponseListener.expungeResponse(new int[] { value });
                     }
                     result = true;
                 }
@@ -1661,23 +1848,24 @@ public class ImapProtocol {
                     fetchResponse.uid = -1;
                     try {
                         int offset = Arrays.getIndex(response, (byte)'(');
-                        Vector parsedText = ImapParser.parenListParser(response, offset, response.length - offset);
-                        int parsedSize = parsedText.size();
-                        for (int i = 0; i < parsedSize; i++) {
-                            if(!(parsedText.elementAt(i) instanceof String)) { continue; }
-                            String element = (String)parsedText.elementAt(i);
-                            if(element.equals(FLAGS)
-                                    && (parsedSize > (i + 1))
-                                    && parsedText.elementAt(i + 1) instanceof Vector) {
-                                fetchResponse.flags =
-                                    ImapParser.parseMessageFlags((Vector)parsedText.elementAt(i + 1));
-                            }
-                            else if(element.equals(UID)
-                                    && (parsedSize > (i + 1))
-                                    && parsedText.elementAt(i + 1) instanceof String) {
-                                try {
-                                    fetchResponse.uid = Integer.parseInt((String)parsedText.elementAt(i + 1));
-                                } catch (NumberFormatException e) { }
+                        ImapLexer lexer = new ImapLexer(response, offset, response.length - offset);
+                        if(lexer.next() == ImapLexer.LPAREN) {
+                            while(lexer.next() == ImapLexer.ATOM) {
+                                if(lexer.tokenEquals(FLAGS)) {
+                                    if(lexer.next() == ImapLexer.LPAREN) {
+                                        fetchResponse.flags = ImapParser.parseMessageFlags(lexer);
+                                    }
+                                }
+                                else if(lexer.tokenEquals(UID)) {
+                                    lexer.next();
+                                    try {
+                                        fetchResponse.uid = lexer.getInt();
+                                    } catch (NumberFormatException e) { }
+                                }
+                                else {
+                                    lexer.next();
+                                }
+                                lexer.skipValue();
                             }
                         }
                     } catch (Throwable exp) {
@@ -1745,6 +1933,9 @@ public class ImapProtocol {
     /**
      * Executes an IMAP command several times, with different arguments,
      * and return the replies as an array of strings.
+     * All the commands are sent together as a single pipeline, and the
+     * result for each command is the last untagged line received before
+     * its tagged completion response.
      * @param command IMAP command
      * @param arguments Arguments for the commands
      * @param progressHandler the progress handler
@@ -1752,78 +1943,382 @@ public class ImapProtocol {
      */
     protected String[] executeBatch(String command, String[] arguments,
         MailProgressHandler progressHandler) throws IOException, MailException {
-        String[] result = new String[arguments.length];
-        int count = 0;
+        final String[] result = new String[arguments.length];
+        
+        CommandPipeline pipeline = new CommandPipeline();
+        for (int i = 0; i < arguments.length; i++) {
+            final int index = i;
+            pipeline.addCommand(command, arguments[i], new ExecuteCallback() {
+                public void processResponse(byte[] rawLine) {
+                    result[index] = new String(rawLine);
+                }
+                public void executeComplete() {
+                    if(result[index] == null) {
+                        result[index] = "";
+                    }
+                }
+            }, true);
+        }
+        
+        pipeline.execute(progressHandler);
+        
+        return result;
+    }
 
-        IntIntHashtable commandMap = new IntIntHashtable();
+    /**
+     * Creates a new pipeline for sending several independent commands to the
+     * server in a single write.
+     *
+     * @return the new command pipeline
+     */
+    public CommandPipeline createPipeline() {
+        return new CommandPipeline();
+    }
+    
+    /**
+     * Collects a set of independent commands so they can be written to the
+     * server with a single flush, instead of waiting for the tagged response
+     * to each command before sending the next one.  As responses arrive, each
+     * tagged response, along with the untagged lines preceding it, is routed
+     * to the callback of the command it belongs to.
+     * <p>
+     * Only commands whose arguments do not depend on the results of other
+     * commands in the same pipeline may be added.  Commands that require a
+     * continuation from the server, such as <tt>APPEND</tt> and
+     * <tt>IDLE</tt>, cannot be pipelined.
+     * </p>
+     */
+    public class CommandPipeline {
+        private final Vector entries = new Vector();
+        
+        private CommandPipeline() {
+        }
+        
+        /**
+         * Gets the number of commands in this pipeline.
+         *
+         * @return the number of commands
+         */
+        public int size() {
+            return entries.size();
+        }
+        
+        /**
+         * Adds a command to this pipeline.
+         *
+         * @param command IMAP command
+         * @param arguments Arguments for the command
+         * @param callback the callback to invoke on each line of the response
+         * @param completeOnFailure true if the callback should be completed
+         *     even if the server responds with <tt>NO</tt> or <tt>BAD</tt>
+         */
+        protected void addCommand(String command, String arguments,
+                ExecuteCallback callback, boolean completeOnFailure) {
+            PipelineEntry entry = new PipelineEntry();
+            entry.command = command;
+            entry.arguments = arguments;
+            entry.callback = callback;
+            entry.completeOnFailure = completeOnFailure;
+            entries.addElement(entry);
+        }
+        
+        /**
+         * Adds the "SELECT" command to this pipeline.
+         * The callback is only invoked if the mailbox was successfully
+         * selected, and it is invoked before any responses to later commands
+         * in the pipeline are processed.
+         *
+         * @param mboxpath The mailbox path to select
+         * @param callback Callback to receive the parsed response
+         */
+        public void addSelect(String mboxpath, SelectCallback callback) {
+            addSelectImpl(mboxpath,
+                    CHAR_QUOTE + StringParser.addEscapedChars(mboxpath) + CHAR_QUOTE,
+                    callback);
+        }
+        
+        /**
+         * Adds the "SELECT" command to this pipeline, with the parameters for
+         * quick mailbox resynchronization (RFC 7162).  If the server accepts
+         * them, the response will contain the unique IDs of known messages
+         * that have been expunged, and the flags of known messages that have
+         * changed, since the provided mod-sequence.
+         * <p>
+         * This should only be used if the <tt>QRESYNC</tt> extension has
+         * been enabled.
+         * </p>
+         *
+         * @param mboxpath The mailbox path to select
+         * @param uidValidity The last known UIDVALIDITY of the mailbox
+         * @param highestModSeq The last known HIGHESTMODSEQ of the mailbox
+         * @param knownUids The unique IDs of messages known to the client
+         * @param callback Callback to receive the parsed response
+         */
+        public void addSelect(String mboxpath, int uidValidity, long highestModSeq,
+                int[] knownUids, SelectCallback callback) {
+            StringBuffer buf = new StringBuffer();
+            buf.append(CHAR_QUOTE);
+            buf.append(StringParser.addEscapedChars(mboxpath));
+            buf.append(CHAR_QUOTE);
+            buf.append(" (");
+            buf.append(QRESYNC);
+            buf.append(" (");
+            buf.append(uidValidity);
+            buf.append(CHAR_SP);
+            buf.append(highestModSeq);
+            if(knownUids != null && knownUids.length > 0) {
+                buf.append(CHAR_SP);
+                buf.append(getUidList(knownUids));
+            }
+            buf.append("))");
+            addSelectImpl(mboxpath, buf.toString(), callback);
+        }
+        
+        private void addSelectImpl(final String mboxpath, String arguments, final SelectCallback callback) {
+            final Vector replyText = new Vector();
+            addCommand(SELECT, arguments,
+                    new ExecuteCallback() {
+                public void processResponse(byte[] rawLine) {
+                    replyText.addElement(new String(rawLine));
+                }
+                public void executeComplete() {
+                    String[] replyArray = new String[replyText.size()];
+                    replyText.copyInto(replyArray);
+                    selectedMailbox = mboxpath;
+                    callback.responseAvailable(prepareSelectResponse(replyArray));
+                }
+            }, false);
+        }
+        
+        /**
+         * Adds the "UID FETCH (FLAGS UID)" command to this pipeline, for all
+         * messages starting at the provided unique ID.
+         *
+         * @param uidNext Unique ID of the next message
+         * @param callback Callback for notification of each response
+         */
+        public void addFetchFlagsUid(int uidNext, FetchFlagsCallback callback) {
+            addCommand(UID_FETCH,
+                    Integer.toString(uidNext) + CHAR_COLON_ASTERISK + " (FLAGS UID)",
+                    new FetchFlagsExecuteCallback(callback), true);
+        }
+        
+        /**
+         * Adds the "UID FETCH (FLAGS UID)" command to this pipeline.
+         *
+         * @param uids the set of UIDs to fetch flags for
+         * @param callback Callback for notification of each response
+         */
+        public void addFetchFlagsUid(int[] uids, FetchFlagsCallback callback) {
+            if(uids.length == 0) {
+                callback.responseAvailable(null);
+                return;
+            }
+            addCommand(UID_FETCH,
+                    getUidList(uids) + " (FLAGS UID)",
+                    new FetchFlagsExecuteCallback(callback), true);
+        }
+
+        /**
+         * Adds the "UID FETCH (FLAGS UID ENVELOPE BODYSTRUCTURE)" command to
+         * this pipeline, for all messages starting at the provided unique ID.
+         *
+         * @param uidNext Unique ID of the next message
+         * @param callback Callback for notification of new envelopes
+         */
+        public void addFetchEnvelopeUid(int uidNext, FetchEnvelopeCallback callback) {
+            addCommand(UID_FETCH,
+                    Integer.toString(uidNext) + CHAR_COLON_ASTERISK +
+                    " (FLAGS UID ENVELOPE BODYSTRUCTURE)",
+                    new FetchEnvelopeExecuteCallback(callback), true);
+        }
+        
+        /**
+         * Adds the "UID FETCH (FLAGS UID ENVELOPE BODYSTRUCTURE)" command to
+         * this pipeline.
+         *
+         * @param uids Set of unique IDs for the messages to fetch
+         * @param callback Callback for notification of new envelopes
+         */
+        public void addFetchEnvelopeUid(int[] uids, FetchEnvelopeCallback callback) {
+            if(uids.length == 0) {
+                callback.responseAvailable(null);
+                return;
+            }
+            addCommand(UID_FETCH,
+                    getUidList(uids) + " (FLAGS UID ENVELOPE BODYSTRUCTURE)",
+                    new FetchEnvelopeExecuteCallback(callback), true);
+        }
+        
+        /**
+         * Sends all the commands in this pipeline, and processes their
+         * responses as they arrive.  If any command fails, the remaining
+         * responses are still read before the first failure is thrown, so
+         * the connection stays in a consistent state.
+         *
+         * @param progressHandler the progress handler
+         */
+        public void execute(MailProgressHandler progressHandler) throws IOException, MailException {
+            int size = entries.size();
+            if(size == 0) { return; }
+            
+            PipelineEntry[] entryArray = new PipelineEntry[size];
+            entries.copyInto(entryArray);
+            entries.removeAllElements();
+            
+            executePipeline(entryArray, progressHandler);
+        }
+    }
+    
+    /**
+     * Internal container for a command within a <code>CommandPipeline</code>.
+     */
+    private static class PipelineEntry {
+        public String command;
+        public String arguments;
+        public ExecuteCallback callback;
+        public boolean completeOnFailure;
+        public byte[] tagBytes;
+        public boolean complete;
+    }
+    
+    private class FetchFlagsExecuteCallback implements ExecuteCallback {
+        private final FetchFlagsCallback callback;
+        public FetchFlagsExecuteCallback(FetchFlagsCallback callback) {
+            this.callback = callback;
+        }
+        public void processResponse(byte[] rawLine) {
+            FetchFlagsResponse response = prepareFetchFlagsResponse(rawLine);
+            if(response != null) {
+                callback.responseAvailable(response);
+            }
+            else {
+                checkForUntaggedValue(rawLine);
+            }
+        }
+        public void executeComplete() {
+            callback.responseAvailable(null);
+        }
+    }
+    
+    private class FetchEnvelopeExecuteCallback implements ExecuteCallback {
+        private final FetchEnvelopeCallback callback;
+        public FetchEnvelopeExecuteCallback(FetchEnvelopeCallback callback) {
+            this.callback = callback;
+        }
+        public void processResponse(byte[] rawLine) {
+            if(!prepareFetchEnvelopeResponse(rawLine, callback)) {
+                checkForUntaggedValue(rawLine);
+            }
+        }
+        public void executeComplete() {
+            callback.responseAvailable(null);
+        }
+    }
+    
+    /**
+     * Sends a set of tagged commands in a single write, then reads responses
+     * until every command has received its tagged completion.
+     * Untagged lines are passed to the callback of the oldest command that
+     * has not yet completed, since the server processes commands in order.
+     *
+     * @param entries the commands to execute
+     * @param progressHandler the progress handler
+     */
+    private void executePipeline(PipelineEntry[] entries, MailProgressHandler progressHandler)
+    throws IOException, MailException {
         StringBuffer commandBuf = new StringBuffer();
-
-        for (int i = 0; i < arguments.length; i++) {
-            String tag = TAG_PREFIX + (commandCount++);
-            commandMap.put(StringArrays.hashCode(tag.getBytes()), i);
+        for (int i = 0; i < entries.length; i++) {
+            String tag = TAG_PREFIX + commandCount++ + CHAR_SP;
+            entries[i].tagBytes = tag.getBytes();
             commandBuf.append(tag);
-            commandBuf.append(' ');
-            commandBuf.append(command);
-            commandBuf.append(
-                    ((arguments[i] == null) ? "" : (CHAR_SP + arguments[i])));
+            commandBuf.append(entries[i].command);
+            if(entries[i].arguments != null) {
+                commandBuf.append(CHAR_SP);
+                commandBuf.append(entries[i].arguments);
+            }
             commandBuf.append(CRLF);
         }
-
-        int preCount = connection.getBytesReceived();
+        
+        if (EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+            EventLogger.logEvent(AppInfo.GUID,
+                ("ImapProtocol.executePipeline(" + entries.length + ")").getBytes(),
+                EventLogger.DEBUG_INFO);
+        }
         
         watchdog.start();
         byte[] data = commandBuf.toString().getBytes();
         connection.sendRaw(data, 0, data.length);
         watchdog.kick();
-
+        
+        MailException pendingException = null;
+        int pendingIndex = 0;
+        int preCount;
         int postCount = connection.getBytesReceived();
-
-        if (progressHandler != null) {
-            progressHandler.mailProgress(MailProgressHandler.TYPE_NETWORK,
-                (postCount - preCount), -1);
-        }
-
-        byte[] temp;
-        String tempResult = "";
-        int p;
-
-        while (count < arguments.length) {
+        
+        while (pendingIndex < entries.length) {
             preCount = postCount;
-
-            temp = connection.receive();
+            byte[] temp = connection.receive(executeResponseTester);
             watchdog.kick();
-            
             postCount = connection.getBytesReceived();
 
             if (progressHandler != null) {
                 progressHandler.mailProgress(MailProgressHandler.TYPE_NETWORK,
                     (postCount - preCount), -1);
             }
-
-            p = Arrays.getIndex(temp, (byte) ' ');
-
-            if(Arrays.equals(temp, p + 1, BAD_PREFIX, 0, BAD_PREFIX.length)
-                    || Arrays.equals(temp, p + 1, NO_PREFIX, 0, NO_PREFIX.length)) {
-                watchdog.cancel();
-                throw new MailException(new String(temp));
+            
+            int index = -1;
+            if(temp.length > 0 && temp[0] != CHAR_ASTERISK && temp[0] != CHAR_PLUS) {
+                for(int i = pendingIndex; i < entries.length; i++) {
+                    if(!entries[i].complete && StringArrays.startsWith(temp, entries[i].tagBytes)) {
+                        index = i;
+                        break;
+                    }
+                }
             }
-
-            int keyHashCode = StringArrays.hashCode(temp, 0, p);
-
-            if ((p != -1) && commandMap.containsKey(keyHashCode)) {
-                result[commandMap.get(keyHashCode)] = tempResult;
-                tempResult = "";
-                count++;
-            } else {
-                tempResult = new String(temp);
+            
+            if(index == -1) {
+                try {
+                    entries[pendingIndex].callback.processResponse(temp);
+                } catch (Throwable t) {
+                    EventLogger.logEvent(AppInfo.GUID,
+                            ("Unable to parse response: " + t.getMessage()).getBytes(),
+                            EventLogger.ERROR);
+                    AnalyticsDataCollector.getInstance().onApplicationError("Unable to parse response: " + t.getMessage());
+                }
+                continue;
+            }
+            
+            PipelineEntry entry = entries[index];
+            entry.complete = true;
+            boolean failed = Arrays.equals(temp, entry.tagBytes.length, BAD_PREFIX, 0, BAD_PREFIX.length)
+                || Arrays.equals(temp, entry.tagBytes.length, NO_PREFIX, 0, NO_PREFIX.length);
+            
+            if(!failed || entry.completeOnFailure) {
+                try {
+                    entry.callback.executeComplete();
+                } catch (Throwable t) {
+                    EventLogger.logEvent(AppInfo.GUID,
+                            ("Unable to complete processing the response: " + t.getMessage()).getBytes(),
+                            EventLogger.ERROR);
+                }
+            }
+            if(failed && pendingException == null) {
+                pendingException = new MailException(new String(temp));
+            }
+            
+            while(pendingIndex < entries.length && entries[pendingIndex].complete) {
+                pendingIndex++;
             }
         }
-
+        
         watchdog.cancel();
         
-        return result;
+        if(pendingException != null) {
+            throw pendingException;
+        }
     }
-
+    
     /**
      * Executes an IMAP command, and returns the reply as an
      * array of strings.
@@ -2037,11 +2532,14 @@ public class ImapProtocol {
             throw new MailException(errorMsg);
         }
 
+        // Cork the connection so the literal is not flushed in small pieces
+        connection.cork();
         for(int i=0; i<textData.length; i+=1024) {
             connection.sendRaw(textData, i, Math.min(1024, textData.length - i));
             watchdog.kick();
         }
         connection.sendRaw(CRLF_B, 0, CRLF_B.length);
+        connection.uncork();
         watchdog.kick();
 
         temp = connection.receive();
@@ -2145,6 +2643,20 @@ public class ImapProtocol {
         void responseAvailable(FetchEnvelopeResponse response);
     }
 
+    /**
+     * Callback for fetching flags.
+     */
+    public static interface FetchFlagsCallback {
+        void responseAvailable(FetchFlagsResponse response);
+    }
+
+    /**
+     * Callback for selecting a mailbox.
+     */
+    public static interface SelectCallback {
+        void responseAvailable(SelectResponse response);
+    }
+
     /**
      * Flags that can be associated with a message.
      * Used inside reply objects for multiple commands.
@@ -2213,6 +2725,19 @@ public class ImapProtocol {
         public int unseen;
         public int uidNext = -1;
         public int uidValidity;
+        /** Highest mod-sequence of the mailbox, or 0 if not supported */
+        public long highestModSeq;
+        /**
+         * Ranges of unique IDs expunged since the last known state, as pairs
+         * of first and last values, if resynchronization parameters were
+         * provided and accepted by the server.
+         */
+        public int[] vanishedUids;
+        /**
+         * Flags of messages changed since the last known state, if
+         * resynchronization parameters were provided and accepted by the server.
+         */
+        public FetchFlagsResponse[] changedMessages;
     }
 
     /**
@@ -2259,8 +2784,22 @@ public class ImapProtocol {
     public interface UntaggedResponseListener {
         void existsResponse(int value);
         void recentResponse(int value);
-        void expungeResponse(int value);
+        /**
+         * Called when messages have been expunged.
+         *
+         * @param values indices of the expunged messages, in the order
+         *     they were reported by the server
+         */
+        void expungeResponse(int[] values);
         void fetchResponse(FetchFlagsResponse value);
+        /**
+         * Called when messages have been expunged, if the <tt>QRESYNC</tt>
+         * extension is enabled.
+         *
+         * @param uids ranges of expunged unique IDs, as pairs of first and
+         *     last values
+         */
+        void vanishedResponse(int[] uids);
     }
     
     /**
@@ -2283,6 +2822,8 @@ public class ImapProtocol {
     private static String FETCH = "FETCH";
     private static String BODYSTRUCTURE = "BODYSTRUCTURE";
     private static String BODY = "BODY";
+    private static String BINARY = "BINARY";
+    private static String BINARY_PEEK = "BINARY.PEEK";
     private static String ENVELOPE = "ENVELOPE";
     private static String UID = "UID";
     private static String FLAGS = "FLAGS";
@@ -2301,6 +2842,9 @@ public class ImapProtocol {
     private static String STARTTLS = "STARTTLS";
     private static String COMPRESS = "COMPRESS";
     private static String DEFLATE = "DEFLATE";
+    private static String ENABLE = "ENABLE";
+    private static String ENABLED = "ENABLED";
+    private static String QRESYNC = "QRESYNC";
     private static String FLAG_MARKED = "\\marked";
     private static String FLAG_NOINFERIORS = "\\noinferiors";
     private static String FLAG_HAS_CHILDREN = "\\haschildren";
@@ -2312,6 +2856,8 @@ public class ImapProtocol {
     private static final byte[] EXISTS_SUFFIX = "EXISTS".getBytes();
     private static final byte[] EXPUNGE_SUFFIX = "EXPUNGE".getBytes();
     private static final byte[] FETCH_B = "FETCH".getBytes();
+    private static final byte[] VANISHED_B = "* VANISHED ".getBytes();
+    private static final byte[] EARLIER_B = "(EARLIER)".getBytes();
     private static String CHAR_SP = " ";
     private static final byte CHAR_PLUS = (byte)'+';
     private static String CHAR_COLON = ":";
@@ -2326,4 +2872,7 @@ public class ImapProtocol {
     private static String UNSEEN_ = "UNSEEN ";
     private static String _RECENT = " RECENT";
     private static String _EXISTS = " EXISTS";
+    private static String _FETCH_ = " FETCH ";
+    private static String HIGHESTMODSEQ_ = "HIGHESTMODSEQ ";
+    private static String VANISHED_EARLIER_ = "* VANISHED (EARLIER) ";
 }
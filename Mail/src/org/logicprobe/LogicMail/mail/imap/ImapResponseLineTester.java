@@ -54,7 +54,7 @@ public class ImapResponseLineTester extends ConnectionResponseTester {
     private boolean inQuoted;
     private boolean inQuotedEscape;
 
-    public int checkForCompleteResponse(byte[] buf, int len) {
+    public int checkForCompleteResponse(byte[] buf, int offset, int len) {
         trimCount = 0;
 
         if (literalLength >= 0) {
@@ -69,14 +69,15 @@ public class ImapResponseLineTester extends ConnectionResponseTester {
             }
         }
  
-        int p = indexOfLinefeedIgnoringQuoted(buf, lastLength, len);
+        int end = offset + len;
+        int p = indexOfLinefeedIgnoringQuoted(buf, offset + lastLength, end);
 
-        while ((p != -1) && (p < len)) {
-            if ((p > 0) && (buf[p - 1] == CR)) {
-                if ((p > 3) && (buf[p - 2] == RCBRACKET)) {
+        while (p != -1) {
+            if ((p > offset) && (buf[p - 1] == CR)) {
+                if ((p - offset > 3) && (buf[p - 2] == RCBRACKET)) {
                     int i = p - 3;
 
-                    while (i >= 0) {
+                    while (i >= offset) {
                         if ((buf[i] >= DIGIT_ZERO) && (buf[i] <= DIGIT_NINE)) {
                             i--;
                         }
@@ -102,12 +103,12 @@ public class ImapResponseLineTester extends ConnectionResponseTester {
             p++;
 
             if (literalLength >= 0) {
-                if ((len - p) >= literalLength) {
+                if ((end - p) >= literalLength) {
                     p += literalLength;
                     literalLength = -1;
                 }
                 else {
-                    literalLength -= (len - p);
+                    literalLength -= (end - p);
                     lastLength = len;
 
                     return -1;
@@ -117,10 +118,10 @@ public class ImapResponseLineTester extends ConnectionResponseTester {
                 lastLength = 0;
                 literalLength = -1;
 
-                return p;
+                return p - offset;
             }
 
-            p = indexOfLinefeedIgnoringQuoted(buf, p, len);
+            p = indexOfLinefeedIgnoringQuoted(buf, p, end);
         }
 
         lastLength = len;
@@ -30,6 +30,7 @@
  */
 package org.logicprobe.LogicMail.mail.imap;
 
+import java.io.EOFException;
 import java.util.Vector;
 
 import org.logicprobe.LogicMail.AnalyticsDataCollector;
@@ -38,8 +39,7 @@ import org.logicprobe.LogicMail.mail.MessageToken;
 import org.logicprobe.LogicMail.mail.imap.ImapProtocol.SelectResponse;
 
 import net.rim.device.api.system.EventLogger;
-import net.rim.device.api.util.IntHashtable;
-import net.rim.device.api.util.SimpleSortingIntVector;
+import net.rim.device.api.util.DataBuffer;
 
 /**
  * Encapsulates all state information for an IMAP mailbox, for data that does
@@ -47,18 +47,16 @@ import net.rim.device.api.util.SimpleSortingIntVector;
  */
 public class MailboxState {
     private final Object lock = new Object();
-    private final IntHashtable indexToTokenMap;
-    private final SimpleSortingIntVector indexVector;
+    private final MessageSequenceMap sequenceMap;
     private int exists;
     private int recent;
     private int unseen;
     private int uidNext = -1;
     private int uidValidity;
+    private long highestModSeq;
     
     public MailboxState() {
-        indexToTokenMap = new IntHashtable();
-        indexVector = new SimpleSortingIntVector();
-        indexVector.setSortAsAdded(SimpleSortingIntVector.SORT_TYPE_NUMERIC);
+        sequenceMap = new MessageSequenceMap();
     }
 
     /**
@@ -66,13 +64,13 @@ public class MailboxState {
      */
     public void clear() {
         synchronized(lock) {
-            indexToTokenMap.clear();
-            indexVector.removeAllElements();
+            sequenceMap.clear();
             exists = 0;
             recent = 0;
             unseen = 0;
             uidNext = -1;
             uidValidity = 0;
+            highestModSeq = 0;
         }
     }
     
@@ -87,8 +85,7 @@ public class MailboxState {
         boolean result = true;
         synchronized(lock) {
             if(!indexMapStillValid(selectResponse)) {
-                indexToTokenMap.clear();
-                indexVector.removeAllElements();
+                sequenceMap.clear();
                 result = false;
             }
             this.exists = selectResponse.exists;
@@ -96,6 +93,7 @@ public class MailboxState {
             this.unseen = selectResponse.unseen;
             this.uidNext = selectResponse.uidNext;
             this.uidValidity = selectResponse.uidValidity;
+            this.highestModSeq = selectResponse.highestModSeq;
         }
         return result;
     }
@@ -120,6 +118,100 @@ public class MailboxState {
         }
     }
 
+    /**
+     * Creates a compact snapshot of the index map, along with the values
+     * needed to determine whether it still applies when the mailbox is next
+     * selected.  Since both message indices and unique IDs are assigned in
+     * ascending order, the map is stored as a packed sequence of deltas.
+     *
+     * @return the snapshot data, or <code>null</code> if there is nothing
+     *     that could be restored
+     * @see #restoreSnapshot(String, byte[], SelectResponse)
+     */
+    public byte[] getSnapshot() {
+        synchronized(lock) {
+            ImapMessageToken[] tokens = sequenceMap.getTokens();
+            int size = tokens.length;
+            if(size == 0 || uidNext == -1 || uidValidity == 0) {
+                return null;
+            }
+            
+            DataBuffer buf = new DataBuffer(size * 2 + 16, true);
+            buf.writeInt(uidValidity);
+            buf.writeInt(uidNext);
+            buf.writeInt(exists);
+            buf.writeCompressedInt(size);
+            int lastIndex = 0;
+            int lastUid = 0;
+            for(int i=0; i<size; i++) {
+                int index = tokens[i].getMessageIndex();
+                int uid = tokens[i].getImapMessageUid();
+                if(uid <= lastUid || index <= lastIndex) {
+                    // The map is out of order, and cannot be trusted later
+                    return null;
+                }
+                buf.writeCompressedInt(index - lastIndex);
+                buf.writeCompressedInt(uid - lastUid);
+                lastIndex = index;
+                lastUid = uid;
+            }
+            return buf.toArray();
+        }
+    }
+    
+    /**
+     * Restores the index map from a snapshot, if it matches the
+     * <tt>SELECT</tt> response for the mailbox.  The snapshot is only used
+     * if UIDVALIDITY, UIDNEXT, and EXISTS are all unchanged, since that
+     * guarantees that no messages have been added or expunged since it
+     * was taken.  This method should only be called on empty state,
+     * prior to {@link #mailboxSelected(SelectResponse)}.
+     *
+     * @param folderPath the path of the mailbox, for recreating tokens
+     * @param snapshot the snapshot data, as returned by {@link #getSnapshot()}
+     * @param selectResponse the parsed select response
+     * @return true, if the index map was restored
+     */
+    public boolean restoreSnapshot(String folderPath, byte[] snapshot, ImapProtocol.SelectResponse selectResponse) {
+        if(snapshot == null) { return false; }
+        
+        DataBuffer buf = new DataBuffer(snapshot, 0, snapshot.length, true);
+        synchronized(lock) {
+            try {
+                int snapshotUidValidity = buf.readInt();
+                int snapshotUidNext = buf.readInt();
+                int snapshotExists = buf.readInt();
+                if(snapshotUidValidity != selectResponse.uidValidity
+                        || snapshotUidNext != selectResponse.uidNext
+                        || snapshotExists != selectResponse.exists) {
+                    return false;
+                }
+                
+                int size = buf.readCompressedInt();
+                int index = 0;
+                int uid = 0;
+                for(int i=0; i<size; i++) {
+                    index += buf.readCompressedInt();
+                    uid += buf.readCompressedInt();
+                    ImapMessageToken token = new ImapMessageToken(folderPath, uid);
+                    token.setMessageIndex(index);
+                    sequenceMap.put(token);
+                }
+                
+                this.uidValidity = snapshotUidValidity;
+                this.uidNext = snapshotUidNext;
+                this.exists = snapshotExists;
+            } catch (EOFException e) {
+                EventLogger.logEvent(AppInfo.GUID,
+                        ("Unable to restore mailbox state: " + folderPath).getBytes(),
+                        EventLogger.WARNING);
+                sequenceMap.clear();
+                return false;
+            }
+        }
+        return true;
+    }
+
     public int getExists() {
         return exists;
     }
@@ -170,6 +262,22 @@ public class MailboxState {
         }
     }
     
+    /**
+     * Gets the highest mod-sequence value of the mailbox, as of the last
+     * time it was selected.
+     *
+     * @return the highest mod-sequence, or 0 if not supported by the server
+     */
+    public long getHighestModSeq() {
+        return highestModSeq;
+    }
+    
+    public void setHighestModSeq(long highestModSeq) {
+        synchronized(lock) {
+            this.highestModSeq = highestModSeq;
+        }
+    }
+    
     /**
      * Update mailbox state from a <tt>FETCH</tt> response.
      *
@@ -177,34 +285,22 @@ public class MailboxState {
      */
     public void messageFetched(MessageToken token) {
         synchronized(lock) {
-            int index = ((ImapMessageToken)token).getMessageIndex();
-            if(indexToTokenMap.containsKey(index)) {
-                if(token.equals(indexToTokenMap.get(index))) {
-                    // Do nothing if this is a redundant update
-                    return;
-                }
-                else
-                {
-                    // This means we missed an untagged expunge, or otherwise have
-                    // bad mailbox state information.  This is a very dangerous
-                    // situation where the only safe action is to log an error,
-                    // completely flush our index-to-UID maps, and record this
-                    // fetch as our only known good data.
-    
-                    EventLogger.logEvent(AppInfo.GUID,
-                            ("Untagged FETCH response is out of sync with known mailbox state").getBytes(),
-                            EventLogger.ERROR);
-                    AnalyticsDataCollector.getInstance().onApplicationError(
-                            "Untagged FETCH response is out of sync with known mailbox state");
-                    
-                    indexToTokenMap.clear();
-                    indexVector.removeAllElements();
-                    indexToTokenMap.put(index, token);
-                    indexVector.addElement(index);
-                }
+            if(!sequenceMap.put((ImapMessageToken)token)) {
+                // This means we missed an untagged expunge, or otherwise have
+                // bad mailbox state information.  This is a very dangerous
+                // situation where the only safe action is to log an error,
+                // completely flush our index-to-UID maps, and record this
+                // fetch as our only known good data.
+
+                EventLogger.logEvent(AppInfo.GUID,
+                        ("Untagged FETCH response is out of sync with known mailbox state").getBytes(),
+                        EventLogger.ERROR);
+                AnalyticsDataCollector.getInstance().onApplicationError(
+                        "Untagged FETCH response is out of sync with known mailbox state");
+                
+                sequenceMap.clear();
+                sequenceMap.put((ImapMessageToken)token);
             }
-            indexToTokenMap.put(index, token);
-            indexVector.addElement(index);
         }
     }
     
@@ -217,13 +313,16 @@ public class MailboxState {
     public ImapMessageToken getMessageToken(int index) {
         ImapMessageToken result;
         synchronized(lock) {
-            result = (ImapMessageToken)indexToTokenMap.get(index);
+            result = sequenceMap.get(index);
         }
         return result;
     }
     
     /**
-     * Expunge a message, by index, from the mailbox.
+     * Expunge messages, by index, from the mailbox.
+     * The indices are applied in order, as they would be from a sequence
+     * of <tt>EXPUNGE</tt> responses, and every known message that follows
+     * them is updated once for the whole batch.
      *
      * @param indices the indices of the expunged messages
      * @param updatedTokens empty <code>Vector</code> to be populated with
@@ -232,86 +331,36 @@ public class MailboxState {
      */
     public ImapMessageToken[] messagesExpunged(int[] indices, Vector updatedTokens) {
         ImapMessageToken[] result = new ImapMessageToken[indices.length];
-        for(int i=0; i<indices.length; i++) {
-            result[i] = messageExpunged(indices[i], updatedTokens);
+        synchronized(lock) {
+            for(int i=0; i<indices.length; i++) {
+                result[i] = sequenceMap.expunge(indices[i]);
+            }
+            sequenceMap.updateTokenIndices(updatedTokens);
         }
         return result;
     }
     
     /**
-     * Expunge a message, by index, from the mailbox.
+     * Expunge messages, by unique ID, from the mailbox.
+     * Since message indices are assigned in ascending order of unique ID,
+     * the indices of any known messages that follow the expunged messages
+     * can be updated even if the expunged messages themselves were not known.
+     * Every known message that follows them is updated once for the whole
+     * batch.
      *
-     * @param index the index of the expunged message
+     * @param uids ranges of expunged unique IDs, as pairs of first and
+     *     last values
+     * @param expungedTokens empty <code>Vector</code> to be populated with
+     *        the tokens of the known expunged messages
      * @param updatedTokens empty <code>Vector</code> to be populated with
      *        <code>MessageToken</code>s updated by the expunge operation
-     * @return token for the expunged message, if available
      */
-    public ImapMessageToken messageExpunged(int index, Vector updatedTokens) {
-        ImapMessageToken result;
+    public void messagesVanished(int[] uids, Vector expungedTokens, Vector updatedTokens) {
         synchronized(lock) {
-            result = (ImapMessageToken)indexToTokenMap.remove(index);
-            if(result != null) {
-                removeIndexFromVector(index, updatedTokens);
-            }
-            else {
-                shiftVectorAroundRemovedIndex(index, updatedTokens);
+            for(int i=0; i<uids.length; i+=2) {
+                sequenceMap.vanish(uids[i], uids[i + 1], expungedTokens);
             }
-        }
-        return result;
-    }
-    
-    private void removeIndexFromVector(int index, Vector updatedTokens) {
-        // Find the index of the expunged element
-        int p = indexVector.binarySearch(index, SimpleSortingIntVector.SORT_TYPE_NUMERIC);
-        
-        // Remove the element from the vector
-        indexVector.removeElementAt(p);
-
-        // Get the new size of the vector
-        int size = indexVector.size();
-        
-        // If we removed the last element, then return
-        if(p == size) { return; }
-        
-        // Otherwise, iterate over the portion of the vector following the
-        // removed element and decrement the index values
-        decrementIndexValues(p, updatedTokens);
-    }
-
-    private void shiftVectorAroundRemovedIndex(int index, Vector updatedTokens) {
-        int size = indexVector.size();
-        
-        // Shortcut out if the expunge has no effect on the vector
-        if(size == 0 || indexVector.elementAt(size-1) < index) {
-            return;
-        }
-        
-        // Get the position where this index would be if it was in the vector.
-        // This is the start point for our index shift.
-        int p = indexVector.binarySearch(index, SimpleSortingIntVector.SORT_TYPE_NUMERIC);
-        p = (p * -1) - 1; // Above returns: -(insertPoint + 1)
-        
-        // Iterate over the portion of the vector following this point,
-        // and decrement the index values
-        decrementIndexValues(p, updatedTokens);
-    }
-
-    private void decrementIndexValues(int startPosition, Vector updatedTokens) {
-        int size = indexVector.size();
-        
-        for(int i=startPosition; i<size; i++) {
-            // Get the old index value
-            int oldIndex = indexVector.elementAt(i);
-            int newIndex = oldIndex - 1;
-            
-            // Remove the mapped token, update it, and put it back in the map
-            ImapMessageToken token = (ImapMessageToken)indexToTokenMap.remove(oldIndex);
-            token.setMessageIndex(newIndex);
-            indexToTokenMap.put(newIndex, token);
-            updatedTokens.addElement(token);
-            
-            // Update the index in the vector
-            indexVector.setElementAt(newIndex, i);
+            sequenceMap.updateTokenIndices(updatedTokens);
         }
     }
 }
@@ -0,0 +1,479 @@
+/*-
+ * Copyright (c) 2011, Derek Konigsberg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.logicprobe.LogicMail.mail.imap;
+
+import java.util.Enumeration;
+import java.util.Vector;
+
+import org.logicprobe.LogicMail.AnalyticsDataCollector;
+import org.logicprobe.LogicMail.AppInfo;
+
+import net.rim.device.api.system.EventLogger;
+import net.rim.device.api.util.Arrays;
+import net.rim.device.api.util.IntHashtable;
+
+/**
+ * Maps message sequence numbers to tokens for the known messages within
+ * an IMAP mailbox.
+ * <p>
+ * Known messages are kept in slots ordered by unique ID, which is also
+ * their order by sequence number.  Instead of storing each sequence number
+ * directly, every slot stores a base value, and a Fenwick tree accumulates
+ * the decrements applied to all the slots that follow an expunged message.
+ * A second Fenwick tree counts the slots that have not been expunged, so
+ * they can be selected by rank.  This makes lookups and expunges take
+ * logarithmic time, no matter how many known messages follow the
+ * expunged one.  Expunged slots are left in place until the next time the
+ * slots are compacted.
+ * </p>
+ * <p>
+ * The indices stored within the tokens are only rewritten by
+ * {@link #updateTokenIndices(Vector)}, so a batch of expunges only needs
+ * to touch each affected token once.
+ * </p>
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ */
+final class MessageSequenceMap {
+    private static final int INITIAL_CAPACITY = 64;
+    
+    /** Unique IDs of the messages in each slot, in ascending order */
+    private int[] uids;
+    /** Tokens for each slot, or <code>null</code> if expunged */
+    private ImapMessageToken[] tokens;
+    /** Sequence number of each slot, prior to any accumulated shift */
+    private int[] baseIndices;
+    /** Fenwick tree of sequence number decrements, applied to suffixes */
+    private int[] shiftTree;
+    /** Fenwick tree of slots that have not been expunged */
+    private int[] liveTree;
+    /** Highest power of two within the bounds of the trees */
+    private int treeStep;
+    private int slotCount;
+    private int liveCount;
+    /** First slot that may have a token with an outdated index */
+    private int dirtySlot;
+    /**
+     * Tokens that could not simply be appended to the slots, which are
+     * merged in the next time the slots need to be consistent.
+     * (sequence number to <code>ImapMessageToken</code>)
+     */
+    private final IntHashtable pendingTokens = new IntHashtable();
+    
+    MessageSequenceMap() {
+        allocate(INITIAL_CAPACITY);
+    }
+    
+    private void allocate(int capacity) {
+        uids = new int[capacity];
+        tokens = new ImapMessageToken[capacity];
+        baseIndices = new int[capacity];
+        shiftTree = new int[capacity + 1];
+        liveTree = new int[capacity + 1];
+        treeStep = 1;
+        while((treeStep << 1) <= capacity) {
+            treeStep <<= 1;
+        }
+        slotCount = 0;
+        liveCount = 0;
+        dirtySlot = 0;
+    }
+    
+    /**
+     * Removes all tokens from the map.
+     */
+    void clear() {
+        pendingTokens.clear();
+        allocate(INITIAL_CAPACITY);
+    }
+    
+    /**
+     * Gets the number of known messages.
+     */
+    int size() {
+        return liveCount + pendingTokens.size();
+    }
+    
+    /**
+     * Gets the token for a message.
+     *
+     * @param index the sequence number of the message
+     * @return the message token, if known
+     */
+    ImapMessageToken get(int index) {
+        ImapMessageToken token = (ImapMessageToken)pendingTokens.get(index);
+        if(token == null) {
+            int slot = findSlot(index);
+            if(slot < slotCount && getSlotIndex(slot) == index) {
+                token = tokens[slot];
+            }
+        }
+        return token;
+    }
+    
+    /**
+     * Adds a token to the map, using the sequence number it contains.
+     *
+     * @param token the token to add
+     * @return true if the token was added or is already known, false if it
+     *     conflicts with a known token
+     */
+    boolean put(ImapMessageToken token) {
+        int index = token.getMessageIndex();
+        int uid = token.getImapMessageUid();
+        
+        ImapMessageToken existingToken = get(index);
+        if(existingToken != null) {
+            return existingToken.equals(token);
+        }
+        if(findUid(uid) >= 0) {
+            // The message is already known at some other sequence number,
+            // or it was already expunged
+            return false;
+        }
+        
+        if(pendingTokens.isEmpty()
+                && (slotCount == 0 || (uid > uids[slotCount - 1] && index > getLastIndex()))) {
+            if(slotCount == uids.length) {
+                rebuild();
+            }
+            appendSlot(uid, token, index);
+        }
+        else {
+            pendingTokens.put(index, token);
+        }
+        return true;
+    }
+    
+    /**
+     * Expunges a message by sequence number.  The sequence numbers of all
+     * following messages are shifted down, but their tokens are not
+     * updated until {@link #updateTokenIndices(Vector)} is called.
+     *
+     * @param index the sequence number of the expunged message
+     * @return the token of the expunged message, if known
+     */
+    ImapMessageToken expunge(int index) {
+        mergePendingTokens();
+        int slot = findSlot(index);
+        ImapMessageToken result = null;
+        if(slot < slotCount && getSlotIndex(slot) == index) {
+            result = removeSlot(slot);
+        }
+        shiftSlots(slot, 1);
+        return result;
+    }
+    
+    /**
+     * Expunges a range of messages by unique ID.  Since sequence numbers are
+     * assigned in ascending order of unique ID, the sequence numbers of the
+     * known messages that follow the range are shifted down by the size of
+     * the range, even if the expunged messages themselves were not known.
+     * Their tokens are not updated until {@link #updateTokenIndices(Vector)}
+     * is called.
+     *
+     * @param firstUid the first unique ID in the range
+     * @param lastUid the last unique ID in the range
+     * @param expungedTokens <code>Vector</code> to be populated with
+     *        the tokens of the known expunged messages
+     */
+    void vanish(int firstUid, int lastUid, Vector expungedTokens) {
+        mergePendingTokens();
+        int slot = findUid(firstUid);
+        if(slot < 0) { slot = -(slot + 1); }
+        while(slot < slotCount && uids[slot] <= lastUid) {
+            if(tokens[slot] != null) {
+                expungedTokens.addElement(removeSlot(slot));
+            }
+            slot++;
+        }
+        shiftSlots(slot, lastUid - firstUid + 1);
+    }
+    
+    /**
+     * Updates the indices stored within the tokens of all messages whose
+     * sequence numbers have changed since this method was last called.
+     *
+     * @param updatedTokens <code>Vector</code> to be populated with
+     *        the updated tokens
+     */
+    void updateTokenIndices(Vector updatedTokens) {
+        for(int slot=dirtySlot; slot<slotCount; slot++) {
+            ImapMessageToken token = tokens[slot];
+            if(token != null) {
+                int index = getSlotIndex(slot);
+                if(token.getMessageIndex() != index) {
+                    token.setMessageIndex(index);
+                    updatedTokens.addElement(token);
+                }
+            }
+        }
+        dirtySlot = slotCount;
+        
+        // Compact once expunged slots outnumber the remaining ones
+        if(slotCount - liveCount > liveCount) {
+            rebuild();
+        }
+    }
+    
+    /**
+     * Gets all the known tokens, in ascending order of sequence number.
+     * Any pending token index updates must be applied first.
+     *
+     * @return the known tokens
+     */
+    ImapMessageToken[] getTokens() {
+        mergePendingTokens();
+        ImapMessageToken[] result = new ImapMessageToken[liveCount];
+        int j = 0;
+        for(int slot=0; slot<slotCount; slot++) {
+            if(tokens[slot] != null) {
+                result[j++] = tokens[slot];
+            }
+        }
+        return result;
+    }
+    
+    private int getLastIndex() {
+        return (liveCount > 0) ? getSlotIndex(selectLive(liveCount - 1)) : 0;
+    }
+    
+    private int getSlotIndex(int slot) {
+        return baseIndices[slot] - prefixSum(shiftTree, slot);
+    }
+    
+    /**
+     * Finds the first slot that has not been expunged, and has a sequence
+     * number that is not less than the provided value.
+     *
+     * @return the slot, or the slot count if there is none
+     */
+    private int findSlot(int index) {
+        int low = 0;
+        int high = liveCount;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(getSlotIndex(selectLive(mid)) < index) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return (low < liveCount) ? selectLive(low) : slotCount;
+    }
+    
+    /**
+     * Finds the slot for a unique ID, including expunged slots.
+     *
+     * @return the slot, or <code>-(insertion point + 1)</code> if not found
+     */
+    private int findUid(int uid) {
+        int low = 0;
+        int high = slotCount - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            if(uids[mid] < uid) {
+                low = mid + 1;
+            }
+            else if(uids[mid] > uid) {
+                high = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+    
+    private void appendSlot(int uid, ImapMessageToken token, int index) {
+        int slot = slotCount++;
+        uids[slot] = uid;
+        tokens[slot] = token;
+        // Cancel out any shift that has accumulated past the end of the slots
+        baseIndices[slot] = index + prefixSum(shiftTree, slot);
+        add(liveTree, slot, 1);
+        liveCount++;
+    }
+    
+    private ImapMessageToken removeSlot(int slot) {
+        ImapMessageToken result = tokens[slot];
+        tokens[slot] = null;
+        add(liveTree, slot, -1);
+        liveCount--;
+        return result;
+    }
+    
+    private void shiftSlots(int firstSlot, int amount) {
+        if(firstSlot < slotCount) {
+            add(shiftTree, firstSlot, amount);
+            if(firstSlot < dirtySlot) {
+                dirtySlot = firstSlot;
+            }
+        }
+    }
+    
+    private void mergePendingTokens() {
+        if(!pendingTokens.isEmpty()) {
+            rebuild();
+        }
+    }
+    
+    /**
+     * Rebuilds the slots, discarding expunged slots and merging in any
+     * pending tokens.  The capacity is adjusted so there is room to append
+     * as many tokens as are currently known.
+     */
+    private void rebuild() {
+        int pendingCount = pendingTokens.size();
+        ImapMessageToken[] pending = new ImapMessageToken[pendingCount];
+        int[] pendingIndices = new int[pendingCount];
+        if(pendingCount > 0) {
+            int j = 0;
+            for(Enumeration e = pendingTokens.elements(); e.hasMoreElements(); ) {
+                pending[j++] = (ImapMessageToken)e.nextElement();
+            }
+            Arrays.sort(pending, pending[0].getComparator());
+            for(j=0; j<pendingCount; j++) {
+                pendingIndices[j] = pending[j].getMessageIndex();
+            }
+            pendingTokens.clear();
+        }
+        
+        int oldSlotCount = slotCount;
+        int[] oldUids = uids;
+        ImapMessageToken[] oldTokens = tokens;
+        int[] oldIndices = new int[oldSlotCount];
+        for(int slot=0; slot<oldSlotCount; slot++) {
+            if(oldTokens[slot] != null) {
+                oldIndices[slot] = getSlotIndex(slot);
+            }
+        }
+        
+        int total = liveCount + pendingCount;
+        allocate(Math.max(INITIAL_CAPACITY, total * 2));
+        
+        // Merge both sets in order of unique ID, leaving the tokens
+        // for any slots with changed sequence numbers marked as dirty
+        int newDirtySlot = -1;
+        int i = 0;
+        int j = 0;
+        int lastUid = 0;
+        int lastIndex = 0;
+        while(i < oldSlotCount || j < pendingCount) {
+            if(i < oldSlotCount && oldTokens[i] == null) {
+                i++;
+                continue;
+            }
+            ImapMessageToken token;
+            int index;
+            if(j >= pendingCount || (i < oldSlotCount && oldUids[i] < pending[j].getImapMessageUid())) {
+                token = oldTokens[i];
+                index = oldIndices[i];
+                i++;
+            }
+            else {
+                token = pending[j];
+                index = pendingIndices[j];
+                j++;
+            }
+            
+            int uid = token.getImapMessageUid();
+            if(slotCount > 0 && (uid <= lastUid || index <= lastIndex)) {
+                // The known messages are inconsistent with each other,
+                // so none of them can be trusted.
+                EventLogger.logEvent(AppInfo.GUID,
+                        ("Fetched messages are out of sync with known mailbox state").getBytes(),
+                        EventLogger.ERROR);
+                AnalyticsDataCollector.getInstance().onApplicationError(
+                        "Fetched messages are out of sync with known mailbox state");
+                allocate(INITIAL_CAPACITY);
+                return;
+            }
+            if(newDirtySlot == -1 && token.getMessageIndex() != index) {
+                newDirtySlot = slotCount;
+            }
+            
+            int slot = slotCount++;
+            uids[slot] = uid;
+            tokens[slot] = token;
+            baseIndices[slot] = index;
+            lastUid = uid;
+            lastIndex = index;
+        }
+        
+        // Build the live tree in linear time, by pushing each node's total
+        // up to its parent once all of its children have been added
+        for(int node=1; node<liveTree.length; node++) {
+            if(node <= slotCount) {
+                liveTree[node] += 1;
+            }
+            int parent = node + (node & -node);
+            if(parent < liveTree.length) {
+                liveTree[parent] += liveTree[node];
+            }
+        }
+        liveCount = slotCount;
+        dirtySlot = (newDirtySlot == -1) ? slotCount : newDirtySlot;
+    }
+    
+    private static void add(int[] tree, int slot, int delta) {
+        for(int node = slot + 1; node < tree.length; node += node & -node) {
+            tree[node] += delta;
+        }
+    }
+    
+    private static int prefixSum(int[] tree, int slot) {
+        int sum = 0;
+        for(int node = slot + 1; node > 0; node -= node & -node) {
+            sum += tree[node];
+        }
+        return sum;
+    }
+    
+    /**
+     * Finds the slot of the live token with the provided rank, by descending
+     * through the live tree.
+     */
+    private int selectLive(int rank) {
+        int node = 0;
+        int remaining = rank + 1;
+        for(int step = treeStep; step > 0; step >>= 1) {
+            int next = node + step;
+            if(next < liveTree.length && liveTree[next] < remaining) {
+                node = next;
+                remaining -= liveTree[next];
+            }
+        }
+        return node;
+    }
+}
@@ -82,6 +82,7 @@ public class PopClient extends AbstractIncomingMailClient {
     private boolean openStarted;
     
     private static String CAPA_STLS = "STLS"; 
+    private static String CAPA_PIPELINING = "PIPELINING";
     
     /**
      * Table of supported server capabilities
@@ -455,18 +456,32 @@ public class PopClient extends AbstractIncomingMailClient {
         getFolderMessagesImpl(indices, false, callback, progressHandler);
 	}
 	
-    private void getFolderMessagesImpl(int[] indices, boolean flagsOnly, FolderMessageCallback callback, MailProgressHandler progressHandler)
+    private void getFolderMessagesImpl(int[] indices, boolean flagsOnly, final FolderMessageCallback callback, final MailProgressHandler progressHandler)
     		throws IOException, MailException {
+        if(capabilities != null && capabilities.containsKey(CAPA_PIPELINING)) {
+            final int count = indices.length;
+            popProtocol.executeMessageInfo(indices, !flagsOnly, new PopProtocol.MessageInfoCallback() {
+                private int processed;
+                public void messageInfoAvailable(int index, byte[][] headerLines, String uid, int size) {
+                    MessageEnvelope env = (headerLines != null) ? parseMessageEnvelope(headerLines) : null;
+                    FolderMessage folderMessage = new FolderMessage(
+                            new PopMessageToken(index, uid),
+                            env, index, uid.hashCode(), size);
+                    
+                    if(progressHandler != null) { progressHandler.mailProgress(MailProgressHandler.TYPE_PROCESSING, ++processed, count); }
+                    
+                    callback.folderMessageUpdate(folderMessage);
+                }
+            }, progressHandler);
+            callback.folderMessageUpdate(null);
+            return;
+        }
+        
         for(int i=0; i<indices.length; i++) {
             MessageEnvelope env;
             if(!flagsOnly) {
                 byte[][] topResult = popProtocol.executeTop(indices[i], 0);
-                String[] headerText = new String[topResult.length];
-                for(int j=0; j<topResult.length; j++) {
-                    headerText[j] = new String(topResult[j]);
-                }
-                
-                env = MailMessageParser.parseMessageEnvelope(headerText);
+                env = parseMessageEnvelope(topResult);
             }
             else {
                 env = null;
@@ -485,6 +500,14 @@ public class PopClient extends AbstractIncomingMailClient {
         callback.folderMessageUpdate(null);
     }
 
+    private static MessageEnvelope parseMessageEnvelope(byte[][] topResult) {
+        String[] headerText = new String[topResult.length];
+        for(int j=0; j<topResult.length; j++) {
+            headerText[j] = new String(topResult[j]);
+        }
+        return MailMessageParser.parseMessageEnvelope(headerText);
+    }
+
     /* (non-Javadoc)
      * @see org.logicprobe.LogicMail.mail.AbstractIncomingMailClient#getFolderMessageIndexMap(org.logicprobe.LogicMail.mail.MailProgressHandler)
      */
@@ -51,6 +51,8 @@ import org.logicprobe.LogicMail.util.Watchdog;
 public class PopProtocol {
     private Connection connection;
     private Watchdog watchdog;
+    /** Text of the last error response received from the server */
+    private String lastError;
     
     /** Creates a new instance of PopProtocol */
     public PopProtocol() {
@@ -230,6 +232,10 @@ public class PopProtocol {
             EventLogger.DEBUG_INFO);
         }
         String result = execute(LIST_ + index);
+        return parseListResponse(result);
+    }
+    
+    private static int parseListResponse(String result) {
         int p = result.lastIndexOf(' ');
         try {
             return Integer.parseInt(result.substring(p+1));
@@ -290,6 +296,10 @@ public class PopProtocol {
             EventLogger.DEBUG_INFO);
         }
         String result = execute(UIDL_ + index);
+        return parseUidlResponse(result);
+    }
+    
+    private static String parseUidlResponse(String result) {
         int p = result.lastIndexOf(' ');
         if(p < result.length() - 2) {
         	return result.substring(p+1);
@@ -331,6 +341,88 @@ public class PopProtocol {
         return uidIndexMap;
     }
     
+    /**
+     * Execute the "TOP", "UIDL", and "LIST" commands for a set of messages.
+     * <p>
+     * This should only be used if the server supports the <tt>PIPELINING</tt>
+     * capability, defined in RFC 2449.  The commands for a window of messages
+     * are sent in a single write, and then the responses are read in order.
+     * This reduces the number of network round-trips to one per window,
+     * instead of three per message.
+     * </p>
+     *
+     * @param indices the message indices
+     * @param headers true to include "TOP" commands for the message headers,
+     *     false to only get the unique IDs and sizes
+     * @param callback the callback to receive the results for each message
+     * @param progressHandler progress handler
+     */
+    public void executeMessageInfo(int[] indices, boolean headers, MessageInfoCallback callback, MailProgressHandler progressHandler) throws IOException, MailException {
+        if(EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+            EventLogger.logEvent(
+            AppInfo.GUID,
+            ("PopProtocol.executeMessageInfo(" + indices.length + ", " + headers + ")").getBytes(),
+            EventLogger.DEBUG_INFO);
+        }
+        
+        int windowStart = 0;
+        while(windowStart < indices.length) {
+            int windowEnd = Math.min(indices.length, windowStart + PIPELINE_WINDOW);
+            
+            StringBuffer buf = new StringBuffer();
+            for(int i=windowStart; i<windowEnd; i++) {
+                if(headers) {
+                    buf.append(TOP_).append(indices[i]).append(" 0").append(CRLF);
+                }
+                buf.append(UIDL_).append(indices[i]).append(CRLF);
+                buf.append(LIST_).append(indices[i]).append(CRLF);
+            }
+            byte[] data = buf.toString().getBytes();
+            
+            watchdog.start();
+            connection.sendRaw(data, 0, data.length);
+            watchdog.kick();
+            
+            // Every response in the window has to be read, even after an
+            // error, so the connection is left in a consistent state
+            MailException pendingException = null;
+            for(int i=windowStart; i<windowEnd; i++) {
+                byte[][] headerLines = null;
+                if(headers) {
+                    String result = receiveResponse();
+                    if(result != null) {
+                        headerLines = receiveLines(progressHandler);
+                    }
+                    else if(pendingException == null) {
+                        pendingException = new MailException(lastError);
+                    }
+                }
+                String uidResult = receiveResponse();
+                if(uidResult == null && pendingException == null) {
+                    pendingException = new MailException(lastError);
+                }
+                String listResult = receiveResponse();
+                if(listResult == null && pendingException == null) {
+                    pendingException = new MailException(lastError);
+                }
+                
+                if(pendingException == null) {
+                    callback.messageInfoAvailable(
+                            indices[i],
+                            headerLines,
+                            parseUidlResponse(uidResult),
+                            parseListResponse(listResult));
+                }
+            }
+            watchdog.cancel();
+            
+            if(pendingException != null) {
+                throw pendingException;
+            }
+            windowStart = windowEnd;
+        }
+    }
+    
     /**
      * Execute the "DELE" command.
      * This will mark the message at the specified index as deleted, but will
@@ -375,13 +467,26 @@ public class PopProtocol {
      *         response was an error.
      */
     private byte[][] executeFollowBinary(String command, boolean errorFatal, MailProgressHandler progressHandler) throws IOException, MailException {
-        int preCount = connection.getBytesReceived();
         watchdog.start();
         if(executeImpl(command, errorFatal) == null) {
             watchdog.cancel();
             return null;
         }
         
+        byte[][] lines = receiveLines(progressHandler);
+        watchdog.cancel();
+        return lines;
+    }
+    
+    /**
+     * Receives the lines of a multi-line response, up to the terminating
+     * line containing a lone ".".
+     *
+     * @param progressHandler progress handler
+     * @return An array of lines containing the response
+     */
+    private byte[][] receiveLines(MailProgressHandler progressHandler) throws IOException {
+        int preCount = connection.getBytesReceived();
         byte[] buffer = connection.receive();
         watchdog.kick();
         
@@ -398,7 +503,6 @@ public class PopProtocol {
             postCount = connection.getBytesReceived();
             if(progressHandler != null) { progressHandler.mailProgress(MailProgressHandler.TYPE_NETWORK, (postCount - preCount), -1); }
         }
-        watchdog.cancel();
         return lines;
     }
     
@@ -461,6 +565,21 @@ public class PopProtocol {
             watchdog.kick();
         }
         
+        String result = receiveResponse();
+        if(result == null && errorFatal) {
+            watchdog.cancel();
+            throw new MailException(lastError);
+        }
+        return result;
+    }
+    
+    /**
+     * Receives the status line of a response.
+     *
+     * @return The result, or <code>null</code> if the response was an error,
+     *         in which case the error text is stored in <code>lastError</code>.
+     */
+    private String receiveResponse() throws IOException {
         String result = new String(connection.receive());
         watchdog.kick();
         
@@ -469,18 +588,30 @@ public class PopProtocol {
             if(p != -1 && p < result.length() - 1) {
                 result = result.substring(p + 1);
             }
-            if(errorFatal) {
-                watchdog.cancel();
-                throw new MailException(result);
-            }
-            else {
-                return null;
-            }
+            lastError = result;
+            return null;
         }
         
         return result;
     }
     
+    /**
+     * Callback for the results of {@link PopProtocol#executeMessageInfo(int[], boolean, MessageInfoCallback, MailProgressHandler)}.
+     */
+    public interface MessageInfoCallback {
+        /**
+         * Called with the results for each message, in the order the
+         * indices were provided.
+         *
+         * @param index the message index
+         * @param headerLines the lines of the message headers, or
+         *     <code>null</code> if they were not requested
+         * @param uid the unique ID of the message
+         * @param size the size of the message, in bytes
+         */
+        void messageInfoAvailable(int index, byte[][] headerLines, String uid, int size);
+    }
+    
     // String constants
     private static String NOOP = "NOOP";
     private static String DELE_ = "DELE ";
@@ -504,4 +635,11 @@ public class PopProtocol {
         "invalid"
     };
     private static final byte CHAR_PERIOD = (byte)'.';
+    private static final String CRLF = "\r\n";
+    /**
+     * Maximum number of messages to send commands for in a single pipelined
+     * write, so the server is never left blocked on a full send buffer
+     * while we are still writing.
+     */
+    private static final int PIPELINE_WINDOW = 20;
 }
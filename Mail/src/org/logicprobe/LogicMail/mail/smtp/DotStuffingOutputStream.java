@@ -0,0 +1,154 @@
+/*-
+ * Copyright (c) 2011, Derek Konigsberg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.logicprobe.LogicMail.mail.smtp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.logicprobe.LogicMail.mail.MailProgressHandler;
+import org.logicprobe.LogicMail.util.Connection;
+import org.logicprobe.LogicMail.util.Watchdog;
+
+/**
+ * Output stream for sending message content following the SMTP "DATA"
+ * command.
+ * <p>
+ * Any line starting with a period has an extra period inserted in front of
+ * it as it is written, and the data is collected into a large buffer before
+ * being sent.  The connection is only flushed when that buffer fills up, or
+ * when the content is finished, so each flush carries a bounded amount of
+ * data no matter how short the lines of the message are.
+ * </p>
+ */
+final class DotStuffingOutputStream extends OutputStream {
+    /** Size of the write buffer, which is the most data sent per flush */
+    static final int BUFFER_SIZE = 8192;
+    
+    private static final byte CHAR_PERIOD = (byte)'.';
+    private static final byte CHAR_LF = (byte)'\n';
+    private static final byte[] END_AT_LINE_START = ".\r\n".getBytes();
+    private static final byte[] END_WITHIN_LINE = "\r\n.\r\n".getBytes();
+    
+    private final Connection connection;
+    private final Watchdog watchdog;
+    private final MailProgressHandler progressHandler;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+    private boolean lineStart = true;
+    
+    /**
+     * Instantiates a new dot-stuffing output stream.
+     *
+     * @param connection the connection to send data to
+     * @param watchdog the watchdog to kick whenever data is sent
+     * @param progressHandler the progress handler to notify whenever data
+     *     is sent, or <code>null</code> if not needed
+     */
+    DotStuffingOutputStream(Connection connection, Watchdog watchdog, MailProgressHandler progressHandler) {
+        this.connection = connection;
+        this.watchdog = watchdog;
+        this.progressHandler = progressHandler;
+    }
+    
+    public void write(int b) throws IOException {
+        if(lineStart && (byte)b == CHAR_PERIOD) {
+            append(CHAR_PERIOD);
+        }
+        append((byte)b);
+        lineStart = ((byte)b == CHAR_LF);
+    }
+    
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        while(off < end) {
+            if(lineStart && b[off] == CHAR_PERIOD) {
+                append(CHAR_PERIOD);
+            }
+            
+            // Find the end of the current line, or the data
+            int p = off;
+            while(p < end && b[p] != CHAR_LF) { p++; }
+            if(p < end) {
+                p++;
+                lineStart = true;
+            }
+            else {
+                lineStart = false;
+            }
+            
+            append(b, off, p - off);
+            off = p;
+        }
+    }
+    
+    /**
+     * Writes the end-of-data marker, and sends any remaining buffered data.
+     * If the content did not end with a line break, one is added before
+     * the marker.
+     */
+    void finish() throws IOException {
+        byte[] marker = lineStart ? END_AT_LINE_START : END_WITHIN_LINE;
+        append(marker, 0, marker.length);
+        lineStart = true;
+        flush();
+    }
+    
+    public void flush() throws IOException {
+        if(count > 0) {
+            connection.sendRaw(buffer, 0, count);
+            watchdog.kick();
+            if(progressHandler != null) {
+                progressHandler.mailProgress(MailProgressHandler.TYPE_NETWORK, count, -1);
+            }
+            count = 0;
+        }
+    }
+    
+    private void append(byte b) throws IOException {
+        if(count == BUFFER_SIZE) {
+            flush();
+        }
+        buffer[count++] = b;
+    }
+    
+    private void append(byte[] b, int off, int len) throws IOException {
+        while(len > 0) {
+            if(count == BUFFER_SIZE) {
+                flush();
+            }
+            int n = Math.min(len, BUFFER_SIZE - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+}
@@ -37,6 +37,7 @@ import org.logicprobe.LogicMail.conf.MailSettingsEvent;
 import org.logicprobe.LogicMail.conf.MailSettingsListener;
 import org.logicprobe.LogicMail.conf.OutgoingConfig;
 import org.logicprobe.LogicMail.mail.MailException;
+import org.logicprobe.LogicMail.mail.MailProgressHandler;
 import org.logicprobe.LogicMail.mail.OutgoingMailClient;
 import org.logicprobe.LogicMail.mail.RecipientException;
 import org.logicprobe.LogicMail.message.Message;
@@ -74,6 +75,9 @@ public class SmtpClient implements OutgoingMailClient {
      */
     private Hashtable capabilities;
     
+    private static final String CAPA_PIPELINING = "PIPELINING";
+    private static final String CAPA_CHUNKING = "CHUNKING";
+    
     private MailSettingsListener mailSettingsListener = new MailSettingsListener() {
             public void mailSettingsSaved(MailSettingsEvent e) {
                 mailSettings_MailSettingsSaved(e);
@@ -227,7 +231,7 @@ public class SmtpClient implements OutgoingMailClient {
         this.password = password;
     }
 
-    public byte[] sendMessage(MessageEnvelope envelope, Message message)
+    public byte[] sendMessage(MessageEnvelope envelope, Message message, MailProgressHandler progressHandler)
         throws IOException, MailException {
         if (!isFresh) {
             smtpProtocol.executeReset();
@@ -237,10 +241,27 @@ public class SmtpClient implements OutgoingMailClient {
 
         byte[] rawMessage = generateRawMessage(envelope, message);
 
-        sendEnvelopeInformation(envelope);
+        boolean pipelining = capabilities.containsKey(CAPA_PIPELINING);
+        boolean chunking = capabilities.containsKey(CAPA_CHUNKING);
+        
+        if (pipelining) {
+            // Only pipeline the DATA command if BDAT will not be used
+            sendPipelinedEnvelopeInformation(envelope, !chunking);
+        } else {
+            sendEnvelopeInformation(envelope);
+        }
 
         // Send the message
-        if (!smtpProtocol.executeData(rawMessage)) {
+        boolean result;
+        if (chunking) {
+            result = smtpProtocol.executeBinaryData(rawMessage, pipelining, progressHandler);
+        } else if (pipelining) {
+            result = smtpProtocol.executeDataContent(rawMessage, progressHandler);
+        } else {
+            result = smtpProtocol.executeData(rawMessage, progressHandler);
+        }
+        
+        if (!result) {
             throw new MailException("Error sending message");
         }
 
@@ -296,6 +317,71 @@ public class SmtpClient implements OutgoingMailClient {
         }
     }
 
+    private void sendPipelinedEnvelopeInformation(MessageEnvelope envelope, boolean data)
+            throws IOException, MailException, RecipientException {
+        int toCount = envelope.to.length;
+        int ccCount = (envelope.cc != null) ? envelope.cc.length : 0;
+        int bccCount = (envelope.bcc != null) ? envelope.bcc.length : 0;
+        
+        String[] recipients = new String[toCount + ccCount + bccCount];
+        int[] recipientTypes = new int[recipients.length];
+        int index = 0;
+        for (int i = 0; i < toCount; i++) {
+            recipients[index] = stripEmail(envelope.to[i]);
+            recipientTypes[index++] = RecipientException.RECIPIENT_TO;
+        }
+        for (int i = 0; i < ccCount; i++) {
+            recipients[index] = stripEmail(envelope.cc[i]);
+            recipientTypes[index++] = RecipientException.RECIPIENT_CC;
+        }
+        for (int i = 0; i < bccCount; i++) {
+            recipients[index] = stripEmail(envelope.bcc[i]);
+            recipientTypes[index++] = RecipientException.RECIPIENT_BCC;
+        }
+        
+        boolean[] results = smtpProtocol.executeEnvelope(
+                stripEmail(envelope.from[0]), recipients, data);
+        
+        // Map the results the same way as the non-pipelined case, where the
+        // first failure in command order determines the error
+        MailException exception = null;
+        boolean recipientAccepted = false;
+        if (!results[0]) {
+            exception = new MailException("Error with sender");
+        }
+        for (int i = 0; i < recipients.length; i++) {
+            if (results[i + 1]) {
+                recipientAccepted = true;
+            }
+            else if (exception == null) {
+                exception = new RecipientException(recipientTypes[i], recipients[i]);
+            }
+        }
+        
+        if (data) {
+            boolean dataAccepted = results[results.length - 1];
+            if (exception != null && dataAccepted) {
+                // The server is now waiting for message content, which must
+                // not be delivered if any part of the envelope failed.
+                if (recipientAccepted) {
+                    // There is no way to cancel the DATA command once some
+                    // recipients were accepted, so drop the connection.
+                    connection.forceClose();
+                }
+                else {
+                    smtpProtocol.executeDataAbort();
+                }
+            }
+            else if (exception == null && !dataAccepted) {
+                exception = new MailException("Error sending message");
+            }
+        }
+        
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
     private static String stripEmail(String input) {
         int p = input.indexOf('<');
         int q = input.indexOf('>');
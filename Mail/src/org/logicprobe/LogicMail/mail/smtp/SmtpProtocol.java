@@ -41,8 +41,8 @@ import net.rim.device.api.system.EventLogger;
 import net.rim.device.api.util.Arrays;
 import org.logicprobe.LogicMail.AppInfo;
 import org.logicprobe.LogicMail.mail.MailException;
+import org.logicprobe.LogicMail.mail.MailProgressHandler;
 import org.logicprobe.LogicMail.util.Connection;
-import org.logicprobe.LogicMail.util.StringArrays;
 import org.logicprobe.LogicMail.util.Watchdog;
 
 /**
@@ -295,12 +295,65 @@ public class SmtpProtocol {
         return result.startsWith(CODE_250);
     }
     
+    /**
+     * Execute the "MAIL FROM" and "RCPT TO" commands as a single pipelined
+     * batch, optionally ending the batch with the "DATA" command.
+     * This should only be used if the server supports the PIPELINING
+     * extension, as described in RFC 2920.
+     *
+     * @param sender Sender of the message, formatted the standard way,
+     *               as "foo@bar.com"
+     * @param recipients Recipients of the message, formatted the same way
+     * @param data True to end the batch with the "DATA" command
+     * @return Results for the sender, each recipient, and the "DATA" command
+     *         if requested, in that order.  Each result is true if the
+     *         corresponding command was successful.
+     */
+    public boolean[] executeEnvelope(String sender, String[] recipients, boolean data) throws IOException, MailException {
+        if(EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+            EventLogger.logEvent(
+            AppInfo.GUID,
+            ("SmtpProtocol.executeEnvelope(\""+sender+"\", "+recipients.length+", "+data+")").getBytes(),
+            EventLogger.DEBUG_INFO);
+        }
+        
+        StringBuffer buf = new StringBuffer();
+        buf.append("MAIL FROM:<").append(sender).append('>').append(CRLF);
+        for(int i=0; i<recipients.length; i++) {
+            buf.append("RCPT TO:<").append(recipients[i]).append('>').append(CRLF);
+        }
+        if(data) {
+            buf.append(DATA).append(CRLF);
+        }
+        
+        watchdog.start();
+        
+        byte[] batch = buf.toString().getBytes();
+        connection.sendRaw(batch, 0, batch.length);
+        
+        // Every response has to be read, even after a failure, to keep the
+        // connection synchronized with the commands that were sent
+        boolean[] results = new boolean[recipients.length + (data ? 2 : 1)];
+        results[0] = receiveReply().startsWith(CODE_250);
+        for(int i=0; i<recipients.length; i++) {
+            results[i + 1] = receiveReply().startsWith(CODE_250);
+        }
+        if(data) {
+            results[results.length - 1] = receiveReply().startsWith(CODE_354);
+        }
+        
+        watchdog.cancel();
+        
+        return results;
+    }
+    
     /**
      * Execute the "DATA" command.
      * @param message Message data fully serialized into a flat ASCII byte array
+     * @param progressHandler the progress handler
      * @return True if successful, false on failure
      */
-    public boolean executeData(byte[] message) throws IOException, MailException {
+    public boolean executeData(byte[] message, MailProgressHandler progressHandler) throws IOException, MailException {
         if(EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
             EventLogger.logEvent(
             AppInfo.GUID,
@@ -313,43 +366,146 @@ public class SmtpProtocol {
         connection.sendCommand(DATA);
         String result = new String(connection.receive());
 
-        watchdog.kick();
+        watchdog.cancel();
         
         if(!result.startsWith(CODE_354)) {
             return false;
         }
         
+        return sendDataContent(message, progressHandler);
+    }
+    
+    /**
+     * Send the message content following a "DATA" command that was already
+     * accepted as part of a pipelined batch.
+     * @param message Message data fully serialized into a flat ASCII byte array
+     * @param progressHandler the progress handler
+     * @return True if successful, false on failure
+     * @see #executeEnvelope(String, String[], boolean)
+     */
+    public boolean executeDataContent(byte[] message, MailProgressHandler progressHandler) throws IOException, MailException {
+        if(EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+            EventLogger.logEvent(
+            AppInfo.GUID,
+            ("SmtpProtocol.executeDataContent(" + message.length + " bytes)").getBytes(),
+            EventLogger.DEBUG_INFO);
+        }
+        return sendDataContent(message, progressHandler);
+    }
+    
+    /**
+     * End a "DATA" command that was accepted as part of a pipelined batch,
+     * without sending any message content.  This should only be used when
+     * none of the recipients were accepted, so nothing is delivered.
+     * @return True if successful, false on failure
+     */
+    public boolean executeDataAbort() throws IOException, MailException {
+        if(EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+            EventLogger.logEvent(
+            AppInfo.GUID,
+            ("SmtpProtocol.executeDataAbort()").getBytes(),
+            EventLogger.DEBUG_INFO);
+        }
+        String result = execute(".");
+        return result.startsWith(CODE_250);
+    }
+    
+    /**
+     * Execute the "BDAT" command, sending the message as a series of bounded
+     * chunks with the final one marked as the last.
+     * This should only be used if the server supports the CHUNKING
+     * extension, as described in RFC 3030.  Since the content length is sent
+     * up front, the message is sent as-is without any dot-stuffing.
+     * <p>
+     * If the server also supports pipelining, all the chunks are sent before
+     * any of the replies are read.  Otherwise, the reply to each chunk is
+     * read before the next one is sent, so a rejected message is abandoned
+     * without sending the rest of it.
+     * </p>
+     * @param message Message data fully serialized into a flat ASCII byte array
+     * @param pipelining True if the server supports the PIPELINING extension
+     * @param progressHandler the progress handler
+     * @return True if successful, false on failure
+     */
+    public boolean executeBinaryData(byte[] message, boolean pipelining, MailProgressHandler progressHandler) throws IOException, MailException {
+        if(EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+            EventLogger.logEvent(
+            AppInfo.GUID,
+            ("SmtpProtocol.executeBinaryData(" + message.length + " bytes, " + pipelining + ")").getBytes(),
+            EventLogger.DEBUG_INFO);
+        }
+        
+        watchdog.start();
+        
+        boolean result = true;
+        int pendingReplies = 0;
         int offset = 0;
-        while(offset < message.length) {
-            int p = StringArrays.indexOf(message, CHAR_LF, offset);
-            int len;
-            if(p != -1) {
-                len = (p + 1) - offset;
-            }
-            else {
-                len = message.length - offset;
+        do {
+            int chunkLength = Math.min(message.length - offset, BDAT_CHUNK_SIZE);
+            boolean last = (offset + chunkLength == message.length);
+            
+            // Cork the connection so the command goes out along with the
+            // start of the chunk
+            connection.cork();
+            connection.sendCommand(BDAT + ' ' + chunkLength + (last ? " LAST" : ""));
+            watchdog.kick();
+            
+            // Send the chunk with the same bounded write size used for the
+            // "DATA" command, so progress and the watchdog keep up with it
+            int chunkEnd = offset + chunkLength;
+            while(offset < chunkEnd) {
+                int len = Math.min(chunkEnd - offset, DotStuffingOutputStream.BUFFER_SIZE);
+                connection.sendRaw(message, offset, len);
+                watchdog.kick();
+                if(progressHandler != null) {
+                    progressHandler.mailProgress(MailProgressHandler.TYPE_NETWORK, len, -1);
+                }
+                offset += len;
             }
+            connection.uncork();
             
-            if(len == 0) { break; }
-            if(message[offset] == CHAR_PERIOD) {
-                byte[] escapedLine = new byte[len + 1];
-                escapedLine[0] = CHAR_PERIOD;
-                System.arraycopy(message, offset, escapedLine, 1, len);
-                connection.sendRaw(escapedLine, 0, escapedLine.length);
+            if(last) {
+                break;
             }
-            else {
-                connection.sendRaw(message, offset, len);
+            else if(pipelining) {
+                pendingReplies++;
+            }
+            else if(!receiveReply().startsWith(CODE_250)) {
+                // The server will not accept any further chunks of this
+                // message, so stop here and let the caller reset
+                watchdog.cancel();
+                return false;
+            }
+        } while(true);
+        
+        for(int i=0; i<pendingReplies; i++) {
+            if(!receiveReply().startsWith(CODE_250)) {
+                result = false;
             }
-			watchdog.kick();
-            offset += len;
         }
+        watchdog.cancel();
+        
+        // Wait for the reply to the last chunk without a watchdog, which
+        // will fail if the underlying connection hits a timeout.
+        if(!receiveReply().startsWith(CODE_250)) {
+            result = false;
+        }
+        
+        return result;
+    }
+    
+    private boolean sendDataContent(byte[] message, MailProgressHandler progressHandler) throws IOException, MailException {
+        watchdog.start();
+        
+        DotStuffingOutputStream output = new DotStuffingOutputStream(connection, watchdog, progressHandler);
+        output.write(message, 0, message.length);
+        output.finish();
         
-        connection.sendCommand("\r\n.");
         watchdog.cancel();
 
         // Wait without a watchdog, which will fail if the underlying
         // connection hits a timeout.
-        result = new String(connection.receive());
+        String result = new String(connection.receive());
 		
         return result.startsWith(CODE_250);
     }
@@ -406,6 +562,20 @@ public class SmtpProtocol {
         return result;
     }
 
+    /**
+     * Receive a complete reply, skipping over any continuation lines.
+     *
+     * @return The last line of the reply
+     */
+    private String receiveReply() throws IOException, MailException {
+        String result = new String(connection.receive());
+        while(result.length() >= 4 && result.charAt(3) == '-') {
+            watchdog.kick();
+            result = new String(connection.receive());
+        }
+        return result;
+    }
+
     /**
      * Execute an SMTP command that returns multiple lines.
      * This works by running the normal execute() and then
@@ -518,8 +688,9 @@ public class SmtpProtocol {
     private static String EHLO = "EHLO";
     private static String STARTTLS = "STARTTLS";
     private static String DATA = "DATA";
+    private static String BDAT = "BDAT";
+    private static final int BDAT_CHUNK_SIZE = 65536;
+    private static String CRLF = "\r\n";
     private static String RSET = "RSET";
     private static String QUIT = "QUIT";
-    private static final byte CHAR_PERIOD = (byte)'.';
-    private static final byte CHAR_LF = (byte)'\n';
 }
@@ -31,9 +31,14 @@
 
 package org.logicprobe.LogicMail.message;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import net.rim.device.api.util.Comparator;
 
 import org.logicprobe.LogicMail.mail.MessageToken;
+import org.logicprobe.LogicMail.util.Serializable;
 import org.logicprobe.LogicMail.util.SerializationUtils;
 import org.logicprobe.LogicMail.util.UniqueIdGenerator;
 
@@ -45,7 +50,7 @@ import org.logicprobe.LogicMail.util.UniqueIdGenerator;
  * use with protocols that support independent retrieval
  * of the structure from the content.
  */
-public class FolderMessage {
+public class FolderMessage implements Serializable {
     private long uniqueId;
     private MessageToken messageToken;
     private MessageEnvelope envelope;
@@ -373,6 +378,78 @@ public class FolderMessage {
         }
     }
     
+    /* (non-Javadoc)
+     * @see org.logicprobe.LogicMail.util.Serializable#serialize(java.io.DataOutput)
+     */
+    public void serialize(DataOutput output) throws IOException {
+        output.writeLong(uniqueId);
+        if(messageToken != null) {
+            output.writeBoolean(true);
+            SerializationUtils.serializeClass(messageToken, output);
+        }
+        else {
+            output.writeBoolean(false);
+        }
+        envelope.serialize(output);
+        output.writeInt(index);
+        output.writeInt(uid);
+        output.writeInt(size);
+        output.writeInt(messageFlags.getFlags());
+        
+        // Write the structure in its serialized form, so it can be lazily
+        // deserialized on demand after loading.
+        byte[] structureBytes;
+        synchronized(this) {
+            if(serializedStructure != null) {
+                structureBytes = serializedStructure;
+            }
+            else if(structure != null) {
+                structureBytes = SerializationUtils.serializeClass(structure);
+            }
+            else {
+                structureBytes = null;
+            }
+        }
+        if(structureBytes != null) {
+            output.writeInt(structureBytes.length);
+            output.write(structureBytes);
+        }
+        else {
+            output.writeInt(-1);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.logicprobe.LogicMail.util.Serializable#deserialize(java.io.DataInput)
+     */
+    public void deserialize(DataInput input) throws IOException {
+        uniqueId = input.readLong();
+        if(input.readBoolean()) {
+            messageToken = (MessageToken)SerializationUtils.deserializeClass(input);
+        }
+        else {
+            messageToken = null;
+        }
+        envelope = new MessageEnvelope();
+        envelope.deserialize(input);
+        index = input.readInt();
+        uid = input.readInt();
+        size = input.readInt();
+        messageFlags = new MessageFlags(input.readInt());
+        
+        int structureLength = input.readInt();
+        synchronized(this) {
+            structure = null;
+            if(structureLength >= 0) {
+                serializedStructure = new byte[structureLength];
+                input.readFully(serializedStructure);
+            }
+            else {
+                serializedStructure = null;
+            }
+        }
+    }
+    
     /* (non-Javadoc)
      * @see java.lang.Object#hashCode()
      */
@@ -30,6 +30,11 @@
  */
 package org.logicprobe.LogicMail.message;
 
+import java.io.OutputStream;
+
+import org.logicprobe.LogicMail.util.Base64DecoderOutputStream;
+import org.logicprobe.LogicMail.util.QuotedPrintableDecoderOutputStream;
+
 /**
  * Creates message content objects.
  */
@@ -135,6 +140,35 @@ public class MimeMessageContentFactory {
 	    return content;
 	}
 	
+	/**
+	 * Creates a stream that decodes the content for a message part as it is
+	 * written.  The decoded data may then be used to create the content with
+	 * {@link #createContentRaw(MimeMessagePart, byte[])}, without the
+	 * complete encoded form ever having to be held in memory.
+	 * 
+	 * @param mimeMessagePart The message part describing the MIME properties for the content.
+	 * @param output The stream to write the decoded data to.
+	 * 
+	 * @return The decoding stream, or <code>null</code> if the content encoding
+	 *   does not require decoding, in which case the data should be passed to
+	 *   {@link #createContentEncoded(MimeMessagePart, byte[])} instead.
+	 */
+	public static OutputStream createDecoderStream(MimeMessagePart mimeMessagePart, OutputStream output) {
+	    if(!(mimeMessagePart instanceof ContentPart)) {
+	        return null;
+	    }
+	    String encoding = ((ContentPart)mimeMessagePart).getEncoding();
+	    if(MimeMessageContent.ENCODING_BASE64.equalsIgnoreCase(encoding)) {
+	        return new Base64DecoderOutputStream(output);
+	    }
+	    else if(MimeMessageContent.ENCODING_QUOTED_PRINTABLE.equalsIgnoreCase(encoding)) {
+	        return new QuotedPrintableDecoderOutputStream(output);
+	    }
+	    else {
+	        return null;
+	    }
+	}
+	
 	/**
      * Find out if a particular message content type is supported
      * without having to create it.  This is useful to optimize
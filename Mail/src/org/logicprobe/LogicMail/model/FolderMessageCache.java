@@ -30,31 +30,91 @@
  */
 package org.logicprobe.LogicMail.model;
 
+import java.io.IOException;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Vector;
 
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+import net.rim.device.api.system.EventLogger;
 import net.rim.device.api.system.PersistentObject;
 import net.rim.device.api.system.PersistentStore;
 import net.rim.device.api.collection.util.BigVector;
+import net.rim.device.api.util.Comparator;
 
+import org.logicprobe.LogicMail.AnalyticsDataCollector;
+import org.logicprobe.LogicMail.AppInfo;
+import org.logicprobe.LogicMail.conf.MailSettings;
 import org.logicprobe.LogicMail.mail.FolderTreeItem;
 import org.logicprobe.LogicMail.mail.MessageToken;
 import org.logicprobe.LogicMail.message.FolderMessage;
+import org.logicprobe.LogicMail.util.StringParser;
+import org.logicprobe.LogicMail.util.ThreadQueue;
+import org.logicprobe.LogicMail.util.TimerWheel;
 
 /**
  * Manager for controlling local persistence of <code>FolderMessage</code>
  * objects representing message headers for a mail store.
+ * <p>
+ * When a local data location is available, the headers for each folder are
+ * stored in an append-only {@link FolderMessageSegment} file, so that each
+ * write only needs to cover the changes made since the previous one.
+ * Otherwise, they are stored in a single object in the persistent store.
+ * Any headers found in the persistent store when segment files are
+ * available are migrated to segment files on {@link #restore()}.
+ * </p>
+ * <p>
+ * Each folder is guarded by one of a fixed set of striped locks, so
+ * operations on different folders rarely contend with each other.  Folders
+ * are only loaded on first access.  Changed folders are written in the
+ * background, shortly after {@link #commit()} is called, so callers never
+ * wait on storage.  Folder locks are only held while the pending changes
+ * are collected, and never while the files are written or deleted.
+ * </p>
  */
 public class FolderMessageCache {
+    private static String HEADERS_PREFIX = "headers/";
+    
+    /** Number of striped locks guarding the folder cache entries. */
+    private static final int FOLDER_LOCK_COUNT = 8;
+    
+    /** Maximum delay between a commit and the resulting write, in milliseconds. */
+    private static final long WRITE_BEHIND_DELAY = 2000;
+    
     private final long cacheObjectKey;
     
-    /** Map of FolderTreeItem -> CacheEntry */
+    /** Map of FolderTreeItem -> CacheEntry, guarded by lockObj */
     private final Hashtable cachedFolderMap = new Hashtable();
     
+    /** Set of folders with changes that have not been written, guarded by lockObj */
+    private final Hashtable dirtyFolderSet = new Hashtable();
+    
+    /** Segments of removed folders with files to be deleted, guarded by lockObj */
+    private final Vector deletedSegments = new Vector();
+    
     private final Object lockObj = new Object();
+    
+    /**
+     * Serializes all segment file writes and deletes.  This is never acquired
+     * while holding a folder lock, and folder locks are only held briefly
+     * while it is held.
+     */
+    private final Object writeLock = new Object();
+    private final Object[] folderLocks;
     private final PersistentObject persistentObject;
     private FolderMessageCacheObject cacheObject;
     
+    /**
+     * URL of the directory containing the segment files, or <code>null</code>
+     * if the persistent store object is being used instead.
+     */
+    private final String segmentDirectoryUrl;
+    
+    private final ThreadQueue writeBehindQueue = new ThreadQueue();
+    private TimerWheel.Timeout writeBehindTimeout;
+    
     /**
      * Instantiates a new folder message cache.
      */
@@ -73,6 +133,10 @@ public class FolderMessageCache {
      */
     protected FolderMessageCache(long cacheObjectKey) {
         this.cacheObjectKey = cacheObjectKey;
+        folderLocks = new Object[FOLDER_LOCK_COUNT];
+        for(int i=0; i<FOLDER_LOCK_COUNT; i++) {
+            folderLocks[i] = new Object();
+        }
         persistentObject = PersistentStore.getPersistentObject(cacheObjectKey);
         Object persisted = persistentObject.getContents();
         if(persisted instanceof FolderMessageCacheObject) {
@@ -83,6 +147,54 @@ public class FolderMessageCache {
             persistentObject.setContents(cacheObject);
             persistentObject.commit();
         }
+        segmentDirectoryUrl = openSegmentDirectory(cacheObjectKey);
+    }
+    
+    /**
+     * Opens the directory containing the segment files, creating it if
+     * necessary.
+     *
+     * @param cacheObjectKey the cache object key, used to name the directory
+     * @return the directory URL, or <code>null</code> if unavailable
+     */
+    private static String openSegmentDirectory(long cacheObjectKey) {
+        String localDataLocation = MailSettings.getInstance().getGlobalConfig().getLocalDataLocation();
+        if(localDataLocation == null) {
+            return null;
+        }
+        
+        String headersUrl = localDataLocation + HEADERS_PREFIX;
+        String directoryUrl = headersUrl
+            + StringParser.toHexString(cacheObjectKey).toLowerCase() + '/';
+        try {
+            String[] urls = { localDataLocation, headersUrl, directoryUrl };
+            for(int i=0; i<urls.length; i++) {
+                FileConnection fileConnection = (FileConnection)Connector.open(urls[i]);
+                if(!fileConnection.exists()) {
+                    fileConnection.mkdir();
+                }
+                fileConnection.close();
+            }
+            return directoryUrl;
+        } catch (IOException e) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("Unable to open header cache: " + directoryUrl
+                        + "\r\n" + e.getMessage()).getBytes(),
+                    EventLogger.ERROR);
+            AnalyticsDataCollector.getInstance().onApplicationError(
+                    "Unable to open header cache: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Gets the lock guarding the cache entry for a folder.
+     *
+     * @param folder the folder
+     * @return the lock object
+     */
+    private Object getFolderLock(FolderTreeItem folder) {
+        return folderLocks[(folder.hashCode() & 0x7FFFFFFF) % FOLDER_LOCK_COUNT];
     }
     
     public FolderTreeItem[] getFolders() {
@@ -98,61 +210,77 @@ public class FolderMessageCache {
     }
     
     public FolderMessage[] getFolderMessages(FolderTreeItem folder) {
-        FolderMessage[] result;
-        synchronized(lockObj) {
+        synchronized(getFolderLock(folder)) {
             CacheEntry cacheEntry = checkAndLoadFolderCache(folder);
-            result = cacheEntry.getFolderMessages();
+            return cacheEntry.getFolderMessages();
         }
-        return result;
     }
     
     public void addFolderMessage(FolderTreeItem folder, FolderMessage message) {
-        synchronized(lockObj) {
+        synchronized(getFolderLock(folder)) {
             CacheEntry cacheEntry = checkAndLoadFolderCache(folder);
             if(cacheEntry.addFolderMessage(message)) {
-                cacheObject.addFolderMessage(folder, message);
+                if(segmentDirectoryUrl != null) {
+                    FolderMessageSegment segment = cacheEntry.getSegment();
+                    if(segment == null) {
+                        segment = new FolderMessageSegment(segmentDirectoryUrl, folder);
+                        cacheEntry.setSegment(segment);
+                    }
+                    segment.appendMessage(message);
+                }
+                else {
+                    synchronized(cacheObject) {
+                        cacheObject.addFolderMessage(folder, message);
+                    }
+                }
+                markDirty(folder);
             }
             else {
                 // If the item could not be added, then try to update its
                 // existing cache entry.
                 FolderMessage updatedMessage = cacheEntry.updateFolderMessage(message);
                 if(updatedMessage != null) {
-                    cacheObject.updateFolderMessage(folder, updatedMessage);
+                    persistUpdatedMessage(folder, cacheEntry, updatedMessage);
                 }
             }
         }
     }
 
     public FolderMessage getFolderMessage(FolderTreeItem folder, MessageToken messageToken) {
-        FolderMessage folderMessage = null;
-        synchronized(lockObj) {
+        synchronized(getFolderLock(folder)) {
             CacheEntry cacheEntry = checkAndLoadFolderCache(folder);
-            folderMessage = cacheEntry.getFolderMessage(messageToken);
+            return cacheEntry.getFolderMessage(messageToken);
         }
-        return folderMessage;
     }
     
     public void removeFolderMessage(FolderTreeItem folder, FolderMessage message) {
-        synchronized(lockObj) {
+        synchronized(getFolderLock(folder)) {
             CacheEntry cacheEntry = checkAndLoadFolderCache(folder);
             if(cacheEntry.removeFolderMessage(message)) {
                 if(cacheEntry.isEmpty()) {
                     removeFolder(folder);
-                    cacheObject.removeFolder(folder);
                 }
                 else {
-                    cacheObject.removeFolderMessage(folder, message);
+                    if(cacheEntry.getSegment() != null) {
+                        cacheEntry.getSegment().appendRemove(message);
+                    }
+                    else {
+                        synchronized(cacheObject) {
+                            cacheObject.removeFolderMessage(folder, message);
+                        }
+                    }
+                    markDirty(folder);
                 }
             }
         }
     }
     
     public boolean updateFolderMessage(FolderTreeItem folder, FolderMessage message) {
-        synchronized(lockObj) {
+        synchronized(getFolderLock(folder)) {
             CacheEntry cacheEntry = checkAndLoadFolderCache(folder);
             FolderMessage updatedMessage = cacheEntry.updateFolderMessage(message);
             if(updatedMessage != null) {
-                cacheObject.updateFolderMessage(folder, updatedMessage);
+                persistUpdatedMessage(folder, cacheEntry, updatedMessage);
                 return true;
             }
             else {
@@ -161,29 +289,140 @@ public class FolderMessageCache {
         }
     }
     
+    private void persistUpdatedMessage(FolderTreeItem folder, CacheEntry cacheEntry, FolderMessage updatedMessage) {
+        if(cacheEntry.getSegment() != null) {
+            // Only the index and flags are updated, so a small delta record
+            // is sufficient to persist the change.
+            cacheEntry.getSegment().appendUpdate(updatedMessage);
+        }
+        else {
+            synchronized(cacheObject) {
+                cacheObject.updateFolderMessage(folder, updatedMessage);
+            }
+        }
+        markDirty(folder);
+    }
+    
     public void removeFolder(FolderTreeItem folder) {
+        synchronized(getFolderLock(folder)) {
+            CacheEntry cacheEntry;
+            synchronized(lockObj) {
+                cacheEntry = (CacheEntry)cachedFolderMap.remove(folder);
+                dirtyFolderSet.remove(folder);
+            }
+            if(cacheEntry != null && cacheEntry.getSegment() != null) {
+                // The file is deleted along with the next write, so this
+                // never waits on storage
+                synchronized(lockObj) {
+                    deletedSegments.addElement(cacheEntry.getSegment());
+                }
+                commit();
+            }
+            synchronized(cacheObject) {
+                cacheObject.removeFolder(folder);
+            }
+            if(segmentDirectoryUrl == null) {
+                markDirty(folder);
+            }
+        }
+    }
+
+    /**
+     * Gets the protocol-specific synchronization state that was stored
+     * along with the cached messages for a folder.
+     *
+     * @param folder the folder to get the state for
+     * @return the synchronization state, or <code>null</code> if not available
+     */
+    public long[] getFolderSyncState(FolderTreeItem folder) {
+        synchronized(getFolderLock(folder)) {
+            if(segmentDirectoryUrl != null) {
+                if(getCacheEntry(folder) == null) { return null; }
+                CacheEntry cacheEntry = checkAndLoadFolderCache(folder);
+                FolderMessageSegment segment = cacheEntry.getSegment();
+                return (segment != null) ? segment.getSyncState() : null;
+            }
+            else {
+                synchronized(cacheObject) {
+                    return cacheObject.getFolderSyncState(folder);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the protocol-specific synchronization state for the cached
+     * messages of a folder.  The state is discarded along with those
+     * messages, and is not stored if the folder has no cached messages.
+     *
+     * @param folder the folder to set the state for
+     * @param syncState the synchronization state, or <code>null</code> to clear
+     */
+    public void setFolderSyncState(FolderTreeItem folder, long[] syncState) {
+        synchronized(getFolderLock(folder)) {
+            if(segmentDirectoryUrl != null) {
+                if(getCacheEntry(folder) == null) { return; }
+                CacheEntry cacheEntry = checkAndLoadFolderCache(folder);
+                FolderMessageSegment segment = cacheEntry.getSegment();
+                if(segment == null || cacheEntry.isEmpty()) { return; }
+                segment.appendSyncState(syncState);
+            }
+            else {
+                synchronized(cacheObject) {
+                    cacheObject.setFolderSyncState(folder, syncState);
+                }
+            }
+            markDirty(folder);
+        }
+    }
+    
+    private CacheEntry getCacheEntry(FolderTreeItem folder) {
+        synchronized(lockObj) {
+            return (CacheEntry)cachedFolderMap.get(folder);
+        }
+    }
+    
+    private void markDirty(FolderTreeItem folder) {
         synchronized(lockObj) {
-            cacheObject.removeFolder(folder);
-            cachedFolderMap.remove(folder);
+            dirtyFolderSet.put(folder, folder);
         }
     }
     
     /**
      * Check to see if the cache for a folder is available, and load if
-     * necessary.
+     * necessary.  This method must be called while holding the lock
+     * for the folder.
      *
      * @param folder the folder to check the cache for
      * @return the cached data for the folder
      */
     private CacheEntry checkAndLoadFolderCache(FolderTreeItem folder) {
-        CacheEntry cacheEntry = (CacheEntry)cachedFolderMap.get(folder);
-        if(cacheEntry == null) {
-            cacheEntry = new CacheEntry();
-            cacheEntry.setLoaded(true);
-            cachedFolderMap.put(folder, cacheEntry);
+        CacheEntry cacheEntry;
+        synchronized(lockObj) {
+            cacheEntry = (CacheEntry)cachedFolderMap.get(folder);
+            if(cacheEntry == null) {
+                cacheEntry = new CacheEntry();
+                cacheEntry.setLoaded(true);
+                cachedFolderMap.put(folder, cacheEntry);
+                return cacheEntry;
+            }
         }
-        else if(!cacheEntry.isLoaded()) {
-            FolderMessage[] messages = cacheObject.getFolderMessages(folder);
+        
+        if(!cacheEntry.isLoaded()) {
+            FolderMessage[] messages;
+            if(cacheEntry.getSegment() != null) {
+                try {
+                    messages = cacheEntry.getSegment().load();
+                } catch (IOException e) {
+                    logSegmentError("Unable to load header cache", e);
+                    messages = new FolderMessage[0];
+                }
+            }
+            else {
+                synchronized(cacheObject) {
+                    messages = cacheObject.getFolderMessages(folder);
+                }
+            }
             for(int i=0; i<messages.length; i++) {
                 cacheEntry.addFolderMessage(messages[i]);
             }
@@ -198,26 +437,232 @@ public class FolderMessageCache {
      */
     public void restore() {
         synchronized(lockObj) {
-            FolderTreeItem[] folders = cacheObject.getFolders();
+            if(segmentDirectoryUrl != null) {
+                restoreSegments();
+                migrateCacheObject();
+            }
+            else {
+                FolderTreeItem[] folders = cacheObject.getFolders();
+                for(int i=0; i<folders.length; i++) {
+                    cachedFolderMap.put(folders[i], new CacheEntry());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Finds the existing segment files, only reading enough of each one to
+     * know which folder it is for.  Any compaction that was interrupted is
+     * completed or discarded first.
+     */
+    private void restoreSegments() {
+        FileConnection fileConnection = null;
+        try {
+            FolderMessageSegment.recoverTempFiles(segmentDirectoryUrl);
+            
+            fileConnection = (FileConnection)Connector.open(segmentDirectoryUrl);
+            Enumeration e = fileConnection.list("*" + FolderMessageSegment.FILE_SUFFIX, true);
+            while(e.hasMoreElements()) {
+                String fileName = (String)e.nextElement();
+                FolderMessageSegment segment = FolderMessageSegment.open(segmentDirectoryUrl, fileName);
+                if(segment != null) {
+                    CacheEntry cacheEntry = new CacheEntry();
+                    cacheEntry.setSegment(segment);
+                    cachedFolderMap.put(segment.getFolder(), cacheEntry);
+                }
+                else {
+                    EventLogger.logEvent(AppInfo.GUID,
+                            ("Ignoring invalid header cache: " + fileName).getBytes(),
+                            EventLogger.WARNING);
+                }
+            }
+        } catch (IOException e) {
+            logSegmentError("Unable to restore header cache", e);
+        } finally {
+            if(fileConnection != null) {
+                try { fileConnection.close(); } catch (Exception e) { }
+            }
+        }
+    }
+    
+    /**
+     * Moves any folders stored in the persistent store object into segment
+     * files.  The persistent store object is only cleared once all folders
+     * have been moved, so an interrupted migration is retried on the
+     * next restore.
+     */
+    private void migrateCacheObject() {
+        FolderTreeItem[] folders = cacheObject.getFolders();
+        if(folders.length == 0) { return; }
+        
+        try {
             for(int i=0; i<folders.length; i++) {
-                cachedFolderMap.put(folders[i], new CacheEntry());
+                FolderMessage[] messages = cacheObject.getFolderMessages(folders[i]);
+                if(messages.length == 0) { continue; }
+                
+                FolderMessageSegment segment = new FolderMessageSegment(segmentDirectoryUrl, folders[i]);
+                segment.compact(messages, cacheObject.getFolderSyncState(folders[i]));
+                
+                CacheEntry cacheEntry = new CacheEntry();
+                cacheEntry.setSegment(segment);
+                cachedFolderMap.put(folders[i], cacheEntry);
             }
+        } catch (IOException e) {
+            logSegmentError("Unable to migrate header cache", e);
+            return;
+        }
+        
+        cacheObject.clear();
+        persistentObject.commit();
+        
+        if(EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("Migrated header cache for " + folders.length + " folders").getBytes(),
+                    EventLogger.DEBUG_INFO);
         }
     }
     
     /**
-     * Commit the contents of the folder message cache to the persistent store.
+     * Schedule the changes made to the folder message cache to be written.
      * This method should be called at the end of any batch of operations.
+     * The changes are written in the background within a short delay, along
+     * with any other changes committed in the meantime.
      */
     public void commit() {
         synchronized(lockObj) {
-            // Resort any message lists containing updated messages
-            Enumeration e = cachedFolderMap.elements();
-            while(e.hasMoreElements()) {
-                ((CacheEntry)e.nextElement()).sortIfNecessary();
+            if((dirtyFolderSet.isEmpty() && deletedSegments.isEmpty())
+                    || writeBehindTimeout != null) { return; }
+            writeBehindTimeout = TimerWheel.getInstance().schedule(new Runnable() {
+                public void run() {
+                    synchronized(lockObj) {
+                        writeBehindTimeout = null;
+                    }
+                    writeBehindQueue.invokeLater(new Runnable() {
+                        public void run() {
+                            writeDirtyFolders();
+                        }
+                    });
+                }
+            }, WRITE_BEHIND_DELAY);
+        }
+    }
+    
+    /**
+     * Immediately write any changes made to the folder message cache,
+     * including those not yet committed.  This method is intended to be
+     * called before the application exits.
+     */
+    public void flush() {
+        synchronized(lockObj) {
+            if(writeBehindTimeout != null) {
+                writeBehindTimeout.cancel();
+                writeBehindTimeout = null;
+            }
+        }
+        writeDirtyFolders();
+    }
+    
+    private void writeDirtyFolders() {
+        synchronized(writeLock) {
+            FolderTreeItem[] folders;
+            FolderMessageSegment[] segmentsToDelete;
+            synchronized(lockObj) {
+                int size = dirtyFolderSet.size();
+                folders = new FolderTreeItem[size];
+                Enumeration e = dirtyFolderSet.keys();
+                for(int i=0; i<size; i++) {
+                    folders[i] = (FolderTreeItem)e.nextElement();
+                }
+                dirtyFolderSet.clear();
+                
+                segmentsToDelete = new FolderMessageSegment[deletedSegments.size()];
+                deletedSegments.copyInto(segmentsToDelete);
+                deletedSegments.removeAllElements();
             }
+            if(folders.length == 0 && segmentsToDelete.length == 0) { return; }
             
-            persistentObject.commit();
+            // Deletes go first, since a folder may have been removed and
+            // then recreated with a new segment that uses the same file.
+            for(int i=0; i<segmentsToDelete.length; i++) {
+                try {
+                    segmentsToDelete[i].delete();
+                } catch (IOException e) {
+                    logSegmentError("Unable to delete header cache", e);
+                }
+            }
+            
+            if(segmentDirectoryUrl != null) {
+                for(int i=0; i<folders.length; i++) {
+                    commitSegment(folders[i]);
+                }
+            }
+            else if(folders.length > 0) {
+                synchronized(cacheObject) {
+                    persistentObject.commit();
+                }
+            }
+            
+            if(EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+                EventLogger.logEvent(AppInfo.GUID,
+                        ("Wrote header cache for " + folders.length + " folders").getBytes(),
+                        EventLogger.DEBUG_INFO);
+            }
+        }
+    }
+    
+    /**
+     * Writes the pending changes for a folder to its segment file.  The
+     * changes are collected while holding the folder lock, and then written
+     * after releasing it.  This must be called while holding the write lock.
+     */
+    private void commitSegment(FolderTreeItem folder) {
+        FolderMessageSegment segment;
+        FolderMessageSegment.PendingRecords pendingRecords = null;
+        FolderMessage[] messages = null;
+        long[] syncState = null;
+        synchronized(getFolderLock(folder)) {
+            CacheEntry cacheEntry = getCacheEntry(folder);
+            if(cacheEntry == null || !cacheEntry.isLoaded() || cacheEntry.getSegment() == null) { return; }
+            segment = cacheEntry.getSegment();
+            if(segment.needsCompaction(cacheEntry.size())) {
+                messages = cacheEntry.getFolderMessages();
+                syncState = segment.getSyncState();
+                segment.beginCompaction(messages, syncState);
+            }
+            else {
+                pendingRecords = segment.takePendingRecords();
+                if(pendingRecords == null) { return; }
+            }
+        }
+        
+        if(pendingRecords != null) {
+            try {
+                segment.writeRecords(pendingRecords);
+                return;
+            } catch (IOException e) {
+                // Appending failed, so try to rewrite the whole file from
+                // the in-memory contents instead.
+                synchronized(getFolderLock(folder)) {
+                    CacheEntry cacheEntry = getCacheEntry(folder);
+                    if(cacheEntry == null || cacheEntry.getSegment() != segment) { return; }
+                    messages = cacheEntry.getFolderMessages();
+                    syncState = segment.getSyncState();
+                    segment.beginCompaction(messages, syncState);
+                }
+            }
+        }
+        
+        try {
+            segment.writeCompacted(messages, syncState);
+        } catch (IOException e) {
+            logSegmentError("Unable to write header cache", e);
+            
+            // Records may have been lost along with the failed write, so
+            // the next write has to start over from the in-memory contents.
+            synchronized(getFolderLock(folder)) {
+                segment.setRewriteRequired();
+            }
+            markDirty(folder);
         }
     }
 
@@ -227,8 +672,16 @@ public class FolderMessageCache {
      * response to user interaction.
      */
     public void clear() {
+        FolderTreeItem[] folders = getFolders();
+        for(int i=0; i<folders.length; i++) {
+            removeFolder(folders[i]);
+        }
+        deleteSegments();
         synchronized(lockObj) {
-            cachedFolderMap.clear();
+            dirtyFolderSet.clear();
+            deletedSegments.removeAllElements();
+        }
+        synchronized(cacheObject) {
             cacheObject.clear();
             persistentObject.commit();
         }
@@ -242,14 +695,62 @@ public class FolderMessageCache {
      */
     public void destroy() {
         synchronized(lockObj) {
+            if(writeBehindTimeout != null) {
+                writeBehindTimeout.cancel();
+                writeBehindTimeout = null;
+            }
+            dirtyFolderSet.clear();
             cachedFolderMap.clear();
-            PersistentStore.destroyPersistentObject(cacheObjectKey);
+        }
+        writeBehindQueue.shutdown(true);
+        deleteSegments();
+        PersistentStore.destroyPersistentObject(cacheObjectKey);
+    }
+    
+    private void deleteSegments() {
+        if(segmentDirectoryUrl == null) { return; }
+        
+        synchronized(writeLock) {
+            deleteSegmentFiles();
         }
     }
     
+    private void deleteSegmentFiles() {
+        FileConnection fileConnection = null;
+        try {
+            fileConnection = (FileConnection)Connector.open(segmentDirectoryUrl);
+            Enumeration e = fileConnection.list("*", true);
+            while(e.hasMoreElements()) {
+                FileConnection fileEntry = (FileConnection)Connector.open(
+                        segmentDirectoryUrl + (String)e.nextElement());
+                try {
+                    if(!fileEntry.isDirectory()) {
+                        fileEntry.delete();
+                    }
+                } finally {
+                    fileEntry.close();
+                }
+            }
+        } catch (IOException e) {
+            logSegmentError("Unable to clear header cache", e);
+        } finally {
+            if(fileConnection != null) {
+                try { fileConnection.close(); } catch (Exception e) { }
+            }
+        }
+    }
+    
+    private static void logSegmentError(String message, IOException e) {
+        EventLogger.logEvent(AppInfo.GUID,
+                (message + "\r\n" + e.getMessage()).getBytes(),
+                EventLogger.ERROR);
+        AnalyticsDataCollector.getInstance().onApplicationError(
+                message + ": " + e.getMessage());
+    }
+    
     private static class CacheEntry {
         private boolean loaded;
-        private boolean messagesUpdated;
+        private FolderMessageSegment segment;
         private final BigVector messageList = new BigVector();
         private final Hashtable messageMap = new Hashtable();
         
@@ -261,6 +762,14 @@ public class FolderMessageCache {
             return loaded;
         }
         
+        public void setSegment(FolderMessageSegment segment) {
+            this.segment = segment;
+        }
+        
+        public FolderMessageSegment getSegment() {
+            return segment;
+        }
+        
         public FolderMessage[] getFolderMessages() {
             int size = messageList.size();
             FolderMessage[] result = new FolderMessage[size];
@@ -286,8 +795,12 @@ public class FolderMessageCache {
         }
         
         public boolean removeFolderMessage(FolderMessage message) {
-            if(messageList.removeElement(FolderMessage.getComparator(), message)) {
-                messageMap.remove(message.getMessageToken().getMessageUid());
+            FolderMessage existingMessage = (FolderMessage)messageMap.remove(message.getMessageToken().getMessageUid());
+            if(existingMessage != null) {
+                int p = indexOf(existingMessage);
+                if(p != -1) {
+                    messageList.removeElementAt(p);
+                }
                 return true;
             }
             else {
@@ -298,9 +811,18 @@ public class FolderMessageCache {
         public FolderMessage updateFolderMessage(FolderMessage message) {
             FolderMessage existingMessage = (FolderMessage)messageMap.get(message.getMessageToken().getMessageUid());
             if(existingMessage != null) {
-                existingMessage.setIndex(message.getIndex());
+                if(existingMessage.getIndex() != message.getIndex()) {
+                    // The list is sorted by index, so move the message to
+                    // its new position rather than leaving the list out of
+                    // order for later searches.
+                    int p = indexOf(existingMessage);
+                    if(p != -1) {
+                        messageList.removeElementAt(p);
+                    }
+                    existingMessage.setIndex(message.getIndex());
+                    messageList.insertElement(FolderMessage.getComparator(), existingMessage);
+                }
                 existingMessage.setFlags(message.getFlags());
-                messagesUpdated = true;
                 return existingMessage;
             }
             else {
@@ -308,15 +830,51 @@ public class FolderMessageCache {
             }
         }
         
-        public void sortIfNecessary() {
-            if(messagesUpdated) {
-                messageList.sort(FolderMessage.getComparator());
-                messagesUpdated = false;
+        /**
+         * Finds the position of a message within the sorted list.  Several
+         * messages may share an index, such as while indices are shifting
+         * after an expunge, so the exact message is matched among them.
+         */
+        private int indexOf(FolderMessage message) {
+            Comparator comparator = FolderMessage.getComparator();
+            int size = messageList.size();
+            int low = 0;
+            int high = size;
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if(comparator.compare(messageList.elementAt(mid), message) < 0) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            for(int i=low; i<size; i++) {
+                Object element = messageList.elementAt(i);
+                if(element == message) {
+                    return i;
+                }
+                else if(comparator.compare(element, message) != 0) {
+                    break;
+                }
             }
+            
+            // The index may have been changed by something outside of the
+            // cache, so fall back to checking every message.
+            for(int i=0; i<size; i++) {
+                if(messageList.elementAt(i) == message) {
+                    return i;
+                }
+            }
+            return -1;
         }
         
         public boolean isEmpty() {
             return messageList.isEmpty();
         }
+        
+        public int size() {
+            return messageList.size();
+        }
     }
 }
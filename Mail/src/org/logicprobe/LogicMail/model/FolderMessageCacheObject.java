@@ -40,6 +40,7 @@ import org.logicprobe.LogicMail.message.FolderMessage;
 import org.logicprobe.LogicMail.message.PersistableFolderMessage;
 
 import net.rim.device.api.system.ObjectGroup;
+import net.rim.device.api.util.Arrays;
 import net.rim.device.api.util.LongHashtable;
 import net.rim.device.api.util.Persistable;
 
@@ -65,6 +66,13 @@ public class FolderMessageCacheObject implements Persistable {
      */
     private LongHashtable cachedMessages;
     
+    /**
+     * Map of folder Unique IDs to <code>long[]</code> protocol-specific
+     * synchronization state values, which are only meaningful alongside
+     * the cached messages for the same folder.
+     */
+    private LongHashtable cachedSyncStates;
+    
     /**
      * Instantiates a new folder message cache object, when creating for the
      * first time.  This constructor is not expected to be called when this
@@ -79,6 +87,9 @@ public class FolderMessageCacheObject implements Persistable {
             cachedFolders = new LongHashtable();
             cachedMessages = new LongHashtable();
         }
+        if(cachedSyncStates == null) {
+            cachedSyncStates = new LongHashtable();
+        }
     }
     
     public FolderTreeItem[] getFolders() {
@@ -110,6 +121,7 @@ public class FolderMessageCacheObject implements Persistable {
     public void removeFolder(FolderTreeItem folder) {
         cachedFolders.remove(folder.getUniqueId());
         cachedMessages.remove(folder.getUniqueId());
+        cachedSyncStates.remove(folder.getUniqueId());
     }
     
     public FolderMessage[] getFolderMessages(FolderTreeItem folder) {
@@ -155,6 +167,7 @@ public class FolderMessageCacheObject implements Persistable {
             messageTable.remove(message.getMessageToken().getMessageUid());
             if(messageTable.isEmpty()) {
                 cachedMessages.remove(folder.getUniqueId());
+                cachedSyncStates.remove(folder.getUniqueId());
             }
         }
     }
@@ -169,8 +182,31 @@ public class FolderMessageCacheObject implements Persistable {
         }
     }
     
+    public long[] getFolderSyncState(FolderTreeItem folder) {
+        initializeIfNecessary();
+        if(cachedMessages.containsKey(folder.getUniqueId())) {
+            long[] syncState = (long[])cachedSyncStates.get(folder.getUniqueId());
+            if(syncState != null) {
+                return Arrays.copy(syncState);
+            }
+        }
+        return null;
+    }
+    
+    public void setFolderSyncState(FolderTreeItem folder, long[] syncState) {
+        initializeIfNecessary();
+        if(syncState != null && cachedMessages.containsKey(folder.getUniqueId())) {
+            cachedSyncStates.put(folder.getUniqueId(), Arrays.copy(syncState));
+        }
+        else {
+            cachedSyncStates.remove(folder.getUniqueId());
+        }
+    }
+    
     public void clear() {
+        initializeIfNecessary();
         cachedFolders.clear();
         cachedMessages.clear();
+        cachedSyncStates.clear();
     }
 }
@@ -0,0 +1,740 @@
+/*-
+ * Copyright (c) 2011, Derek Konigsberg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.logicprobe.LogicMail.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+import net.rim.device.api.system.EventLogger;
+
+import org.logicprobe.LogicMail.AppInfo;
+import org.logicprobe.LogicMail.mail.FolderTreeItem;
+import org.logicprobe.LogicMail.mail.MessageToken;
+import org.logicprobe.LogicMail.message.FolderMessage;
+import org.logicprobe.LogicMail.message.MessageFlags;
+import org.logicprobe.LogicMail.util.StringParser;
+
+/**
+ * Append-only file containing the cached message headers for a single folder.
+ * <p>
+ * The file starts with a short header and a record describing the folder,
+ * followed by a log of records.  Each record consists of a one byte type,
+ * a four byte payload length, and the payload itself.  Added messages are
+ * written as full records, while flag and index changes are written as small
+ * delta records.  Appended records are buffered in memory, and the file is
+ * rewritten by {@link #compact(FolderMessage[], long[])} once most of its
+ * records have been made obsolete by later ones.
+ * </p>
+ * <p>
+ * This class is not thread-safe, and is expected to be used under the
+ * lock of its owning {@link FolderMessageCache}.  The only exception is the
+ * file I/O for writes, which is split out so it can be done without holding
+ * that lock.  The pending records are taken with
+ * {@link #takePendingRecords()} or {@link #beginCompaction(FolderMessage[], long[])}
+ * under the lock, and then written by {@link #writeRecords(PendingRecords)}
+ * or {@link #writeCompacted(FolderMessage[], long[])} after releasing it.
+ * Those write methods must not be called concurrently with each other.
+ * </p>
+ */
+class FolderMessageSegment {
+    static final String FILE_SUFFIX = ".seg";
+    private static final String TEMP_SUFFIX = ".tmp";
+    
+    private static final int FILE_MAGIC = 0x4C4D4853;
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER_LENGTH = 8;
+    private static final int RECORD_HEADER_LENGTH = 5;
+    
+    private static final byte RECORD_FOLDER = 1;
+    private static final byte RECORD_MESSAGE = 2;
+    private static final byte RECORD_UPDATE = 3;
+    private static final byte RECORD_REMOVE = 4;
+    private static final byte RECORD_SYNC_STATE = 5;
+    
+    /** Minimum number of records in a file before compaction is considered. */
+    private static final int COMPACTION_THRESHOLD = 64;
+    
+    private final String directoryUrl;
+    private final String fileName;
+    private final FolderTreeItem folder;
+    
+    private long[] syncState;
+    private int recordCount;
+    
+    /** Length of the valid data in the file, or <code>-1</code> if unknown. */
+    private long fileLength;
+    /** Set if the file contents should be replaced on the next write. */
+    private boolean replaceFile;
+    /** Set if a failed write means the file must be rewritten in full. */
+    private boolean rewriteRequired;
+    
+    private final ByteArrayOutputStream pendingBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOutput = new DataOutputStream(pendingBuffer);
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream recordOutput = new DataOutputStream(recordBuffer);
+    
+    /**
+     * Creates a new, empty segment for a folder.  Any existing file for the
+     * folder will be replaced when this segment is first flushed.
+     *
+     * @param directoryUrl URL of the directory containing the segment files
+     * @param folder the folder the segment is for
+     */
+    FolderMessageSegment(String directoryUrl, FolderTreeItem folder) {
+        this.directoryUrl = directoryUrl;
+        this.fileName = getFileName(folder);
+        this.folder = folder;
+        this.fileLength = 0;
+        this.replaceFile = true;
+        try {
+            writeFileHeader(pendingOutput, recordBuffer, recordOutput);
+        } catch (IOException e) {
+            // Not expected when writing to an in-memory buffer
+        }
+    }
+    
+    private FolderMessageSegment(String directoryUrl, String fileName, FolderTreeItem folder) {
+        this.directoryUrl = directoryUrl;
+        this.fileName = fileName;
+        this.folder = folder;
+        this.fileLength = -1;
+    }
+    
+    /**
+     * Opens an existing segment file, only reading as far as the folder
+     * record.  The messages within the file are not read until
+     * {@link #load()} is called.
+     *
+     * @param directoryUrl URL of the directory containing the segment files
+     * @param fileName name of the segment file
+     * @return the segment, or <code>null</code> if the file is not valid
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    static FolderMessageSegment open(String directoryUrl, String fileName) throws IOException {
+        FolderTreeItem folder = null;
+        FileConnection fileConnection = (FileConnection)Connector.open(directoryUrl + fileName);
+        try {
+            if(fileConnection.exists()) {
+                DataInputStream input = fileConnection.openDataInputStream();
+                try {
+                    if(readFileHeader(input)) {
+                        int type = input.read();
+                        int length = input.readInt();
+                        if(type == RECORD_FOLDER && length >= 0) {
+                            folder = new FolderTreeItem();
+                            folder.deserialize(input);
+                        }
+                    }
+                } catch (EOFException e) {
+                    folder = null;
+                } finally {
+                    input.close();
+                }
+            }
+        } finally {
+            fileConnection.close();
+        }
+        
+        if(folder != null) {
+            return new FolderMessageSegment(directoryUrl, fileName, folder);
+        }
+        else {
+            return null;
+        }
+    }
+    
+    /**
+     * Cleans up temporary files left behind by interrupted compactions.
+     * A compaction only deletes the old segment file once the temporary file
+     * has been completely written, so a temporary file without a matching
+     * segment file is promoted to take its place.  Otherwise, the existing
+     * segment file is still intact, and the temporary file is deleted.
+     *
+     * @param directoryUrl URL of the directory containing the segment files
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    static void recoverTempFiles(String directoryUrl) throws IOException {
+        Vector tempFileNames = new Vector();
+        FileConnection fileConnection = (FileConnection)Connector.open(directoryUrl);
+        try {
+            Enumeration e = fileConnection.list("*" + FILE_SUFFIX + TEMP_SUFFIX, true);
+            while(e.hasMoreElements()) {
+                tempFileNames.addElement(e.nextElement());
+            }
+        } finally {
+            fileConnection.close();
+        }
+        
+        int size = tempFileNames.size();
+        for(int i=0; i<size; i++) {
+            String tempFileName = (String)tempFileNames.elementAt(i);
+            String fileName = tempFileName.substring(0, tempFileName.length() - TEMP_SUFFIX.length());
+            
+            boolean fileExists;
+            fileConnection = (FileConnection)Connector.open(directoryUrl + fileName);
+            try {
+                fileExists = fileConnection.exists();
+            } finally {
+                fileConnection.close();
+            }
+            
+            fileConnection = (FileConnection)Connector.open(directoryUrl + tempFileName);
+            try {
+                if(fileExists) {
+                    fileConnection.delete();
+                }
+                else {
+                    EventLogger.logEvent(AppInfo.GUID,
+                            ("Recovering compacted header cache: " + fileName).getBytes(),
+                            EventLogger.WARNING);
+                    fileConnection.rename(fileName);
+                }
+            } finally {
+                fileConnection.close();
+            }
+        }
+    }
+    
+    /**
+     * Gets the name of the segment file used for a folder.
+     *
+     * @param folder the folder
+     * @return the file name
+     */
+    static String getFileName(FolderTreeItem folder) {
+        return StringParser.toHexString(folder.getUniqueId()).toLowerCase() + FILE_SUFFIX;
+    }
+    
+    /**
+     * Gets the folder this segment is for.
+     *
+     * @return the folder
+     */
+    FolderTreeItem getFolder() {
+        return folder;
+    }
+    
+    /**
+     * Gets the synchronization state most recently stored in this segment.
+     *
+     * @return the synchronization state, or <code>null</code> if not available
+     */
+    long[] getSyncState() {
+        return syncState;
+    }
+    
+    /**
+     * Reads the whole segment file, replaying its records to build the
+     * current set of messages.  If the file ends with an incomplete record,
+     * such as from an interrupted write, it is truncated to the last complete
+     * record.
+     *
+     * @return the messages contained within the segment
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    FolderMessage[] load() throws IOException {
+        Hashtable messageMap = new Hashtable();
+        syncState = null;
+        recordCount = 0;
+        
+        FileConnection fileConnection = (FileConnection)Connector.open(directoryUrl + fileName);
+        try {
+            if(!fileConnection.exists()) {
+                fileLength = 0;
+                replaceFile = true;
+                pendingBuffer.reset();
+                writeFileHeader(pendingOutput, recordBuffer, recordOutput);
+                return new FolderMessage[0];
+            }
+            
+            long validLength = 0;
+            DataInputStream input = fileConnection.openDataInputStream();
+            try {
+                if(readFileHeader(input)) {
+                    long offset = FILE_HEADER_LENGTH;
+                    validLength = offset;
+                    while(true) {
+                        int type = input.read();
+                        if(type == -1) { break; }
+                        int length = input.readInt();
+                        if(length < 0) { break; }
+                        byte[] payload = new byte[length];
+                        input.readFully(payload);
+                        
+                        if(!applyRecord(type, payload, messageMap)) { break; }
+                        
+                        offset += RECORD_HEADER_LENGTH + length;
+                        validLength = offset;
+                        recordCount++;
+                    }
+                }
+            } catch (EOFException e) {
+                // Incomplete record at the end of the file
+            } finally {
+                input.close();
+            }
+            
+            if(validLength == 0) {
+                // Unrecognized file, so its contents need to be replaced
+                fileLength = 0;
+                replaceFile = true;
+                pendingBuffer.reset();
+                writeFileHeader(pendingOutput, recordBuffer, recordOutput);
+            }
+            else {
+                if(fileConnection.fileSize() > validLength) {
+                    EventLogger.logEvent(AppInfo.GUID,
+                            ("Truncating damaged header cache: " + fileName).getBytes(),
+                            EventLogger.WARNING);
+                    fileConnection.truncate(validLength);
+                }
+                fileLength = validLength;
+            }
+        } finally {
+            fileConnection.close();
+        }
+        
+        FolderMessage[] result = new FolderMessage[messageMap.size()];
+        int i = 0;
+        Enumeration e = messageMap.elements();
+        while(e.hasMoreElements()) {
+            result[i++] = (FolderMessage)e.nextElement();
+        }
+        return result;
+    }
+    
+    private boolean applyRecord(int type, byte[] payload, Hashtable messageMap) {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+        try {
+            switch(type) {
+            case RECORD_FOLDER:
+                // Only meaningful at the start of the file
+                break;
+            case RECORD_MESSAGE:
+            {
+                FolderMessage message = new FolderMessage();
+                message.deserialize(input);
+                MessageToken messageToken = message.getMessageToken();
+                if(messageToken == null) { return false; }
+                String messageUid = messageToken.getMessageUid();
+                messageMap.put(messageUid, message);
+                break;
+            }
+            case RECORD_UPDATE:
+            {
+                String messageUid = input.readUTF();
+                int index = input.readInt();
+                int flags = input.readInt();
+                FolderMessage message = (FolderMessage)messageMap.get(messageUid);
+                if(message != null) {
+                    message.setIndex(index);
+                    message.setFlags(new MessageFlags(flags));
+                }
+                break;
+            }
+            case RECORD_REMOVE:
+            {
+                String messageUid = input.readUTF();
+                messageMap.remove(messageUid);
+                break;
+            }
+            case RECORD_SYNC_STATE:
+                syncState = readSyncState(input);
+                break;
+            default:
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Appends a full record for a message that was added to the folder.
+     *
+     * @param message the message
+     */
+    void appendMessage(FolderMessage message) {
+        try {
+            recordBuffer.reset();
+            message.serialize(recordOutput);
+            appendRecord(RECORD_MESSAGE);
+        } catch (IOException e) {
+            // Not expected when writing to an in-memory buffer
+        }
+    }
+    
+    /**
+     * Appends a delta record for a change to the index or flags of a message.
+     *
+     * @param message the updated message
+     */
+    void appendUpdate(FolderMessage message) {
+        try {
+            recordBuffer.reset();
+            recordOutput.writeUTF(message.getMessageToken().getMessageUid());
+            recordOutput.writeInt(message.getIndex());
+            recordOutput.writeInt(message.getFlags().getFlags());
+            appendRecord(RECORD_UPDATE);
+        } catch (IOException e) {
+            // Not expected when writing to an in-memory buffer
+        }
+    }
+    
+    /**
+     * Appends a record for a message that was removed from the folder.
+     *
+     * @param message the removed message
+     */
+    void appendRemove(FolderMessage message) {
+        try {
+            recordBuffer.reset();
+            recordOutput.writeUTF(message.getMessageToken().getMessageUid());
+            appendRecord(RECORD_REMOVE);
+        } catch (IOException e) {
+            // Not expected when writing to an in-memory buffer
+        }
+    }
+    
+    /**
+     * Appends a record for a change to the folder synchronization state.
+     *
+     * @param syncState the synchronization state, or <code>null</code> to clear
+     */
+    void appendSyncState(long[] syncState) {
+        try {
+            recordBuffer.reset();
+            writeSyncState(recordOutput, syncState);
+            appendRecord(RECORD_SYNC_STATE);
+            this.syncState = syncState;
+        } catch (IOException e) {
+            // Not expected when writing to an in-memory buffer
+        }
+    }
+    
+    private void appendRecord(byte type) throws IOException {
+        pendingOutput.writeByte(type);
+        pendingOutput.writeInt(recordBuffer.size());
+        recordBuffer.writeTo(pendingOutput);
+        recordCount++;
+    }
+    
+    /**
+     * Checks whether the segment file mostly consists of obsolete records,
+     * and should be rewritten with {@link #compact(FolderMessage[], long[])}
+     * instead of being flushed.  A compacted file contains one record per
+     * message, plus the folder and synchronization state records.
+     *
+     * @param messageCount the number of messages currently in the folder
+     * @return true, if compaction is needed
+     */
+    boolean needsCompaction(int messageCount) {
+        if(rewriteRequired) { return true; }
+        int liveRecords = messageCount + 2;
+        return recordCount >= COMPACTION_THRESHOLD && recordCount > liveRecords * 2;
+    }
+    
+    /**
+     * Marks the segment file as needing to be rewritten in full, because a
+     * write failed and records may have been lost.
+     */
+    void setRewriteRequired() {
+        rewriteRequired = true;
+    }
+    
+    /**
+     * Takes the records appended since the last write, so they can be
+     * written with {@link #writeRecords(PendingRecords)}.
+     *
+     * @return the pending records, or <code>null</code> if there are none
+     */
+    PendingRecords takePendingRecords() {
+        if(pendingBuffer.size() == 0) { return null; }
+        PendingRecords pendingRecords = new PendingRecords(pendingBuffer.toByteArray(), replaceFile);
+        pendingBuffer.reset();
+        replaceFile = false;
+        return pendingRecords;
+    }
+    
+    /**
+     * Writes records taken by {@link #takePendingRecords()} to the end of
+     * the segment file.
+     *
+     * @param pendingRecords the records to write
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void writeRecords(PendingRecords pendingRecords) throws IOException {
+        FileConnection fileConnection = (FileConnection)Connector.open(directoryUrl + fileName);
+        try {
+            if(!fileConnection.exists()) {
+                if(!pendingRecords.replaceFile) {
+                    // The file disappeared, so the pending records are
+                    // meaningless without the ones that preceded them.
+                    throw new IOException("Header cache file missing: " + fileName);
+                }
+                fileConnection.create();
+            }
+            else if(pendingRecords.replaceFile) {
+                fileConnection.truncate(0);
+                fileLength = 0;
+            }
+            if(fileLength < 0) {
+                fileLength = fileConnection.fileSize();
+            }
+            
+            OutputStream output = fileConnection.openOutputStream(fileLength);
+            try {
+                output.write(pendingRecords.data);
+            } finally {
+                output.close();
+            }
+            fileLength += pendingRecords.data.length;
+        } finally {
+            fileConnection.close();
+        }
+    }
+    
+    /**
+     * Rewrites the segment file so that it only contains records for the
+     * provided messages and synchronization state, discarding any pending
+     * records.
+     *
+     * @param messages the current messages within the folder
+     * @param syncState the current synchronization state for the folder
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @see #beginCompaction(FolderMessage[], long[])
+     * @see #writeCompacted(FolderMessage[], long[])
+     */
+    void compact(FolderMessage[] messages, long[] syncState) throws IOException {
+        beginCompaction(messages, syncState);
+        writeCompacted(messages, syncState);
+    }
+    
+    /**
+     * Discards any pending records, and resets the record count to that of
+     * a file only containing the provided messages and synchronization
+     * state.  The file itself must then be written with
+     * {@link #writeCompacted(FolderMessage[], long[])}.  Records appended in
+     * the meantime are kept for the next write.
+     *
+     * @param messages the current messages within the folder
+     * @param syncState the current synchronization state for the folder
+     */
+    void beginCompaction(FolderMessage[] messages, long[] syncState) {
+        int count = 1;
+        for(int i=0; i<messages.length; i++) {
+            if(messages[i].getMessageToken() != null) { count++; }
+        }
+        if(syncState != null) { count++; }
+        
+        this.recordCount = count;
+        this.syncState = syncState;
+        this.replaceFile = false;
+        this.rewriteRequired = false;
+        pendingBuffer.reset();
+    }
+    
+    /**
+     * Writes a new segment file containing only the provided messages and
+     * synchronization state.  The new file is written under a temporary name,
+     * and only replaces the existing file once it has been completely written.
+     *
+     * @param messages the messages to write
+     * @param syncState the synchronization state to write
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void writeCompacted(FolderMessage[] messages, long[] syncState) throws IOException {
+        // Records may be appended on other threads while this is running,
+        // so the shared record buffer cannot be used here.
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream bufferOutput = new DataOutputStream(buffer);
+        
+        String tempFileName = fileName + TEMP_SUFFIX;
+        FileConnection fileConnection = (FileConnection)Connector.open(directoryUrl + tempFileName);
+        long offset;
+        int count = 0;
+        try {
+            if(fileConnection.exists()) {
+                fileConnection.truncate(0);
+            }
+            else {
+                fileConnection.create();
+            }
+            
+            DataOutputStream output = fileConnection.openDataOutputStream();
+            try {
+                offset = writeFileHeader(output, buffer, bufferOutput);
+                count = 1;
+                
+                for(int i=0; i<messages.length; i++) {
+                    if(messages[i].getMessageToken() == null) { continue; }
+                    buffer.reset();
+                    messages[i].serialize(bufferOutput);
+                    output.writeByte(RECORD_MESSAGE);
+                    output.writeInt(buffer.size());
+                    buffer.writeTo(output);
+                    offset += RECORD_HEADER_LENGTH + buffer.size();
+                    count++;
+                }
+                
+                if(syncState != null) {
+                    buffer.reset();
+                    writeSyncState(bufferOutput, syncState);
+                    output.writeByte(RECORD_SYNC_STATE);
+                    output.writeInt(buffer.size());
+                    buffer.writeTo(output);
+                    offset += RECORD_HEADER_LENGTH + buffer.size();
+                    count++;
+                }
+            } finally {
+                output.close();
+            }
+            
+            FileConnection existingConnection = (FileConnection)Connector.open(directoryUrl + fileName);
+            try {
+                if(existingConnection.exists()) {
+                    existingConnection.delete();
+                }
+            } finally {
+                existingConnection.close();
+            }
+            fileConnection.rename(fileName);
+        } finally {
+            fileConnection.close();
+        }
+        
+        this.fileLength = offset;
+        
+        if(EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("Compacted header cache: " + fileName
+                            + ", records=" + count).getBytes(),
+                    EventLogger.DEBUG_INFO);
+        }
+    }
+    
+    /**
+     * Deletes the segment file, along with any leftover temporary file.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void delete() throws IOException {
+        deleteFile(directoryUrl + fileName);
+        deleteFile(directoryUrl + fileName + TEMP_SUFFIX);
+    }
+    
+    private static void deleteFile(String fileUrl) throws IOException {
+        FileConnection fileConnection = (FileConnection)Connector.open(fileUrl);
+        try {
+            if(fileConnection.exists()) {
+                fileConnection.delete();
+            }
+        } finally {
+            fileConnection.close();
+        }
+    }
+    
+    /**
+     * Writes the file header and folder record, using the provided buffer
+     * to build the record.
+     *
+     * @return the number of bytes written
+     */
+    private int writeFileHeader(DataOutputStream output, ByteArrayOutputStream buffer, DataOutputStream bufferOutput) throws IOException {
+        output.writeInt(FILE_MAGIC);
+        output.writeInt(FILE_VERSION);
+        
+        buffer.reset();
+        writeFolder(bufferOutput);
+        output.writeByte(RECORD_FOLDER);
+        output.writeInt(buffer.size());
+        buffer.writeTo(output);
+        return FILE_HEADER_LENGTH + RECORD_HEADER_LENGTH + buffer.size();
+    }
+    
+    private void writeFolder(DataOutputStream output) throws IOException {
+        // Only store the folder itself, without any of its children
+        FolderTreeItem folderCopy = new FolderTreeItem(folder);
+        folderCopy.setUniqueId(folder.getUniqueId());
+        folderCopy.serialize(output);
+    }
+    
+    private static boolean readFileHeader(DataInputStream input) throws IOException {
+        return input.readInt() == FILE_MAGIC && input.readInt() == FILE_VERSION;
+    }
+    
+    private static void writeSyncState(DataOutputStream output, long[] syncState) throws IOException {
+        if(syncState == null) {
+            output.writeInt(-1);
+        }
+        else {
+            output.writeInt(syncState.length);
+            for(int i=0; i<syncState.length; i++) {
+                output.writeLong(syncState[i]);
+            }
+        }
+    }
+    
+    private static long[] readSyncState(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if(length < 0) { return null; }
+        long[] result = new long[length];
+        for(int i=0; i<length; i++) {
+            result[i] = input.readLong();
+        }
+        return result;
+    }
+    
+    /**
+     * Records taken from a segment, waiting to be written to its file.
+     */
+    static class PendingRecords {
+        final byte[] data;
+        final boolean replaceFile;
+        
+        PendingRecords(byte[] data, boolean replaceFile) {
+            this.data = data;
+            this.replaceFile = replaceFile;
+        }
+    }
+}
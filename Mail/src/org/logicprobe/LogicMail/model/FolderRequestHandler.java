@@ -35,6 +35,7 @@ import java.util.Vector;
 
 import org.logicprobe.LogicMail.conf.MailSettings;
 import org.logicprobe.LogicMail.mail.ConnectionHandlerRequest;
+import org.logicprobe.LogicMail.mail.FolderRefreshRequest;
 import org.logicprobe.LogicMail.mail.FolderTreeItem;
 import org.logicprobe.LogicMail.mail.MailStoreRequest;
 import org.logicprobe.LogicMail.mail.MailStoreRequestCallback;
@@ -192,15 +193,18 @@ abstract class FolderRequestHandler {
         
         mailStoreServices.invokeLater(new Runnable() { public void run() {
             FolderMessage[] cacheLoadedMessages;
+            long[] syncState;
             if(!initialRefreshComplete) {
                 // Fetch messages stored in cache
                 cacheLoadedMessages = loadCachedFolderMessages();
+                syncState = folderMessageCache.getFolderSyncState(folderTreeItem);
             }
             else {
                 cacheLoadedMessages = null;
+                syncState = null;
             }
 
-            MailStoreRequest request = mailStore.createFolderRefreshRequest(folderTreeItem, cacheLoadedMessages);
+            MailStoreRequest request = mailStore.createFolderRefreshRequest(folderTreeItem, cacheLoadedMessages, syncState);
             request.setRequestCallback(finalFetchCallback);
             processMailStoreRequest(request);
         }});
@@ -584,6 +588,12 @@ abstract class FolderRequestHandler {
     private MailStoreRequestCallback finalFetchCallback = new MailStoreRequestCallback() {
         public void mailStoreRequestComplete(MailStoreRequest request) {
             initialRefreshComplete = true;
+            if(request instanceof FolderRefreshRequest) {
+                long[] syncState = ((FolderRefreshRequest)request).getSyncState();
+                if(syncState != null) {
+                    folderMessageCache.setFolderSyncState(folderTreeItem, syncState);
+                }
+            }
             endFolderRefreshOperation(true);
         }
         public void mailStoreRequestFailed(MailStoreRequest request, Throwable exception, boolean isFinal) {
@@ -258,6 +258,8 @@ public class MailManager {
                 accounts[i].requestDisconnect(false);
             }
         }
+        folderMessageCache.flush();
+        MessageContentFileManager.getInstance().flush();
     }
         
         /**
@@ -291,6 +293,16 @@ public class MailManager {
             System.gc();
         }
         
+        /**
+         * Immediately write any pending changes to the folder message cache,
+         * along with the message content cache manifest.
+         * Intended to be called before the application exits.
+         */
+        public void flushFolderMessageCache() {
+            folderMessageCache.flush();
+            MessageContentFileManager.getInstance().flush();
+        }
+        
         private void mailSettings_MailSettingsSaved(MailSettingsEvent e) {
         // This logic is rather crude, and will trigger a full refresh
         // under a wide variety of circumstances.  Its major intent is
@@ -41,6 +41,7 @@ import java.util.Vector;
 import net.rim.device.api.collection.util.BigIntVector;
 import net.rim.device.api.collection.util.BigVector;
 import net.rim.device.api.i18n.ResourceBundle;
+import net.rim.device.api.util.Arrays;
 import net.rim.device.api.util.Comparator;
 import net.rim.device.api.util.IntHashtable;
 import net.rim.device.api.util.SimpleSortingVector;
@@ -73,12 +74,13 @@ public class MailboxNode implements Node, Serializable {
 	private MailboxNode parentMailbox;
 	private SimpleSortingVector mailboxes;
 	private BigVector messages;
-	private Hashtable messageSet;
+	/** Primary index of the messages in this mailbox, keyed by token. */
 	private Hashtable tokenToMessageMap;
 	private ToIntHashtable tokenToMessageIndexMap;
 	private IntHashtable messageIndexToTokenMap;
 	private BigIntVector messageIndexVector;
 	private EventListenerList listenerList = new EventListenerList();
+	private MailboxNodeEvent lastStatusEvent;
 	private int type;
 	private FolderTreeItem folderTreeItem;
 	private boolean hasAppend;
@@ -160,7 +162,6 @@ public class MailboxNode implements Node, Serializable {
 		this.mailboxes.setSortComparator(MailboxNode.getComparator());
 		this.mailboxes.setSort(true);
 		this.messages = new BigVector();
-		this.messageSet = new Hashtable();
 		this.tokenToMessageMap = new Hashtable();
 		this.tokenToMessageIndexMap = new ToIntHashtable();
 		this.messageIndexToTokenMap = new IntHashtable();
@@ -466,6 +467,7 @@ public class MailboxNode implements Node, Serializable {
 			messageAdded = addMessageImpl(message);
 		}
 		if(messageAdded) {
+		    updateCachedContent(new MessageNode[] { message });
 			fireMailboxStatusChanged(MailboxNodeEvent.TYPE_NEW_MESSAGES, new MessageNode[] { message });
 			updateUnseenMessages(true);
 		}
@@ -473,29 +475,83 @@ public class MailboxNode implements Node, Serializable {
 	
 	/**
 	 * Adds messages to this mailbox.
+	 * <p>
+	 * The new messages are sorted once and then merged into the existing
+	 * message list in a single pass, and the cached content state of all of
+	 * them is checked with a single query.
+	 * </p>
 	 * 
-	 * @param messages The messages to add.
+	 * @param messageNodes The messages to add.
 	 */
-	void addMessages(MessageNode[] messages) {
-		Vector addedMessages = null;
+	void addMessages(MessageNode[] messageNodes) {
+		MessageNode[] addedMessagesArray = null;
 		synchronized(messages) {
-			for(int i=0; i<messages.length; i++) {
-				if(addMessageImpl(messages[i])) {
-					if(addedMessages == null) {
-						addedMessages = new Vector();
-					}
-					addedMessages.addElement(messages[i]);
+		    Vector addedMessages = new Vector(messageNodes.length);
+			for(int i=0; i<messageNodes.length; i++) {
+			    MessageNode message = messageNodes[i];
+			    MessageToken messageToken = message.getMessageToken();
+				if(!tokenToMessageMap.containsKey(messageToken)) {
+				    message.setParent(this);
+				    tokenToMessageMap.put(messageToken, message);
+				    addedMessages.addElement(message);
 				}
 			}
+			
+			int count = addedMessages.size();
+			if(count > 0) {
+			    addedMessagesArray = new MessageNode[count];
+			    addedMessages.copyInto(addedMessagesArray);
+			    mergeMessages(addedMessagesArray);
+			}
 		}
-		if(addedMessages != null) {
-			MessageNode[] addedMessagesArray = new MessageNode[addedMessages.size()];
-			addedMessages.copyInto(addedMessagesArray);
+		if(addedMessagesArray != null) {
+		    updateCachedContent(addedMessagesArray);
 			fireMailboxStatusChanged(MailboxNodeEvent.TYPE_NEW_MESSAGES, addedMessagesArray);
 			updateUnseenMessages(true);
 		}
 	}
 	
+	/**
+	 * Inserts new messages into the sorted message list.
+	 * Small batches are inserted one at a time, while larger batches are
+	 * sorted and merged with the existing messages in a single pass.
+	 * This should only be called from within a "synchronized(messages)" block.
+	 * 
+	 * @param addedMessages The messages to insert, which are sorted in place.
+	 */
+	private void mergeMessages(MessageNode[] addedMessages) {
+	    Comparator comparator = MessageNode.getComparator();
+	    int size = messages.size();
+	    int count = addedMessages.length;
+	    
+	    // Each individual insertion costs a binary search, so a merge only
+	    // pays off once the batch is a sizable fraction of the list
+	    if(count * 8 < size) {
+	        for(int i=0; i<count; i++) {
+	            messages.insertElement(comparator, addedMessages[i]);
+	        }
+	        return;
+	    }
+	    
+	    Arrays.sort(addedMessages, comparator);
+	    Object[] existingMessages = new Object[size];
+	    messages.copyInto(0, size, existingMessages, 0);
+	    messages.removeAll();
+	    
+	    int i = 0;
+	    int j = 0;
+	    while(i < size && j < count) {
+	        if(comparator.compare(existingMessages[i], addedMessages[j]) <= 0) {
+	            messages.addElement(existingMessages[i++]);
+	        }
+	        else {
+	            messages.addElement(addedMessages[j++]);
+	        }
+	    }
+	    while(i < size) { messages.addElement(existingMessages[i++]); }
+	    while(j < count) { messages.addElement(addedMessages[j++]); }
+	}
+	
 	/**
 	 * Adds a message to this mailbox using a sorted insertion
 	 * based on message id.  Since this is intended to be used
@@ -506,23 +562,11 @@ public class MailboxNode implements Node, Serializable {
 	 * @return True if the message was added, false otherwise
 	 */
 	private boolean addMessageImpl(MessageNode message) {
-		if(!messageSet.containsKey(message)) {
+	    MessageToken messageToken = message.getMessageToken();
+		if(!tokenToMessageMap.containsKey(messageToken)) {
 			message.setParent(this);
 			messages.insertElement(MessageNode.getComparator(), message);
-			messageSet.put(message, Boolean.TRUE);
-			tokenToMessageMap.put(message.getMessageToken(), message);
-			AccountNode parentAccount = getParentAccount();
-			if(parentAccount instanceof NetworkAccountNode) {
-			    NetworkAccountNode accountNode = (NetworkAccountNode)getParentAccount();
-			    NetworkMailStoreServices mailStoreServices = (NetworkMailStoreServices)accountNode.getMailStoreServices();
-			    boolean isCached = mailStoreServices.hasCachedMessageContent(
-			            this.folderTreeItem, message.getMessageToken());
-			    message.setCachedContent(isCached);
-			}
-			else if(parentAccount instanceof LocalAccountNode) {
-			    // Local accounts always have complete message data
-			   message.setCachedContent(true);
-			}
+			tokenToMessageMap.put(messageToken, message);
 			return true;
 		}
 		else {
@@ -530,6 +574,36 @@ public class MailboxNode implements Node, Serializable {
 		}
 	}
 	
+	/**
+	 * Updates the cached content state of newly added messages.
+	 * This is done outside of the message lock, with a single query
+	 * for all the messages.
+	 * 
+	 * @param addedMessages The messages that were added.
+	 */
+	private void updateCachedContent(MessageNode[] addedMessages) {
+        AccountNode parentAccount = getParentAccount();
+        if(parentAccount instanceof NetworkAccountNode) {
+            NetworkAccountNode accountNode = (NetworkAccountNode)getParentAccount();
+            NetworkMailStoreServices mailStoreServices = (NetworkMailStoreServices)accountNode.getMailStoreServices();
+            MessageToken[] messageTokens = new MessageToken[addedMessages.length];
+            for(int i=0; i<addedMessages.length; i++) {
+                messageTokens[i] = addedMessages[i].getMessageToken();
+            }
+            boolean[] isCached = mailStoreServices.hasCachedMessageContent(
+                    this.folderTreeItem, messageTokens);
+            for(int i=0; i<addedMessages.length; i++) {
+                addedMessages[i].setCachedContent(isCached[i]);
+            }
+        }
+        else if(parentAccount instanceof LocalAccountNode) {
+            // Local accounts always have complete message data
+            for(int i=0; i<addedMessages.length; i++) {
+                addedMessages[i].setCachedContent(true);
+            }
+        }
+	}
+	
     /**
      * Removes a message from this mailbox.
      * 
@@ -549,20 +623,17 @@ public class MailboxNode implements Node, Serializable {
     /**
      * Removes messages from this mailbox.
      * 
-     * @param message The messages to remove
+     * @param messageNodes The messages to remove
      */
-	void removeMessages(final MessageNode[] messages) {
+	void removeMessages(final MessageNode[] messageNodes) {
 	    Vector removedMessages = null;
-	    Vector removedTokens = null;
 	    synchronized(messages) {
-            for(int i=0; i<messages.length; i++) {
-                if(removeMessageImpl(messages[i])) {
+            for(int i=0; i<messageNodes.length; i++) {
+                if(removeMessageImpl(messageNodes[i])) {
                     if(removedMessages == null) {
                         removedMessages = new Vector();
-                        removedTokens = new Vector();
                     }
-                    removedMessages.addElement(messages[i]);
-                    removedTokens.addElement(messages[i].getMessageToken());
+                    removedMessages.addElement(messageNodes[i]);
                 }
             }
 	    }
@@ -581,10 +652,9 @@ public class MailboxNode implements Node, Serializable {
 	 * @param message The message to remove
 	 */
 	private boolean removeMessageImpl(MessageNode message) {
-		if(messageSet.containsKey(message)) {
+		if(tokenToMessageMap.containsKey(message.getMessageToken())) {
 			messages.removeElement(MessageNode.getComparator(), message);
 			message.setParent(null);
-			messageSet.remove(message);
 			tokenToMessageMap.remove(message.getMessageToken());
 			removeTokenIndexMapping(message.getMessageToken());
 			if(firstMessageNode == message) { firstMessageNode = null; }
@@ -607,7 +677,6 @@ public class MailboxNode implements Node, Serializable {
 			}
 			// Clear out the collections
 			messages.removeAll();
-			messageSet.clear();
 			tokenToMessageMap.clear();
 			tokenToMessageIndexMap.clear();
 			messageIndexToTokenMap.clear();
@@ -626,7 +695,7 @@ public class MailboxNode implements Node, Serializable {
 	 */
 	boolean containsMessage(MessageNode messageNode) {
 		synchronized(messages) {
-			return messageSet.containsKey(messageNode);
+			return tokenToMessageMap.containsKey(messageNode.getMessageToken());
 		}
 	}
 
@@ -1223,11 +1292,22 @@ public class MailboxNode implements Node, Serializable {
      */
     void fireMailboxStatusChanged(int type, MessageNode[] affectedMessages) {
         Object[] listeners = listenerList.getListeners(MailboxNodeListener.class);
-        MailboxNodeEvent e = null;
-        for(int i=0; i<listeners.length; i++) {
-            if(e == null) {
-                e = new MailboxNodeEvent(this, type, affectedMessages);
+        if(listeners.length == 0) { return; }
+        
+        // Events without affected messages carry no data besides their type,
+        // so the previous one is reused whenever possible
+        MailboxNodeEvent e;
+        if(affectedMessages == null) {
+            e = lastStatusEvent;
+            if(e == null || e.getType() != type) {
+                e = new MailboxNodeEvent(this, type, null);
+                lastStatusEvent = e;
             }
+        }
+        else {
+            e = new MailboxNodeEvent(this, type, affectedMessages);
+        }
+        for(int i=0; i<listeners.length; i++) {
             ((MailboxNodeListener)listeners[i]).mailboxStatusChanged(e);
         }
     }
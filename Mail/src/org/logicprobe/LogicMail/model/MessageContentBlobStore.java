@@ -0,0 +1,502 @@
+/*-
+ * Copyright (c) 2011, Derek Konigsberg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.logicprobe.LogicMail.model;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+import net.rim.device.api.crypto.SHA1Digest;
+import net.rim.device.api.system.EventLogger;
+import net.rim.device.api.util.CRC32;
+
+import org.logicprobe.LogicMail.AppInfo;
+
+/**
+ * Content-addressed store for large message content, such as attachments,
+ * that may appear in more than one cached message.
+ * <p>
+ * Each blob is stored once, in a file named after its key.  The key consists
+ * of the CRC-32 checksum, the length, and the SHA-1 digest of the data, so
+ * identical content always maps to the same file.  Message content files
+ * refer to blobs by key instead of containing the data themselves.
+ * </p>
+ * <p>
+ * Reference counts are kept in memory, and are rebuilt from the cache
+ * manifest when it is loaded.  A blob file is deleted when the last
+ * reference to it is released, and any blob files left without references,
+ * such as after an interrupted write, are deleted when the store is loaded.
+ * </p>
+ */
+class MessageContentBlobStore {
+    private static final String BLOB_SUFFIX = ".blob";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String STREAM_PREFIX = "stream";
+    private static final String ALL_FILTER = "*";
+    
+    /** Length of a blob key: CRC(4) + Len(4) + SHA-1(20) */
+    static final int KEY_LENGTH = 28;
+    
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
+    private final String blobUrl;
+    
+    /** Map of blob names to reference counts. */
+    private final Hashtable referenceMap = new Hashtable();
+    
+    /** Counter used to give each open blob stream its own temporary file. */
+    private int streamCount;
+    
+    /**
+     * Instantiates a new blob store.
+     *
+     * @param blobUrl the URL of the directory containing the blob files
+     */
+    MessageContentBlobStore(String blobUrl) {
+        this.blobUrl = blobUrl;
+    }
+    
+    /**
+     * Open the blob store, creating its directory if necessary.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void open() throws IOException {
+        FileConnection fileConnection = (FileConnection)Connector.open(blobUrl);
+        try {
+            if(!fileConnection.exists()) {
+                fileConnection.mkdir();
+            }
+        } finally {
+            fileConnection.close();
+        }
+    }
+    
+    /**
+     * Stores data in the blob store, if it is not already there.
+     * This does not add a reference to the blob, which must be done
+     * separately once the key has been recorded.
+     *
+     * @param data the data to store
+     * @return the key for the blob
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    byte[] store(byte[] data) throws IOException {
+        byte[] key = createKey(data);
+        String name = getName(key);
+        
+        FileConnection fileConnection = (FileConnection)Connector.open(blobUrl + name + BLOB_SUFFIX);
+        try {
+            // Identical content has already been stored, so nothing needs
+            // to be written
+            if(fileConnection.exists() && fileConnection.fileSize() == data.length) {
+                return key;
+            }
+            
+            FileConnection tempConnection = (FileConnection)Connector.open(blobUrl + name + TEMP_SUFFIX);
+            try {
+                if(tempConnection.exists()) {
+                    tempConnection.truncate(0);
+                }
+                else {
+                    tempConnection.create();
+                }
+                OutputStream output = tempConnection.openOutputStream();
+                try {
+                    output.write(data);
+                } finally {
+                    output.close();
+                }
+                
+                if(fileConnection.exists()) {
+                    fileConnection.delete();
+                }
+                tempConnection.rename(name + BLOB_SUFFIX);
+            } finally {
+                tempConnection.close();
+            }
+        } finally {
+            fileConnection.close();
+        }
+        
+        if(EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("Stored cache blob: " + name).getBytes(),
+                    EventLogger.DEBUG_INFO);
+        }
+        return key;
+    }
+    
+    /**
+     * Opens a stream for storing data in the blob store, without needing
+     * all of the data to be in memory at once.  The data is written to a
+     * temporary file, and the key is computed as it is written.
+     *
+     * @return the stream
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    BlobOutputStream openOutputStream() throws IOException {
+        String tempName;
+        synchronized(referenceMap) {
+            tempName = STREAM_PREFIX + (streamCount++) + TEMP_SUFFIX;
+        }
+        
+        FileConnection tempConnection = (FileConnection)Connector.open(blobUrl + tempName);
+        try {
+            if(tempConnection.exists()) {
+                tempConnection.truncate(0);
+            }
+            else {
+                tempConnection.create();
+            }
+            return new BlobOutputStream(tempConnection, tempConnection.openOutputStream());
+        } catch (IOException e) {
+            tempConnection.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Loads data from the blob store.
+     *
+     * @param key the key for the blob
+     * @return the data, or <code>null</code> if the blob is missing or damaged
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    byte[] load(byte[] key) throws IOException {
+        String name = getName(key);
+        int length = MessageContentFileBase.byteArrayToInt(key, 4);
+        
+        FileConnection fileConnection = (FileConnection)Connector.open(blobUrl + name + BLOB_SUFFIX);
+        try {
+            if(!fileConnection.exists() || fileConnection.fileSize() != length) {
+                return null;
+            }
+            byte[] data = new byte[length];
+            DataInputStream input = fileConnection.openDataInputStream();
+            try {
+                input.readFully(data);
+            } finally {
+                input.close();
+            }
+            
+            if(CRC32.update(CRC32.INITIAL_VALUE, data)
+                    != MessageContentFileBase.byteArrayToInt(key, 0)) {
+                return null;
+            }
+            return data;
+        } finally {
+            fileConnection.close();
+        }
+    }
+    
+    /**
+     * Adds a reference to each of the provided blobs.
+     *
+     * @param names the blob names, which may be <code>null</code>
+     */
+    void addReferences(String[] names) {
+        if(names == null) { return; }
+        for(int i=0; i<names.length; i++) {
+            Integer count = (Integer)referenceMap.get(names[i]);
+            referenceMap.put(names[i],
+                    new Integer((count != null) ? count.intValue() + 1 : 1));
+        }
+    }
+    
+    /**
+     * Releases a reference to each of the provided blobs, deleting any blobs
+     * that are no longer referenced.
+     *
+     * @param names the blob names, which may be <code>null</code>
+     * @return the total length of the blob files that were deleted
+     */
+    int releaseReferences(String[] names) {
+        if(names == null) { return 0; }
+        int length = 0;
+        for(int i=0; i<names.length; i++) {
+            Integer count = (Integer)referenceMap.get(names[i]);
+            if(count != null && count.intValue() > 1) {
+                referenceMap.put(names[i], new Integer(count.intValue() - 1));
+                continue;
+            }
+            
+            referenceMap.remove(names[i]);
+            try {
+                FileConnection fileConnection = (FileConnection)Connector.open(blobUrl + names[i] + BLOB_SUFFIX);
+                try {
+                    if(fileConnection.exists()) {
+                        fileConnection.delete();
+                        length += getLength(names[i]);
+                    }
+                } finally {
+                    fileConnection.close();
+                }
+            } catch (IOException e) {
+                EventLogger.logEvent(AppInfo.GUID,
+                        ("Unable to delete cache blob: " + names[i]
+                            + "\r\n" + e.getMessage()).getBytes(),
+                        EventLogger.WARNING);
+            }
+        }
+        return length;
+    }
+    
+    /**
+     * Deletes any blob files that have no references, along with any
+     * leftover temporary files.  This should be called once all references
+     * have been added after loading the cache manifest.
+     */
+    void deleteUnreferenced() {
+        Vector fileNames = new Vector();
+        try {
+            FileConnection dirConnection = (FileConnection)Connector.open(blobUrl);
+            try {
+                Enumeration en = dirConnection.list(ALL_FILTER, true);
+                while(en.hasMoreElements()) {
+                    String fileName = (String)en.nextElement();
+                    if(fileName.endsWith(TEMP_SUFFIX)) {
+                        fileNames.addElement(fileName);
+                    }
+                    else if(fileName.endsWith(BLOB_SUFFIX)
+                            && !referenceMap.containsKey(fileName.substring(
+                                    0, fileName.length() - BLOB_SUFFIX.length()))) {
+                        fileNames.addElement(fileName);
+                    }
+                }
+            } finally {
+                dirConnection.close();
+            }
+            
+            int size = fileNames.size();
+            for(int i=0; i<size; i++) {
+                FileConnection fileConnection = (FileConnection)Connector.open(blobUrl + fileNames.elementAt(i));
+                try {
+                    if(fileConnection.exists()) {
+                        fileConnection.delete();
+                    }
+                } finally {
+                    fileConnection.close();
+                }
+            }
+        } catch (IOException e) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("Unable to clean up cache blobs: " + e.getMessage()).getBytes(),
+                    EventLogger.WARNING);
+        }
+        
+        if(!fileNames.isEmpty() && EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("Deleted unreferenced cache blobs: " + fileNames.size()).getBytes(),
+                    EventLogger.DEBUG_INFO);
+        }
+    }
+    
+    /**
+     * Clears all reference counts, without deleting any blobs.
+     */
+    void clearReferences() {
+        referenceMap.clear();
+    }
+    
+    /**
+     * Creates the key for a blob containing the provided data.
+     *
+     * @param data the blob data
+     * @return the key
+     */
+    static byte[] createKey(byte[] data) {
+        SHA1Digest digest = new SHA1Digest();
+        digest.update(data);
+        return createKey(CRC32.update(CRC32.INITIAL_VALUE, data), data.length, digest.getDigest());
+    }
+    
+    private static byte[] createKey(int checksum, int length, byte[] digestBytes) {
+        byte[] key = new byte[KEY_LENGTH];
+        System.arraycopy(MessageContentFileBase.intToByteArray(checksum), 0, key, 0, 4);
+        System.arraycopy(MessageContentFileBase.intToByteArray(length), 0, key, 4, 4);
+        System.arraycopy(digestBytes, 0, key, 8, KEY_LENGTH - 8);
+        return key;
+    }
+    
+    /**
+     * Gets the name of a blob, which is the hexadecimal form of its key.
+     *
+     * @param key the blob key
+     * @return the blob name
+     */
+    static String getName(byte[] key) {
+        char[] buf = new char[key.length * 2];
+        for(int i=0; i<key.length; i++) {
+            buf[i * 2] = HEX_DIGITS[(key[i] >> 4) & 0x0F];
+            buf[(i * 2) + 1] = HEX_DIGITS[key[i] & 0x0F];
+        }
+        return new String(buf);
+    }
+    
+    /**
+     * Gets the total length of the data in a set of blobs, from their names.
+     *
+     * @param names the blob names, which may be <code>null</code>
+     * @return the total length in bytes
+     */
+    static int getLength(String[] names) {
+        if(names == null) { return 0; }
+        int length = 0;
+        for(int i=0; i<names.length; i++) {
+            length += getLength(names[i]);
+        }
+        return length;
+    }
+    
+    /**
+     * Gets the length of the data in a blob, from its name.
+     *
+     * @param name the blob name
+     * @return the length in bytes
+     */
+    static int getLength(String name) {
+        return (int)Long.parseLong(name.substring(8, 16), 16);
+    }
+    
+    /**
+     * Stream for writing a blob whose data is not all in memory at once.
+     * Closing the stream only closes the temporary file, so the stream can
+     * be closed by whatever wraps it before the blob is committed.
+     */
+    class BlobOutputStream extends OutputStream {
+        private final FileConnection tempConnection;
+        private final OutputStream output;
+        private final SHA1Digest digest = new SHA1Digest();
+        private final byte[] singleByte = new byte[1];
+        private int checksum = CRC32.INITIAL_VALUE;
+        private int length;
+        private boolean closed;
+        
+        private BlobOutputStream(FileConnection tempConnection, OutputStream output) {
+            this.tempConnection = tempConnection;
+            this.output = output;
+        }
+        
+        public void write(int b) throws IOException {
+            singleByte[0] = (byte)b;
+            write(singleByte, 0, 1);
+        }
+        
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(closed) { throw new IOException("Stream closed"); }
+            output.write(b, off, len);
+            digest.update(b, off, len);
+            checksum = CRC32.update(checksum, b, off, len);
+            length += len;
+        }
+        
+        public void close() throws IOException {
+            if(closed) { return; }
+            closed = true;
+            output.close();
+        }
+        
+        /**
+         * Gets the number of bytes written to the stream.
+         *
+         * @return the length in bytes
+         */
+        int getLength() {
+            return length;
+        }
+        
+        /**
+         * Moves the written data into the blob store, if identical content
+         * is not already there.  As with {@link MessageContentBlobStore#store(byte[])},
+         * this does not add a reference to the blob.
+         *
+         * @return the key for the blob
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        byte[] commit() throws IOException {
+            close();
+            byte[] key = createKey(checksum, length, digest.getDigest());
+            String name = getName(key);
+            
+            try {
+                FileConnection fileConnection = (FileConnection)Connector.open(blobUrl + name + BLOB_SUFFIX);
+                try {
+                    if(fileConnection.exists() && fileConnection.fileSize() == length) {
+                        tempConnection.delete();
+                        return key;
+                    }
+                    if(fileConnection.exists()) {
+                        fileConnection.delete();
+                    }
+                    tempConnection.rename(name + BLOB_SUFFIX);
+                } finally {
+                    fileConnection.close();
+                }
+            } finally {
+                tempConnection.close();
+            }
+            
+            if(EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+                EventLogger.logEvent(AppInfo.GUID,
+                        ("Stored cache blob: " + name).getBytes(),
+                        EventLogger.DEBUG_INFO);
+            }
+            return key;
+        }
+        
+        /**
+         * Discards the written data.
+         */
+        void abort() {
+            try {
+                close();
+            } catch (IOException e) { }
+            try {
+                if(tempConnection.exists()) {
+                    tempConnection.delete();
+                }
+            } catch (IOException e) {
+                EventLogger.logEvent(AppInfo.GUID,
+                        ("Unable to delete cache blob stream: " + e.getMessage()).getBytes(),
+                        EventLogger.WARNING);
+            } finally {
+                try { tempConnection.close(); } catch (IOException e) { }
+            }
+        }
+    }
+}
@@ -0,0 +1,591 @@
+/*-
+ * Copyright (c) 2011, Derek Konigsberg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.logicprobe.LogicMail.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+import net.rim.device.api.system.EventLogger;
+import net.rim.device.api.util.Arrays;
+import net.rim.device.api.util.CRC32;
+import net.rim.device.api.util.Comparator;
+import net.rim.device.api.util.DataBuffer;
+
+import org.logicprobe.LogicMail.AppInfo;
+import org.logicprobe.LogicMail.util.FilenameEncoder;
+import org.logicprobe.LogicMail.util.StringParser;
+
+/**
+ * Tracks the size and last access time of every file in the message content
+ * cache, so that the least recently used content can be evicted when the
+ * cache grows beyond its configured limits.
+ * <p>
+ * The manifest is stored as a single small file in the root of the cache
+ * directory.  If that file is missing or damaged, it is rebuilt from the
+ * contents of the cache directory itself, using the file modification
+ * times as a stand-in for the access times.  The blob references of each
+ * file are read back from the file itself.
+ * </p>
+ */
+class MessageContentCacheManifest {
+    private static final String FILE_NAME = "manifest.dat";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String MSG_SUFFIX = ".msg";
+    private static final String MSG_FILTER = "*.msg";
+    private static final String ALL_FILTER = "*";
+    private static final int FILE_MAGIC = 0x4C4D434D;
+    private static final int FILE_VERSION = 3;
+    
+    private final String cacheUrl;
+    
+    /** Map of "folderUid/messageUid" keys to manifest entries. */
+    private final Hashtable entryMap = new Hashtable();
+    private boolean dirty;
+    
+    /**
+     * Instantiates a new manifest for the provided cache directory.
+     *
+     * @param cacheUrl the URL of the message content cache directory
+     */
+    MessageContentCacheManifest(String cacheUrl) {
+        this.cacheUrl = cacheUrl;
+    }
+    
+    /**
+     * Load the manifest from the cache directory, rebuilding it from the
+     * cached files if it cannot be read.
+     */
+    void load() {
+        entryMap.clear();
+        dirty = false;
+        try {
+            if(readManifest()) { return; }
+        } catch (IOException e) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("Unable to read cache manifest: " + e.getMessage()).getBytes(),
+                    EventLogger.WARNING);
+        }
+        
+        entryMap.clear();
+        try {
+            rebuild();
+        } catch (IOException e) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("Unable to rebuild cache manifest: " + e.getMessage()).getBytes(),
+                    EventLogger.ERROR);
+        }
+        dirty = true;
+    }
+    
+    private boolean readManifest() throws IOException {
+        FileConnection fileConnection = (FileConnection)Connector.open(cacheUrl + FILE_NAME);
+        try {
+            if(!fileConnection.exists()) { return false; }
+            
+            int fileSize = (int)fileConnection.fileSize();
+            if(fileSize < 12) { return false; }
+            
+            byte[] data = new byte[fileSize];
+            DataInputStream input = fileConnection.openDataInputStream();
+            try {
+                input.readFully(data);
+            } finally {
+                input.close();
+            }
+            
+            // The file ends with a checksum of everything before it
+            int checksum = CRC32.update(CRC32.INITIAL_VALUE, data, 0, fileSize - 4);
+            DataBuffer buf = new DataBuffer(data, 0, fileSize, true);
+            buf.setPosition(fileSize - 4);
+            if(buf.readInt() != checksum) { return false; }
+            
+            buf.setPosition(0);
+            if(buf.readInt() != FILE_MAGIC) { return false; }
+            int version = buf.readInt();
+            if(version < 1 || version > FILE_VERSION) { return false; }
+            int count = buf.readInt();
+            for(int i=0; i<count; i++) {
+                long folderUid = buf.readLong();
+                String messageUid = buf.readUTF();
+                Entry entry = new Entry(folderUid, messageUid);
+                entry.accountId = buf.readLong();
+                entry.size = buf.readInt();
+                entry.lastAccess = buf.readLong();
+                entry.attachmentSize = buf.readInt();
+                int attachmentCount = buf.readInt();
+                if(attachmentCount > 0) {
+                    entry.attachmentUids = new long[attachmentCount];
+                    for(int j=0; j<attachmentCount; j++) {
+                        entry.attachmentUids[j] = buf.readLong();
+                    }
+                }
+                if(version >= 2) {
+                    int blobCount = buf.readInt();
+                    if(blobCount > 0) {
+                        entry.blobNames = new String[blobCount];
+                        for(int j=0; j<blobCount; j++) {
+                            entry.blobNames[j] = buf.readUTF();
+                        }
+                    }
+                }
+                if(version == 2) {
+                    // Older sizes included the length of every blob
+                    entry.size -= MessageContentBlobStore.getLength(entry.blobNames);
+                }
+                entryMap.put(getKey(folderUid, messageUid), entry);
+            }
+            return true;
+        } finally {
+            fileConnection.close();
+        }
+    }
+    
+    private void rebuild() throws IOException {
+        FileConnection cacheConnection = (FileConnection)Connector.open(cacheUrl);
+        Vector folderNames = new Vector();
+        try {
+            if(!cacheConnection.exists()) { return; }
+            Enumeration en = cacheConnection.list(ALL_FILTER, false);
+            while(en.hasMoreElements()) {
+                String name = (String)en.nextElement();
+                if(name.endsWith("/")) {
+                    folderNames.addElement(name);
+                }
+            }
+        } finally {
+            cacheConnection.close();
+        }
+        
+        int folderCount = folderNames.size();
+        for(int i=0; i<folderCount; i++) {
+            String folderName = (String)folderNames.elementAt(i);
+            long folderUid;
+            try {
+                folderUid = parseFolderUid(folderName.substring(0, folderName.length() - 1));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            
+            String folderUrl = cacheUrl + folderName;
+            FileConnection folderConnection = (FileConnection)Connector.open(folderUrl);
+            Vector fileNames = new Vector();
+            try {
+                Enumeration en = folderConnection.list(MSG_FILTER, false);
+                while(en.hasMoreElements()) {
+                    fileNames.addElement(en.nextElement());
+                }
+            } finally {
+                folderConnection.close();
+            }
+            
+            int fileCount = fileNames.size();
+            for(int j=0; j<fileCount; j++) {
+                String fileName = (String)fileNames.elementAt(j);
+                String messageUid = FilenameEncoder.decode(
+                        fileName.substring(0, fileName.length() - MSG_SUFFIX.length()));
+                FileConnection fileConnection = (FileConnection)Connector.open(folderUrl + fileName);
+                try {
+                    Entry entry = new Entry(folderUid, messageUid);
+                    entry.lastAccess = fileConnection.lastModified();
+                    entry.blobNames = readBlobNames(fileConnection, messageUid);
+                    entry.size = (int)fileConnection.fileSize();
+                    entryMap.put(getKey(folderUid, messageUid), entry);
+                } finally {
+                    fileConnection.close();
+                }
+            }
+        }
+        
+        if(EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("Rebuilt cache manifest: entries=" + entryMap.size()).getBytes(),
+                    EventLogger.DEBUG_INFO);
+        }
+    }
+    
+    private static String[] readBlobNames(FileConnection fileConnection, String messageUid) {
+        MessageContentFileReader reader = new MessageContentFileReader(fileConnection, messageUid);
+        try {
+            reader.open();
+            return reader.getBlobNames();
+        } catch (IOException e) {
+            // Damaged files are treated as having no blob references
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Save the manifest to the cache directory, if it has changed since it
+     * was last loaded or saved.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void save() throws IOException {
+        if(!dirty) { return; }
+        
+        DataBuffer buf = new DataBuffer();
+        buf.writeInt(FILE_MAGIC);
+        buf.writeInt(FILE_VERSION);
+        buf.writeInt(entryMap.size());
+        Enumeration en = entryMap.elements();
+        while(en.hasMoreElements()) {
+            Entry entry = (Entry)en.nextElement();
+            buf.writeLong(entry.folderUid);
+            buf.writeUTF(entry.messageUid);
+            buf.writeLong(entry.accountId);
+            buf.writeInt(entry.size);
+            buf.writeLong(entry.lastAccess);
+            buf.writeInt(entry.attachmentSize);
+            if(entry.attachmentUids != null) {
+                buf.writeInt(entry.attachmentUids.length);
+                for(int i=0; i<entry.attachmentUids.length; i++) {
+                    buf.writeLong(entry.attachmentUids[i]);
+                }
+            }
+            else {
+                buf.writeInt(0);
+            }
+            if(entry.blobNames != null) {
+                buf.writeInt(entry.blobNames.length);
+                for(int i=0; i<entry.blobNames.length; i++) {
+                    buf.writeUTF(entry.blobNames[i]);
+                }
+            }
+            else {
+                buf.writeInt(0);
+            }
+        }
+        buf.writeInt(CRC32.update(CRC32.INITIAL_VALUE,
+                buf.getArray(), buf.getArrayStart(), buf.getLength()));
+        
+        // Write to a temporary file, then replace the existing manifest
+        FileConnection fileConnection = (FileConnection)Connector.open(cacheUrl + FILE_NAME + TEMP_SUFFIX);
+        try {
+            if(fileConnection.exists()) {
+                fileConnection.truncate(0);
+            }
+            else {
+                fileConnection.create();
+            }
+            DataOutputStream output = fileConnection.openDataOutputStream();
+            try {
+                output.write(buf.getArray(), buf.getArrayStart(), buf.getLength());
+            } finally {
+                output.close();
+            }
+            
+            FileConnection existingConnection = (FileConnection)Connector.open(cacheUrl + FILE_NAME);
+            try {
+                if(existingConnection.exists()) {
+                    existingConnection.delete();
+                }
+            } finally {
+                existingConnection.close();
+            }
+            fileConnection.rename(FILE_NAME);
+        } finally {
+            fileConnection.close();
+        }
+        dirty = false;
+    }
+    
+    /**
+     * Checks whether the manifest has changes that have not been saved.
+     *
+     * @return true, if the manifest needs to be saved
+     */
+    boolean isDirty() {
+        return dirty;
+    }
+    
+    /**
+     * Gets the entry for a cached message.
+     *
+     * @param folderUid the unique ID of the folder containing the message
+     * @param messageUid the message UID from the message token
+     * @return the entry, or null if the message is not in the manifest
+     */
+    Entry get(long folderUid, String messageUid) {
+        return (Entry)entryMap.get(getKey(folderUid, messageUid));
+    }
+    
+    /**
+     * Adds or replaces the entry for a cached message, marking it as
+     * accessed at the current time.
+     *
+     * @param folderUid the unique ID of the folder containing the message
+     * @param messageUid the message UID from the message token
+     * @param accountId the unique ID of the account the message belongs to
+     * @param size the size of the cache file, in bytes, not including the
+     *     blobs it refers to
+     * @param attachmentUids the part UIDs of any attachment content in the file
+     * @param attachmentSize the total size of the attachment content, in bytes
+     * @param blobNames the names of any blobs the file refers to
+     * @return the new entry
+     */
+    Entry put(long folderUid, String messageUid, long accountId, int size, long[] attachmentUids, int attachmentSize, String[] blobNames) {
+        Entry entry = new Entry(folderUid, messageUid);
+        entry.accountId = accountId;
+        entry.size = size;
+        entry.lastAccess = System.currentTimeMillis();
+        entry.attachmentUids = attachmentUids;
+        entry.attachmentSize = attachmentSize;
+        entry.blobNames = blobNames;
+        entryMap.put(getKey(folderUid, messageUid), entry);
+        dirty = true;
+        return entry;
+    }
+    
+    /**
+     * Updates the last access time for a cached message.
+     *
+     * @param folderUid the unique ID of the folder containing the message
+     * @param messageUid the message UID from the message token
+     * @return true, if the message was in the manifest
+     */
+    boolean touch(long folderUid, String messageUid) {
+        Entry entry = (Entry)entryMap.get(getKey(folderUid, messageUid));
+        if(entry == null) { return false; }
+        entry.lastAccess = System.currentTimeMillis();
+        dirty = true;
+        return true;
+    }
+    
+    /**
+     * Removes the entry for a cached message.
+     *
+     * @param folderUid the unique ID of the folder containing the message
+     * @param messageUid the message UID from the message token
+     * @return the removed entry, or null if the message was not in the manifest
+     */
+    Entry remove(long folderUid, String messageUid) {
+        Entry entry = (Entry)entryMap.remove(getKey(folderUid, messageUid));
+        if(entry != null) {
+            dirty = true;
+        }
+        return entry;
+    }
+    
+    /**
+     * Removes the entries for all cached messages within a folder.
+     *
+     * @param folderUid the unique ID of the folder
+     * @return the removed entries
+     */
+    Entry[] removeFolder(long folderUid) {
+        String prefix = getFolderKeyPrefix(folderUid);
+        Vector keys = new Vector();
+        Enumeration en = entryMap.keys();
+        while(en.hasMoreElements()) {
+            String key = (String)en.nextElement();
+            if(key.startsWith(prefix)) {
+                keys.addElement(key);
+            }
+        }
+        int size = keys.size();
+        Entry[] result = new Entry[size];
+        for(int i=0; i<size; i++) {
+            result[i] = (Entry)entryMap.remove(keys.elementAt(i));
+        }
+        if(size > 0) {
+            dirty = true;
+        }
+        return result;
+    }
+    
+    /**
+     * Gets all the entries in the manifest, in no particular order.
+     *
+     * @return the entries
+     */
+    Enumeration getEntries() {
+        return entryMap.elements();
+    }
+    
+    /**
+     * Gets the total size of the cached messages belonging to an account.
+     * Blobs are only counted once, no matter how many of those messages
+     * refer to them.
+     *
+     * @param accountId the unique ID of the account, or <code>-1</code> to
+     *     include all cached messages
+     * @return the total size in bytes
+     */
+    long getTotalSize(long accountId) {
+        long total = 0;
+        Enumeration en = entryMap.elements();
+        while(en.hasMoreElements()) {
+            Entry entry = (Entry)en.nextElement();
+            if(accountId == -1 || entry.accountId == accountId) {
+                total += entry.size;
+            }
+        }
+        en = getBlobReferences(accountId).keys();
+        while(en.hasMoreElements()) {
+            total += MessageContentBlobStore.getLength((String)en.nextElement());
+        }
+        return total;
+    }
+    
+    /**
+     * Counts the references to each blob from the cached messages belonging
+     * to an account.
+     *
+     * @param accountId the unique ID of the account, or <code>-1</code> to
+     *     include all cached messages
+     * @return map of blob names to <code>Integer</code> reference counts
+     */
+    Hashtable getBlobReferences(long accountId) {
+        Hashtable result = new Hashtable();
+        Enumeration en = entryMap.elements();
+        while(en.hasMoreElements()) {
+            Entry entry = (Entry)en.nextElement();
+            if((accountId == -1 || entry.accountId == accountId)
+                    && entry.blobNames != null) {
+                for(int i=0; i<entry.blobNames.length; i++) {
+                    Integer count = (Integer)result.get(entry.blobNames[i]);
+                    result.put(entry.blobNames[i],
+                            new Integer((count != null) ? count.intValue() + 1 : 1));
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Gets the entries for the cached messages belonging to an account,
+     * ordered from least to most recently accessed.
+     *
+     * @param accountId the unique ID of the account, or <code>-1</code> to
+     *     include all cached messages
+     * @return the ordered entries
+     */
+    Entry[] getEntriesByAccess(long accountId) {
+        Vector matches = new Vector(entryMap.size());
+        Enumeration en = entryMap.elements();
+        while(en.hasMoreElements()) {
+            Entry entry = (Entry)en.nextElement();
+            if(accountId == -1 || entry.accountId == accountId) {
+                matches.addElement(entry);
+            }
+        }
+        Entry[] result = new Entry[matches.size()];
+        matches.copyInto(result);
+        Arrays.sort(result, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long t1 = ((Entry)o1).lastAccess;
+                long t2 = ((Entry)o2).lastAccess;
+                return (t1 < t2) ? -1 : ((t1 > t2) ? 1 : 0);
+            }
+        });
+        return result;
+    }
+    
+    /**
+     * Removes all entries, and deletes the manifest file.
+     */
+    void clear() {
+        entryMap.clear();
+        dirty = false;
+        try {
+            FileConnection fileConnection = (FileConnection)Connector.open(cacheUrl + FILE_NAME);
+            try {
+                if(fileConnection.exists()) {
+                    fileConnection.delete();
+                }
+            } finally {
+                fileConnection.close();
+            }
+        } catch (IOException e) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("Unable to delete cache manifest: " + e.getMessage()).getBytes(),
+                    EventLogger.WARNING);
+        }
+    }
+    
+    /**
+     * Parses a folder directory name, which is the unsigned hexadecimal
+     * representation of the folder's unique ID.
+     */
+    private static long parseFolderUid(String name) {
+        if(name.length() != 16) {
+            throw new NumberFormatException();
+        }
+        return (Long.parseLong(name.substring(0, 8), 16) << 32)
+            | Long.parseLong(name.substring(8), 16);
+    }
+    
+    private static String getFolderKeyPrefix(long folderUid) {
+        return StringParser.toHexString(folderUid).toLowerCase() + '/';
+    }
+    
+    private static String getKey(long folderUid, String messageUid) {
+        return getFolderKeyPrefix(folderUid) + messageUid;
+    }
+    
+    /**
+     * Manifest entry describing a single cached message file.
+     */
+    static class Entry {
+        private final long folderUid;
+        private final String messageUid;
+        private long accountId;
+        private int size;
+        private long lastAccess;
+        private long[] attachmentUids;
+        private int attachmentSize;
+        private String[] blobNames;
+        
+        private Entry(long folderUid, String messageUid) {
+            this.folderUid = folderUid;
+            this.messageUid = messageUid;
+        }
+        
+        long getFolderUid() { return folderUid; }
+        String getMessageUid() { return messageUid; }
+        long getAccountId() { return accountId; }
+        int getSize() { return size; }
+        long getLastAccess() { return lastAccess; }
+        void setLastAccess(long lastAccess) { this.lastAccess = lastAccess; }
+        long[] getAttachmentUids() { return attachmentUids; }
+        int getAttachmentSize() { return attachmentSize; }
+        String[] getBlobNames() { return blobNames; }
+    }
+}
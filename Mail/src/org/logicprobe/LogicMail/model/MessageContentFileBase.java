@@ -31,6 +31,7 @@
 package org.logicprobe.LogicMail.model;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -52,14 +53,18 @@ import net.rim.device.api.util.DataBuffer;
  *  0                   1                   2                   3
  *  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
  * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
- * |L M - M S G|0|1|  Off  |   A   |   B   |   C   |   D   |   0   |
+ * |L M - M S G|0|V|  Off  |   A   |   B   |   C   |   D   |   0   |
  * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
  * | Message token UID (UTF)                               |  CRC  |
  * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-----------------------+-------+
  * | Part UID      |  Tag  |  Cmp  |  Len  | Content data  |  CRC  |
  * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-----------------------+-------+
  * |                            .  .  .                            |      
- * +---------------------------------------------------------------+
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-----------------------+-------+
+ * |       0       |   0   |  Idx  |  Len  | Index entries |  CRC  |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-----------------------+-------+
+ * |  Pos  |
+ * +-+-+-+-+
  * 
  * Notes:
  *     One tick mark represents one byte position.
@@ -68,6 +73,7 @@ import net.rim.device.api.util.DataBuffer;
  * </pre>
  * <table border=1>
  * <tr><td><b>Field</b></td><td><b>Type</b></td><td><b>Description</b></td></tr>
+ * <tr><td>V</td><td>byte</td><td>Format version, from '1' to '3'</td></tr>
  * <tr><td>Off</td><td>int</td><td>Offset of the message content array</td></tr>
  * <tr><td>A</td><td>int</td><td>Optional data</td></tr>
  * <tr><td>B</td><td>int</td><td>Optional data</td></tr>
@@ -79,21 +85,66 @@ import net.rim.device.api.util.DataBuffer;
  *  Hash of the part tag, MIME type, and MIME subtype, for matching when the
  *  part UID has changed or is unavailable.  This is set to <code>0</code> if
  *  the part tag is unset.</td></tr>
- * <tr><td>Cmp</td><td>int</td><td>Is the part complete? (-1, 0, or 1)</td></tr>
+ * <tr><td>Cmp</td><td>int</td><td>
+ *  Is the part complete? (-1, 0, or 1), or {@link #BLOB_MARKER} if the
+ *  content data is a blob reference</td></tr>
  * <tr><td>Len</td><td>int</td><td>Length of the raw data array</td></tr>
  * <tr><td>Content data</td><td>byte[]</td><td>Raw content data</td></tr>
  * <tr><td>CRC</td><td>int</td><td>CRC-32 checksum of just the content data array</td></tr>
+ * <tr><td>Idx</td><td>int</td><td>Index marker, {@link #INDEX_MARKER}</td></tr>
+ * <tr><td>Index entries</td><td>byte[]</td><td>
+ *  Entry count, followed by the part UID (long), tag hash (int), and offset
+ *  of the Cmp field (int) for each content section</td></tr>
+ * <tr><td>Pos</td><td>int</td><td>Offset of the index section</td></tr>
  * </table>
  * </p>
+ * <p>
+ * The index section and the trailing position are only present in version 2
+ * files, and are rewritten each time content is appended.  They allow the
+ * file to be opened without reading through all of its content sections.
+ * If they are missing or damaged, such as after an interrupted write, the
+ * content sections are scanned instead.  Version 1 files never contain an
+ * index, and remain version 1 when content is appended to them.
+ * </p>
+ * <p>
+ * Version 3 files may also contain blob references, which are content
+ * sections for attachment data that is kept in the
+ * {@link MessageContentBlobStore} so it can be shared between messages.
+ * The content data of a blob reference consists of the actual Cmp value
+ * (int) followed by the blob key.  Older files remain at their existing
+ * version when content is appended to them, and never contain blob
+ * references.
+ * </p>
  */
 abstract class MessageContentFileBase {
     protected final FileConnection fileConnection;
     protected final String messageUid;
     protected int contentStartOffset;
+    protected int contentEndOffset;
+    protected int fileVersion;
+    protected MessageContentBlobStore blobStore;
     private boolean fileOpened;
     
+    /** Version of the file format that includes an index section. */
+    protected static final int VERSION_INDEXED = 2;
+    
+    /** Value of the Cmp field that marks the index section. */
+    protected static final int INDEX_MARKER = 0x49445820;
+    
+    /** Length of each index entry: UID(8) + Tag(4) + Offset(4) */
+    protected static final int INDEX_ENTRY_LENGTH = 16;
+    
+    /** Version of the file format that may include blob references. */
+    protected static final int VERSION_BLOBS = 3;
+    
+    /** Value of the Cmp field that marks a blob reference. */
+    protected static final int BLOB_MARKER = 0x424C4F42;
+    
+    /** Length of blob reference data: Cmp(4) + Key */
+    protected static final int BLOB_REFERENCE_LENGTH = 4 + MessageContentBlobStore.KEY_LENGTH;
+    
     protected static final byte[] HEADER_TEMPLATE = {
-        'L',  'M',  '-',  'M',  'S',  'G',  '\0', '1',  // 8 bytes
+        'L',  'M',  '-',  'M',  'S',  'G',  '\0', '3',  // 8 bytes
         0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, // 8 bytes
         0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, // 8 bytes
         0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, // 8 bytes
@@ -104,12 +155,25 @@ abstract class MessageContentFileBase {
         this.messageUid = messageUid;
     }
     
+    /**
+     * Sets the blob store used for attachment content.
+     * If this is not set, blob references cannot be read or written.
+     *
+     * @param blobStore the blob store
+     */
+    void setBlobStore(MessageContentBlobStore blobStore) {
+        checkFileNotOpen();
+        this.blobStore = blobStore;
+    }
+    
     public void open() throws IOException {
         this.fileOpened = true;
     }
     
-    public void close() {
+    public void close() throws IOException {
         this.contentStartOffset = 0;
+        this.contentEndOffset = 0;
+        this.fileVersion = 0;
         this.fileOpened = false;
     }
     
@@ -148,9 +212,13 @@ abstract class MessageContentFileBase {
         
         byte[] fileHeader = new byte[32];
         input.read(fileHeader, 0, 32);
-        if(!Arrays.equals(fileHeader, 0, HEADER_TEMPLATE, 0, 8)) {
+        if(!Arrays.equals(fileHeader, 0, HEADER_TEMPLATE, 0, 7)) {
             throw new IOException("Invalid header: format block");
         }
+        int version = fileHeader[7] - '0';
+        if(version < 1 || version > VERSION_BLOBS) {
+            throw new IOException("Invalid header: unsupported version");
+        }
         
         int fileContentOffset = byteArrayToInt(fileHeader, 8);
         int[] customValues = new int[4];
@@ -174,9 +242,140 @@ abstract class MessageContentFileBase {
         }
         
         this.contentStartOffset = fileContentOffset;
+        this.fileVersion = version;
         return customValues;
     }
     
+    /**
+     * Reads the index section of a version 2 file, using the position stored
+     * at the end of the file.  On success, {@link #contentEndOffset} is set
+     * to the start of the index section.
+     *
+     * @param fileSize the size of the file
+     * @return the index entries, or <code>null</code> if the file has no valid index
+     */
+    protected byte[] readContentIndex(long fileSize) throws IOException {
+        // Smallest index: UID(8) + Tag(4) + Idx(4) + Len(4) + Count(4) + CRC(4) + Pos(4)
+        if(fileVersion < VERSION_INDEXED || fileSize < contentStartOffset + 32) {
+            return null;
+        }
+        
+        DataInputStream dataInput = fileConnection.openDataInputStream();
+        try {
+            skipFully(dataInput, fileSize - 4);
+            int indexOffset = dataInput.readInt();
+            if(indexOffset < contentStartOffset || indexOffset > fileSize - 32) {
+                return null;
+            }
+            dataInput.close();
+            
+            dataInput = fileConnection.openDataInputStream();
+            skipFully(dataInput, indexOffset + 12);
+            if(dataInput.readInt() != INDEX_MARKER) { return null; }
+            int indexLen = dataInput.readInt();
+            
+            // Cmp(4) + Len(4) + indexLen + CRC(4) + Pos(4)
+            if(indexLen < 4 || indexOffset + 12 + 8 + indexLen + 8 != fileSize) {
+                return null;
+            }
+            byte[] indexData = new byte[indexLen];
+            dataInput.readFully(indexData);
+            int fileCRC = dataInput.readInt();
+            if(CRC32.update(CRC32.INITIAL_VALUE, indexData) != fileCRC) {
+                return null;
+            }
+            
+            int count = byteArrayToInt(indexData, 0);
+            if(count < 0 || 4 + (count * INDEX_ENTRY_LENGTH) != indexLen) {
+                return null;
+            }
+            byte[] entries = new byte[indexLen - 4];
+            System.arraycopy(indexData, 4, entries, 0, entries.length);
+            
+            contentEndOffset = indexOffset;
+            return entries;
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            dataInput.close();
+        }
+    }
+    
+    /**
+     * Reads through the content sections of the file to build the index
+     * entries, stopping at the index section or at the first incomplete
+     * section.  On return, {@link #contentEndOffset} is set to the end of
+     * the last complete content section.
+     *
+     * @param fileSize the size of the file
+     * @return the index entries
+     */
+    protected byte[] scanContentIndex(long fileSize) throws IOException {
+        DataBuffer buf = new DataBuffer();
+        int offset = contentStartOffset;
+        
+        DataInputStream dataInput = fileConnection.openDataInputStream();
+        try {
+            skipFully(dataInput, offset);
+            while(offset < fileSize) {
+                long partUid = dataInput.readLong();
+                int partTagHash = dataInput.readInt();
+                int partComplete = dataInput.readInt();
+                if(partComplete == INDEX_MARKER) { break; }
+                int contentLen = dataInput.readInt();
+                
+                // UID(8) + Tag(4) + Cmp(4) + Len(4) + contentLen + CRC(4)
+                int nextOffset = offset + 20 + contentLen + 4;
+                if(contentLen < 0 || nextOffset > fileSize) { break; }
+                skipFully(dataInput, contentLen + 4); // Len + CRC
+                
+                // 12 = UID(8) + Tag(4)
+                buf.writeLong(partUid);
+                buf.writeInt(partTagHash);
+                buf.writeInt(offset + 12);
+                
+                offset = nextOffset;
+            }
+        } catch (EOFException e) {
+            // Incomplete content section at the end of the file
+        } finally {
+            dataInput.close();
+        }
+        
+        contentEndOffset = offset;
+        return buf.toArray();
+    }
+    
+    /**
+     * Extracts the blob key from the content data of a blob reference.
+     *
+     * @param reference the blob reference data
+     * @return the blob key
+     */
+    protected static byte[] getBlobKey(byte[] reference) {
+        byte[] key = new byte[MessageContentBlobStore.KEY_LENGTH];
+        System.arraycopy(reference, 4, key, 0, key.length);
+        return key;
+    }
+    
+    /**
+     * Skips exactly the requested number of bytes of an input stream.
+     *
+     * @param input the input stream
+     * @param count the number of bytes to skip
+     * @throws EOFException if the end of the stream is reached first
+     */
+    protected static void skipFully(InputStream input, long count) throws IOException {
+        while(count > 0) {
+            long skipped = input.skip(count);
+            if(skipped <= 0) {
+                if(input.read() == -1) { throw new EOFException(); }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+    
     protected static final byte[] intToByteArray(int value) {
         return new byte[] {
                 (byte)(value >>> 24),
@@ -31,6 +31,7 @@
 package org.logicprobe.LogicMail.model;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
@@ -45,6 +46,7 @@ import net.rim.device.api.util.InvertedOrderComparator;
 
 import org.logicprobe.LogicMail.AnalyticsDataCollector;
 import org.logicprobe.LogicMail.AppInfo;
+import org.logicprobe.LogicMail.conf.AccountConfig;
 import org.logicprobe.LogicMail.conf.GlobalConfig;
 import org.logicprobe.LogicMail.conf.MailSettings;
 import org.logicprobe.LogicMail.conf.MailSettingsEvent;
@@ -55,6 +57,8 @@ import org.logicprobe.LogicMail.message.MimeMessageContent;
 import org.logicprobe.LogicMail.message.MimeMessagePart;
 import org.logicprobe.LogicMail.util.FilenameEncoder;
 import org.logicprobe.LogicMail.util.StringParser;
+import org.logicprobe.LogicMail.util.ThreadQueue;
+import org.logicprobe.LogicMail.util.TimerWheel;
 
 /**
  * Front-end for reading and writing message content from local file storage.
@@ -68,10 +72,30 @@ public class MessageContentFileManager {
     private static String MSG_SUFFIX = ".msg";
     private static String MSG_FILTER = "*.msg";
     private static String ALL_FILTER = "*";
+    private static String TEMP_SUFFIX = ".tmp";
+    private static String BLOB_PREFIX = "blobs/";
+    
+    /** Delay before checking the cache size after content is added. */
+    private static final long MAINTENANCE_DELAY = 5000;
+    
+    private static final long BYTES_PER_MB = 1024 * 1024;
     
     /** Map of FolderTreeItems to sets of known message UIDs within them. */
     private final Hashtable folderMessageUidCache = new Hashtable();
     
+    /** Sizes and access times of the cached message files. */
+    private MessageContentCacheManifest manifest;
+    
+    /** Shared attachment content referenced by the cached message files. */
+    private MessageContentBlobStore blobStore;
+    
+    private final ThreadQueue maintenanceQueue = new ThreadQueue();
+    private TimerWheel.Timeout maintenanceTimeout;
+    
+    private int evictedFileCount;
+    private int strippedFileCount;
+    private long bytesFreed;
+    
     /**
      * Instantiates a new mail file manager.
      */
@@ -84,6 +108,7 @@ public class MessageContentFileManager {
                 if((e.getGlobalChange() & GlobalConfig.CHANGE_TYPE_DATA) != 0) {
                     refreshConfiguration();
                 }
+                scheduleMaintenance();
             }
         });
 
@@ -109,6 +134,9 @@ public class MessageContentFileManager {
         String localDataLocation = mailSettings.getGlobalConfig().getLocalDataLocation();
         if(localDataLocation == null) {
             cacheUrl = null;
+            manifest = null;
+            blobStore = null;
+            folderMessageUidCache.clear();
             return;
         }
         String newCacheUrl = localDataLocation + CACHE_PREFIX;
@@ -127,6 +155,19 @@ public class MessageContentFileManager {
                 }
                 fileConnection.close();
                 cacheUrl = newCacheUrl;
+                
+                manifest = new MessageContentCacheManifest(cacheUrl);
+                manifest.load();
+                
+                // Count the references to each blob from the manifest
+                blobStore = new MessageContentBlobStore(cacheUrl + BLOB_PREFIX);
+                blobStore.open();
+                Enumeration en = manifest.getEntries();
+                while(en.hasMoreElements()) {
+                    blobStore.addReferences(
+                            ((MessageContentCacheManifest.Entry)en.nextElement()).getBlobNames());
+                }
+                blobStore.deleteUnreferenced();
             } catch (IOException e) {
                 EventLogger.logEvent(AppInfo.GUID,
                         ("Unable to open cache: " + newCacheUrl
@@ -138,6 +179,8 @@ public class MessageContentFileManager {
             }
         }
         if(cacheUrl == null) {
+            manifest = null;
+            blobStore = null;
             folderMessageUidCache.clear();
         }
     }
@@ -150,7 +193,39 @@ public class MessageContentFileManager {
      * @return true, if the message exists in the cache
      */
     public synchronized boolean messageContentExists(FolderTreeItem folder, MessageToken messageToken) {
-        if(cacheUrl == null) { return false; }
+        Hashtable messageUidSet = getMessageUidSet(folder);
+        if(messageUidSet == null) { return false; }
+        return messageUidSet.containsKey(messageToken.getMessageUid());
+    }
+    
+    /**
+     * Check whether cached message content exists for a set of messages
+     * within the same folder.
+     *
+     * @param folder the folder that the messages are stored within
+     * @param messageTokens the tokens for the messages to check for
+     * @return array with an element for each token, which is true if that
+     *   message exists in the cache
+     */
+    public synchronized boolean[] messageContentExists(FolderTreeItem folder, MessageToken[] messageTokens) {
+        boolean[] result = new boolean[messageTokens.length];
+        Hashtable messageUidSet = getMessageUidSet(folder);
+        if(messageUidSet == null) { return result; }
+        for(int i=0; i<messageTokens.length; i++) {
+            result[i] = messageUidSet.containsKey(messageTokens[i].getMessageUid());
+        }
+        return result;
+    }
+    
+    /**
+     * Gets the set of message UIDs that have cached content within a folder,
+     * loading it from the file system if necessary.
+     *
+     * @param folder the folder to get the message UIDs for
+     * @return the message UID set, or null if it could not be loaded
+     */
+    private Hashtable getMessageUidSet(FolderTreeItem folder) {
+        if(cacheUrl == null) { return null; }
         Hashtable messageUidSet = (Hashtable)folderMessageUidCache.get(folder);
         if(messageUidSet == null) {
             try {
@@ -163,9 +238,9 @@ public class MessageContentFileManager {
                     }
                 }
                 folderMessageUidCache.put(folder, messageUidSet);
-            } catch (IOException e) { return false; }
+            } catch (IOException e) { return null; }
         }
-        return messageUidSet.containsKey(messageToken.getMessageUid());
+        return messageUidSet;
     }
     
     /**
@@ -210,6 +285,7 @@ public class MessageContentFileManager {
             fileConnection = (FileConnection)Connector.open(fileUrl);
             if(fileConnection.exists()) {
                 MessageContentFileReader reader = new MessageContentFileReader(fileConnection, messageToken.getMessageUid());
+                reader.setBlobStore(blobStore);
                 reader.open();
                 
                 // Read out the custom values from the header
@@ -218,14 +294,20 @@ public class MessageContentFileManager {
                     customValues[i] = fileCustomValues[i];
                 }
                 
-                for(int i=0; i<messageParts.length; i++) {
-                    MimeMessageContent content = reader.getContent(messageParts[i]);
-                    if(content != null) {
-                        loadedContent.addElement(content);
+                MimeMessageContent[] content = reader.getContent(messageParts);
+                for(int i=0; i<content.length; i++) {
+                    if(content[i] != null) {
+                        loadedContent.addElement(content[i]);
                     }
                 }
                 
                 reader.close();
+                
+                // Note the access, so recently read messages are evicted last
+                if(!manifest.touch(folder.getUniqueId(), messageToken.getMessageUid())) {
+                    manifest.put(folder.getUniqueId(), messageToken.getMessageUid(),
+                            0, (int)fileConnection.fileSize(), null, 0, null);
+                }
             }
         } catch (Exception e) {
             if(fileUrl != null) {
@@ -265,16 +347,18 @@ public class MessageContentFileManager {
      * @param messageToken the token for the message
      * @param content the content to be added to the cache
      * @param customValues array of 4 <code>int</code> values for the file header
+     * @param accountConfig the account that the message belongs to
      */
     public synchronized void putCompleteMessageContent(
             FolderTreeItem folder,
             MessageToken messageToken,
             MimeMessageContent[] content,
-            int[] customValues) {
+            int[] customValues,
+            AccountConfig accountConfig) {
         if(customValues == null || customValues.length != 4) {
             throw new IllegalArgumentException();
         }
-        putMessageContentImpl(folder, messageToken, content, false, customValues);
+        putMessageContentImpl(folder, messageToken, content, false, customValues, accountConfig);
     }
     
     /**
@@ -285,12 +369,14 @@ public class MessageContentFileManager {
      * @param folder the folder that the message is stored within
      * @param messageToken the token for the message
      * @param content the content to be added to the cache
+     * @param accountConfig the account that the message belongs to
      */
     public synchronized void putMessageContent(
             FolderTreeItem folder,
             MessageToken messageToken,
-            MimeMessageContent[] content) {
-        putMessageContentImpl(folder, messageToken, content, true, null);
+            MimeMessageContent[] content,
+            AccountConfig accountConfig) {
+        putMessageContentImpl(folder, messageToken, content, true, null, accountConfig);
     }
     
     private void putMessageContentImpl(
@@ -298,7 +384,8 @@ public class MessageContentFileManager {
             MessageToken messageToken,
             MimeMessageContent[] content,
             boolean append,
-            int[] customValues) {
+            int[] customValues,
+            AccountConfig accountConfig) {
         
         if(cacheUrl == null) { return; }
 
@@ -315,9 +402,14 @@ public class MessageContentFileManager {
             fileConnection = (FileConnection)Connector.open(fileUrl);
             
             // Delete existing file if append behavior is undesired
-            if(!append && fileConnection.exists()) { fileConnection.delete(); }
+            MessageContentCacheManifest.Entry replacedEntry = null;
+            if(!append) {
+                if(fileConnection.exists()) { fileConnection.delete(); }
+                replacedEntry = manifest.get(folder.getUniqueId(), messageToken.getMessageUid());
+            }
             
             MessageContentFileWriter writer = new MessageContentFileWriter(fileConnection, messageToken.getMessageUid());
+            writer.setBlobStore(blobStore);
             if(customValues != null) {
                 writer.setCustomValues(customValues);
             }
@@ -330,6 +422,17 @@ public class MessageContentFileManager {
             }
             
             writer.close();
+            
+            // Reference any blobs written by this file before releasing
+            // those from the file it replaced, so shared blobs are kept
+            String[] blobNames = writer.getBlobNames();
+            blobStore.addReferences(blobNames);
+            if(replacedEntry != null) {
+                blobStore.releaseReferences(replacedEntry.getBlobNames());
+            }
+            
+            updateManifest(folder, messageToken, content, append,
+                    (int)fileConnection.fileSize(), blobNames, accountConfig);
 
             // Make sure we add the existence of this message to the UID cache
             Hashtable messageUidSet = (Hashtable)folderMessageUidCache.get(folder);
@@ -356,6 +459,184 @@ public class MessageContentFileManager {
                 try { fileConnection.close(); } catch (Exception e) { }
             }
         }
+        
+        scheduleMaintenance();
+    }
+    
+    /**
+     * Opens a stream for the decoded content of a single message part, so
+     * it can be written into the cache as it is fetched instead of being
+     * collected in memory first.  The data goes straight into the blob
+     * store, and is only added to the message file once
+     * {@link #commitPartContent(OutputStream)} is called, so the cache is not
+     * locked while the content is being fetched.
+     *
+     * @param folder the folder that the message is stored within
+     * @param messageToken the token for the message
+     * @param part the message part the content belongs to
+     * @param accountConfig the account that the message belongs to
+     * @return the stream, or <code>null</code> if there is no cache
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public OutputStream openPartContent(
+            FolderTreeItem folder,
+            MessageToken messageToken,
+            MimeMessagePart part,
+            AccountConfig accountConfig) throws IOException {
+        MessageContentBlobStore currentBlobStore;
+        synchronized(this) {
+            if(cacheUrl == null || blobStore == null) { return null; }
+            currentBlobStore = blobStore;
+        }
+        return new PartContentStream(
+                folder, messageToken, part, accountConfig,
+                currentBlobStore, currentBlobStore.openOutputStream());
+    }
+    
+    /**
+     * Adds the content written to a stream from
+     * {@link #openPartContent(FolderTreeItem, MessageToken, MimeMessagePart, AccountConfig)}
+     * to the cached message file, and loads it back as a content object.
+     *
+     * @param output the stream the content was written to
+     * @return the loaded content, or <code>null</code> if it could not be loaded
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public synchronized MimeMessageContent commitPartContent(OutputStream output) throws IOException {
+        PartContentStream stream = (PartContentStream)output;
+        
+        // The cache may have moved while the content was being written
+        if(cacheUrl == null || stream.blobStore != blobStore) {
+            stream.blobOutput.abort();
+            return null;
+        }
+        
+        // Hold a reference to the blob until the message file refers to it,
+        // so it is deleted again if the message file cannot be written
+        byte[] key = stream.blobOutput.commit();
+        String[] streamedBlobNames = new String[] { MessageContentBlobStore.getName(key) };
+        blobStore.addReferences(streamedBlobNames);
+        
+        MimeMessageContent[] content;
+        FileConnection fileConnection = null;
+        try {
+            fileConnection = getFolderFileConnection(stream.folder);
+            String fileUrl = getMessageFileUrl(fileConnection.getURL(), stream.messageToken);
+            fileConnection.close();
+            
+            fileConnection = (FileConnection)Connector.open(fileUrl);
+            MessageContentFileWriter writer = new MessageContentFileWriter(
+                    fileConnection, stream.messageToken.getMessageUid());
+            writer.setBlobStore(blobStore);
+            writer.open();
+            try {
+                writer.appendBlobReference(stream.part, MimeMessageContent.PART_COMPLETE, key);
+            } finally {
+                writer.close();
+            }
+            String[] blobNames = writer.getBlobNames();
+            blobStore.addReferences(blobNames);
+            int fileSize = (int)fileConnection.fileSize();
+            
+            content = getMessageContent(stream.folder, stream.messageToken,
+                    new MimeMessagePart[] { stream.part });
+            updateManifest(stream.folder, stream.messageToken, content, true,
+                    fileSize, blobNames, stream.accountConfig);
+        } finally {
+            blobStore.releaseReferences(streamedBlobNames);
+            if(fileConnection != null) {
+                try { fileConnection.close(); } catch (Exception e) { }
+            }
+        }
+        
+        Hashtable messageUidSet = (Hashtable)folderMessageUidCache.get(stream.folder);
+        if(messageUidSet == null) {
+            messageUidSet = new Hashtable();
+            folderMessageUidCache.put(stream.folder, messageUidSet);
+        }
+        messageUidSet.put(stream.messageToken.getMessageUid(), Boolean.TRUE);
+        
+        scheduleMaintenance();
+        return (content.length > 0) ? content[0] : null;
+    }
+    
+    /**
+     * Discards the content written to a stream from
+     * {@link #openPartContent(FolderTreeItem, MessageToken, MimeMessagePart, AccountConfig)}.
+     *
+     * @param output the stream the content was written to
+     */
+    public void abortPartContent(OutputStream output) {
+        ((PartContentStream)output).blobOutput.abort();
+    }
+    
+    /**
+     * Records the size of a newly written message file in the manifest, along
+     * with the parts of it that are attachments rather than message text.
+     */
+    private void updateManifest(
+            FolderTreeItem folder,
+            MessageToken messageToken,
+            MimeMessageContent[] content,
+            boolean append,
+            int fileSize,
+            String[] blobNames,
+            AccountConfig accountConfig) {
+        
+        long[] attachmentUids = null;
+        int attachmentSize = 0;
+        
+        MessageContentCacheManifest.Entry existingEntry =
+            manifest.get(folder.getUniqueId(), messageToken.getMessageUid());
+        if(append && existingEntry != null) {
+            attachmentUids = existingEntry.getAttachmentUids();
+            attachmentSize = existingEntry.getAttachmentSize();
+            blobNames = concatBlobNames(existingEntry.getBlobNames(), blobNames);
+        }
+        
+        for(int i=0; i<content.length; i++) {
+            MimeMessagePart part = content[i].getMessagePart();
+            if("text".equalsIgnoreCase(part.getMimeType())) { continue; }
+            
+            int count = (attachmentUids != null) ? attachmentUids.length : 0;
+            long[] newUids = new long[count + 1];
+            if(count > 0) {
+                System.arraycopy(attachmentUids, 0, newUids, 0, count);
+            }
+            newUids[count] = part.getUniqueId();
+            attachmentUids = newUids;
+            attachmentSize += content[i].getRawData().length;
+        }
+        
+        // Shared blobs are counted separately, so they are only counted once
+        long accountId = (accountConfig != null) ? accountConfig.getUniqueId() : 0;
+        manifest.put(folder.getUniqueId(), messageToken.getMessageUid(),
+                accountId, fileSize, attachmentUids, attachmentSize, blobNames);
+    }
+    
+    private static String[] concatBlobNames(String[] names1, String[] names2) {
+        if(names1 == null) { return names2; }
+        if(names2 == null) { return names1; }
+        String[] result = new String[names1.length + names2.length];
+        System.arraycopy(names1, 0, result, 0, names1.length);
+        System.arraycopy(names2, 0, result, names1.length, names2.length);
+        return result;
+    }
+    
+    /**
+     * Removes the manifest entry for a cached message, releasing any blobs
+     * that the message file refers to.
+     *
+     * @return the total length of the blob files that were deleted
+     */
+    private int removeManifestEntry(long folderUid, String messageUid) {
+        MessageContentCacheManifest.Entry entry = manifest.remove(folderUid, messageUid);
+        if(entry != null) {
+            return blobStore.releaseReferences(entry.getBlobNames());
+        }
+        else {
+            return 0;
+        }
     }
     
     private String[] getMessageFiles(FolderTreeItem folder) throws IOException {
@@ -427,6 +708,7 @@ public class MessageContentFileManager {
                 if(messageUidSet != null) {
                     messageUidSet.remove(messageTokens[i].getMessageUid());
                 }
+                removeManifestEntry(folder.getUniqueId(), messageTokens[i].getMessageUid());
             } catch (IOException exp) {
                 if (EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
                     EventLogger.logEvent(AppInfo.GUID,
@@ -435,6 +717,7 @@ public class MessageContentFileManager {
                 }
             }
         }
+        scheduleMaintenance();
     }
 
     /**
@@ -464,6 +747,7 @@ public class MessageContentFileManager {
             if(messageUidSet != null) {
                 messageUidSet.remove(messageToken.getMessageUid());
             }
+            removeManifestEntry(folder.getUniqueId(), messageToken.getMessageUid());
         } catch (IOException exp) {
             if (EventLogger.getMinimumLevel() >= EventLogger.DEBUG_INFO) {
                 EventLogger.logEvent(AppInfo.GUID,
@@ -471,6 +755,7 @@ public class MessageContentFileManager {
                         EventLogger.DEBUG_INFO);
             }
         }
+        scheduleMaintenance();
     }
     
     /**
@@ -483,6 +768,12 @@ public class MessageContentFileManager {
         if(cacheUrl == null) { return false; }
 
         folderMessageUidCache.remove(folder);
+        MessageContentCacheManifest.Entry[] removedEntries =
+            manifest.removeFolder(folder.getUniqueId());
+        for(int i=0; i<removedEntries.length; i++) {
+            blobStore.releaseReferences(removedEntries[i].getBlobNames());
+        }
+        scheduleMaintenance();
         
         FileConnection fileConnection = null;
         try {
@@ -503,6 +794,318 @@ public class MessageContentFileManager {
         }
     }
     
+    /**
+     * Gets the number of message files evicted from the cache, in their
+     * entirety, since the application was started.
+     *
+     * @return the evicted file count
+     */
+    public synchronized int getEvictedFileCount() {
+        return evictedFileCount;
+    }
+    
+    /**
+     * Gets the number of message files that have had their attachment content
+     * evicted from the cache, since the application was started.
+     *
+     * @return the stripped file count
+     */
+    public synchronized int getStrippedFileCount() {
+        return strippedFileCount;
+    }
+    
+    /**
+     * Gets the number of bytes freed by cache eviction, since the application
+     * was started.
+     *
+     * @return the number of bytes freed
+     */
+    public synchronized long getBytesFreed() {
+        return bytesFreed;
+    }
+    
+    /**
+     * Schedule a background check of the cache size against the configured
+     * limits.  Multiple requests made within a short delay are combined into
+     * a single check.
+     */
+    private void scheduleMaintenance() {
+        synchronized(maintenanceQueue) {
+            if(maintenanceTimeout != null) { return; }
+            maintenanceTimeout = TimerWheel.getInstance().schedule(new Runnable() {
+                public void run() {
+                    synchronized(maintenanceQueue) {
+                        maintenanceTimeout = null;
+                    }
+                    maintenanceQueue.invokeLater(new Runnable() {
+                        public void run() {
+                            evictIfNecessary();
+                        }
+                    });
+                }
+            }, MAINTENANCE_DELAY);
+        }
+    }
+    
+    /**
+     * Evicts the least recently used content from the cache until it fits
+     * within the configured account and global limits, and saves the
+     * manifest.
+     * <p>
+     * Attachment content is evicted first, leaving the message text in
+     * place, and entire message files are only evicted if that is not
+     * sufficient.
+     * </p>
+     */
+    private synchronized void evictIfNecessary() {
+        if(cacheUrl == null) { return; }
+        
+        int previousEvictedCount = evictedFileCount;
+        int previousStrippedCount = strippedFileCount;
+        long previousBytesFreed = bytesFreed;
+        
+        int numAccounts = mailSettings.getNumAccounts();
+        for(int i=0; i<numAccounts; i++) {
+            AccountConfig accountConfig = mailSettings.getAccountConfig(i);
+            int limit = accountConfig.getContentCacheLimit();
+            if(limit > 0) {
+                evictEntries(accountConfig.getUniqueId(), limit * BYTES_PER_MB);
+            }
+        }
+        
+        int globalLimit = mailSettings.getGlobalConfig().getContentCacheLimit();
+        if(globalLimit > 0) {
+            evictEntries(-1, globalLimit * BYTES_PER_MB);
+        }
+        
+        if(bytesFreed > previousBytesFreed) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("Evicted message cache content: files="
+                            + (evictedFileCount - previousEvictedCount)
+                            + ", stripped=" + (strippedFileCount - previousStrippedCount)
+                            + ", freed=" + (bytesFreed - previousBytesFreed)).getBytes(),
+                    EventLogger.INFORMATION);
+        }
+        
+        saveManifest();
+    }
+    
+    /**
+     * Immediately save any pending changes to the cache manifest, without
+     * waiting for the next background check.  This method is intended to be
+     * called before the application exits.
+     */
+    public void flush() {
+        synchronized(maintenanceQueue) {
+            if(maintenanceTimeout != null) {
+                maintenanceTimeout.cancel();
+                maintenanceTimeout = null;
+            }
+        }
+        saveManifest();
+    }
+    
+    private synchronized void saveManifest() {
+        if(manifest == null) { return; }
+        try {
+            manifest.save();
+        } catch (IOException e) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("Unable to save cache manifest: " + e.getMessage()).getBytes(),
+                    EventLogger.ERROR);
+        }
+    }
+    
+    private void evictEntries(long accountId, long limit) {
+        long total = manifest.getTotalSize(accountId);
+        if(total <= limit) { return; }
+        
+        MessageContentCacheManifest.Entry[] entries = manifest.getEntriesByAccess(accountId);
+        
+        // A shared blob only leaves the total once none of the account's
+        // remaining messages refer to it
+        Hashtable blobReferences = manifest.getBlobReferences(accountId);
+        
+        // Strip attachments from the least recently used messages
+        for(int i=0; i<entries.length && total > limit; i++) {
+            if(entries[i].getAttachmentUids() != null) {
+                total -= stripAttachments(entries[i], blobReferences);
+            }
+        }
+        
+        // Evict the least recently used messages entirely
+        for(int i=0; i<entries.length && total > limit; i++) {
+            total -= evictEntry(entries[i], blobReferences);
+        }
+    }
+    
+    /**
+     * Adjusts the reference counts used while evicting entries.
+     *
+     * @param blobReferences map of blob names to reference counts
+     * @param names the blob names, which may be <code>null</code>
+     * @param delta the amount to add to each reference count
+     * @return the total length of the blobs that are no longer referenced
+     */
+    private static int adjustBlobReferences(Hashtable blobReferences, String[] names, int delta) {
+        if(names == null) { return 0; }
+        int length = 0;
+        for(int i=0; i<names.length; i++) {
+            Integer count = (Integer)blobReferences.get(names[i]);
+            int newCount = ((count != null) ? count.intValue() : 0) + delta;
+            if(newCount > 0) {
+                blobReferences.put(names[i], new Integer(newCount));
+            }
+            else if(count != null) {
+                blobReferences.remove(names[i]);
+                length += MessageContentBlobStore.getLength(names[i]);
+            }
+        }
+        return length;
+    }
+    
+    /**
+     * Rewrites a message file without its attachment content.
+     * The message is marked as incomplete, so the attachments will be
+     * fetched again if they are needed.
+     *
+     * @param entry the manifest entry for the message file
+     * @param blobReferences the blob reference counts for the account
+     * @return the amount the account's total size was reduced by
+     */
+    private int stripAttachments(MessageContentCacheManifest.Entry entry, Hashtable blobReferences) {
+        String fileName = FilenameEncoder.encode(entry.getMessageUid()) + MSG_SUFFIX;
+        String folderUrl = getFolderUrl(entry.getFolderUid());
+        FileConnection fileConnection = null;
+        FileConnection tempConnection = null;
+        try {
+            fileConnection = (FileConnection)Connector.open(folderUrl + fileName);
+            if(!fileConnection.exists()) {
+                bytesFreed += removeManifestEntry(entry.getFolderUid(), entry.getMessageUid());
+                return entry.getSize()
+                    + adjustBlobReferences(blobReferences, entry.getBlobNames(), -1);
+            }
+            int oldSize = (int)fileConnection.fileSize();
+            
+            tempConnection = (FileConnection)Connector.open(folderUrl + fileName + TEMP_SUFFIX);
+            if(tempConnection.exists()) {
+                tempConnection.delete();
+            }
+            
+            MessageContentFileReader reader = new MessageContentFileReader(fileConnection, entry.getMessageUid());
+            reader.open();
+            int[] customValues = new int[4];
+            System.arraycopy(reader.getCustomValues(), 0, customValues, 0, 4);
+            customValues[0] = 0;
+            
+            MessageContentFileWriter writer = new MessageContentFileWriter(tempConnection, entry.getMessageUid());
+            writer.setCustomValues(customValues);
+            writer.open();
+            try {
+                reader.copyContent(writer, entry.getAttachmentUids());
+            } finally {
+                writer.close();
+                reader.close();
+            }
+            String[] blobNames = writer.getBlobNames();
+            int newSize = (int)tempConnection.fileSize();
+            
+            fileConnection.delete();
+            tempConnection.rename(fileName);
+            
+            // Any remaining blob references were copied from the original,
+            // so only blobs that were stripped can be deleted
+            blobStore.addReferences(blobNames);
+            int blobBytesFreed = blobStore.releaseReferences(entry.getBlobNames());
+            adjustBlobReferences(blobReferences, blobNames, 1);
+            int blobBytesReleased =
+                adjustBlobReferences(blobReferences, entry.getBlobNames(), -1);
+            
+            MessageContentCacheManifest.Entry newEntry = manifest.put(
+                    entry.getFolderUid(), entry.getMessageUid(),
+                    entry.getAccountId(), newSize, null, 0, blobNames);
+            newEntry.setLastAccess(entry.getLastAccess());
+            
+            strippedFileCount++;
+            bytesFreed += oldSize - newSize + blobBytesFreed;
+            return oldSize - newSize + blobBytesReleased;
+        } catch (Exception e) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("Unable to evict attachments from cache: " + fileName
+                        + "\r\n" + e.getMessage()).getBytes(),
+                    EventLogger.WARNING);
+            try {
+                if(tempConnection != null && tempConnection.exists()) {
+                    tempConnection.delete();
+                }
+            } catch (IOException exp) { }
+            return 0;
+        } finally {
+            if(fileConnection != null) {
+                try { fileConnection.close(); } catch (Exception e) { }
+            }
+            if(tempConnection != null) {
+                try { tempConnection.close(); } catch (Exception e) { }
+            }
+        }
+    }
+    
+    /**
+     * Deletes a message file from the cache.
+     *
+     * @param entry the manifest entry for the message file
+     * @param blobReferences the blob reference counts for the account
+     * @return the amount the account's total size was reduced by
+     */
+    private int evictEntry(MessageContentCacheManifest.Entry entry, Hashtable blobReferences) {
+        MessageContentCacheManifest.Entry currentEntry =
+            manifest.get(entry.getFolderUid(), entry.getMessageUid());
+        if(currentEntry == null) { return 0; }
+        
+        String fileUrl = getFolderUrl(entry.getFolderUid())
+            + FilenameEncoder.encode(entry.getMessageUid()) + MSG_SUFFIX;
+        boolean deleted = false;
+        try {
+            FileConnection fileConnection = (FileConnection)Connector.open(fileUrl);
+            try {
+                if(fileConnection.exists()) {
+                    fileConnection.delete();
+                    deleted = true;
+                }
+            } finally {
+                fileConnection.close();
+            }
+        } catch (IOException e) {
+            EventLogger.logEvent(AppInfo.GUID,
+                    ("Unable to evict message from cache: " + fileUrl
+                        + "\r\n" + e.getMessage()).getBytes(),
+                    EventLogger.WARNING);
+            return 0;
+        }
+        
+        // Shared blobs are only deleted along with their last reference
+        bytesFreed += removeManifestEntry(entry.getFolderUid(), entry.getMessageUid());
+        Enumeration en = folderMessageUidCache.keys();
+        while(en.hasMoreElements()) {
+            FolderTreeItem folder = (FolderTreeItem)en.nextElement();
+            if(folder.getUniqueId() == entry.getFolderUid()) {
+                ((Hashtable)folderMessageUidCache.get(folder)).remove(entry.getMessageUid());
+            }
+        }
+        
+        // Files that were already missing only free up space in the manifest
+        if(deleted) {
+            evictedFileCount++;
+            bytesFreed += currentEntry.getSize();
+        }
+        return currentEntry.getSize()
+            + adjustBlobReferences(blobReferences, currentEntry.getBlobNames(), -1);
+    }
+    
+    private String getFolderUrl(long folderUid) {
+        return cacheUrl + StringParser.toHexString(folderUid).toLowerCase() + '/';
+    }
+    
     private static void deleteTree(FileConnection fileConnection) throws IOException {
         if(!fileConnection.canWrite()) {
             fileConnection.setWritable(true);
@@ -532,4 +1135,44 @@ public class MessageContentFileManager {
             return null;
         }
     }
+    
+    /**
+     * Stream for the content of a single message part, which is written
+     * into the blob store until it is committed to a message file.
+     */
+    private static class PartContentStream extends OutputStream {
+        private final FolderTreeItem folder;
+        private final MessageToken messageToken;
+        private final MimeMessagePart part;
+        private final AccountConfig accountConfig;
+        private final MessageContentBlobStore blobStore;
+        private final MessageContentBlobStore.BlobOutputStream blobOutput;
+        
+        public PartContentStream(
+                FolderTreeItem folder,
+                MessageToken messageToken,
+                MimeMessagePart part,
+                AccountConfig accountConfig,
+                MessageContentBlobStore blobStore,
+                MessageContentBlobStore.BlobOutputStream blobOutput) {
+            this.folder = folder;
+            this.messageToken = messageToken;
+            this.part = part;
+            this.accountConfig = accountConfig;
+            this.blobStore = blobStore;
+            this.blobOutput = blobOutput;
+        }
+        
+        public void write(int b) throws IOException {
+            blobOutput.write(b);
+        }
+        
+        public void write(byte[] b, int off, int len) throws IOException {
+            blobOutput.write(b, off, len);
+        }
+        
+        public void close() throws IOException {
+            blobOutput.close();
+        }
+    }
 }
@@ -33,6 +33,7 @@ package org.logicprobe.LogicMail.model;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Vector;
 
 import javax.microedition.io.file.FileConnection;
 
@@ -56,6 +57,7 @@ public class MessageContentFileReader extends MessageContentFileBase {
     private final LongIntHashtable contentUidMap = new LongIntHashtable();
     private final IntIntHashtable contentTagMap = new IntIntHashtable();
     private int[] customValues;
+    private byte[] indexEntries;
 
     /**
      * Instantiates a new message content file wrapper.
@@ -81,43 +83,43 @@ public class MessageContentFileReader extends MessageContentFileBase {
         // Read and validate the header
         customValues = validateHeader(input);
         
-        // Iterate over the file to build a map of content sections
-        buildContentMap(input, fileConnection.fileSize());
-        
         // Close the input stream
         input.close();
         
+        // Load the map of content sections from the index, if available,
+        // and otherwise iterate over the file to build it
+        long fileSize = fileConnection.fileSize();
+        indexEntries = readContentIndex(fileSize);
+        if(indexEntries == null) {
+            indexEntries = scanContentIndex(fileSize);
+        }
+        buildContentMap(indexEntries);
+        
         super.open();
     }
 
     public void close() {
         this.contentUidMap.clear();
         this.contentTagMap.clear();
-        super.close();
+        this.indexEntries = null;
+        try {
+            super.close();
+        } catch (IOException e) {
+            // Nothing is written when closing a reader
+        }
     }
     
-    private void buildContentMap(InputStream input, long fileSize) throws IOException {
-        int offset = contentStartOffset;
-
-        DataInputStream dataInput = new DataInputStream(input);
-        while(offset < fileSize) {
-            long partUid = dataInput.readLong();
-            int partTagHash = dataInput.readInt();
-            dataInput.skip(4); // Ignore the partComplete value here
-            int contentLen = dataInput.readInt();
-
-            // 12 = UID(8) + Tag(4)
-            int dataOffset = offset + 12;
-            
-            dataInput.skip(contentLen + 4); // Len + CRC
+    private void buildContentMap(byte[] indexEntries) {
+        for(int i=0; i<indexEntries.length; i+=INDEX_ENTRY_LENGTH) {
+            long partUid = ((long)byteArrayToInt(indexEntries, i) << 32)
+                | (byteArrayToInt(indexEntries, i + 4) & 0xFFFFFFFFL);
+            int partTagHash = byteArrayToInt(indexEntries, i + 8);
+            int dataOffset = byteArrayToInt(indexEntries, i + 12);
             
             contentUidMap.put(partUid, dataOffset);
             if(partTagHash != 0) {
                 contentTagMap.put(partTagHash, dataOffset);
             }
-            
-            // UID(8) + Tag(4) + Cmp(4) + Len(4) + contentLen + CRC(4)
-            offset += 20 + contentLen + 4;
         }
     }
     
@@ -160,41 +162,211 @@ public class MessageContentFileReader extends MessageContentFileBase {
      * @return the content, if available
      */
     public MimeMessageContent getContent(MimeMessagePart part) throws IOException, UnsupportedContentException {
+        return getContent(new MimeMessagePart[] { part })[0];
+    }
+    
+    /**
+     * Gets the content for the provided message parts.
+     * The content sections are read in a single forward pass over the file,
+     * skipping directly to the position of each one.
+     *
+     * @param parts the parts to get content for
+     * @return the content for each part, with <code>null</code> elements
+     *     for any parts that are not available
+     */
+    public MimeMessageContent[] getContent(MimeMessagePart[] parts) throws IOException, UnsupportedContentException {
         checkFileOpened();
         
-        int contentOffset = -1;
-        if(contentUidMap.containsKey(part.getUniqueId())) {
-            contentOffset = contentUidMap.get(part.getUniqueId());
-        }
-        else {
-            int tagHash = createPartTagHash(part);
-            if(contentTagMap.containsKey(tagHash)) {
-                contentOffset = contentTagMap.get(tagHash);
+        MimeMessageContent[] result = new MimeMessageContent[parts.length];
+        
+        // Find the offset of each part, and order the parts by offset
+        int[] contentOffsets = new int[parts.length];
+        int[] order = new int[parts.length];
+        int count = 0;
+        for(int i=0; i<parts.length; i++) {
+            int contentOffset = getContentOffset(parts[i]);
+            if(contentOffset == -1) { continue; }
+            contentOffsets[i] = contentOffset;
+            
+            int j = count++;
+            while(j > 0 && contentOffsets[order[j - 1]] > contentOffset) {
+                order[j] = order[j - 1];
+                j--;
             }
+            order[j] = i;
         }
-        if(contentOffset == -1) { return null; }
+        if(count == 0) { return result; }
         
         DataInputStream dataInput = fileConnection.openDataInputStream();
-        dataInput.skip(contentOffset);
-        
-        int partComplete = dataInput.readInt();
-        if(partComplete < -1 || partComplete > 1) { partComplete = 1; }
-        
-        int contentLen = dataInput.readInt();
-        byte[] data = new byte[contentLen];
-        dataInput.read(data);
-        int checksum = CRC32.update(CRC32.INITIAL_VALUE, data);
-        
-        int fileCRC = dataInput.readInt();
+        try {
+            long position = 0;
+            int lastOffset = -1;
+            int partComplete = 0;
+            byte[] data = null;
+            for(int i=0; i<count; i++) {
+                int index = order[i];
+                int contentOffset = contentOffsets[index];
+                
+                // Parts matching the same section share its data
+                if(contentOffset != lastOffset) {
+                    skipFully(dataInput, contentOffset - position);
+                    
+                    partComplete = dataInput.readInt();
+                    
+                    int contentLen = dataInput.readInt();
+                    data = new byte[contentLen];
+                    dataInput.readFully(data);
+                    int checksum = CRC32.update(CRC32.INITIAL_VALUE, data);
+                    
+                    int fileCRC = dataInput.readInt();
+                    if(checksum != fileCRC) {
+                        throw new IOException("Invalid content: checksum mismatch");
+                    }
+                    
+                    // Cmp(4) + Len(4) + contentLen + CRC(4)
+                    position = contentOffset + 8 + contentLen + 4;
+                    lastOffset = contentOffset;
+                    
+                    // Blob references are replaced with the shared data,
+                    // which is treated as unavailable if it cannot be loaded
+                    if(partComplete == BLOB_MARKER) {
+                        if(contentLen != BLOB_REFERENCE_LENGTH) {
+                            throw new IOException("Invalid content: blob reference");
+                        }
+                        partComplete = byteArrayToInt(data, 0);
+                        data = (blobStore != null) ? blobStore.load(getBlobKey(data)) : null;
+                    }
+                    if(partComplete < -1 || partComplete > 1) { partComplete = 1; }
+                }
+                if(data == null) { continue; }
+                
+                MimeMessageContent content = MimeMessageContentFactory.createContentRaw(parts[index], data);
+                content.setPartComplete(partComplete);
+                result[index] = content;
+            }
+        } finally {
+            dataInput.close();
+        }
+        return result;
+    }
+    
+    /**
+     * Copies the content sections of this file to another content file,
+     * leaving out the sections for any excluded message parts.
+     * Sections that have been superseded by later content for the same
+     * part are not copied.  Blob references are copied as-is, without
+     * adding any references to the blob store.
+     *
+     * @param writer the opened writer for the destination file
+     * @param excludedPartUids the unique IDs of the parts to leave out,
+     *     or <code>null</code> to copy all current sections
+     * @return the number of bytes of content data that were left out
+     */
+    int copyContent(MessageContentFileWriter writer, long[] excludedPartUids) throws IOException {
+        checkFileOpened();
         
-        dataInput.close();
+        int excludedBytes = 0;
+        DataInputStream dataInput = fileConnection.openDataInputStream();
+        try {
+            long position = 0;
+            for(int i=0; i<indexEntries.length; i+=INDEX_ENTRY_LENGTH) {
+                long partUid = ((long)byteArrayToInt(indexEntries, i) << 32)
+                    | (byteArrayToInt(indexEntries, i + 4) & 0xFFFFFFFFL);
+                int partTagHash = byteArrayToInt(indexEntries, i + 8);
+                int dataOffset = byteArrayToInt(indexEntries, i + 12);
+                
+                if(contentUidMap.get(partUid) != dataOffset || dataOffset < position) {
+                    continue;
+                }
+                
+                skipFully(dataInput, dataOffset - position);
+                int partComplete = dataInput.readInt();
+                int contentLen = dataInput.readInt();
+                position = dataOffset + 8;
+                
+                if(isPartExcluded(partUid, excludedPartUids)) {
+                    excludedBytes += contentLen;
+                    continue;
+                }
+                
+                byte[] data = new byte[contentLen];
+                dataInput.readFully(data);
+                int checksum = CRC32.update(CRC32.INITIAL_VALUE, data);
+                if(checksum != dataInput.readInt()) {
+                    throw new IOException("Invalid content: checksum mismatch");
+                }
+                position += contentLen + 4;
+                
+                writer.appendRawContent(partUid, partTagHash, partComplete, data);
+            }
+        } finally {
+            dataInput.close();
+        }
+        return excludedBytes;
+    }
+    
+    /**
+     * Gets the names of the blobs referenced by this file, including any
+     * references from sections that have been superseded.
+     *
+     * @return the blob names, or <code>null</code> if there are none
+     */
+    String[] getBlobNames() throws IOException {
+        checkFileOpened();
+        if(fileVersion < VERSION_BLOBS) { return null; }
         
-        if(checksum != fileCRC) {
-            throw new IOException("Invalid content: checksum mismatch");
+        Vector names = new Vector();
+        DataInputStream dataInput = fileConnection.openDataInputStream();
+        try {
+            long position = 0;
+            for(int i=0; i<indexEntries.length; i+=INDEX_ENTRY_LENGTH) {
+                int dataOffset = byteArrayToInt(indexEntries, i + 12);
+                if(dataOffset < position) { continue; }
+                
+                skipFully(dataInput, dataOffset - position);
+                int partComplete = dataInput.readInt();
+                int contentLen = dataInput.readInt();
+                position = dataOffset + 8;
+                if(partComplete != BLOB_MARKER || contentLen != BLOB_REFERENCE_LENGTH) {
+                    continue;
+                }
+                
+                byte[] data = new byte[contentLen];
+                dataInput.readFully(data);
+                if(CRC32.update(CRC32.INITIAL_VALUE, data) != dataInput.readInt()) {
+                    throw new IOException("Invalid content: checksum mismatch");
+                }
+                position += contentLen + 4;
+                names.addElement(MessageContentBlobStore.getName(getBlobKey(data)));
+            }
+        } finally {
+            dataInput.close();
         }
         
-        MimeMessageContent content = MimeMessageContentFactory.createContentRaw(part, data);
-        content.setPartComplete(partComplete);
-        return content;
+        if(names.isEmpty()) { return null; }
+        String[] result = new String[names.size()];
+        names.copyInto(result);
+        return result;
+    }
+    
+    private static boolean isPartExcluded(long partUid, long[] excludedPartUids) {
+        if(excludedPartUids == null) { return false; }
+        for(int i=0; i<excludedPartUids.length; i++) {
+            if(excludedPartUids[i] == partUid) { return true; }
+        }
+        return false;
+    }
+    
+    private int getContentOffset(MimeMessagePart part) {
+        if(contentUidMap.containsKey(part.getUniqueId())) {
+            return contentUidMap.get(part.getUniqueId());
+        }
+        else {
+            int tagHash = createPartTagHash(part);
+            if(contentTagMap.containsKey(tagHash)) {
+                return contentTagMap.get(tagHash);
+            }
+        }
+        return -1;
     }
 }
@@ -33,6 +33,7 @@ package org.logicprobe.LogicMail.model;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Vector;
 
 import javax.microedition.io.file.FileConnection;
 
@@ -50,9 +51,17 @@ import net.rim.device.api.util.DataBuffer;
  * </p>
  */
 public class MessageContentFileWriter extends MessageContentFileBase {
-    private int contentEndOffset;
+    /** Minimum size of attachment content to be stored as a shared blob */
+    private static final int BLOB_THRESHOLD = 4096;
+    
     private int[] customValues;
     
+    /** Index entries for all content sections in the file */
+    private final DataBuffer indexEntries = new DataBuffer();
+    
+    /** Names of the blobs referenced by content written since opening */
+    private final Vector blobNames = new Vector();
+    
     /**
      * Instantiates a new message content file wrapper.
      *
@@ -86,6 +95,7 @@ public class MessageContentFileWriter extends MessageContentFileBase {
      */
     public void open() throws IOException {
         checkFileNotOpen();
+        blobNames.removeAllElements();
         if(fileConnection.exists()) {
             openExistingFile();
         }
@@ -97,9 +107,19 @@ public class MessageContentFileWriter extends MessageContentFileBase {
         super.open();
     }
 
-    public void close() {
-        this.contentEndOffset = 0;
-        super.close();
+    /**
+     * Close the file, writing the index section if the file format
+     * supports it.
+     */
+    public void close() throws IOException {
+        try {
+            if(isOpen() && fileVersion >= VERSION_INDEXED) {
+                writeContentIndex();
+            }
+        } finally {
+            indexEntries.reset();
+            super.close();
+        }
     }
     
     private void openExistingFile() throws IOException {
@@ -109,11 +129,26 @@ public class MessageContentFileWriter extends MessageContentFileBase {
         // Read and validate the header
         validateHeader(input);
         
-        // Skip over content sections to find the offset at the end of the file
-        contentEndOffset = (int)fileConnection.fileSize();
-        
         // Close the input stream
         input.close();
+        
+        long fileSize = fileConnection.fileSize();
+        if(fileVersion >= VERSION_INDEXED) {
+            // Load the existing index entries, so they can be rewritten along
+            // with the new ones, and strip the index section from the file
+            byte[] existingEntries = readContentIndex(fileSize);
+            if(existingEntries == null) {
+                existingEntries = scanContentIndex(fileSize);
+            }
+            indexEntries.write(existingEntries);
+            if(contentEndOffset < fileSize) {
+                fileConnection.truncate(contentEndOffset);
+            }
+        }
+        else {
+            // Older files have no index, so new content is simply appended
+            contentEndOffset = (int)fileSize;
+        }
     }
 
     private void openNewFile() throws IOException {
@@ -127,6 +162,7 @@ public class MessageContentFileWriter extends MessageContentFileBase {
         // Note the offset for the start of data
         contentStartOffset = headerData.length;
         contentEndOffset = contentStartOffset;
+        fileVersion = VERSION_BLOBS;
         
         // Close the input stream
         output.close();
@@ -161,31 +197,147 @@ public class MessageContentFileWriter extends MessageContentFileBase {
     public void appendContent(MimeMessageContent content) throws IOException {
         checkFileOpened();
         
+        MimeMessagePart part = content.getMessagePart();
+        byte[] contentData = content.getRawData();
+        
+        if(blobStore != null && fileVersion >= VERSION_BLOBS
+                && contentData.length >= BLOB_THRESHOLD
+                && !"text".equalsIgnoreCase(part.getMimeType())) {
+            // Store large attachment data as a shared blob, and only write
+            // a reference to it into this file
+            appendBlobReference(part, content.isPartComplete(), blobStore.store(contentData));
+        }
+        else {
+            appendRawContent(
+                    part.getUniqueId(),
+                    createPartTagHash(part),
+                    content.isPartComplete(),
+                    contentData);
+        }
+    }
+    
+    /**
+     * Append a content section that refers to a blob which has already been
+     * stored, such as content that was streamed into the blob store as it
+     * was fetched.  Older files cannot refer to blobs, so the blob data is
+     * copied into them instead.
+     *
+     * @param part the message part the content belongs to
+     * @param partComplete the part-complete value for the content
+     * @param key the key for the blob
+     */
+    void appendBlobReference(MimeMessagePart part, int partComplete, byte[] key) throws IOException {
+        checkFileOpened();
+        if(fileVersion < VERSION_BLOBS) {
+            byte[] contentData = (blobStore != null) ? blobStore.load(key) : null;
+            if(contentData == null) {
+                throw new IOException("Unable to load blob");
+            }
+            appendRawContent(part.getUniqueId(), createPartTagHash(part), partComplete, contentData);
+            return;
+        }
+        
+        byte[] reference = new byte[BLOB_REFERENCE_LENGTH];
+        insertBytes(reference, intToByteArray(partComplete), 0, 4);
+        System.arraycopy(key, 0, reference, 4, key.length);
+        
+        appendRawContent(
+                part.getUniqueId(),
+                createPartTagHash(part),
+                BLOB_MARKER,
+                reference);
+    }
+    
+    /**
+     * Gets the names of the blobs referenced by the content that has been
+     * written since the file was opened, including any blob references
+     * copied from another file.
+     *
+     * @return the blob names, or <code>null</code> if there are none
+     */
+    String[] getBlobNames() {
+        if(blobNames.isEmpty()) { return null; }
+        String[] result = new String[blobNames.size()];
+        blobNames.copyInto(result);
+        return result;
+    }
+    
+    /**
+     * Append a content section using values that have already been
+     * extracted from a content object, such as when copying sections
+     * from another file.
+     *
+     * @param partUid the unique ID of the message part
+     * @param partTagHash the tag hash of the message part
+     * @param partComplete the part-complete value, or {@link #BLOB_MARKER}
+     *     if the content data is a blob reference
+     * @param contentData the raw content data
+     */
+    void appendRawContent(long partUid, int partTagHash, int partComplete, byte[] contentData) throws IOException {
+        checkFileOpened();
+        
+        if(partComplete == BLOB_MARKER) {
+            if(contentData.length != BLOB_REFERENCE_LENGTH) {
+                throw new IllegalArgumentException();
+            }
+            blobNames.addElement(MessageContentBlobStore.getName(getBlobKey(contentData)));
+        }
+        
         DataBuffer buf = new DataBuffer();
 
         // Append the message part prefix 
-        MimeMessagePart part = content.getMessagePart();
-        buf.writeLong(part.getUniqueId());
-        buf.writeInt(createPartTagHash(part));
+        buf.writeLong(partUid);
+        buf.writeInt(partTagHash);
         
         // Append the part-complete value
-        buf.writeInt(content.isPartComplete());
+        buf.writeInt(partComplete);
         
-        // Append the raw content data
-        byte[] contentData = content.getRawData();
+        // Append the raw content data length
         buf.writeInt(contentData.length);
-        buf.write(contentData);
-        
-        // Compute and append the checksum
+
+        // Compute the checksum
         int checksum = CRC32.update(CRC32.INITIAL_VALUE, contentData);
-        buf.writeInt(checksum);
+
+        // Write the entry to the file, passing the raw content data straight
+        // through so it is never copied into the entry buffer
+        OutputStream output = fileConnection.openOutputStream(contentEndOffset);
+        output.write(buf.getArray(), buf.getArrayStart(), buf.getLength());
+        output.write(contentData);
+        byte[] checksumBytes = intToByteArray(checksum);
+        output.write(checksumBytes);
+        output.close();
+        
+        // 12 = UID(8) + Tag(4)
+        indexEntries.writeLong(partUid);
+        indexEntries.writeInt(partTagHash);
+        indexEntries.writeInt(contentEndOffset + 12);
+        
+        contentEndOffset += buf.getLength() + contentData.length + checksumBytes.length;
+    }
+    
+    private void writeContentIndex() throws IOException {
+        DataBuffer buf = new DataBuffer();
+        int entryCount = indexEntries.getLength() / INDEX_ENTRY_LENGTH;
+        
+        // Build the index data, consisting of the count and the entries
+        byte[] indexData = new byte[4 + indexEntries.getLength()];
+        insertBytes(indexData, intToByteArray(entryCount), 0, 4);
+        System.arraycopy(indexEntries.getArray(), indexEntries.getArrayStart(),
+                indexData, 4, indexEntries.getLength());
+        
+        // Write the index section, formatted like a content section, followed
+        // by the position of the index section
+        buf.writeLong(0);
+        buf.writeInt(0);
+        buf.writeInt(INDEX_MARKER);
+        buf.writeInt(indexData.length);
+        buf.write(indexData);
+        buf.writeInt(CRC32.update(CRC32.INITIAL_VALUE, indexData));
+        buf.writeInt(contentEndOffset);
         
-        // Write the entry to the file
-        byte[] data = buf.toArray();
         OutputStream output = fileConnection.openOutputStream(contentEndOffset);
-        output.write(buf.toArray());
+        output.write(buf.getArray(), buf.getArrayStart(), buf.getLength());
         output.close();
-        contentEndOffset += data.length;
     }
     
     private static final void insertBytes(byte[] dest, byte[] src, int offset, int len) {
@@ -159,6 +159,7 @@ public class MessageNode implements Node {
 	private MimeMessagePart[] attachmentParts;
 	private String messageSource;
 	private final EventListenerList listenerList = new EventListenerList();
+	private MessageNodeEvent lastStatusEvent;
 	private final AtomicBoolean refreshInProgress = new AtomicBoolean();
 	private int requestedDisplayFormat = -1;
 	private int refreshDisplayFormat = -1;
@@ -1377,15 +1378,20 @@ public class MessageNode implements Node {
      * @param type The type of the status change.
      */
     protected void fireMessageStatusChanged(int type) {
-        synchronized(listenerList) {
-            Object[] listeners = listenerList.getListeners(MessageNodeListener.class);
-            MessageNodeEvent e = null;
-            for(int i=0; i<listeners.length; i++) {
-                if(e == null) {
-                    e = new MessageNodeEvent(this, type);
-                }
-                ((MessageNodeListener)listeners[i]).messageStatusChanged(e);
-            }
+        // The listener array is an immutable snapshot, so it does not need
+        // to be locked while the listeners are notified
+        Object[] listeners = listenerList.getListeners(MessageNodeListener.class);
+        if(listeners.length == 0) { return; }
+        
+        // Events of this type carry no data besides their type, so the
+        // previous one is reused whenever possible
+        MessageNodeEvent e = lastStatusEvent;
+        if(e == null || e.getType() != type) {
+            e = new MessageNodeEvent(this, type);
+            lastStatusEvent = e;
+        }
+        for(int i=0; i<listeners.length; i++) {
+            ((MessageNodeListener)listeners[i]).messageStatusChanged(e);
         }
     }
 
@@ -391,6 +391,7 @@ public class NetworkAccountNode extends AccountNode {
         // This will only exist on certain account types, but this is the
         // easiest place from which to clean it up.
         connectionCache.removeNamedObject(Long.toString(accountConfig.getUniqueId()) + "_INBOX");
+        connectionCache.removeNamedObject(Long.toString(accountConfig.getUniqueId()) + "_MAILBOXES");
         connectionCache.save();
         
         super.removeSavedData();
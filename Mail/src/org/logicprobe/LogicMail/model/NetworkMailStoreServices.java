@@ -30,6 +30,8 @@
  */
 package org.logicprobe.LogicMail.model;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Hashtable;
@@ -49,6 +51,7 @@ import org.logicprobe.LogicMail.mail.MailStoreRequestCallback;
 import org.logicprobe.LogicMail.mail.MessageToken;
 import org.logicprobe.LogicMail.mail.NetworkMailStore;
 import org.logicprobe.LogicMail.mail.NetworkPollingStartRequest;
+import org.logicprobe.LogicMail.mail.PartContentStore;
 import org.logicprobe.LogicMail.message.FolderMessage;
 import org.logicprobe.LogicMail.message.MessageFlags;
 import org.logicprobe.LogicMail.message.MimeMessageContent;
@@ -66,6 +69,9 @@ public class NetworkMailStoreServices extends MailStoreServices {
     /** Map of FolderTreeItem objects to corresponding request handlers */
     private final Hashtable folderRequestHandlerMap = new Hashtable();
     
+    /** Unique IDs of content that was written to the cache as it was fetched */
+    private final Hashtable streamedContentIds = new Hashtable();
+    
     public NetworkMailStoreServices(NetworkMailStore mailStore, FolderMessageCache folderMessageCache) {
         super(mailStore);
         this.mailStore = mailStore;
@@ -73,6 +79,25 @@ public class NetworkMailStoreServices extends MailStoreServices {
         this.contentFileManager = MessageContentFileManager.getInstance();
         this.messageCacheThreadQueue = new ThreadQueue();
         this.requestThreadQueue = new ThreadQueue();
+        mailStore.setPartContentStore(new PartContentStore() {
+            public OutputStream openPartContent(MessageToken messageToken, MimeMessagePart part) throws IOException {
+                FolderRequestHandler handler = getFolderRequestHandler(messageToken);
+                if(handler == null) { return null; }
+                return contentFileManager.openPartContent(
+                        handler.getFolder(), messageToken, part,
+                        NetworkMailStoreServices.this.mailStore.getAccountConfig());
+            }
+            public MimeMessageContent commitPartContent(OutputStream output) throws IOException {
+                MimeMessageContent content = contentFileManager.commitPartContent(output);
+                if(content != null) {
+                    streamedContentIds.put(new Long(content.getUniqueId()), Boolean.TRUE);
+                }
+                return content;
+            }
+            public void abortPartContent(OutputStream output) {
+                contentFileManager.abortPartContent(output);
+            }
+        });
     }
 
     AccountConfig getAccountConfig() {
@@ -288,9 +313,18 @@ public class NetworkMailStoreServices extends MailStoreServices {
         requestThreadQueue.invokeLater(runnable);
     }
     
-    public boolean hasCachedMessageContent(FolderTreeItem folder, MessageToken messageToken) {
+    /**
+     * Checks whether cached content exists for a set of messages within
+     * the same folder, waiting only once for any pending cache writes.
+     *
+     * @param folder the folder that the messages are stored within
+     * @param messageTokens the tokens for the messages to check for
+     * @return array with an element for each token, which is true if that
+     *   message has cached content
+     */
+    public boolean[] hasCachedMessageContent(FolderTreeItem folder, MessageToken[] messageTokens) {
         messageCacheThreadQueue.completePendingTasks();
-        return contentFileManager.messageContentExists(folder, messageToken);
+        return contentFileManager.messageContentExists(folder, messageTokens);
     }
     
     public boolean requestMessageRefresh(
@@ -622,7 +656,8 @@ public class NetworkMailStoreServices extends MailStoreServices {
         messageCacheThreadQueue.invokeLater(new Runnable() {
             public void run() {
                 contentFileManager.putCompleteMessageContent(
-                        folder, messageToken, messageContent, customValues);
+                        folder, messageToken, messageContent, customValues,
+                        mailStore.getAccountConfig());
             }
         });
         
@@ -637,13 +672,19 @@ public class NetworkMailStoreServices extends MailStoreServices {
         FolderRequestHandler handler = getFolderRequestHandler(messageToken);
         handler.setFolderMessageSeen(messageToken);
         
-        // Update the message content cache
+        // Update the message content cache, skipping any content that was
+        // already written to it as it was fetched
         final FolderTreeItem folder = handler.getFolder();
-        messageCacheThreadQueue.invokeLater(new Runnable() {
-            public void run() {
-                contentFileManager.putMessageContent(folder, messageToken, messageContent);
-            }
-        });
+        final MimeMessageContent[] contentToCache = removeStreamedContent(messageContent);
+        if(contentToCache.length > 0) {
+            messageCacheThreadQueue.invokeLater(new Runnable() {
+                public void run() {
+                    contentFileManager.putMessageContent(
+                            folder, messageToken, contentToCache,
+                            mailStore.getAccountConfig());
+                }
+            });
+        }
         
         fireMessageContentAvailable(messageToken, messageContent);
         
@@ -653,6 +694,18 @@ public class NetworkMailStoreServices extends MailStoreServices {
         messageRefreshComplete(messageToken);
     }
     
+    private MimeMessageContent[] removeStreamedContent(MimeMessageContent[] messageContent) {
+        Vector result = new Vector(messageContent.length);
+        for(int i=0; i<messageContent.length; i++) {
+            if(streamedContentIds.remove(new Long(messageContent[i].getUniqueId())) == null) {
+                result.addElement(messageContent[i]);
+            }
+        }
+        MimeMessageContent[] resultArray = new MimeMessageContent[result.size()];
+        result.copyInto(resultArray);
+        return resultArray;
+    }
+    
     protected void handleMessageFlagsChanged(MessageToken messageToken, MessageFlags messageFlags) {
         FolderRequestHandler handler = getFolderRequestHandler(messageToken);
         handler.handleMessageFlagsChanged(messageToken, messageFlags);
@@ -54,6 +54,7 @@ import org.logicprobe.LogicMail.message.MessageEnvelope;
 import org.logicprobe.LogicMail.message.MessageFlags;
 import org.logicprobe.LogicMail.util.AtomicBoolean;
 import org.logicprobe.LogicMail.util.StringParser;
+import org.logicprobe.LogicMail.util.ThreadQueue;
 
 public class OutboxMailboxNode extends MailboxNode {
     //"org.logicprobe.LogicMail.model.PersistableOutboxMailboxNode"
@@ -72,7 +73,7 @@ public class OutboxMailboxNode extends MailboxNode {
     private Hashtable outboundMessageNodeMap = new Hashtable();
 
     private final AtomicBoolean refreshInProgress = new AtomicBoolean();
-    private Thread fetchThread;
+    private final ThreadQueue taskQueue = new ThreadQueue();
     
     private MailSenderListener mailSenderListener = new MailSenderListener() {
         public void messageSent(MessageSentEvent e) {
@@ -150,19 +151,18 @@ public class OutboxMailboxNode extends MailboxNode {
     protected void fireMailboxStatusChanged(int type, MessageNode[] affectedMessages) {
         super.fireMailboxStatusChanged(type, affectedMessages);
         if(type == MailboxNodeEvent.TYPE_NEW_MESSAGES) {
-            (new HandleNewMessagesThread(affectedMessages)).start();
+            taskQueue.invokeLater(new HandleNewMessagesTask(affectedMessages));
         }
     }
 
-    private class HandleNewMessagesThread extends Thread {
+    private class HandleNewMessagesTask implements Runnable {
         private MessageNode[] newMessages;
 
-        public HandleNewMessagesThread(MessageNode[] newMessages) {
+        public HandleNewMessagesTask(MessageNode[] newMessages) {
             this.newMessages = newMessages;
         }
 
         public void run() {
-            yield();
             for(int i=0; i<newMessages.length; i++) {
                 if(newMessages[i] instanceof OutgoingMessageNode) {
                     OutgoingMessageNode outgoingMessage = (OutgoingMessageNode)newMessages[i];
@@ -193,10 +193,9 @@ public class OutboxMailboxNode extends MailboxNode {
     public void refreshMessages() {
         // Fetch messages stored in the cache
         if(refreshInProgress.compareAndSet(false, true)) {
-            if(!hasRefreshed && (fetchThread == null || !fetchThread.isAlive())) {
+            if(!hasRefreshed) {
                 hasRefreshed = true;
-                fetchThread = new RefreshMessagesThread();
-                fetchThread.start();
+                taskQueue.invokeLater(new RefreshMessagesTask());
             }
             else {
                 refreshInProgress.set(false);
@@ -204,7 +203,7 @@ public class OutboxMailboxNode extends MailboxNode {
         }
     }
 
-    private class RefreshMessagesThread extends Thread {
+    private class RefreshMessagesTask implements Runnable {
         public void run() {
             try {
                 synchronized(persistentObject) {
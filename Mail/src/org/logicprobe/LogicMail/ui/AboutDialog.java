@@ -32,6 +32,7 @@ package org.logicprobe.LogicMail.ui;
 
 import org.logicprobe.LogicMail.AppInfo;
 import org.logicprobe.LogicMail.LogicMailResource;
+import org.logicprobe.LogicMail.util.TimerWheelBenchmark;
 
 import net.rim.device.api.i18n.ResourceBundle;
 import net.rim.device.api.system.Bitmap;
@@ -45,6 +46,7 @@ import net.rim.device.api.ui.component.SeparatorField;
 
 public class AboutDialog extends Dialog {
     private static final int BACKDOOR_RST = ('R' << 16) | ('S' << 8) | ('T');
+    private static final int BACKDOOR_TMR = ('T' << 16) | ('M' << 8) | ('R');
 
     public AboutDialog() {
         super(
@@ -82,6 +84,9 @@ public class AboutDialog extends Dialog {
             case BACKDOOR_RST:
                 backdoorRST();
                 return true;
+            case BACKDOOR_TMR:
+                backdoorTMR();
+                return true;
         }
         return super.openDevelopmentBackdoor(backdoorCode);
     }
@@ -91,6 +96,9 @@ public class AboutDialog extends Dialog {
             case BACKDOOR_RST:
                 backdoorRST();
                 return true;
+            case BACKDOOR_TMR:
+                backdoorTMR();
+                return true;
         }
         return super.openProductionBackdoor(backdoorCode);
     }
@@ -103,4 +111,17 @@ public class AboutDialog extends Dialog {
             }
         });
     }
+
+    private void backdoorTMR() {
+        (new Thread() {
+            public void run() {
+                final String result = (new TimerWheelBenchmark()).run();
+                UiApplication.getUiApplication().invokeLater(new Runnable() {
+                    public void run() {
+                        Dialog.inform(result);
+                    }
+                });
+            }
+        }).start();
+    }
 }
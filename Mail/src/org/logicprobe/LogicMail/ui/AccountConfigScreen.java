@@ -109,6 +109,7 @@ public class AccountConfigScreen extends AbstractConfigScreen {
     private NumericChoiceField initialFolderMessagesChoiceField;
     private NumericChoiceField folderMessageIncrementChoiceField;
     private NumericChoiceField maximumFolderMessagesChoiceField;
+    private ObjectChoiceField contentCacheLimitChoiceField;
     private ObjectChoiceField networkTransportChoiceField;
     private CheckboxField enableWiFiCheckboxField;
 
@@ -127,6 +128,9 @@ public class AccountConfigScreen extends AbstractConfigScreen {
     private static final int PAGE_COMPOSITION = 2;
     private static final int PAGE_ADVANCED    = 3;
     
+    /** Selectable message content cache limits, in megabytes */
+    private static final int[] CONTENT_CACHE_LIMITS = { 0, 5, 10, 25, 50, 100, 250 };
+    
     private boolean accountSaved;
     private boolean createDefaultIdentity;
     private AccountConfig accountConfig;
@@ -480,9 +484,28 @@ public class AccountConfigScreen extends AbstractConfigScreen {
         maximumFolderMessagesChoiceField.setSelectedValue(accountConfig.getMaximumFolderMessages());
         maximumFolderMessagesChoiceField.setChangeListener(fieldChangeListener);
         
+        String[] contentCacheLimitChoices = new String[CONTENT_CACHE_LIMITS.length];
+        int contentCacheLimitIndex = 0;
+        for(int i=0; i<CONTENT_CACHE_LIMITS.length; i++) {
+            if(CONTENT_CACHE_LIMITS[i] == 0) {
+                contentCacheLimitChoices[i] = LogicMailResource.CONFIG_ACCOUNT_CONTENT_CACHE_GLOBAL;
+            }
+            else {
+                contentCacheLimitChoices[i] = CONTENT_CACHE_LIMITS[i] + " MB";
+            }
+            if(CONTENT_CACHE_LIMITS[i] == accountConfig.getContentCacheLimit()) {
+                contentCacheLimitIndex = i;
+            }
+        }
+        contentCacheLimitChoiceField = new ObjectChoiceField(
+                LogicMailResource.CONFIG_ACCOUNT_CONTENT_CACHE_LIMIT,
+                contentCacheLimitChoices,
+                contentCacheLimitIndex);
+        
         manager.add(initialFolderMessagesChoiceField);
         manager.add(folderMessageIncrementChoiceField);
         manager.add(maximumFolderMessagesChoiceField);
+        manager.add(contentCacheLimitChoiceField);
         manager.add(new SeparatorField());
         
         String[] transportChoices = {
@@ -922,6 +945,8 @@ public class AccountConfigScreen extends AbstractConfigScreen {
         this.accountConfig.setInitialFolderMessages(initialFolderMessagesChoiceField.getSelectedValue());
         this.accountConfig.setFolderMessageIncrement(folderMessageIncrementChoiceField.getSelectedValue());
         this.accountConfig.setMaximumFolderMessages(maximumFolderMessagesChoiceField.getSelectedValue());
+        this.accountConfig.setContentCacheLimit(
+                CONTENT_CACHE_LIMITS[contentCacheLimitChoiceField.getSelectedIndex()]);
         
         this.accountConfig.setTransportType(getTransportSetting(networkTransportChoiceField.getSelectedIndex()));
         this.accountConfig.setEnableWiFi(enableWiFiCheckboxField.getChecked());
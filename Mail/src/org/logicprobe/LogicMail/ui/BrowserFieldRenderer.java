@@ -49,6 +49,7 @@ import org.logicprobe.LogicMail.message.MimeMessageContent;
 import org.logicprobe.LogicMail.message.TextContent;
 import org.logicprobe.LogicMail.model.MessageNode;
 import org.logicprobe.LogicMail.util.UnicodeNormalizer;
+import org.logicprobe.LogicMail.util.WorkerPool;
 
 import net.rim.blackberry.api.browser.Browser;
 import net.rim.blackberry.api.browser.BrowserSession;
@@ -108,9 +109,9 @@ public class BrowserFieldRenderer implements RenderingApplication {
 		if(field != null) {
 		    ActiveFieldManager fieldManager = new ActiveFieldManager() {
 		        protected void onDisplay() {
-		            (new Thread() { public void run() {
+		            invokeRunnable(new Runnable() { public void run() {
 		                BrowserFieldRenderer.this.finishLoading();
-		            }}).start();
+		            }});
 		        }
 		    };
 			fieldManager.add(field);
@@ -236,7 +237,11 @@ public class BrowserFieldRenderer implements RenderingApplication {
 	 * @see net.rim.device.api.browser.field.RenderingApplication#invokeRunnable(java.lang.Runnable)
 	 */
 	public void invokeRunnable(Runnable runnable) {
-		(new Thread(runnable)).start();
+		if(!WorkerPool.getInstance().execute(runnable)) {
+			// The shared workers are overloaded, so fall back to a dedicated
+			// thread rather than dropping a callback the browser expects
+			(new Thread(runnable)).start();
+		}
 	}
 	
 	/**
@@ -74,6 +74,9 @@ import org.logicprobe.LogicMail.model.MailManager;
  * other configuration screens.
  */
 public class ConfigScreen extends AbstractConfigScreen {
+    /** Selectable message content cache limits, in megabytes */
+    private static final int[] CONTENT_CACHE_LIMITS = { 0, 10, 25, 50, 100, 250, 500 };
+    
     private MailSettings mailSettings;
     private GlobalConfig existingGlobalConfig;
     private String localHostname;
@@ -114,6 +117,7 @@ public class ConfigScreen extends AbstractConfigScreen {
     private CheckboxField autoStartupCheckboxField;
     private CheckboxField notificationIconCheckboxField;
     private ObjectChoiceField localDataLocationChoiceLabel;
+    private ObjectChoiceField contentCacheLimitChoiceField;
     //private CheckboxField connectionDebuggingCheckboxField;
     //private CheckboxField unicodeNormalizationCheckboxField;
     private ObjectChoiceField languageChoiceField;
@@ -437,6 +441,24 @@ public class ConfigScreen extends AbstractConfigScreen {
                 fileSystemRootChoices,
                 selectedFileSystemRootIndex);
         
+        String[] contentCacheLimitChoices = new String[CONTENT_CACHE_LIMITS.length];
+        int contentCacheLimitIndex = 0;
+        for(int i=0; i<CONTENT_CACHE_LIMITS.length; i++) {
+            if(CONTENT_CACHE_LIMITS[i] == 0) {
+                contentCacheLimitChoices[i] = LogicMailResource.CONFIG_GLOBAL_CONTENT_CACHE_UNLIMITED;
+            }
+            else {
+                contentCacheLimitChoices[i] = CONTENT_CACHE_LIMITS[i] + " MB";
+            }
+            if(CONTENT_CACHE_LIMITS[i] == existingGlobalConfig.getContentCacheLimit()) {
+                contentCacheLimitIndex = i;
+            }
+        }
+        contentCacheLimitChoiceField = new ObjectChoiceField(
+                LogicMailResource.CONFIG_GLOBAL_CONTENT_CACHE_LIMIT + ' ',
+                contentCacheLimitChoices,
+                contentCacheLimitIndex);
+        
         String languageCode = existingGlobalConfig.getLanguageCode();
         int languageIndex = 0;
         if(languageCode != null && languageCode.length() != 0) {
@@ -487,6 +509,7 @@ public class ConfigScreen extends AbstractConfigScreen {
             otherFieldManager.add(notificationIconCheckboxField);
         }
         otherFieldManager.add(localDataLocationChoiceLabel);
+        otherFieldManager.add(contentCacheLimitChoiceField);
         otherFieldManager.add(clearCacheManager);
         
         // Locale override is not used in release builds
@@ -1089,6 +1112,9 @@ public class ConfigScreen extends AbstractConfigScreen {
         else {
             config.setFilesystemRoot(fileSystemRoots[fsRootIndex]);
         }
+        
+        config.setContentCacheLimit(
+                CONTENT_CACHE_LIMITS[contentCacheLimitChoiceField.getSelectedIndex()]);
 
         //if (overrideHostnameCheckboxField.getChecked()) {
          //   config.setLocalHostname(localHostnameEditField.getText().trim());
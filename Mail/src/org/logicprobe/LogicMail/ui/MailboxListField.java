@@ -0,0 +1,634 @@
+/*-
+ * Copyright (c) 2011, Derek Konigsberg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.logicprobe.LogicMail.ui;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import net.rim.device.api.i18n.DateFormat;
+import net.rim.device.api.system.Bitmap;
+import net.rim.device.api.ui.Color;
+import net.rim.device.api.ui.DrawStyle;
+import net.rim.device.api.ui.Font;
+import net.rim.device.api.ui.Graphics;
+import net.rim.device.api.ui.component.ListField;
+import net.rim.device.api.ui.component.ListFieldCallback;
+import net.rim.device.api.util.Arrays;
+import net.rim.device.api.util.Comparator;
+import net.rim.device.api.util.DateTimeUtilities;
+
+import org.logicprobe.LogicMail.LogicMailResource;
+import org.logicprobe.LogicMail.conf.MailSettings;
+import org.logicprobe.LogicMail.message.MimeMessagePart;
+import org.logicprobe.LogicMail.model.Address;
+import org.logicprobe.LogicMail.model.MailboxNode;
+import org.logicprobe.LogicMail.model.MessageNode;
+import org.logicprobe.LogicMail.util.UnicodeNormalizer;
+
+/**
+ * Virtualized list of the messages on the mailbox screen.
+ * <p>
+ * Instead of creating a field for every message, this list keeps the sorted
+ * set of displayed messages and only draws the rows that are visible.
+ * Date separators and message gap rows are computed from the sorted messages
+ * whenever the rows are updated, so the cost of opening and scrolling the
+ * list does not grow with the size of the mailbox.
+ * </p>
+ * <p>
+ * Each row is either a {@link MessageNode}, a {@link DateSeparator}, or a
+ * two element <code>MessageNode[]</code> describing a gap in the loaded
+ * messages.  Changes to the displayed messages and gaps only take effect
+ * on the next call to {@link #updateRows()}.
+ * </p>
+ */
+public class MailboxListField extends ListField {
+    private static final Bitmap attachmentIcon = Bitmap.getBitmapResource("mail_attachment.png");
+    
+    private final MailboxNode mailboxNode;
+    private final Comparator comparator = MessageNode.getComparator();
+    private UnicodeNormalizer unicodeNormalizer;
+    private boolean displayOrder;
+    
+    /** Displayed messages, in ascending order. */
+    private Vector messages = new Vector();
+    /** Set of the displayed messages, for fast lookup. */
+    private final Hashtable messageSet = new Hashtable();
+    /** Message gaps, keyed by the newer message at the edge of the gap. */
+    private final Hashtable gapMap = new Hashtable();
+    private MessageNode[] disabledGap;
+    
+    /** Rows currently being displayed, in display order. */
+    private Object[] rows = new Object[0];
+    
+    /**
+     * Instantiates a new mailbox list field.
+     * 
+     * @param mailboxNode The mailbox node containing the messages
+     * @param displayOrder True for ascending order, false for descending
+     * @param style Combination of field style bits to specify display attributes
+     */
+    public MailboxListField(MailboxNode mailboxNode, boolean displayOrder, long style) {
+        super(0, style);
+        this.mailboxNode = mailboxNode;
+        this.displayOrder = displayOrder;
+        if(MailSettings.getInstance().getGlobalConfig().getUnicodeNormalization()) {
+            unicodeNormalizer = UnicodeNormalizer.getInstance();
+        }
+        setRowHeight(Font.getDefault().getHeight() * 2);
+        setEmptyString("", DrawStyle.HCENTER);
+        setCallback(listFieldCallback);
+    }
+    
+    /**
+     * Sets the order in which messages are displayed.
+     * 
+     * @param displayOrder True for ascending order, false for descending
+     */
+    public void setDisplayOrder(boolean displayOrder) {
+        this.displayOrder = displayOrder;
+    }
+    
+    /**
+     * Checks whether a message is part of the list.
+     * 
+     * @param messageNode the message node
+     * @return true, if the message is displayed
+     */
+    public boolean containsMessage(MessageNode messageNode) {
+        return messageSet.containsKey(messageNode);
+    }
+    
+    /**
+     * Adds messages to the list.
+     * 
+     * @param messageNodes the message nodes to add
+     */
+    public void addMessages(Vector messageNodes) {
+        Vector addedNodes = new Vector(messageNodes.size());
+        int size = messageNodes.size();
+        for(int i=0; i<size; i++) {
+            Object messageNode = messageNodes.elementAt(i);
+            if(messageSet.put(messageNode, Boolean.TRUE) == null) {
+                addedNodes.addElement(messageNode);
+            }
+        }
+        
+        int count = addedNodes.size();
+        if(count == 0) { return; }
+        MessageNode[] added = new MessageNode[count];
+        addedNodes.copyInto(added);
+        Arrays.sort(added, comparator);
+        
+        // Merge the sorted additions into the existing messages
+        int existing = messages.size();
+        Vector merged = new Vector(existing + count);
+        int i = 0;
+        int j = 0;
+        while(i < existing && j < count) {
+            Object messageNode = messages.elementAt(i);
+            if(comparator.compare(messageNode, added[j]) <= 0) {
+                merged.addElement(messageNode);
+                i++;
+            }
+            else {
+                merged.addElement(added[j++]);
+            }
+        }
+        while(i < existing) { merged.addElement(messages.elementAt(i++)); }
+        while(j < count) { merged.addElement(added[j++]); }
+        messages = merged;
+    }
+    
+    /**
+     * Removes messages from the list.
+     * 
+     * @param messageNodes the message nodes to remove
+     */
+    public void removeMessages(Vector messageNodes) {
+        boolean removed = false;
+        int size = messageNodes.size();
+        for(int i=0; i<size; i++) {
+            if(messageSet.remove(messageNodes.elementAt(i)) != null) {
+                removed = true;
+            }
+        }
+        if(!removed) { return; }
+        
+        size = messages.size();
+        Vector remaining = new Vector(messageSet.size());
+        for(int i=0; i<size; i++) {
+            Object messageNode = messages.elementAt(i);
+            if(messageSet.containsKey(messageNode)) {
+                remaining.addElement(messageNode);
+            }
+        }
+        messages = remaining;
+    }
+    
+    /**
+     * Removes all messages and gaps from the list.
+     */
+    public void removeAll() {
+        messages = new Vector();
+        messageSet.clear();
+        gapMap.clear();
+        disabledGap = null;
+    }
+    
+    /**
+     * Sets the gaps in the loaded messages, replacing any existing gaps.
+     * Gaps are only displayed if the newer message at their edge is part
+     * of the list.
+     * 
+     * @param gaps the gaps, as returned by
+     *   {@link MailboxNode#findMessageNodeGaps()}
+     */
+    public void setGaps(MessageNode[][] gaps) {
+        gapMap.clear();
+        for(int i=0; i<gaps.length; i++) {
+            if(gaps[i] != null && gaps[i].length > 1 && gaps[i][1] != null) {
+                gapMap.put(gaps[i][1], gaps[i]);
+            }
+        }
+    }
+    
+    /**
+     * Removes a gap from the list.
+     * 
+     * @param gap the gap to remove
+     */
+    public void removeGap(MessageNode[] gap) {
+        if(gapMap.get(gap[1]) == gap) {
+            gapMap.remove(gap[1]);
+        }
+        if(disabledGap == gap) {
+            disabledGap = null;
+        }
+    }
+    
+    /**
+     * Draws a gap as disabled, to show that its action has been triggered.
+     * 
+     * @param gap the gap to disable
+     */
+    public void disableGap(MessageNode[] gap) {
+        disabledGap = gap;
+        invalidate();
+    }
+    
+    /**
+     * Rebuilds the displayed rows from the current messages and gaps,
+     * keeping the selection on the same row if it still exists.
+     */
+    public void updateRows() {
+        Object selectedRow = getSelectedRow();
+        int selectedIndex = getSelectedIndex();
+        
+        int size = messages.size();
+        Vector rowVector = new Vector(size + (size >>> 2) + 1);
+        if(displayOrder) {
+            // Ascending order, with each separator following its messages
+            for(int i=0; i<size; i++) {
+                MessageNode messageNode = (MessageNode)messages.elementAt(i);
+                Object gap = gapMap.get(messageNode);
+                if(gap != null) {
+                    rowVector.addElement(gap);
+                }
+                rowVector.addElement(messageNode);
+                if(i == size - 1 || !isSameDate(messageNode, (MessageNode)messages.elementAt(i + 1))) {
+                    rowVector.addElement(new DateSeparator(messageNode.getDate()));
+                }
+            }
+        }
+        else {
+            // Descending order, with each separator preceding its messages
+            for(int i=size - 1; i>=0; i--) {
+                MessageNode messageNode = (MessageNode)messages.elementAt(i);
+                if(i == size - 1 || !isSameDate(messageNode, (MessageNode)messages.elementAt(i + 1))) {
+                    rowVector.addElement(new DateSeparator(messageNode.getDate()));
+                }
+                rowVector.addElement(messageNode);
+                Object gap = gapMap.get(messageNode);
+                if(gap != null) {
+                    rowVector.addElement(gap);
+                }
+            }
+        }
+        
+        Object[] newRows = new Object[rowVector.size()];
+        rowVector.copyInto(newRows);
+        rows = newRows;
+        setSize(newRows.length);
+        
+        if(newRows.length > 0 && selectedIndex >= 0) {
+            int index = indexOfRow(selectedRow);
+            if(index < 0) {
+                index = Math.min(selectedIndex, newRows.length - 1);
+            }
+            setSelectedIndex(index);
+        }
+    }
+    
+    private static boolean isSameDate(MessageNode messageNode1, MessageNode messageNode2) {
+        Date date1 = messageNode1.getDate();
+        Date date2 = messageNode2.getDate();
+        return DateTimeUtilities.isSameDate(
+                (date1 != null) ? date1.getTime() : 0,
+                (date2 != null) ? date2.getTime() : 0);
+    }
+    
+    private int indexOfRow(Object row) {
+        if(row == null) { return -1; }
+        for(int i=0; i<rows.length; i++) {
+            if(rows[i] == row || (row instanceof DateSeparator && row.equals(rows[i]))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Gets the row at the specified index.
+     * 
+     * @param index the row index
+     * @return the row object, or null if the index is out of range
+     */
+    public Object getRow(int index) {
+        if(index >= 0 && index < rows.length) {
+            return rows[index];
+        }
+        else {
+            return null;
+        }
+    }
+    
+    /**
+     * Gets the currently selected row.
+     * 
+     * @return the selected row object, or null if nothing is selected
+     */
+    public Object getSelectedRow() {
+        return getRow(getSelectedIndex());
+    }
+    
+    private final ListFieldCallback listFieldCallback = new ListFieldCallback() {
+        public void drawListRow(ListField listField, Graphics graphics, int index, int y, int width) {
+            Object row = getRow(index);
+            boolean isFocus = listField.isFocus() && listField.getSelectedIndex() == index;
+            if(row instanceof MessageNode) {
+                drawMessageRow(graphics, (MessageNode)row, y, width, isFocus);
+            }
+            else if(row instanceof DateSeparator) {
+                drawSeparatorRow(graphics, ((DateSeparator)row).getText(), y, width, isFocus);
+            }
+            else if(row != null) {
+                drawActionRow(graphics, LogicMailResource.MAILBOX_LOAD_MORE_MESSAGES,
+                        y, width, isFocus, row != disabledGap);
+            }
+        }
+        
+        public Object get(ListField listField, int index) {
+            return getRow(index);
+        }
+        
+        public int getPreferredWidth(ListField listField) {
+            return 0;
+        }
+        
+        public int indexOfList(ListField listField, String prefix, int start) {
+            return -1;
+        }
+    };
+    
+    private void drawMessageRow(Graphics graphics, MessageNode messageNode, int y, int width, boolean isFocus) {
+        int lineHeight = getRowHeight() >>> 1;
+        int doubleLineHeight = lineHeight * 2;
+        int halfLineHeight = lineHeight >>> 1;
+        String senderText = createSenderText(messageNode);
+        String dateString = createDisplayDate(messageNode);
+        MimeMessagePart[] attachments = messageNode.getAttachmentParts();
+        boolean hasAttachments = attachments != null && attachments.length > 0;
+        
+        int originalColor = graphics.getColor();
+        
+        int dateWidth = (dateString != null) ? Font.getDefault().getAdvance(dateString) : 0;
+        int senderWidth = width - dateWidth - 20;
+        
+        // Draw the separator line
+        graphics.setColor(Color.DARKGRAY);
+        graphics.drawLine(0, y + doubleLineHeight - 1, width, y + doubleLineHeight - 1);
+        graphics.setColor(originalColor);
+        
+        // Draw the message icon
+        Bitmap messageIcon = NodeIcons.getIcon(messageNode);
+        int iconY = y + halfLineHeight - (messageIcon.getHeight() >>> 1);
+        graphics.drawBitmap(
+                1,
+                iconY,
+                messageIcon.getWidth(),
+                messageIcon.getHeight(),
+                messageIcon, 0, 0);
+        
+        // Draw a box around the message icon, if we haven't reconciled it
+        if(!messageNode.existsOnServer()) {
+            graphics.setColor(Color.DARKGRAY);
+            graphics.drawRect(1, iconY, messageIcon.getWidth(), messageIcon.getHeight());
+            graphics.setColor(originalColor);
+        }
+        
+        // Draw the attachment icon, if applicable
+        if(hasAttachments) {
+            graphics.drawBitmap(1,
+                    y + doubleLineHeight - halfLineHeight - (attachmentIcon.getHeight() >>> 1),
+                    20, lineHeight, attachmentIcon, 0, 0);
+        }
+        
+        Font normalFont = graphics.getFont();
+        
+        // Draw the sender text
+        if((messageNode.getFlags() & MessageNode.Flag.SEEN) == 0) {
+            graphics.setFont(normalFont.derive(Font.BOLD));
+        }
+        if(senderText != null) {
+            graphics.drawText(
+                normalize(senderText), 20, y,
+                DrawStyle.ELLIPSIS,
+                senderWidth);
+        }
+        graphics.setFont(normalFont);
+        
+        // Draw the subject text
+        String subject = messageNode.getSubject();
+        if(subject != null) {
+            if(!isFocus) { graphics.setColor(0x7B7B7B); }
+            graphics.drawText(normalize(subject), 20, y + lineHeight,
+                              DrawStyle.ELLIPSIS,
+                              width - 20);
+            if(!isFocus) { graphics.setColor(originalColor); }
+        }
+        
+        // Draw the message date text
+        if(dateString != null) {
+            graphics.drawText(
+                dateString, senderWidth + 20, y,
+                DrawStyle.ELLIPSIS,
+                dateWidth);
+        }
+    }
+    
+    private void drawSeparatorRow(Graphics graphics, String text, int y, int width, boolean isFocus) {
+        int height = getRowHeight();
+        int originalColor = graphics.getColor();
+        Font font = graphics.getFont();
+        int textWidth = font.getAdvance(text);
+        
+        int textX = (width >>> 1) - (textWidth >>> 1);
+        if(textX <= 0) {
+            textX = 0;
+            textWidth = width;
+        }
+        
+        // Draw the gradient background
+        if(!isFocus) {
+            for(int i=0; i<height; i++) {
+                int color = 0xFF - i;
+                graphics.setColor((color * 0x10000) + (color * 0x100) + color);
+                graphics.drawLine(0, y + i, width, y + i);
+            }
+        }
+        
+        // Draw the separator line
+        graphics.setColor(Color.DARKGRAY);
+        graphics.drawLine(0, y + height - 1, width, y + height - 1);
+        graphics.setColor(originalColor);
+        
+        int textY = y + (height >>> 1) - (font.getHeight() >>> 1);
+        graphics.drawText(text, textX, textY, DrawStyle.ELLIPSIS, textWidth);
+    }
+    
+    private void drawActionRow(Graphics graphics, String text, int y, int width, boolean isFocus, boolean isEnabled) {
+        int height = getRowHeight();
+        int originalColor = graphics.getColor();
+        
+        // Draw the separator line
+        graphics.setColor(Color.DARKGRAY);
+        graphics.drawLine(0, y + height - 1, width, y + height - 1);
+        
+        if(!isFocus) {
+            graphics.setColor(0xEFEFEF);
+            graphics.fillRect(0, y, width, height - 1);
+        }
+        
+        graphics.setColor(originalColor);
+        
+        Font font = graphics.getFont();
+        int advance = font.getAdvance(text);
+        
+        int x = (width >>> 1) - (advance >>> 1);
+        int textY = (height >>> 1) - (font.getHeight() >>> 1);
+        if(textY % 2 == 0) { textY--; }
+        
+        if(!isEnabled) {
+            graphics.setColor(Color.GRAY);
+        }
+        graphics.drawText(text, x, y + textY, DrawStyle.TOP, width);
+        graphics.setColor(originalColor);
+    }
+    
+    /**
+     * Creates the sender text to display.
+     * This is normally the sender of the message.  However, if this
+     * message is contained within a Sent folder, it is the first
+     * recipient of the message.
+     * 
+     * @return Sender display text
+     */
+    private String createSenderText(MessageNode messageNode) {
+        Address sender = null;
+        if(mailboxNode.getType() == MailboxNode.TYPE_SENT) {
+            Address[] to = messageNode.getTo();
+            if(to != null && to.length > 0) {
+                sender = to[0];
+            }
+        }
+        else {
+            Address[] from = messageNode.getFrom();
+            if(from != null && from.length > 0) {
+                sender = from[0];
+            }
+        }
+        
+        if(sender != null) {
+            String senderText = sender.getName();
+            if(senderText == null || senderText.length() == 0) {
+                senderText = sender.getAddress();
+            }
+            return senderText;
+        }
+        else {
+            return null;
+        }
+    }
+    
+    /**
+     * Creates the date string to display.
+     * 
+     * @return The date string to display
+     */
+    private static String createDisplayDate(MessageNode messageNode) {
+        Date date = messageNode.getDate();
+        if(date == null) {
+            return null;
+        }
+        
+        DateFormat dateFormat = DateFormat.getInstance(DateFormat.TIME_MEDIUM);
+        
+        Calendar dispCal = Calendar.getInstance();
+        dispCal.setTime(date);
+        
+        StringBuffer buffer = new StringBuffer();
+        dateFormat.format(dispCal, buffer, null);
+        return buffer.toString();
+    }
+    
+    /**
+     * Run the Unicode normalizer on the provide string,
+     * only if normalization is enabled in the configuration.
+     * If normalization is disabled, this method returns
+     * the input unmodified.
+     * 
+     * @param input Input string
+     * @return Normalized string
+     */
+    private String normalize(String input) {
+        if(unicodeNormalizer == null) {
+            return input;
+        }
+        else {
+            return unicodeNormalizer.normalize(input);
+        }
+    }
+    
+    /**
+     * Row marking the start of the messages received on a particular day.
+     */
+    public static class DateSeparator {
+        private final Date date;
+        private String text;
+        
+        DateSeparator(Date date) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTime((date != null) ? date : new Date(0));
+            cal.set(Calendar.HOUR_OF_DAY, 0);
+            cal.set(Calendar.MINUTE, 0);
+            cal.set(Calendar.SECOND, 0);
+            cal.set(Calendar.MILLISECOND, 0);
+            this.date = cal.getTime();
+        }
+        
+        /**
+         * Gets the date of the separator, at the start of the day.
+         * 
+         * @return the date
+         */
+        public Date getDate() {
+            return date;
+        }
+        
+        /**
+         * Gets the text to display, which is only formatted once the
+         * separator is first drawn.
+         * 
+         * @return the display text
+         */
+        String getText() {
+            if(text == null) {
+                StringBuffer buffer = new StringBuffer();
+                Calendar cal = Calendar.getInstance();
+                cal.setTime(date);
+                DateFormat.getInstance(DateFormat.DATE_LONG).format(cal, buffer, null);
+                text = buffer.toString();
+            }
+            return text;
+        }
+        
+        public boolean equals(Object obj) {
+            return (obj instanceof DateSeparator)
+                && ((DateSeparator)obj).date.getTime() == date.getTime();
+        }
+        
+        public int hashCode() {
+            return (int)(date.getTime() ^ (date.getTime() >>> 32));
+        }
+    }
+}
@@ -31,13 +31,11 @@
 
 package org.logicprobe.LogicMail.ui;
 
-import java.util.Calendar;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
 
-import net.rim.device.api.i18n.DateFormat;
 import net.rim.device.api.system.Bitmap;
 import net.rim.device.api.system.KeypadListener;
 import net.rim.device.api.ui.Field;
@@ -49,8 +47,6 @@ import net.rim.device.api.ui.Screen;
 import net.rim.device.api.ui.component.Dialog;
 import net.rim.device.api.ui.component.Menu;
 import net.rim.device.api.ui.container.VerticalFieldManager;
-import net.rim.device.api.util.Comparator;
-import net.rim.device.api.util.DateTimeUtilities;
 
 import org.logicprobe.LogicMail.AnalyticsDataCollector;
 import org.logicprobe.LogicMail.LogicMailResource;
@@ -84,20 +80,39 @@ public class MailboxScreen extends AbstractScreenProvider {
 	
 	private MailboxNode mailboxNode;
     private Vector knownMessages;
-    private Hashtable messageNodeToFieldMap;
     private boolean firstDisplay = true;
     private MailSettings mailSettings;
     private GlobalConfig globalConfig;
     private VerticalFieldManager messageFieldManager;
+    private MailboxListField messageListField;
     private boolean navigationMoved;
     private boolean displayOrder;
     private boolean hideDeleted;
     private MessageActions messageActions;
     protected boolean composeEnabled;
-    protected Field currentContextField;
+    protected Object currentContextRow;
+    protected int currentContextIndex = -1;
 
     protected MenuItem compositionItem;
     protected MenuItem markPriorOpenedItem;
+    
+    /** Pending change marking a newly added message. */
+    private static final Integer UPDATE_NEW = new Integer(0);
+    /** Pending change marking a deleted message. */
+    private static final Integer UPDATE_DELETED = new Integer(1);
+    /** Pending change marking a message whose flags have changed. */
+    private static final Integer UPDATE_CHANGED = new Integer(2);
+    
+    /**
+     * Model changes that have not yet been applied to the screen, collected
+     * so they can be applied together on the next pass of the UI thread.
+     * The map is keyed by message node, with the net change for that message
+     * as the value.
+     */
+    private Hashtable pendingUpdates = new Hashtable();
+    private MessageNode[][] pendingGaps;
+    private boolean pendingUpdatesScheduled;
+    private final Object pendingUpdatesLock = new Object();
 	
     /**
      * Initializes a new MailboxScreen to view the provided mailbox.
@@ -107,7 +122,6 @@ public class MailboxScreen extends AbstractScreenProvider {
     public MailboxScreen(MailboxNode mailboxNode) {
     	this.mailboxNode = mailboxNode;
     	this.knownMessages = new Vector();
-    	this.messageNodeToFieldMap = new Hashtable();
     	this.mailSettings = MailSettings.getInstance();
     	this.globalConfig = this.mailSettings.getGlobalConfig();
     }
@@ -164,11 +178,12 @@ public class MailboxScreen extends AbstractScreenProvider {
     /** The message node listener. */
     private MessageNodeListener messageNodeListener = new MessageNodeListener() {
 		public void messageStatusChanged(MessageNodeEvent e) {
-			invokeLater(new EventObjectRunnable(e) {
-				public void run() {
-					messageNode_MessageStatusChanged((MessageNodeEvent)getEvent());
-				}
-			});
+		    if(e.getType() == MessageNodeEvent.TYPE_FLAGS) {
+		        synchronized(pendingUpdatesLock) {
+		            addPendingUpdate((MessageNode)e.getSource(), UPDATE_CHANGED);
+		            schedulePendingUpdates();
+		        }
+		    }
 		}
     };
 
@@ -216,12 +231,15 @@ public class MailboxScreen extends AbstractScreenProvider {
         
         if(firstDisplay) {
             MessageNode[] initialMessages = this.mailboxNode.getMessages();
+            Vector displayableMessages = new Vector(initialMessages.length);
             for(int i=0; i<initialMessages.length; i++) {
             	knownMessages.addElement(initialMessages[i]);
             	if(isMessageDisplayable(initialMessages[i])) {
-            		insertDisplayableMessage(initialMessages[i]);
+            	    displayableMessages.addElement(initialMessages[i]);
             	}
             }
+            messageListField.addMessages(displayableMessages);
+            updateMessageRows();
             
         	this.mailboxNode.refreshMessages(true);
         	firstDisplay = false;
@@ -290,9 +308,8 @@ public class MailboxScreen extends AbstractScreenProvider {
 	}
     
 	/**
-	 * Listener to be added to all fields in the message field manager, so that
-	 * focus changes can be detected to update the shortcut bar.  This is
-	 * unfortunately the only reliable way to handle this situation.
+	 * Listener added to the message list, so that focus changes can be
+	 * detected to update the shortcut bar.
 	 */
     private FocusChangeListener messageFieldFocusChangeListener = new FocusChangeListener() {
         public void focusChanged(Field field, int eventType) {
@@ -308,32 +325,22 @@ public class MailboxScreen extends AbstractScreenProvider {
 	public void initFields(Screen screen) {
         super.initFields(screen);
 
-		messageFieldManager = new VerticalFieldManager(Manager.VERTICAL_SCROLL | Manager.VERTICAL_SCROLLBAR) {
+		messageFieldManager = new VerticalFieldManager(Manager.VERTICAL_SCROLL | Manager.VERTICAL_SCROLLBAR);
+		messageListField = new MailboxListField(mailboxNode, displayOrder, Field.USE_ALL_WIDTH) {
 		    protected boolean navigationMovement(int dx, int dy, int status, int time) {
 		        navigationMoved = true;
 		        return super.navigationMovement(dx, dy, status, time);
 		    }
-		    public void add(Field field) {
-		        field.setFocusListener(messageFieldFocusChangeListener);
-		        super.add(field);
-		    }
-		    public void insert(Field field, int index) {
-                field.setFocusListener(messageFieldFocusChangeListener);
-		        super.insert(field, index);
-		    }
-		    public void delete(Field field) {
-		        field.setFocusListener(null);
-		        super.delete(field);
-		        updateShortcuts();
-		    }
-		    public void deleteRange(int start, int count) {
-                for(int i=start; i < start + count; i++) {
-                    getField(start).setFocusListener(null);
-                }
-		        super.deleteRange(start, count);
-		        updateShortcuts();
+		    protected int moveFocus(int amount, int status, int time) {
+		        int result = super.moveFocus(amount, status, time);
+		        if(hasTouchscreen) {
+		            updateShortcuts();
+		        }
+		        return result;
 		    }
 		};
+		messageListField.setFocusListener(messageFieldFocusChangeListener);
+		messageFieldManager.add(messageListField);
 		
         screen.add(messageFieldManager);
     	this.messageActions = navigationController.getMessageActions();
@@ -341,10 +348,10 @@ public class MailboxScreen extends AbstractScreenProvider {
 	}    
 	
 	private void updateShortcuts() {
-	    int fieldCount = messageFieldManager.getFieldCount();
+	    int rowCount = messageListField.getSize();
 	    StandardScreen standardScreen = (StandardScreen)screen;
 	    
-	    if(fieldCount <= 1) {
+	    if(rowCount <= 1) {
 	        standardScreen.setShortcutEnabled(SHORTCUT_UP, false);
 	        standardScreen.setShortcutEnabled(SHORTCUT_DOWN, false);
 	        standardScreen.setShortcutEnabled(SHORTCUT_OPEN, false);
@@ -354,18 +361,17 @@ public class MailboxScreen extends AbstractScreenProvider {
 
 	    boolean openEnabled = false;
 	    boolean deleteEnabled = false;
-        Field fieldWithFocus = messageFieldManager.getFieldWithFocus();
-        if(fieldWithFocus instanceof MailboxMessageField) {
-            MessageNode messageNode = ((MailboxMessageField)fieldWithFocus).getMessageNode();
+        MessageNode messageNode = getSelectedMessage();
+        if(messageNode != null) {
             openEnabled = messageNode.existsOnServer() || messageNode.hasCachedContent();
             deleteEnabled = (messageNode.getFlags() & MessageNode.Flag.DELETED) == 0;
         }
-        int focusIndex = messageFieldManager.getFieldWithFocusIndex();
+        int focusIndex = messageListField.getSelectedIndex();
         if(focusIndex == 0) {
             standardScreen.setShortcutEnabled(SHORTCUT_UP, false);
             standardScreen.setShortcutEnabled(SHORTCUT_DOWN, true);
         }
-        else if(focusIndex == fieldCount - 1) {
+        else if(focusIndex == rowCount - 1) {
             standardScreen.setShortcutEnabled(SHORTCUT_UP, true);
             standardScreen.setShortcutEnabled(SHORTCUT_DOWN, false);
         }
@@ -387,8 +393,8 @@ public class MailboxScreen extends AbstractScreenProvider {
 	    };
 	    markPriorOpenedItem = new MenuItem( LogicMailResource.MENUITEM_MARK_PRIOR_OPENED, 400110, 2000) {
             public void run() {
-                if(!(currentContextField instanceof MessageSeparatorField)) { return; }
-                Date separatorDate = ((MessageSeparatorField)currentContextField).getDate();
+                if(!(currentContextRow instanceof MailboxListField.DateSeparator)) { return; }
+                Date separatorDate = ((MailboxListField.DateSeparator)currentContextRow).getDate();
                 mailboxNode.markPriorMessagesOpened(new Date(separatorDate.getTime() + 86400000));
             }
         };
@@ -398,17 +404,17 @@ public class MailboxScreen extends AbstractScreenProvider {
      * @see org.logicprobe.LogicMail.ui.BaseScreen#makeMenu(net.rim.device.api.ui.component.Menu, int)
      */
     public void makeMenu(Menu menu, int instance) {
-    	currentContextField = messageFieldManager.getFieldWithFocus();
-    	if(currentContextField instanceof MailboxMessageField) {
-    	    makeMessageMenu((MailboxMessageField)currentContextField, menu, instance);
+    	currentContextIndex = messageListField.getSelectedIndex();
+    	currentContextRow = messageListField.getSelectedRow();
+    	if(currentContextRow instanceof MessageNode) {
+    	    makeMessageMenu((MessageNode)currentContextRow, menu, instance);
     	}
-    	else if(currentContextField instanceof MessageSeparatorField) {
-    	    makeSeparatorMenu((MessageSeparatorField)currentContextField, menu, instance);
+    	else if(currentContextRow instanceof MailboxListField.DateSeparator) {
+    	    makeSeparatorMenu((MailboxListField.DateSeparator)currentContextRow, menu, instance);
     	}
     }
 
-    protected void makeMessageMenu(MailboxMessageField messageField, Menu menu, int instance) {
-        MessageNode messageNode = messageField.getMessageNode();
+    protected void makeMessageMenu(MessageNode messageNode, Menu menu, int instance) {
         if(instance == Menu.INSTANCE_DEFAULT) {
             messageActions.makeMenu(menu, instance, messageNode, false);
             if(composeEnabled) {
@@ -420,7 +426,7 @@ public class MailboxScreen extends AbstractScreenProvider {
         }
     }
     
-    protected void makeSeparatorMenu(MessageSeparatorField separatorField, Menu menu, int instance) {
+    protected void makeSeparatorMenu(MailboxListField.DateSeparator separator, Menu menu, int instance) {
         if(composeEnabled) {
             menu.add(compositionItem);
         }
@@ -472,131 +478,159 @@ public class MailboxScreen extends AbstractScreenProvider {
      * 
      * @param e Event data.
      */
-    private void mailboxNode_MailboxStatusChanged(final MailboxNodeEvent e) {
+    private void mailboxNode_MailboxStatusChanged(MailboxNodeEvent e) {
         int type = e.getType();
         if(type == MailboxNodeEvent.TYPE_NEW_MESSAGES) {
-            invokeLater(new Runnable() {
-                public void run() {
-                    handleMailboxNewMessages(e.getAffectedMessages());
-                }
-            });
+            addPendingUpdates(e.getAffectedMessages(), UPDATE_NEW);
         }
         else if(type == MailboxNodeEvent.TYPE_DELETED_MESSAGES) {
-            invokeLater(new Runnable() {
-                public void run() {
-                    handleMailboxDeletedMessages(e.getAffectedMessages());
-                }
-            });
+            addPendingUpdates(e.getAffectedMessages(), UPDATE_DELETED);
         }
         else if(type == MailboxNodeEvent.TYPE_FETCH_COMPLETE) {
             // Collect the gaps before scheduling the operation for the UI
             // thread.  This is necessary because the gap-finding operation
             // could be time consuming.
-            final MessageNode[][] gaps = mailboxNode.findMessageNodeGaps();
+            MessageNode[][] gaps = mailboxNode.findMessageNodeGaps();
             if(gaps == null || gaps.length == 0) { return; }
             
-            invokeLater(new Runnable() {
-                public void run() {
-                    handleMessageNodeGaps(gaps);
-                }
-            });
+            synchronized(pendingUpdatesLock) {
+                pendingGaps = gaps;
+                schedulePendingUpdates();
+            }
         }
     }
-
-    private void handleMailboxNewMessages(MessageNode[] messageNodes) {
-        for(int i=0; i<messageNodes.length; i++) {
-        	knownMessages.addElement(messageNodes[i]);
-        	
-        	if(isMessageDisplayable(messageNodes[i])) {
-        		// Insert the message
-        		insertDisplayableMessage(messageNodes[i]);
-        	}
-        	
-        	if(screen != null && screen.isDisplayed()) {
-        		messageNodes[i].addMessageNodeListener(messageNodeListener);
-        	}
+    
+    private void addPendingUpdates(MessageNode[] messageNodes, Integer update) {
+        if(messageNodes == null || messageNodes.length == 0) { return; }
+        synchronized(pendingUpdatesLock) {
+            for(int i=0; i<messageNodes.length; i++) {
+                addPendingUpdate(messageNodes[i], update);
+            }
+            schedulePendingUpdates();
         }
     }
-
-    private void handleMailboxDeletedMessages(MessageNode[] messageNodes) {
-        for(int i=0; i<messageNodes.length; i++) {
-            if(screen != null && screen.isDisplayed()) {
-                messageNodes[i].removeMessageNodeListener(messageNodeListener);
+    
+    /**
+     * Merges a change into the pending update map, so that only the net
+     * change for each message gets applied to the screen.
+     * The caller must hold <code>pendingUpdatesLock</code>.
+     *
+     * @param messageNode the message node that changed
+     * @param update the type of change
+     */
+    private void addPendingUpdate(MessageNode messageNode, Integer update) {
+        Integer pending = (Integer)pendingUpdates.get(messageNode);
+        if(update == UPDATE_NEW) {
+            // A message that is deleted and added back before the screen
+            // is updated is still displayed, so it only needs a refresh
+            pendingUpdates.put(messageNode,
+                    (pending == UPDATE_DELETED) ? UPDATE_CHANGED : UPDATE_NEW);
+        }
+        else if(update == UPDATE_DELETED) {
+            if(pending == UPDATE_NEW) {
+                pendingUpdates.remove(messageNode);
             }
-            removeDisplayableMessage(messageNodes[i]);
-            knownMessages.removeElement(messageNodes[i]);
+            else {
+                pendingUpdates.put(messageNode, UPDATE_DELETED);
+            }
+        }
+        else if(pending == null) {
+            pendingUpdates.put(messageNode, UPDATE_CHANGED);
         }
     }
-
-    private void handleMessageNodeGaps(MessageNode[][] gaps) {
-        // Build a set of all gap fields currently on the screen
-        Hashtable orphanedGapFieldSet = new Hashtable();
-        int size = messageFieldManager.getFieldCount();
-        for(int i=0; i<size; i++) {
-            Field fieldAtIndex = messageFieldManager.getField(i);
-            if(fieldAtIndex instanceof MailboxActionField) {
-                orphanedGapFieldSet.put(fieldAtIndex, Boolean.TRUE);
-            }
+    
+    /**
+     * Schedules the pending updates to be applied, if they are not already
+     * scheduled.  The caller must hold <code>pendingUpdatesLock</code>.
+     */
+    private void schedulePendingUpdates() {
+        if(!pendingUpdatesScheduled) {
+            pendingUpdatesScheduled = true;
+            invokeLater(applyPendingUpdatesRunnable);
         }
-
-        for(int i = 0; i < gaps.length; i++) {
-            MailboxActionField gapField = null;
-            int insertIndex;
-            if(displayOrder) {
-                // Ascending order
-
-                // Find the field for message after the gap
-                MailboxMessageField messageFieldAfter = (MailboxMessageField)messageNodeToFieldMap.get(gaps[i][1]);
-                if(messageFieldAfter == null) { continue; }
-                insertIndex = messageFieldAfter.getIndex();
-
-                // See if there is an existing field that can be taken over
-                if(insertIndex - 1 > 0) {
-                    Field fieldAtIndex = messageFieldManager.getField(insertIndex - 1);
-                    if(fieldAtIndex instanceof MailboxActionField) {
-                        // Take over an existing field and remove it from the
-                        // orphaned field set
-                        gapField = (MailboxActionField)fieldAtIndex;
-                        orphanedGapFieldSet.remove(gapField);
-                    }
+    }
+    
+    private final Runnable applyPendingUpdatesRunnable = new Runnable() {
+        public void run() {
+            applyPendingUpdates();
+        }
+    };
+    
+    /**
+     * Applies all the model changes that have accumulated since the last
+     * update, as a single update of the message list rows.
+     */
+    private void applyPendingUpdates() {
+        Hashtable updates;
+        MessageNode[][] gaps;
+        synchronized(pendingUpdatesLock) {
+            updates = pendingUpdates;
+            gaps = pendingGaps;
+            pendingUpdates = new Hashtable();
+            pendingGaps = null;
+            pendingUpdatesScheduled = false;
+        }
+        
+        boolean displayed = screen != null && screen.isDisplayed();
+        Vector insertedMessages = new Vector();
+        Vector deletedMessages = new Vector();
+        boolean changed = false;
+        
+        Enumeration e = updates.keys();
+        while(e.hasMoreElements()) {
+            MessageNode messageNode = (MessageNode)e.nextElement();
+            Object update = updates.get(messageNode);
+            
+            if(update == UPDATE_NEW) {
+                knownMessages.addElement(messageNode);
+                if(displayed) {
+                    messageNode.addMessageNodeListener(messageNodeListener);
+                }
+                if(isMessageDisplayable(messageNode)) {
+                    insertedMessages.addElement(messageNode);
                 }
             }
-            else {
-                // Descending order
-
-                // Find the field for message before the gap
-                MailboxMessageField messageFieldBefore = (MailboxMessageField)messageNodeToFieldMap.get(gaps[i][1]);
-                if(messageFieldBefore == null) { continue; }
-                insertIndex = messageFieldBefore.getIndex() + 1;
-
-                // See if there is an existing field that can be taken over
-                if(insertIndex < messageFieldManager.getFieldCount()) {
-                    Field fieldAtIndex = messageFieldManager.getField(insertIndex);
-                    if(fieldAtIndex instanceof MailboxActionField) {
-                        // Take over an existing field and remove it from the
-                        // orphaned field set
-                        gapField = (MailboxActionField)fieldAtIndex;
-                        orphanedGapFieldSet.remove(gapField);
-                    }
+            else if(update == UPDATE_DELETED) {
+                if(displayed) {
+                    messageNode.removeMessageNodeListener(messageNodeListener);
                 }
+                knownMessages.removeElement(messageNode);
+                deletedMessages.addElement(messageNode);
             }
-
-            // Create a new field, if necessary, and set field properties
-            if(gapField == null) {
-                gapField = new MailboxActionField(
-                        LogicMailResource.MAILBOX_LOAD_MORE_MESSAGES,
-                        Field.USE_ALL_WIDTH | Field.FOCUSABLE);
-                messageFieldManager.insert(gapField, insertIndex);
+            else {
+                boolean currentlyDisplayed = messageListField.containsMessage(messageNode);
+                boolean displayable = isMessageDisplayable(messageNode);
+                if(currentlyDisplayed && !displayable) {
+                    // Remove from display
+                    deletedMessages.addElement(messageNode);
+                }
+                else if(!currentlyDisplayed && displayable) {
+                    // Add to display
+                    insertedMessages.addElement(messageNode);
+                }
+                else if(currentlyDisplayed) {
+                    // Just a visual flag update, so only a repaint is needed
+                    changed = true;
+                }
             }
-            gapField.setEditable(true);
-            gapField.setTagObject(gaps[i]);
         }
-
-        // Remove orphaned gap fields
-        Enumeration e = orphanedGapFieldSet.keys();
-        while(e.hasMoreElements()) {
-            messageFieldManager.delete((MailboxActionField)e.nextElement());
+        
+        if(deletedMessages.isEmpty() && insertedMessages.isEmpty() && gaps == null) {
+            if(changed) { messageListField.invalidate(); }
+            return;
         }
+        
+        messageListField.removeMessages(deletedMessages);
+        messageListField.addMessages(insertedMessages);
+        if(gaps != null) {
+            messageListField.setGaps(gaps);
+        }
+        updateMessageRows();
+    }
+
+    private void handleMessageNodeGaps(MessageNode[][] gaps) {
+        messageListField.setGaps(gaps);
+        updateMessageRows();
     }
     
     /**
@@ -623,287 +657,65 @@ public class MailboxScreen extends AbstractScreenProvider {
      * approach of emptying and repopulating the screen.
      */
     private void displayableChanged() {
+        messageListField.setDisplayOrder(displayOrder);
         int size = knownMessages.size();
         if(size == 0) { return; }
         
-        // Clear out all the existing content from the field manager and map
-        messageNodeToFieldMap.clear();
-        messageFieldManager.deleteAll();
+        // Clear out all the existing content from the message list
+        messageListField.removeAll();
         
         // Reset the flag that controls field focus behavior
         navigationMoved = false;
         
         // Get the known messages display them if appropriate
+        Vector displayableMessages = new Vector(size);
         for(int i=0; i<size; i++) {
             MessageNode messageNode = (MessageNode)knownMessages.elementAt(i);
             if(isMessageDisplayable(messageNode)) {
-                insertDisplayableMessage(messageNode);
+                displayableMessages.addElement(messageNode);
             }
         }
+        messageListField.addMessages(displayableMessages);
+        updateMessageRows();
     }
     
     /**
-     * Insert a message into the list and associated data structures.
-     * This will insert into the correct order, per the configuration.
-     * 
-     * @param messageNode Message to insert.
+     * Rebuilds the rows of the message list after its contents have changed,
+     * and updates the selection.  If the user has not navigated the list,
+     * the newest message is selected.  Otherwise, the previous selection
+     * is kept.
      */
-    private void insertDisplayableMessage(MessageNode messageNode) {
-    	Field selectedField = messageFieldManager.getFieldWithFocus();
-    	
-    	int fieldCount = messageFieldManager.getFieldCount();
-		if(fieldCount > 0) {
-			Comparator comparator = MessageNode.getComparator();
-			int index = messageFieldManager.getFieldCount();
-			
-			if(displayOrder) {
-				// Ascending order
-				MessageNode lastMessage = getLastDisplayedMessage(index - 1);
-				while(lastMessage != null && index > 0 && comparator.compare(lastMessage, messageNode) >= 0) {
-					index--;
-					if(index > 0) { lastMessage = getLastDisplayedMessage(index - 1); }
-				}
-                
-                // Deal with the case of trying to insert right before an action field
-                if(index < fieldCount - 1 && messageFieldManager.getField(index + 1) instanceof MailboxActionField) {
-                    index++;
-                }
-			}
-			else {
-				// Descending order
-				MessageNode lastMessage = getLastDisplayedMessage(index - 1);
-				while(lastMessage != null && index > 0 && comparator.compare(lastMessage, messageNode) <= 0) {
-					index--;
-					if(index > 0) { lastMessage = getLastDisplayedMessage(index - 1); }
-				}
-				
-				// Deal with the case of trying to insert right after an action field
-				if(index > 0 && messageFieldManager.getField(index - 1) instanceof MailboxActionField) {
-				    index--;
-				}
-			}
-			MailboxMessageField mailboxMessageField =
-				new MailboxMessageField(mailboxNode, messageNode, Field.USE_ALL_WIDTH | Field.FOCUSABLE);
-			messageNodeToFieldMap.put(messageNode, mailboxMessageField);
-            insertMessageField(mailboxMessageField, index);
-		}
-		else {
-			MailboxMessageField mailboxMessageField =
-				new MailboxMessageField(mailboxNode, messageNode, Field.USE_ALL_WIDTH | Field.FOCUSABLE);
-			messageNodeToFieldMap.put(messageNode, mailboxMessageField);
-			insertMessageField(mailboxMessageField, 0);
-		}
-		
-		if(!navigationMoved) {
-		    // Select newest message
-            int count = messageFieldManager.getFieldCount();
-            if(count > 0) {
-                if(displayOrder) {
-                    messageFieldManager.getField(count - 1).setFocus();
-                }
-                else {
-                    messageFieldManager.getField(0).setFocus();
-                }
-            }
-		}
-		else {
-		    // Keep previous selection
-            if(selectedField != null) { selectedField.setFocus(); }
-		}
-    }
-
-    /**
-     * Remove a message from the list and associated data structures,
-     * if that message exists in the list.
-     * 
-     * @param messageNode Message to insert.
-     */
-    private void removeDisplayableMessage(MessageNode messageNode) {
-        MailboxMessageField mailboxMessageField = (MailboxMessageField)messageNodeToFieldMap.remove(messageNode);
-        if(mailboxMessageField == null) { return; }
-
-        deleteMessageField(mailboxMessageField);
-    }
-    
-    private void insertMessageField(MailboxMessageField messageField, int index) {
-        // It is assumed that the index will only be 0 for the first message.
+    private void updateMessageRows() {
+        messageListField.updateRows();
         
-        Date messageDate = messageField.getMessageNode().getDate();
-        
-        if(displayOrder) {
-            // Ascending order
-            if(messageFieldManager.getFieldCount() == 0) {
-                messageFieldManager.add(messageField);
-                messageFieldManager.add(new MessageSeparatorField(messageDate));
-            }
-            else {
-                if(index > 0 && messageFieldManager.getField(index - 1) instanceof MessageSeparatorField) {
-                    Date sepDate = ((MessageSeparatorField)messageFieldManager.getField(index - 1)).getDate();
-                    if(DateTimeUtilities.isSameDate(messageDate.getTime(), sepDate.getTime())) {
-                        index--;
-                    }
-                }
-                
-                Field nextField;
-                if(index < messageFieldManager.getFieldCount()) {
-                    nextField = messageFieldManager.getField(index);
-                }
-                else {
-                    nextField = null;
-                }
-                
-                if(nextField instanceof MessageSeparatorField) {
-                    Date sepDate = ((MessageSeparatorField)nextField).getDate();
-                    if(DateTimeUtilities.isSameDate(messageDate.getTime(), sepDate.getTime())) {
-                        messageFieldManager.insert(messageField, index);
-                    }
-                    else {
-                        messageFieldManager.insert(new MessageSeparatorField(messageDate), index + 1);
-                        messageFieldManager.insert(messageField, index + 1);
-                    }
-                }
-                else if(nextField instanceof MailboxMessageField) {
-                    Date nextDate = ((MailboxMessageField)nextField).getMessageNode().getDate();
-                    if(DateTimeUtilities.isSameDate(messageDate.getTime(), nextDate.getTime())) {
-                        messageFieldManager.insert(messageField, index);
-                    }
-                    else {
-                        messageFieldManager.insert(new MessageSeparatorField(messageDate), index);
-                        messageFieldManager.insert(messageField, index);
-                    }
-                }
-                else {
-                    messageFieldManager.insert(new MessageSeparatorField(messageDate), index);
-                    messageFieldManager.insert(messageField, index);
-                }
-            }
-        }
-        else {
-            // Descending order
-            if(messageFieldManager.getFieldCount() == 0) {
-                messageFieldManager.add(new MessageSeparatorField(messageDate));
-                messageFieldManager.add(messageField);
-            }
-            else  {
-                Field prevField = messageFieldManager.getField(index - 1);
-
-                if(prevField instanceof MessageSeparatorField) {
-                    Date sepDate = ((MessageSeparatorField)prevField).getDate();
-                    if(!DateTimeUtilities.isSameDate(messageDate.getTime(), sepDate.getTime())
-                            && index > 1
-                            && messageFieldManager.getField(index - 2) instanceof MailboxMessageField) {
-                        index--;
-                        prevField = messageFieldManager.getField(index - 1);
-                    }
-                }
-                
-                if(prevField instanceof MessageSeparatorField) {
-                    Date sepDate = ((MessageSeparatorField)prevField).getDate();
-                    if(DateTimeUtilities.isSameDate(messageDate.getTime(), sepDate.getTime())) {
-                        messageFieldManager.insert(messageField, index);
-                    }
-                    else {
-                        messageFieldManager.insert(new MessageSeparatorField(messageDate), index - 1);
-                        messageFieldManager.insert(messageField, index);
-                    }
-                }
-                else {
-                    Date prevDate = ((MailboxMessageField)prevField).getMessageNode().getDate();
-                    if(DateTimeUtilities.isSameDate(messageDate.getTime(), prevDate.getTime())) {
-                        messageFieldManager.insert(messageField, index);
-                    }
-                    else {
-                        messageFieldManager.insert(new MessageSeparatorField(messageDate), index);
-                        messageFieldManager.insert(messageField, index + 1);
-                    }
-                }
-            }
-        }
-    }
-    
-    private void deleteMessageField(MailboxMessageField messageField) {
-        int fieldCount = messageFieldManager.getFieldCount();
-        int index = messageField.getIndex();
-        
-        if(displayOrder) {
-            // Ascending order
-            if(messageFieldManager.getField(index + 1) instanceof MessageSeparatorField
-                    && (index == 0 || messageFieldManager.getField(index - 1) instanceof MessageSeparatorField)) {
-                messageFieldManager.deleteRange(index, 2);
+        int count = messageListField.getSize();
+        if(!navigationMoved && count > 0) {
+            // Select newest message
+            if(displayOrder) {
+                messageListField.setSelectedIndex(count - 1);
             }
             else {
-                messageFieldManager.delete(messageField);
+                messageListField.setSelectedIndex(0);
             }
         }
-        else {
-            // Descending order
-            if(messageFieldManager.getField(index - 1) instanceof MessageSeparatorField
-                    && (index == fieldCount - 1 || messageFieldManager.getField(index + 1) instanceof MessageSeparatorField)) {
-                messageFieldManager.deleteRange(index - 1, 2);
-            }
-            else {
-                messageFieldManager.delete(messageField);
-            }
+        if(hasTouchscreen && screen != null) {
+            updateShortcuts();
         }
     }
     
-    /**
-     * Gets the last displayed message.
-     * 
-     * @param index the index
-     * 
-     * @return the last displayed message
-     */
-    private MessageNode getLastDisplayedMessage(int index) {
-    	while(index >= 0) {
-    		if(messageFieldManager.getField(index) instanceof MailboxMessageField) {
-    			return ((MailboxMessageField)messageFieldManager.getField(index)).getMessageNode();
-    		}
-    		index--;
-    	}
-    	return null;
-    }
-    
-    /**
-     * Handles message status change events.
-     * 
-     * @param e Event data.
-     */
-	private void messageNode_MessageStatusChanged(MessageNodeEvent e) {
-		if(e.getType() == MessageNodeEvent.TYPE_FLAGS) {
-			MessageNode messageNode = (MessageNode)e.getSource();
-			boolean currentlyDisplayed = messageNodeToFieldMap.containsKey(messageNode);
-			boolean displayable = isMessageDisplayable(messageNode);
-			
-			if(currentlyDisplayed && !displayable) {
-				// Remove from display
-			    removeDisplayableMessage(messageNode);
-			}
-			else if(!currentlyDisplayed && displayable) {
-				// Add to display
-				insertDisplayableMessage(messageNode);
-			}
-			else if(currentlyDisplayed) {
-				// Just a visual flag update, so find and invalidate the item
-				MailboxMessageField mailboxMessageField = (MailboxMessageField)messageNodeToFieldMap.get(messageNode);
-				mailboxMessageField.invalidate();
-			}
-		}
-	}
-
     /**
      * Gets the selected message.
      * 
      * @return the selected message
      */
     private MessageNode getSelectedMessage() {
-    	Field fieldWithFocus = messageFieldManager.getFieldWithFocus();
-    	if(fieldWithFocus instanceof MailboxMessageField) {
-    		return ((MailboxMessageField)fieldWithFocus).getMessageNode();
-    	}
-    	else {
-    		return null;
-    	}
+        Object selectedRow = messageListField.getSelectedRow();
+        if(selectedRow instanceof MessageNode) {
+            return (MessageNode)selectedRow;
+        }
+        else {
+            return null;
+        }
     }
     
     /**
@@ -911,15 +723,14 @@ public class MailboxScreen extends AbstractScreenProvider {
      *
      * @return the selected message gap range
      */
-    private MailboxActionField getSelectedMessageGapField() {
-        Field fieldWithFocus = messageFieldManager.getFieldWithFocus();
-        if(fieldWithFocus instanceof MailboxActionField) {
-            MailboxActionField field = (MailboxActionField)fieldWithFocus;
-            if(field.getTagObject() instanceof MessageNode[]) {
-                return field;
-            }
+    private MessageNode[] getSelectedMessageGap() {
+        Object selectedRow = messageListField.getSelectedRow();
+        if(selectedRow instanceof MessageNode[]) {
+            return (MessageNode[])selectedRow;
+        }
+        else {
+            return null;
         }
-        return null;
     }
     
     /* (non-Javadoc)
@@ -931,9 +742,9 @@ public class MailboxScreen extends AbstractScreenProvider {
     		messageActions.openMessage(messageNode);
     		return true;
     	}
-    	MailboxActionField gapField = getSelectedMessageGapField();
-    	if(gapField != null) {
-    	    handleMessageGapAction(gapField);
+    	MessageNode[] gap = getSelectedMessageGap();
+    	if(gap != null) {
+    	    handleMessageGapAction(gap);
     	    return true;
     	}
     	
@@ -954,9 +765,9 @@ public class MailboxScreen extends AbstractScreenProvider {
                 messageActions.openMessage(messageNode);
                 return true;
             }
-            MailboxActionField gapField = getSelectedMessageGapField();
-            if(gapField != null) {
-                handleMessageGapAction(gapField);
+            MessageNode[] gap = getSelectedMessageGap();
+            if(gap != null) {
+                handleMessageGapAction(gap);
                 return true;
             }
             break;
@@ -1015,16 +826,15 @@ public class MailboxScreen extends AbstractScreenProvider {
     }
     
     private void scrollNextDate(boolean direction) {
-        int index = messageFieldManager.getFieldWithFocusIndex();
-        int count = messageFieldManager.getFieldCount();
+        int index = messageListField.getSelectedIndex();
+        int count = messageListField.getSize();
         
         if(direction) {
             // Upward
             index--;
             while(index >= 0) {
-                if(messageFieldManager.getField(index) instanceof MessageSeparatorField) {
-                    messageFieldManager.setFocus();
-                    messageFieldManager.getField(index).setFocus();
+                if(messageListField.getRow(index) instanceof MailboxListField.DateSeparator) {
+                    selectMessageRow(index);
                     break;
                 }
                 index--;
@@ -1034,9 +844,8 @@ public class MailboxScreen extends AbstractScreenProvider {
             // Downward
             index++;
             while(index < count) {
-                if(messageFieldManager.getField(index) instanceof MessageSeparatorField) {
-                    messageFieldManager.setFocus();
-                    messageFieldManager.getField(index).setFocus();
+                if(messageListField.getRow(index) instanceof MailboxListField.DateSeparator) {
+                    selectMessageRow(index);
                     break;
                 }
                 index++;
@@ -1045,20 +854,16 @@ public class MailboxScreen extends AbstractScreenProvider {
     }
 
     private void scrollNextUnopened() {
-        int index = messageFieldManager.getFieldWithFocusIndex();
-        int count = messageFieldManager.getFieldCount();
+        int index = messageListField.getSelectedIndex();
+        int count = messageListField.getSize();
         
         if(displayOrder) {
             // Ascending
             index--;
             while(index >= 0) {
-                if(messageFieldManager.getField(index) instanceof MailboxMessageField) {
-                    MailboxMessageField field = (MailboxMessageField)messageFieldManager.getField(index);
-                    if((field.getMessageNode().getFlags() & MessageNode.Flag.SEEN) == 0) {
-                        messageFieldManager.setFocus();
-                        field.setFocus();
-                        break;
-                    }
+                if(isUnopenedRow(index)) {
+                    selectMessageRow(index);
+                    break;
                 }
                 index--;
             }
@@ -1067,33 +872,53 @@ public class MailboxScreen extends AbstractScreenProvider {
             // Descending
             index++;
             while(index < count) {
-                if(messageFieldManager.getField(index) instanceof MailboxMessageField) {
-                    MailboxMessageField field = (MailboxMessageField)messageFieldManager.getField(index);
-                    if((field.getMessageNode().getFlags() & MessageNode.Flag.SEEN) == 0) {
-                        messageFieldManager.setFocus();
-                        field.setFocus();
-                        break;
-                    }
+                if(isUnopenedRow(index)) {
+                    selectMessageRow(index);
+                    break;
                 }
                 index++;
             }
         }
     }
+    
+    private boolean isUnopenedRow(int index) {
+        Object row = messageListField.getRow(index);
+        return row instanceof MessageNode
+            && (((MessageNode)row).getFlags() & MessageNode.Flag.SEEN) == 0;
+    }
+    
+    /**
+     * Gets the list field containing the message and separator rows.
+     *
+     * @return the message list field
+     */
+    protected MailboxListField getMessageListField() {
+        return messageListField;
+    }
+    
+    protected void selectMessageRow(int index) {
+        navigationMoved = true;
+        messageListField.setFocus();
+        messageListField.setSelectedIndex(index);
+        if(hasTouchscreen) {
+            updateShortcuts();
+        }
+    }
 
-    private void handleMessageGapAction(final MailboxActionField gapField) {
+    private void handleMessageGapAction(final MessageNode[] gap) {
         AnalyticsDataCollector.getInstance().onButtonClick(getScreenPath(), getScreenName(), "requestMoreMessages");
         
-        // This method inserts a short delay, where the gap action field is
+        // This method inserts a short delay, where the gap action row is
         // disabled, prior to starting the request.  This is done to provide
-        // feedback that the user has triggered an action before the field
+        // feedback that the user has triggered an action before the row
         // disappears from the screen.
         
-        final MessageNode[] gap = (MessageNode[])gapField.getTagObject();
-        gapField.setEditable(false);
+        messageListField.disableGap(gap);
         (new Thread() { public void run() {
             try { Thread.sleep(200); } catch (InterruptedException e) { }
             invokeLater(new Runnable() { public void run() {
-                messageFieldManager.delete(gapField);
+                messageListField.removeGap(gap);
+                updateMessageRows();
                 mailboxNode.requestMoreMessages(gap[1]);
             }});
         }}).start();
@@ -1130,29 +955,4 @@ public class MailboxScreen extends AbstractScreenProvider {
     		break;
     	}
     }
-    
-    protected static class MessageSeparatorField extends LabeledSeparatorField {
-        private final Date date;
-        
-        public MessageSeparatorField(Date date) {
-            super(Field.FOCUSABLE | LabeledSeparatorField.BOTTOM_BORDER);
-   
-            Calendar cal = Calendar.getInstance();
-            cal.setTime(date);
-            cal.set(Calendar.HOUR_OF_DAY, 0);
-            cal.set(Calendar.MINUTE, 0);
-            cal.set(Calendar.SECOND, 0);
-            cal.set(Calendar.MILLISECOND, 0);
-            
-            StringBuffer buffer = new StringBuffer();
-            DateFormat.getInstance(DateFormat.DATE_LONG).format(cal, buffer, null);
-            setText(buffer.toString());
-            
-            this.date = cal.getTime();
-        }
-        
-        public Date getDate() {
-            return date;
-        }
-    }
 }
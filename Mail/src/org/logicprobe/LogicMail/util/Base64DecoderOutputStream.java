@@ -0,0 +1,159 @@
+/*-
+ * Copyright (c) 2011, Derek Konigsberg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.logicprobe.LogicMail.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that decodes Base64 data as it is written, and passes the
+ * decoded data on to an underlying stream.
+ * <p>
+ * This allows encoded content to be decoded incrementally as it arrives,
+ * without ever having to hold the complete encoded form in memory.
+ * Characters outside of the Base64 alphabet, such as line breaks, are
+ * ignored, and decoding stops at the first padding character.
+ * </p>
+ */
+public class Base64DecoderOutputStream extends OutputStream {
+    private static final byte[] DECODE_TABLE = createDecodeTable();
+    private static final int BUFFER_SIZE = 1024;
+    
+    private final OutputStream output;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferLength;
+    private int quantum;
+    private int quantumLength;
+    private boolean finished;
+    
+    /**
+     * Instantiates a new Base64 decoder stream.
+     *
+     * @param output the stream to write decoded data to
+     */
+    public Base64DecoderOutputStream(OutputStream output) {
+        this.output = output;
+    }
+    
+    private static byte[] createDecodeTable() {
+        byte[] table = new byte[128];
+        for(int i=0; i<table.length; i++) {
+            table[i] = -1;
+        }
+        for(int i=0; i<26; i++) {
+            table['A' + i] = (byte)i;
+            table['a' + i] = (byte)(26 + i);
+        }
+        for(int i=0; i<10; i++) {
+            table['0' + i] = (byte)(52 + i);
+        }
+        table['+'] = 62;
+        table['/'] = 63;
+        return table;
+    }
+    
+    public void write(int b) throws IOException {
+        if(finished) { return; }
+        
+        b &= 0xFF;
+        if(b == '=') {
+            finishQuantum();
+            return;
+        }
+        if(b >= DECODE_TABLE.length || DECODE_TABLE[b] == -1) {
+            return;
+        }
+        
+        quantum = (quantum << 6) | DECODE_TABLE[b];
+        quantumLength++;
+        if(quantumLength == 4) {
+            if(bufferLength + 3 > BUFFER_SIZE) {
+                flushBuffer();
+            }
+            buffer[bufferLength++] = (byte)(quantum >> 16);
+            buffer[bufferLength++] = (byte)(quantum >> 8);
+            buffer[bufferLength++] = (byte)quantum;
+            quantum = 0;
+            quantumLength = 0;
+        }
+    }
+    
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        for(int i=off; i<end; i++) {
+            write(b[i]);
+        }
+    }
+    
+    /**
+     * Handles a padding character by writing out whatever is left of the
+     * current quantum, and ignoring all further input.
+     */
+    private void finishQuantum() throws IOException {
+        if(bufferLength + 2 > BUFFER_SIZE) {
+            flushBuffer();
+        }
+        if(quantumLength == 2) {
+            buffer[bufferLength++] = (byte)(quantum >> 4);
+        }
+        else if(quantumLength == 3) {
+            buffer[bufferLength++] = (byte)(quantum >> 10);
+            buffer[bufferLength++] = (byte)(quantum >> 2);
+        }
+        quantum = 0;
+        quantumLength = 0;
+        finished = true;
+    }
+    
+    private void flushBuffer() throws IOException {
+        if(bufferLength > 0) {
+            output.write(buffer, 0, bufferLength);
+            bufferLength = 0;
+        }
+    }
+    
+    public void flush() throws IOException {
+        flushBuffer();
+        output.flush();
+    }
+    
+    /**
+     * Writes out any remaining decoded data, and closes the underlying stream.
+     * Input that ended without padding is treated as if it had been padded.
+     */
+    public void close() throws IOException {
+        if(!finished) {
+            finishQuantum();
+        }
+        flushBuffer();
+        output.close();
+    }
+}
@@ -33,7 +33,6 @@ package org.logicprobe.LogicMail.util;
 
 import net.rim.device.api.compress.ZLibInputStream;
 import net.rim.device.api.compress.ZLibOutputStream;
-import net.rim.device.api.io.NoCopyByteArrayOutputStream;
 import net.rim.device.api.system.EventLogger;
 import net.rim.device.api.util.Arrays;
 
@@ -59,7 +58,6 @@ public class Connection {
     private static final byte CR = (byte)0x0D;
     private static final byte LF = (byte)0x0A;
     private static final byte[] CRLF = new byte[] { CR, LF };
-    private static String strCRLF = "\r\n";
 
     private SocketConnection socket;
     private final int connectionType;
@@ -77,17 +75,32 @@ public class Connection {
     private Thread socketWriteThread;
     private volatile boolean connectionClosed = true;
     
+    /** Size of the send buffer, which larger writes go around */
+    private static final int SEND_BUFFER_SIZE = 4096;
+    
     /**
-     * Byte stream used to hold received data before it is passed back to
-     * the rest of the application.
+     * Buffer used to collect sent data, so it can be written to the socket
+     * in as few pieces as possible.
      */
-    private final ByteArrayOutputStream byteStream = new NoCopyByteArrayOutputStream(1024);
+    private final byte[] sendBuffer = new byte[SEND_BUFFER_SIZE];
+    private int sendLength;
+    private boolean corked;
+    
+    /** Initial size of the receive buffer, which it is shrunk back to when empty */
+    private static final int RECEIVE_BUFFER_SIZE = 1024;
+    
+    /** Largest amount of data to read from the socket at once */
+    private static final int MAX_READ_SIZE = 8192;
     
     /**
-     * Temporary read buffer used as an intermediary between the socket and
-     * the byteStream.
+     * Buffer used to hold received data before it is passed back to the
+     * rest of the application.  Data that has not yet been returned starts
+     * at <code>receiveOffset</code>, so returning a response only moves that
+     * offset forward instead of copying the rest of the buffer.
      */
-    private final byte[] readBuffer = new byte[1024];
+    private byte[] receiveBuffer = new byte[RECEIVE_BUFFER_SIZE];
+    private int receiveOffset;
+    private int receiveLength;
     
     /**
      * Initializes a new connection object.
@@ -218,7 +231,8 @@ public class Connection {
 
     /**
      * Gets the number of bytes that have been sent since the
-     * connection was opened.
+     * connection was opened.  Data collected by the send methods is only
+     * counted once it has been written to the socket.
      * <p>
      * The counter is not synchronized, so it should only be
      * called from the same thread as the send and receive
@@ -281,6 +295,9 @@ public class Connection {
      * Sends a string to the server, terminating it with a CRLF.
      * No cleanup is performed, as it is expected that the string
      * is a prepared protocol command.
+     * The connection is flushed afterwards, unless it is corked.
+     *
+     * @see #cork()
      */
     public void sendCommand(String s) throws IOException {
         if (globalConfig.getConnDebug()) {
@@ -290,16 +307,13 @@ public class Connection {
 
         synchronized (socketLock) { socketWriteThread = Thread.currentThread(); }
         synchronized(socketWriteLock) {
-            if (s == null) {
-                output.write(CRLF, 0, 2);
-                bytesSent += 2;
-            } else {
-                byte[] buf = (s + strCRLF).getBytes();
-                output.write(buf);
-                bytesSent += buf.length;
+            if (s != null) {
+                byte[] buf = s.getBytes();
+                write(buf, 0, buf.length);
             }
+            write(CRLF, 0, 2);
     
-            output.flush();
+            if(!corked) { flushImpl(); }
         }
         synchronized (socketLock) { socketWriteThread = null; }
         if(connectionClosed) { throw new IOException(); }
@@ -309,13 +323,15 @@ public class Connection {
      * Sends a string to the server. This method is used to bypass all
      * the processing done by the normal send method, and is most useful
      * for bulk transmissions.  It writes the provided string to the socket
-     * in a single command, followed by a flush.
+     * in a single command, followed by a flush unless the connection is
+     * corked.
      * 
      * @param data   the data.
      * @param offset the start offset in the data.
      * @param length the number of bytes to write. 
      *
      * @see #send
+     * @see #cork()
      */
     public void sendRaw(byte[] data, int offset, int length) throws IOException {
         if (globalConfig.getConnDebug()) {
@@ -328,15 +344,91 @@ public class Connection {
 
         synchronized (socketLock) { socketWriteThread = Thread.currentThread(); }
         synchronized(socketWriteLock) {
-            output.write(data, offset, length);
-            bytesSent += length;
+            write(data, offset, length);
     
-            output.flush();
+            if(!corked) { flushImpl(); }
         }
         synchronized (socketLock) { socketWriteThread = null; }
         
         if(connectionClosed) { throw new IOException(); }
     }
+    
+    /**
+     * Corks the connection, so data from the send methods is collected
+     * instead of being flushed after each call.  This allows a sequence of
+     * commands or chunks of data to be sent in as few network packets, TLS
+     * records, and compression blocks as possible.  Data may still be
+     * written to the socket while corked if a large amount is collected,
+     * but it is not flushed until {@link #uncork()} or {@link #flush()}
+     * is called.
+     */
+    public void cork() {
+        synchronized(socketWriteLock) {
+            corked = true;
+        }
+    }
+    
+    /**
+     * Uncorks the connection, flushing any data collected since
+     * {@link #cork()} was called.
+     */
+    public void uncork() throws IOException {
+        synchronized(socketWriteLock) {
+            corked = false;
+        }
+        flush();
+    }
+    
+    /**
+     * Flushes any data collected by the send methods to the server,
+     * regardless of whether the connection is corked.
+     */
+    public void flush() throws IOException {
+        synchronized (socketLock) { socketWriteThread = Thread.currentThread(); }
+        synchronized(socketWriteLock) {
+            flushImpl();
+        }
+        synchronized (socketLock) { socketWriteThread = null; }
+        
+        if(connectionClosed) { throw new IOException(); }
+    }
+    
+    /**
+     * Adds data to the send buffer.  If the data will not fit, the buffer
+     * is filled and written out first, and any remaining data that would
+     * fill the buffer by itself is written straight to the socket.
+     */
+    private void write(byte[] data, int offset, int length) throws IOException {
+        if(sendLength > 0 && sendLength + length > SEND_BUFFER_SIZE) {
+            int count = SEND_BUFFER_SIZE - sendLength;
+            System.arraycopy(data, offset, sendBuffer, sendLength, count);
+            sendLength += count;
+            offset += count;
+            length -= count;
+            writeSendBuffer();
+        }
+        if(length >= SEND_BUFFER_SIZE) {
+            output.write(data, offset, length);
+            bytesSent += length;
+        }
+        else {
+            System.arraycopy(data, offset, sendBuffer, sendLength, length);
+            sendLength += length;
+        }
+    }
+    
+    private void writeSendBuffer() throws IOException {
+        if(sendLength > 0) {
+            output.write(sendBuffer, 0, sendLength);
+            bytesSent += sendLength;
+            sendLength = 0;
+        }
+    }
+    
+    private void flushImpl() throws IOException {
+        writeSendBuffer();
+        output.flush();
+    }
 
     /**
      * Returns the number of bytes available for reading.
@@ -404,12 +496,16 @@ public class Connection {
             // Read from the socket
             int firstByte = input.read();
             if(firstByte != -1) {
-                byteStream.write((byte)firstByte);
-                bytesReceived++;
+                appendByte((byte)firstByte);
                 int bytesAvailable = input.available();
                 while(bytesAvailable > 0) {
-                    int len = input.read(readBuffer, 0, Math.min(bytesAvailable, readBuffer.length));
-                    byteStream.write(readBuffer, 0, len);
+                    int len = Math.min(bytesAvailable, MAX_READ_SIZE);
+                    ensureCapacity(len);
+                    len = input.read(receiveBuffer, receiveOffset + receiveLength, len);
+                    if(len == -1) {
+                        handleSocketReadError();
+                    }
+                    receiveLength += len;
                     bytesReceived += len;
                     
                     // Check read data for a usable line
@@ -426,8 +522,7 @@ public class Connection {
                     if(bytesAvailable == 0) {
                         firstByte = input.read();
                         if(firstByte != -1) {
-                            byteStream.write((byte)firstByte);
-                            bytesReceived++;
+                            appendByte((byte)firstByte);
                             bytesAvailable = input.available();
                         }
                         else {
@@ -437,7 +532,7 @@ public class Connection {
                 }
                 
                 // Check for any final data
-                if(byteStream.size() > 0) {
+                if(receiveLength > 0) {
                     line = checkForLine(responseTester);
                     if(line != null) {
                         return line;
@@ -470,7 +565,39 @@ public class Connection {
     }
 
     /**
-     * Checks the byte stream buffer for a usable line of returnable data.
+     * Appends a single byte, read from the socket, to the receive buffer.
+     */
+    private void appendByte(byte value) {
+        ensureCapacity(1);
+        receiveBuffer[receiveOffset + receiveLength] = value;
+        receiveLength++;
+        bytesReceived++;
+    }
+    
+    /**
+     * Makes room for at least the provided number of bytes following the
+     * data in the receive buffer.  Unreturned data is only moved to the
+     * front of the buffer if that frees up at least half of it, otherwise
+     * the buffer is grown, so no data is moved more than a constant number
+     * of times no matter how large a response gets.
+     */
+    private void ensureCapacity(int length) {
+        if(receiveOffset + receiveLength + length <= receiveBuffer.length) {
+            return;
+        }
+        
+        byte[] buf = receiveBuffer;
+        if(receiveLength + length > buf.length
+                || receiveLength > (buf.length >> 1)) {
+            buf = new byte[Math.max(buf.length << 1, receiveLength + length)];
+        }
+        System.arraycopy(receiveBuffer, receiveOffset, buf, 0, receiveLength);
+        receiveBuffer = buf;
+        receiveOffset = 0;
+    }
+    
+    /**
+     * Checks the receive buffer for a usable line of returnable data.
      * If a line is returned, the buffer will be updated to only contain data
      * following that line.
      *
@@ -479,29 +606,31 @@ public class Connection {
     private byte[] checkForLine(ConnectionResponseTester responseTester) throws IOException {
         byte[] result;
         
-        byte[] buf = byteStream.toByteArray();
-        int size = byteStream.size();
-        
-        int p = responseTester.checkForCompleteResponse(buf, size);
+        int p = responseTester.checkForCompleteResponse(receiveBuffer, receiveOffset, receiveLength);
         
         if(p != -1) {
             int trimCount = responseTester.trimCount();
             
-            result = Arrays.copy(buf, 0, p - trimCount);
+            result = Arrays.copy(receiveBuffer, receiveOffset, p - trimCount);
             
-            if(p < size) {
-                buf = Arrays.copy(buf, p, size - p);
-                byteStream.reset();
-                byteStream.write(buf);
-                fakeAvailable = buf.length;
+            if(p < receiveLength) {
+                receiveOffset += p;
+                receiveLength -= p;
+                fakeAvailable = receiveLength;
             }
             else {
-                byteStream.reset();
+                receiveOffset = 0;
+                receiveLength = 0;
                 fakeAvailable = -1;
+                
+                // Do not hold onto the memory used by a large response
+                if(receiveBuffer.length > MAX_READ_SIZE) {
+                    receiveBuffer = new byte[RECEIVE_BUFFER_SIZE];
+                }
             }
         }
         else {
-            fakeAvailable = size;
+            fakeAvailable = receiveLength;
             result = null;
         }
         return result;
@@ -511,32 +640,38 @@ public class Connection {
         private int trimCount;
         private int lastLength = 0;
         
-        public int checkForCompleteResponse(byte[] buf, int len) {
+        public int checkForCompleteResponse(byte[] buf, int offset, int len) {
             trimCount = 0;
-            int p = StringArrays.indexOf(buf, LF, lastLength);
+            int end = offset + len;
+            int p = StringArrays.indexOf(buf, LF, offset + lastLength, end);
             
-            if(p != -1 && p < len) {
+            if(p != -1) {
                 // Specific test for responses that use a double LF in
                 // the middle, to separate things that look like separate
                 // responses but really are not.
-                while(p != -1 && p + 1 < len && buf[p + 1] == LF) {
-                    if(p + 2 == len) {
+                while(p != -1 && p + 1 < end && buf[p + 1] == LF) {
+                    if(p + 2 == end) {
                         lastLength = len;
                         return -1;
                     }
                     else {
-                        p = StringArrays.indexOf(buf, LF, p + 2);
+                        p = StringArrays.indexOf(buf, LF, p + 2, end);
                     }
                 }
                 
-                if(p > 0 && buf[p - 1] == CR) {
+                if(p == -1) {
+                    lastLength = len;
+                    return -1;
+                }
+                
+                if(p > offset && buf[p - 1] == CR) {
                     trimCount = 2;
                 }
                 else {
                     trimCount = 1;
                 }
                 lastLength = 0;
-                return ++p;
+                return ++p - offset;
             }
             else {
                 lastLength = len;
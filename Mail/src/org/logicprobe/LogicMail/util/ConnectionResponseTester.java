@@ -38,19 +38,26 @@ package org.logicprobe.LogicMail.util;
 public abstract class ConnectionResponseTester {
     /**
      * Checks the provided buffer for a complete response.
+     * <p>
+     * Until a complete response is found, this is called again each time
+     * more data is received.  The data starts at the same position within
+     * the response each time, so implementations should keep track of how
+     * far they have scanned and only look at the newly received data.
+     * </p>
      * 
      * @param buf the raw socket receive buffer
-     * @param len the length of the valid data within the buffer
+     * @param offset the offset of the start of the response data within the buffer
+     * @param len the length of the valid data following the offset
      * @return length of the complete response, or <code>-1</code> if none
      *   is currently available within the buffer
      */
-    public abstract int checkForCompleteResponse(byte[] buf, int len);
+    public abstract int checkForCompleteResponse(byte[] buf, int offset, int len);
     
     /**
      * Number of characters to trim from the response prior to returning the
      * resulting data.  Primarily useful for cases such as trimming CRLF codes.
      * Expect this method to be called immediately following a call to
-     * {{@link #checkForCompleteResponse(byte[], int)} that provides a
+     * {{@link #checkForCompleteResponse(byte[], int, int)} that provides a
      * successful result.
      * 
      * @return number of characters to trim
@@ -31,33 +31,48 @@
 
 package org.logicprobe.LogicMail.util;
 
-import net.rim.device.api.util.Arrays;
+import java.util.Hashtable;
 
 /**
  * Utility class to hold EventListeners.
  * Based on the interface of javax.swing.event.EventListenerList
+ * <p>
+ * The listener list is copy-on-write.  Adding or removing a listener
+ * replaces the internal array, and the per-type arrays returned by
+ * {@link #getListeners(Class)} are built once and then shared until the
+ * next change.  This means firing an event does not allocate anything,
+ * and listeners may safely be added or removed while an event is being
+ * dispatched.  Arrays returned by this class must not be modified.
+ * </p>
  */
 public class EventListenerList {
-    protected Object[] listenerList = new Object[0];
+    private static final EventListener[] EMPTY_LISTENERS = new EventListener[0];
+    
+    protected volatile Object[] listenerList = new Object[0];
+    
+    /** Map of Class -> EventListener[] snapshots */
+    private final Hashtable typedListeners = new Hashtable();
+    
+    private int fireCount;
+    private static int totalFireCount;
     
     /** Creates a new instance of EventListenerList */
     public EventListenerList() {
     }
     
-    public void add(Class t, EventListener l) {
+    public synchronized void add(Class t, EventListener l) {
         if(l == null || !t.isInstance(l)) {
             throw new IllegalArgumentException();
         }
-        if(listenerList.length == 0) {
-            listenerList = new Object[] { t, l };
-        }
-        else {
-            Arrays.add(listenerList, t);
-            Arrays.add(listenerList, l);
-        }
+        Object[] newListenerList = new Object[listenerList.length + 2];
+        System.arraycopy(listenerList, 0, newListenerList, 0, listenerList.length);
+        newListenerList[listenerList.length] = t;
+        newListenerList[listenerList.length + 1] = l;
+        listenerList = newListenerList;
+        typedListeners.remove(t);
     }
     
-    public void remove(Class t, EventListener l) {
+    public synchronized void remove(Class t, EventListener l) {
         if(l == null || !t.isInstance(l)) {
             throw new IllegalArgumentException();
         }
@@ -68,6 +83,7 @@ public class EventListenerList {
             	removeCount += 2;
             }
         }
+        if(removeCount == 0) { return; }
         Object[] newListenerList = new Object[listenerList.length - removeCount];
         int index = 0;
         for(int i=0; i<listenerList.length; i+=2) {
@@ -78,6 +94,7 @@ public class EventListenerList {
             }
         }
         listenerList = newListenerList;
+        typedListeners.remove(t);
     }
     
     public int getListenerCount() {
@@ -85,31 +102,82 @@ public class EventListenerList {
     }
     
     public int getListenerCount(Class t) {
-        int count = 0;
-        for(int i=0; i<listenerList.length; i+=2) {
-            if(t == (Class)listenerList[i]) {
-                count++;
-            }
-        }
-        return count;
+        return getSnapshot(t).length;
     }
     
     public Object[] getListenerList() {
         return listenerList;
     }
     
+    /**
+     * Gets the listeners of the provided type.
+     * The returned array is shared, and must not be modified.  Each call to
+     * this method is counted as an event being fired, for profiling purposes.
+     *
+     * @param t the listener type
+     * @return the listeners, which may be an empty array
+     */
     public EventListener[] getListeners(Class t) {
-        int count = getListenerCount(t);
+        fireCount++;
+        totalFireCount++;
+        return getSnapshot(t);
+    }
+    
+    private EventListener[] getSnapshot(Class t) {
+        EventListener[] result = (EventListener[])typedListeners.get(t);
+        if(result == null) {
+            synchronized(this) {
+                result = buildListeners(t);
+                typedListeners.put(t, result);
+            }
+        }
+        return result;
+    }
+    
+    private EventListener[] buildListeners(Class t) {
+        Object[] list = listenerList;
+        int count = 0;
+        for(int i=0; i<list.length; i+=2) {
+            if(t == (Class)list[i]) {
+                count++;
+            }
+        }
+        if(count == 0) {
+            return EMPTY_LISTENERS;
+        }
+        
         int index = 0;
         EventListener[] result = new EventListener[count];
-        for(int i=0; i<listenerList.length; i+=2) {
-            if(t == (Class)listenerList[i]) {
-                result[index++] = (EventListener)listenerList[i+1];
+        for(int i=0; i<list.length; i+=2) {
+            if(t == (Class)list[i]) {
+                result[index++] = (EventListener)list[i+1];
             }
         }
         return result;
     }
     
+    /**
+     * Gets the approximate number of times the listeners of this list have
+     * been requested for firing an event.  This is only intended to be used
+     * for profiling, so it is not synchronized.
+     *
+     * @return the fire count
+     */
+    public int getFireCount() {
+        return fireCount;
+    }
+    
+    /**
+     * Gets the approximate number of times the listeners of any list have
+     * been requested for firing an event.  This is only intended to be used
+     * for profiling, so it is not synchronized.
+     *
+     * @return the total fire count
+     */
+    public static int getTotalFireCount() {
+        return totalFireCount;
+    }
+    
     public String toString() {
         StringBuffer buf = new StringBuffer();
         buf.append("EventListenerList: ");
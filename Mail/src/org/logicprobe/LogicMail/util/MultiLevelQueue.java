@@ -0,0 +1,243 @@
+/*-
+ * Copyright (c) 2011, Derek Konigsberg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.logicprobe.LogicMail.util;
+
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+
+/**
+ * Queue that keeps its elements in a fixed number of priority levels,
+ * each of which is a normal FIFO {@link Queue}.
+ * <p>
+ * Elements are normally taken from the highest priority level that is not
+ * empty, with level <code>0</code> being the highest.  To keep a steady
+ * stream of high priority elements from starving the lower levels, each
+ * waiting level counts how many times it has been passed over.  Once that
+ * count reaches the aging limit, the level is served next even if higher
+ * priority elements are waiting.
+ * </p>
+ */
+public class MultiLevelQueue {
+    private final Queue[] levels;
+    private final int[] skipCounts;
+    private final int agingLimit;
+    private int size;
+    
+    /**
+     * Instantiates a new multi-level queue.
+     *
+     * @param levelCount the number of priority levels
+     * @param agingLimit the number of times a waiting level may be passed
+     *     over before it is served ahead of higher priority levels
+     */
+    public MultiLevelQueue(int levelCount, int agingLimit) {
+        if(levelCount < 1 || agingLimit < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.levels = new Queue[levelCount];
+        for(int i=0; i<levelCount; i++) {
+            levels[i] = new Queue();
+        }
+        this.skipCounts = new int[levelCount];
+        this.agingLimit = agingLimit;
+    }
+    
+    /**
+     * Gets the number of priority levels in this queue.
+     * @return The level count
+     */
+    public int getLevelCount() {
+        return levels.length;
+    }
+    
+    /**
+     * Adds an element to the tail of a priority level.
+     * Levels outside the valid range are clamped to the nearest valid level.
+     * @param element The element
+     * @param level The priority level, with <code>0</code> being the highest
+     * @throws NullPointerException if the item is null
+     */
+    public void add(Object element, int level) {
+        levels[clampLevel(level)].add(element);
+        size++;
+    }
+    
+    /**
+     * Pushes an element onto the head of the highest priority level,
+     * so it is the next element to be removed.
+     * @param element The element
+     * @throws NullPointerException if the item is null
+     */
+    public void push(Object element) {
+        levels[0].push(element);
+        skipCounts[0] = agingLimit;
+        size++;
+    }
+    
+    /**
+     * Retrieves the element that will be returned by the next call to
+     * {@link #remove()}.
+     * @return The element, or null if the queue is empty
+     */
+    public Object element() {
+        int level = selectLevel();
+        if(level == -1) {
+            return null;
+        }
+        else {
+            return levels[level].element();
+        }
+    }
+    
+    /**
+     * Retrieves the element at the head of a specific priority level.
+     * @param level The priority level
+     * @return The element, or null if the level is empty
+     */
+    public Object element(int level) {
+        return levels[clampLevel(level)].element();
+    }
+    
+    /**
+     * Retrieves and removes the next element, taking aging into account.
+     * @return The element
+     * @throws NoSuchElementException if the queue is empty
+     */
+    public Object remove() {
+        int level = selectLevel();
+        if(level == -1) {
+            throw new NoSuchElementException();
+        }
+        return remove(level);
+    }
+    
+    /**
+     * Retrieves and removes the element at the head of a specific priority
+     * level.  Any waiting lower priority levels are counted as having been
+     * passed over.
+     * @param level The priority level
+     * @return The element
+     * @throws NoSuchElementException if the level is empty
+     */
+    public Object remove(int level) {
+        level = clampLevel(level);
+        Object item = levels[level].remove();
+        size--;
+        
+        skipCounts[level] = 0;
+        for(int i=level + 1; i<levels.length; i++) {
+            if(levels[i].size() > 0) {
+                skipCounts[i]++;
+            }
+        }
+        return item;
+    }
+    
+    /**
+     * Gets the highest priority level that contains any elements,
+     * without regard to aging.
+     * @return The level, or -1 if the queue is empty
+     */
+    public int getFirstLevel() {
+        for(int i=0; i<levels.length; i++) {
+            if(levels[i].size() > 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private int selectLevel() {
+        int first = -1;
+        for(int i=0; i<levels.length; i++) {
+            if(levels[i].size() > 0) {
+                if(skipCounts[i] >= agingLimit) {
+                    return i;
+                }
+                else if(first == -1) {
+                    first = i;
+                }
+            }
+        }
+        return first;
+    }
+    
+    private int clampLevel(int level) {
+        if(level < 0) {
+            return 0;
+        }
+        else if(level >= levels.length) {
+            return levels.length - 1;
+        }
+        else {
+            return level;
+        }
+    }
+    
+    /**
+     * Gets the number of elements in the queue.
+     * @return The number of elements
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Gets the number of elements in a specific priority level.
+     * @param level The priority level
+     * @return The number of elements
+     */
+    public int size(int level) {
+        return levels[clampLevel(level)].size();
+    }
+    
+    /**
+     * Returns an enumeration of the elements in a specific priority level,
+     * from head to tail.
+     * The queue must not be modified while the enumeration is in use.
+     * @param level The priority level
+     * @return The enumeration
+     */
+    public Enumeration elements(int level) {
+        return levels[clampLevel(level)].elements();
+    }
+    
+    /**
+     * Removes all elements from the queue.
+     */
+    public void clear() {
+        for(int i=0; i<levels.length; i++) {
+            levels[i].clear();
+            skipCounts[i] = 0;
+        }
+        size = 0;
+    }
+}
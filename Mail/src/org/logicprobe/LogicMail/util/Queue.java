@@ -31,6 +31,7 @@
 
 package org.logicprobe.LogicMail.util;
 
+import java.util.Enumeration;
 import java.util.NoSuchElementException;
 
 public class Queue {
@@ -41,10 +42,12 @@ public class Queue {
 	
 	private Node head;
 	private Node tail;
+	private int size;
 	
 	public Queue() {
 		head = null;
 		tail = null;
+		size = 0;
 	}
 	
 	/**
@@ -68,6 +71,7 @@ public class Queue {
 			tail.next = node;
 			tail = tail.next;
 		}
+		size++;
 	}
 
     /**
@@ -91,6 +95,7 @@ public class Queue {
             node.next = head;
             head = node;
         }
+        size++;
 	}
 	
 	/**
@@ -118,9 +123,42 @@ public class Queue {
 		Object item = head.item;
 		head.item = null;
 		head = head.next;
+		size--;
 		return item;
 	}
 	
+	/**
+	 * Gets the number of elements in the queue.
+	 * @return The number of elements
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns an enumeration of the elements in the queue, from head to tail.
+	 * The queue must not be modified while the enumeration is in use.
+	 * @return The enumeration
+	 */
+	public Enumeration elements() {
+		return new Enumeration() {
+			private Node node = head;
+			
+			public boolean hasMoreElements() {
+				return node != null;
+			}
+			
+			public Object nextElement() {
+				if(node == null) {
+					throw new NoSuchElementException();
+				}
+				Object item = node.item;
+				node = node.next;
+				return item;
+			}
+		};
+	}
+	
 	/**
 	 * Removes all elements from the queue.
 	 */
@@ -132,5 +170,6 @@ public class Queue {
 			head = temp;
 		}
 		tail = null;
+		size = 0;
 	}
 }
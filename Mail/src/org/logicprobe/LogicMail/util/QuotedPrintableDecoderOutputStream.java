@@ -0,0 +1,130 @@
+/*-
+ * Copyright (c) 2011, Derek Konigsberg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.logicprobe.LogicMail.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that decodes quoted-printable data as it is written, and
+ * passes the decoded data on to an underlying stream.
+ * <p>
+ * The decoding rules are the same as those of
+ * {@link StringParser#decodeQuotedPrintableBytes(byte[])}, except that
+ * escape sequences may be split across multiple writes.
+ * </p>
+ */
+public class QuotedPrintableDecoderOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 1024;
+    
+    private final OutputStream output;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferLength;
+    private final byte[] escape = new byte[2];
+    /** Number of escape sequence bytes seen, including the '=' prefix */
+    private int escapeLength;
+    
+    /**
+     * Instantiates a new quoted-printable decoder stream.
+     *
+     * @param output the stream to write decoded data to
+     */
+    public QuotedPrintableDecoderOutputStream(OutputStream output) {
+        this.output = output;
+    }
+    
+    public void write(int b) throws IOException {
+        byte ch = (byte)b;
+        if(escapeLength == 0) {
+            if(ch == (byte)'=') {
+                escapeLength = 1;
+            }
+            else {
+                writeDecoded(ch);
+            }
+        }
+        else if(escapeLength == 1) {
+            if(ch == (byte)'\n') {
+                // Soft line break
+                escapeLength = 0;
+            }
+            else {
+                escape[0] = ch;
+                escapeLength = 2;
+            }
+        }
+        else {
+            escape[1] = ch;
+            escapeLength = 0;
+            if(escape[0] != (byte)'\r' || ch != (byte)'\n') {
+                try {
+                    writeDecoded((byte)StringArrays.parseHexInt(escape, 0, 2));
+                } catch (NumberFormatException exp) { }
+            }
+        }
+    }
+    
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        for(int i=off; i<end; i++) {
+            write(b[i]);
+        }
+    }
+    
+    private void writeDecoded(byte ch) throws IOException {
+        if(bufferLength == BUFFER_SIZE) {
+            flushBuffer();
+        }
+        buffer[bufferLength++] = ch;
+    }
+    
+    private void flushBuffer() throws IOException {
+        if(bufferLength > 0) {
+            output.write(buffer, 0, bufferLength);
+            bufferLength = 0;
+        }
+    }
+    
+    public void flush() throws IOException {
+        flushBuffer();
+        output.flush();
+    }
+    
+    /**
+     * Writes out any remaining decoded data, and closes the underlying stream.
+     * An incomplete escape sequence at the end of the input is discarded.
+     */
+    public void close() throws IOException {
+        escapeLength = 0;
+        flushBuffer();
+        output.close();
+    }
+}
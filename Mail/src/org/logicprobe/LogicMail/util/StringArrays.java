@@ -181,11 +181,26 @@ public class StringArrays {
      *   not found.
      */
     public static int indexOf(byte[] array, byte ch, int fromIndex) {
-        if(fromIndex >= array.length) {
-            return -1;
+        return indexOf(array, ch, fromIndex, array.length);
+    }
+    
+    /**
+     * Returns the index within this array of the first occurrence of the
+     * specified element, searching between the specified indices.
+     * 
+     * @param array the array representing the string.
+     * @param ch the element to search for.
+     * @param fromIndex the index to start the search from.
+     * @param toIndex the index to end the search before.
+     * @return the index the element was found, or <code>-1</code> if it was
+     *   not found.
+     */
+    public static int indexOf(byte[] array, byte ch, int fromIndex, int toIndex) {
+        if(toIndex > array.length) {
+            toIndex = array.length;
         }
         
-        for(int i = fromIndex; i<array.length; i++) {
+        for(int i = fromIndex; i<toIndex; i++) {
             if(array[i] == ch) {
                 return i;
             }
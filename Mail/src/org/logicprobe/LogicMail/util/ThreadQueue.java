@@ -39,13 +39,16 @@ import org.logicprobe.LogicMail.AppInfo;
 
 /**
  * Provides a work item queue for <tt>Runnable</tt> objects.
- * This is similar to a thread pool, except all work items
- * run in sequence.  Also, the thread is not kept alive
- * when there are no pending work items.
+ * All work items run in sequence, on threads borrowed from the shared
+ * {@link WorkerPool}.  The queue only holds a worker while it has
+ * pending work items, and only ever submits one task to the pool at a time,
+ * so each queue behaves as a serial lane within the pool.
  */
 public class ThreadQueue {
 	private Queue runnableQueue;
-	private ThreadQueueThread threadQueueThread;
+	private final Runnable drainTask;
+	private boolean scheduled;
+	private boolean running;
 	private boolean isShutdown;
 	
 	/**
@@ -53,42 +56,62 @@ public class ThreadQueue {
 	 */
 	public ThreadQueue() {
 		runnableQueue = new Queue();
+		drainTask = new Runnable() {
+			public void run() {
+				synchronized(runnableQueue) {
+					scheduled = false;
+				}
+				runNext();
+			}
+		};
 	}
 	
 	/**
 	 * Flushes any pending work items, and optionally
-	 * waits for the thread to join.
+	 * waits for the work item in progress to finish.
 	 * 
-	 * @param wait True to wait for the thread to join.
+	 * @param wait True to wait for the work item in progress.
 	 */
 	public void shutdown(boolean wait) {
 		isShutdown = true;
 		synchronized(runnableQueue) {
 			runnableQueue.clear();
-		}
-		if(wait && threadQueueThread != null) {
-			try {
-				threadQueueThread.join();
-			} catch (InterruptedException e) { }
-			threadQueueThread = null;
+			if(wait) {
+				while(running) {
+					try {
+						runnableQueue.wait();
+					} catch (InterruptedException e) { }
+				}
+			}
 		}
 	}
 	
 	/**
-	 * Blocks until all pending tasks have completed
+	 * Blocks until all pending tasks have completed.
+	 * If pending tasks are still waiting for a worker, they are run on the
+	 * calling thread instead, so callers that are themselves running on the
+	 * worker pool cannot exhaust it while waiting.
 	 */
 	public void completePendingTasks() {
-	    if(threadQueueThread != null) {
-	        try {
-	            threadQueueThread.join();
-	        } catch (InterruptedException e) { }
-	        threadQueueThread = null;
-	    }
+		while(true) {
+			synchronized(runnableQueue) {
+				if(runnableQueue.element() == null && !running) {
+					return;
+				}
+				else if(running) {
+					try {
+						runnableQueue.wait();
+					} catch (InterruptedException e) { }
+					continue;
+				}
+			}
+			runNext();
+		}
 	}
 	
 	/**
 	 * Puts the provided <tt>Runnable</tt> object on the
-	 * work item queue.  Starts the worker thread if necessary.
+	 * work item queue.  Submits the queue to the worker pool if necessary.
 	 * 
 	 * @param runnable The <tt>Runnable</tt> object.
 	 * @throws IllegalStateException Thrown if {@link #shutdown(boolean)} has been called.
@@ -97,60 +120,48 @@ public class ThreadQueue {
 		if(isShutdown) {
 			throw new IllegalStateException("Thread queue has been shutdown");
 		}
-		boolean queued = false;
 		synchronized(runnableQueue) {
-			if(threadQueueThread != null && threadQueueThread.isAlive()) {
-				runnableQueue.add(runnable);
-				queued = true;
-			}
-		}
-		if(!queued) {
-			if(threadQueueThread != null) {
-				try {
-					threadQueueThread.join();
-				} catch (InterruptedException e) { }
-				threadQueueThread = null;
-			}
-			threadQueueThread = new ThreadQueueThread();
 			runnableQueue.add(runnable);
-			threadQueueThread.start();
+			if(!scheduled && !running) {
+				scheduled = true;
+				WorkerPool.getInstance().executeLane(drainTask);
+			}
 		}
 	}
 	
 	/**
-	 * Actual thread implementation used for the work item queue.
+	 * Runs the next work item on the calling thread, unless another thread
+	 * is already running a work item from this queue.  Afterwards, the queue
+	 * is submitted to the worker pool again if more work items remain.
+	 * This yields the worker between work items, so one busy queue cannot
+	 * monopolize it.
 	 */
-	private class ThreadQueueThread extends Thread {
-		/**
-		 * Instantiates a new thread queue thread.
-		 */
-		public ThreadQueueThread() {
+	private void runNext() {
+		Runnable runnable;
+		synchronized(runnableQueue) {
+			if(running || runnableQueue.element() == null) {
+				return;
+			}
+			runnable = (Runnable)runnableQueue.remove();
+			running = true;
 		}
-
-		/* (non-Javadoc)
-		 * @see java.lang.Thread#run()
-		 */
-		public void run() {
-			while(true) {
-				Runnable runnable;
-				synchronized(runnableQueue) {
-					if(runnableQueue.element() != null) {
-						runnable = (Runnable)runnableQueue.remove();
-					}
-					else {
-						return;
-					}
-				}
-				Thread.yield();
-				try {
-					runnable.run();
-				} catch (RuntimeException exp) {
-	                EventLogger.logEvent(AppInfo.GUID,
-	                        ("RuntimeException: " + exp.getMessage()).getBytes(),
-	                        EventLogger.ERROR);
-	                AnalyticsDataCollector.getInstance().onApplicationError(
-	                        "RuntimeException: " + exp.getMessage());
+		
+		try {
+			runnable.run();
+		} catch (RuntimeException exp) {
+			EventLogger.logEvent(AppInfo.GUID,
+					("RuntimeException: " + exp.getMessage()).getBytes(),
+					EventLogger.ERROR);
+			AnalyticsDataCollector.getInstance().onApplicationError(
+					"RuntimeException: " + exp.getMessage());
+		} finally {
+			synchronized(runnableQueue) {
+				running = false;
+				if(runnableQueue.element() != null && !scheduled) {
+					scheduled = true;
+					WorkerPool.getInstance().executeLane(drainTask);
 				}
+				runnableQueue.notifyAll();
 			}
 		}
 	}
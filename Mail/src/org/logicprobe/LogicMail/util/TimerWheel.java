@@ -0,0 +1,360 @@
+/*-
+ * Copyright (c) 2011, Derek Konigsberg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.logicprobe.LogicMail.util;
+
+import net.rim.device.api.system.EventLogger;
+
+import org.logicprobe.LogicMail.AnalyticsDataCollector;
+import org.logicprobe.LogicMail.AppInfo;
+
+/**
+ * Shared timer service, implemented as a hashed timer wheel.
+ * <p>
+ * All timeouts for the application are kept on a single thread, instead of
+ * each one needing its own thread or <code>java.util.Timer</code>.
+ * Timeouts are hashed into a fixed ring of buckets by their expiration tick,
+ * so scheduling and canceling a timeout are constant time operations.
+ * Rescheduling a timeout, as done whenever a watchdog is kicked, only
+ * records the new expiration time.  The timeout is moved to its new bucket
+ * when its old one is reached, so frequent rescheduling costs nothing more
+ * than a field update.
+ * </p>
+ * <p>
+ * The timer thread sleeps until the next tick with a non-empty bucket, and
+ * not at all while nothing is scheduled.  Tasks are run one at a time on
+ * the timer thread itself, so a periodic task never overlaps with its own
+ * previous execution.  Tasks must therefore be brief and must not block;
+ * anything that may block, such as closing a stalled connection, should be
+ * handed off to another thread.  Timeouts are accurate to within one tick.
+ * </p>
+ */
+public class TimerWheel {
+    /** Duration of each tick of the wheel, in milliseconds */
+    private static final long TICK_DURATION = 500;
+    /** Number of buckets in the wheel, which must be a power of two */
+    private static final int WHEEL_SIZE = 512;
+    
+    private static TimerWheel instance = null;
+    
+    private final Timeout[] wheel = new Timeout[WHEEL_SIZE];
+    private final TimerThread timerThread;
+    private long currentTick;
+    private int count;
+    
+    private TimerWheel() {
+        currentTick = System.currentTimeMillis() / TICK_DURATION;
+        timerThread = new TimerThread();
+        timerThread.start();
+    }
+    
+    /**
+     * Gets the timer service instance.
+     * 
+     * @return the timer service
+     */
+    public static synchronized TimerWheel getInstance() {
+        if(instance == null) {
+            instance = new TimerWheel();
+        }
+        return instance;
+    }
+    
+    /**
+     * Schedules a task for a single execution after a delay.
+     * 
+     * @param task the task to run
+     * @param delay the delay, in milliseconds
+     * @return the timeout, which can be used to cancel or reschedule the task
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        return schedule(task, delay, 0);
+    }
+    
+    /**
+     * Schedules a task for repeated execution at a fixed rate, starting after
+     * a delay.
+     * 
+     * @param task the task to run
+     * @param delay the delay before the first execution, in milliseconds
+     * @param period the time between executions, in milliseconds
+     * @return the timeout, which can be used to cancel or reschedule the task
+     */
+    public Timeout schedule(Runnable task, long delay, long period) {
+        if(task == null) {
+            throw new NullPointerException();
+        }
+        if(delay < 0 || period < 0) {
+            throw new IllegalArgumentException();
+        }
+        Timeout timeout = new Timeout(task, period);
+        synchronized(wheel) {
+            timeout.deadline = System.currentTimeMillis() + delay;
+            link(timeout);
+            count++;
+            wheel.notify();
+        }
+        return timeout;
+    }
+    
+    /**
+     * Gets the number of scheduled timeouts.
+     * 
+     * @return the number of timeouts
+     */
+    public int size() {
+        synchronized(wheel) {
+            return count;
+        }
+    }
+    
+    /**
+     * Links a timeout into the bucket for its deadline.
+     * Timeouts due in a tick that was already processed are placed in the
+     * next bucket to be processed.  This must be called while holding the
+     * lock on the wheel.
+     */
+    private void link(Timeout timeout) {
+        long tick = timeout.deadline / TICK_DURATION;
+        if(tick <= currentTick) {
+            tick = currentTick + 1;
+        }
+        int index = (int)(tick & (WHEEL_SIZE - 1));
+        timeout.bucket = index;
+        timeout.prev = null;
+        timeout.next = wheel[index];
+        if(wheel[index] != null) {
+            wheel[index].prev = timeout;
+        }
+        wheel[index] = timeout;
+    }
+    
+    /**
+     * Unlinks a timeout from its bucket.
+     * This must be called while holding the lock on the wheel.
+     */
+    private void unlink(Timeout timeout) {
+        if(timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        }
+        else {
+            wheel[timeout.bucket] = timeout.next;
+        }
+        if(timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+    }
+    
+    /**
+     * Advances the wheel through every tick that has fully elapsed,
+     * collecting the timeouts that have expired.
+     * This must be called while holding the lock on the wheel.
+     * 
+     * @param endTick the last tick to process
+     * @return the expired timeouts, as a list linked through
+     *     <code>nextExpired</code>
+     */
+    private Timeout expireTimeouts(long endTick) {
+        Timeout expired = null;
+        long startTick = Math.max(currentTick + 1, endTick - WHEEL_SIZE + 1);
+        currentTick = endTick;
+        for(long tick = startTick; tick <= endTick; tick++) {
+            Timeout timeout = wheel[(int)(tick & (WHEEL_SIZE - 1))];
+            while(timeout != null) {
+                Timeout next = timeout.next;
+                if(timeout.deadline / TICK_DURATION <= endTick) {
+                    unlink(timeout);
+                    if(timeout.period > 0) {
+                        timeout.deadline += timeout.period;
+                        link(timeout);
+                    }
+                    else {
+                        timeout.expired = true;
+                        count--;
+                    }
+                    timeout.nextExpired = expired;
+                    expired = timeout;
+                }
+                else if(timeout.bucket != (int)((timeout.deadline / TICK_DURATION) & (WHEEL_SIZE - 1))) {
+                    // The timeout was rescheduled, so move it to the bucket
+                    // for its new deadline
+                    unlink(timeout);
+                    link(timeout);
+                }
+                timeout = next;
+            }
+        }
+        return expired;
+    }
+    
+    /**
+     * Gets the time to wait until the next tick with a non-empty bucket
+     * has fully elapsed.
+     * This must be called while holding the lock on the wheel.
+     * 
+     * @param now the current time
+     * @return the time to wait, or 0 to wait until notified
+     */
+    private long getWaitTime(long now) {
+        if(count == 0) {
+            return 0;
+        }
+        for(int i=1; i<=WHEEL_SIZE; i++) {
+            long tick = currentTick + i;
+            if(wheel[(int)(tick & (WHEEL_SIZE - 1))] != null) {
+                return Math.max(((tick + 1) * TICK_DURATION) - now, 1);
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Handle for a task scheduled on the timer wheel.
+     */
+    public class Timeout {
+        private final Runnable task;
+        private final long period;
+        private long deadline;
+        private int bucket = -1;
+        private boolean expired;
+        private boolean canceled;
+        private Timeout prev;
+        private Timeout next;
+        private Timeout nextExpired;
+        
+        private Timeout(Runnable task, long period) {
+            this.task = task;
+            this.period = period;
+        }
+        
+        /**
+         * Cancels the timeout, so its task will not be run again.
+         * If the task is currently running, it will be allowed to finish.
+         */
+        public void cancel() {
+            synchronized(wheel) {
+                if(!canceled && !expired) {
+                    unlink(this);
+                    count--;
+                }
+                canceled = true;
+            }
+        }
+        
+        /**
+         * Moves the next execution of the task to a new delay from the
+         * current time.  This has no effect if the timeout has already
+         * expired or been canceled.
+         * 
+         * @param delay the new delay, in milliseconds
+         * @return true if the timeout was rescheduled, false otherwise
+         */
+        public boolean reschedule(long delay) {
+            long deadline = System.currentTimeMillis() + delay;
+            synchronized(wheel) {
+                if(canceled || expired) {
+                    return false;
+                }
+                if(deadline / TICK_DURATION < this.deadline / TICK_DURATION) {
+                    // Moving the deadline earlier needs an immediate relink,
+                    // since its bucket may be reached before the current one
+                    this.deadline = deadline;
+                    unlink(this);
+                    link(this);
+                    wheel.notify();
+                }
+                else {
+                    this.deadline = deadline;
+                }
+                return true;
+            }
+        }
+        
+        /**
+         * Checks whether this timeout is still waiting to run its task.
+         * 
+         * @return true if the timeout is scheduled
+         */
+        public boolean isScheduled() {
+            synchronized(wheel) {
+                return !canceled && !expired;
+            }
+        }
+    }
+    
+    private class TimerThread extends Thread {
+        public TimerThread() {
+            super("TimerWheel");
+        }
+        
+        public void run() {
+            while(true) {
+                Timeout expired;
+                synchronized(wheel) {
+                    long now = System.currentTimeMillis();
+                    long endTick = (now / TICK_DURATION) - 1;
+                    expired = (endTick > currentTick) ? expireTimeouts(endTick) : null;
+                    if(expired == null) {
+                        try {
+                            wheel.wait(getWaitTime(now));
+                        } catch (InterruptedException e) { }
+                        continue;
+                    }
+                }
+                
+                while(expired != null) {
+                    Timeout timeout = expired;
+                    expired = timeout.nextExpired;
+                    timeout.nextExpired = null;
+                    if(!timeout.canceled) {
+                        runTask(timeout.task);
+                    }
+                }
+            }
+        }
+        
+        private void runTask(Runnable task) {
+            // Nothing is allowed to escape, since that would stop the timer
+            // thread for every other timeout
+            try {
+                task.run();
+            } catch (Throwable exp) {
+                EventLogger.logEvent(AppInfo.GUID,
+                        ("Timer task exception: " + exp.toString()).getBytes(),
+                        EventLogger.ERROR);
+                AnalyticsDataCollector.getInstance().onApplicationError(
+                        "Timer task exception: " + exp.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*-
+ * Copyright (c) 2011, Derek Konigsberg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.logicprobe.LogicMail.util;
+
+import net.rim.device.api.system.EventLogger;
+
+import org.logicprobe.LogicMail.AppInfo;
+
+/**
+ * Stress benchmark for the {@link TimerWheel} service.
+ * <p>
+ * A set of timeouts is scheduled the same way watchdogs schedule them, and
+ * then kicked as fast as possible from several threads for a fixed period,
+ * simulating many busy connections.  The timeouts are long enough that none
+ * of them should ever expire while being kicked, so any expiration is
+ * reported as a failure.  Scheduling and canceling are timed separately.
+ * </p>
+ * <p>
+ * This is intended to be run manually on a device, and writes its results
+ * to the event log as well as returning them.
+ * </p>
+ */
+public class TimerWheelBenchmark {
+    /** Number of timeouts to keep scheduled while kicking */
+    private static final int TIMEOUT_COUNT = 1000;
+    /** Number of threads kicking the timeouts */
+    private static final int THREAD_COUNT = 4;
+    /** Time to spend kicking the timeouts, in milliseconds */
+    private static final long KICK_DURATION = 10000;
+    /** Delay used for every timeout, which must exceed the kick duration */
+    private static final long TIMEOUT_DELAY = 60000;
+    
+    private final TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[TIMEOUT_COUNT];
+    private final Object lock = new Object();
+    private int expiredCount;
+    private long kickCount;
+    private int runningThreads;
+    
+    /**
+     * Runs the benchmark, blocking until it has finished.
+     * 
+     * @return a summary of the results
+     */
+    public String run() {
+        TimerWheel timerWheel = TimerWheel.getInstance();
+        Runnable expiredTask = new Runnable() {
+            public void run() {
+                synchronized(lock) {
+                    expiredCount++;
+                }
+            }
+        };
+        
+        long startTime = System.currentTimeMillis();
+        for(int i=0; i<TIMEOUT_COUNT; i++) {
+            timeouts[i] = timerWheel.schedule(expiredTask, TIMEOUT_DELAY);
+        }
+        long scheduleTime = System.currentTimeMillis() - startTime;
+        
+        startTime = System.currentTimeMillis();
+        runningThreads = THREAD_COUNT;
+        for(int i=0; i<THREAD_COUNT; i++) {
+            (new KickThread(i)).start();
+        }
+        synchronized(lock) {
+            while(runningThreads > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) { }
+            }
+        }
+        long kickTime = System.currentTimeMillis() - startTime;
+        
+        startTime = System.currentTimeMillis();
+        for(int i=0; i<TIMEOUT_COUNT; i++) {
+            timeouts[i].cancel();
+        }
+        long cancelTime = System.currentTimeMillis() - startTime;
+        
+        StringBuffer buf = new StringBuffer();
+        buf.append("TimerWheel benchmark: ");
+        buf.append(TIMEOUT_COUNT).append(" scheduled in ").append(scheduleTime).append("ms, ");
+        buf.append(kickCount).append(" kicks in ").append(kickTime).append("ms (");
+        buf.append(kickTime > 0 ? (kickCount * 1000 / kickTime) : kickCount).append("/s), ");
+        buf.append(TIMEOUT_COUNT).append(" canceled in ").append(cancelTime).append("ms, ");
+        buf.append(expiredCount).append(" expired early, ");
+        buf.append(timerWheel.size()).append(" still scheduled");
+        String result = buf.toString();
+        
+        EventLogger.logEvent(AppInfo.GUID, result.getBytes(), EventLogger.INFORMATION);
+        return result;
+    }
+    
+    private class KickThread extends Thread {
+        private final int index;
+        
+        public KickThread(int index) {
+            this.index = index;
+        }
+        
+        public void run() {
+            long count = 0;
+            long endTime = System.currentTimeMillis() + KICK_DURATION;
+            int i = index;
+            while(System.currentTimeMillis() < endTime) {
+                timeouts[i].reschedule(TIMEOUT_DELAY);
+                count++;
+                i += THREAD_COUNT;
+                if(i >= TIMEOUT_COUNT) {
+                    i = index;
+                }
+            }
+            synchronized(lock) {
+                kickCount += count;
+                runningThreads--;
+                lock.notifyAll();
+            }
+        }
+    }
+}
@@ -44,16 +44,31 @@ import org.logicprobe.LogicMail.conf.ConnectionConfig;
  * methods out of order may result in an {@link IllegalStateException}.
  * If the watchdog reaches its timeout, the timer will be implicitly canceled
  * and {@link WatchdogListener#watchdogTimeout()} will be called.
+ * <p>
+ * Watchdogs do not have their own threads, and instead share the
+ * {@link TimerWheel} service.  Kicking a watchdog only updates the deadline
+ * of its timeout, so it is cheap enough to call on every network read.
+ * When a timeout expires, the listener is called from a single notifier
+ * thread shared by all watchdogs, rather than from the timer thread.  That
+ * way closing a stalled connection cannot hold up any other timeouts, and
+ * it never has to wait behind other work for a thread to run on.
  * </p>
  */
 public class Watchdog {
     private static final long DEFAULT_TIMEOUT = 15000;
     private static final long DEFAULT_TIMEOUT_MOBILE = 30000;
     private static final long DEFAULT_TIMEOUT_WIFI = 15000;
+    /** Time the notifier thread waits for another timeout before exiting */
+    private static final long NOTIFIER_KEEP_ALIVE = 30000;
+    
+    private static final Queue expiredQueue = new Queue();
+    private static boolean notifierRunning;
     
     private final WatchdogListener listener;
-    private WatchdogThread watchdogThread;
-    private boolean started;
+    private final Runnable timeoutTask;
+    private volatile TimerWheel.Timeout timeout;
+    private long timeoutValue;
+    private volatile boolean started;
     private long defaultTimeout = DEFAULT_TIMEOUT;
     
     /**
@@ -66,6 +81,11 @@ public class Watchdog {
             throw new NullPointerException("Must supply a listener");
         }
         this.listener = listener;
+        this.timeoutTask = new Runnable() {
+            public void run() {
+                enqueueExpired(new ExpiredTimeout(Watchdog.this, timeout));
+            }
+        };
     }
 
     /**
@@ -75,7 +95,7 @@ public class Watchdog {
      */
     private Watchdog() {
         this.listener = null;
-        this.watchdogThread = null;
+        this.timeoutTask = null;
     }
     
     /**
@@ -97,13 +117,10 @@ public class Watchdog {
      */
     public void shutdown() {
         if(listener == null) { return; }
-        if(watchdogThread != null && watchdogThread.isAlive()) {
-            watchdogThread.shutdown();
-            try {
-                watchdogThread.join();
-            } catch (InterruptedException e) { }
+        if(timeout != null) {
+            timeout.cancel();
+            timeout = null;
         }
-        watchdogThread = null;
         started = false;
         defaultTimeout = DEFAULT_TIMEOUT;
     }
@@ -161,12 +178,9 @@ public class Watchdog {
         if(started) {
             throw new IllegalStateException();
         }
-        if(watchdogThread == null) {
-            watchdogThread = new WatchdogThread();
-            watchdogThread.start();
-        }
-        watchdogThread.startTimeout(timeout);
+        this.timeoutValue = timeout;
         started = true;
+        this.timeout = TimerWheel.getInstance().schedule(timeoutTask, timeout);
     }
     
     /**
@@ -174,10 +188,10 @@ public class Watchdog {
      */
     public void kick() {
         if(listener == null) { return; }
-        if(!started || watchdogThread == null) {
+        if(!started || timeout == null) {
             throw new IllegalStateException();
         }
-        watchdogThread.kickTimeout();
+        timeout.reschedule(timeoutValue);
     }
 
     /**
@@ -185,10 +199,11 @@ public class Watchdog {
      */
     public void cancel() {
         if(listener == null) { return; }
-        if(!started || watchdogThread == null) {
+        if(!started || timeout == null) {
             throw new IllegalStateException();
         }
-        watchdogThread.cancelTimeout();
+        timeout.cancel();
+        timeout = null;
         started = false;
     }
 
@@ -201,117 +216,75 @@ public class Watchdog {
         return started;
     }
     
-    private void notifyListener() {
+    /**
+     * Queues an expired timeout for the notifier thread, starting the thread
+     * if it is not already running.
+     */
+    private static void enqueueExpired(ExpiredTimeout expired) {
+        synchronized(expiredQueue) {
+            expiredQueue.add(expired);
+            if(notifierRunning) {
+                expiredQueue.notify();
+            }
+            else {
+                notifierRunning = true;
+                (new NotifierThread()).start();
+            }
+        }
+    }
+    
+    private void notifyListener(TimerWheel.Timeout expiredTimeout) {
+        // The watchdog may have been canceled or restarted for another
+        // operation since its timeout expired, in which case the expired
+        // timeout no longer applies.
+        if(expiredTimeout == null || timeout != expiredTimeout) { return; }
+        
         started = false;
         EventLogger.logEvent(AppInfo.GUID,
                 "Watchdog timeout".getBytes(), EventLogger.WARNING);
         listener.watchdogTimeout();
     }
-
-    private class WatchdogThread extends Thread {
-        private final Object monitor = new Object();
-        private final Object controlLock = new Object();
+    
+    private static class ExpiredTimeout {
+        public final Watchdog watchdog;
+        public final TimerWheel.Timeout timeout;
         
-        private boolean shutdown;
-        private long timeout;
-        private boolean kicked;
-
-        public synchronized void start() {
-            synchronized(controlLock) {
-                super.start();
-                try {
-                    controlLock.wait();
-                } catch (InterruptedException e) { }
-            }
+        public ExpiredTimeout(Watchdog watchdog, TimerWheel.Timeout timeout) {
+            this.watchdog = watchdog;
+            this.timeout = timeout;
+        }
+    }
+    
+    private static class NotifierThread extends Thread {
+        public NotifierThread() {
+            super("Watchdog");
         }
         
         public void run() {
             while(true) {
-                // Synchronize on the control lock, and collect the values
-                // of all the relevant control fields
-                boolean localShutdown;
-                long localTimeout;
-                synchronized(controlLock) {
-                    localShutdown = this.shutdown;
-                    localTimeout = this.timeout;
-                    controlLock.notify();
-                }
-                if(localShutdown) { break; }
-
-                // Wait for the timeout duration, or indefinitely if disabled
-                // (i.e. localTimeout == 0)
-                synchronized(monitor) {
-                    try {
-                        monitor.wait(localTimeout);
-                    } catch (InterruptedException e) { }
-                }
-                
-                // Synchronize on the control lock again, and figure out why
-                // the wait() call returned
-                boolean notifyListener = false;
-                synchronized(controlLock) {
-                    // If we were waiting, and the timeout was not zeroed,
-                    // then the watchdog timer expired. In this case, we
-                    // cancel it and send a notification to the listener.
-                    if(localTimeout > 0 && this.timeout > 0 && !kicked) {
-                        this.timeout = 0;
-                        notifyListener = true;
+                ExpiredTimeout expired;
+                synchronized(expiredQueue) {
+                    if(expiredQueue.element() == null) {
+                        try {
+                            expiredQueue.wait(NOTIFIER_KEEP_ALIVE);
+                        } catch (InterruptedException e) { }
                     }
-                    kicked = false;
-                    controlLock.notify();
-                }
-                if(notifyListener) {
-                    Watchdog.this.notifyListener();
-                }
-            }
-        }
-
-        public void startTimeout(long timeout) {
-            synchronized(controlLock) {
-                this.timeout = timeout;
-                synchronized(monitor) {
-                    monitor.notify();
-                }
-                try {
-                    controlLock.wait();
-                } catch (InterruptedException e) { }
-            }
-        }
-
-        public void kickTimeout() {
-            synchronized(controlLock) {
-                kicked = true;
-                synchronized(monitor) {
-                    monitor.notify();
-                }
-                try {
-                    controlLock.wait();
-                } catch (InterruptedException e) { }
-            }
-        }
-        
-        public void cancelTimeout() {
-            synchronized(controlLock) {
-                this.timeout = 0;
-                synchronized(monitor) {
-                    monitor.notify();
+                    if(expiredQueue.element() == null) {
+                        notifierRunning = false;
+                        return;
+                    }
+                    expired = (ExpiredTimeout)expiredQueue.remove();
                 }
+                
+                // Nothing is allowed to escape, since that would leave
+                // notifierRunning set without a live thread
                 try {
-                    controlLock.wait();
-                } catch (InterruptedException e) { }
-            }
-        }
-        
-        public void shutdown() {
-            synchronized(controlLock) {
-                this.timeout = 0;
-                this.shutdown = true;
-                synchronized(monitor) {
-                    monitor.notify();
+                    expired.watchdog.notifyListener(expired.timeout);
+                } catch (Throwable exp) {
+                    EventLogger.logEvent(AppInfo.GUID,
+                            ("Watchdog listener exception: " + exp.toString()).getBytes(),
+                            EventLogger.ERROR);
                 }
-                try {
-                    controlLock.wait();
-                } catch (InterruptedException e) { }
             }
         }
     }
@@ -0,0 +1,338 @@
+/*-
+ * Copyright (c) 2011, Derek Konigsberg
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.logicprobe.LogicMail.util;
+
+import net.rim.device.api.system.EventLogger;
+
+import org.logicprobe.LogicMail.AnalyticsDataCollector;
+import org.logicprobe.LogicMail.AppInfo;
+
+/**
+ * Shared pool of worker threads for running background tasks.
+ * <p>
+ * Workers are started on demand, up to a fixed limit, and are kept alive
+ * for a short time after running out of work so bursts of tasks do not
+ * each pay for a new thread.  Tasks that need to run in order with respect
+ * to each other should be submitted through a {@link ThreadQueue}, which
+ * acts as a serial lane on top of this pool.
+ * </p>
+ * <p>
+ * Tasks submitted directly through {@link #execute(Runnable)} are limited
+ * to a bounded backlog.  Once that backlog is full, further tasks are
+ * rejected so the caller can decide how to handle the overload.
+ * Counters for submitted, queued, and rejected tasks are kept to help
+ * diagnose contention.
+ * </p>
+ * <p>
+ * Lane tasks are never rejected, and may block on storage or network I/O
+ * for long periods.  So lanes are only allowed to hold all but one of the
+ * workers at any given time.  The remaining capacity is reserved for
+ * directly submitted tasks, such as browser callbacks, which therefore
+ * never wait behind a pool full of lane work.  Lane tasks that are held
+ * back by this limit stay queued until a lane worker becomes free.
+ * </p>
+ */
+public class WorkerPool {
+    /** Maximum number of worker threads */
+    private static final int MAX_WORKERS = 4;
+    /** Time an idle worker waits for new work before exiting */
+    private static final long KEEP_ALIVE = 30000;
+    /** Maximum number of workers that may run lane tasks at the same time */
+    private static final int MAX_LANE_WORKERS = MAX_WORKERS - 1;
+    /** Maximum number of directly submitted tasks waiting for a worker */
+    private static final int MAX_BACKLOG = 64;
+    
+    private static WorkerPool instance = null;
+    
+    private final Queue taskQueue = new Queue();
+    private final Queue laneQueue = new Queue();
+    private int workerCount;
+    private int idleCount;
+    private int laneWorkerCount;
+    private int backlog;
+    
+    private int submittedCount;
+    private int queuedCount;
+    private int rejectedCount;
+    private int peakQueueDepth;
+    
+    private WorkerPool() {
+    }
+    
+    /**
+     * Gets the worker pool instance.
+     * 
+     * @return the worker pool
+     */
+    public static synchronized WorkerPool getInstance() {
+        if(instance == null) {
+            instance = new WorkerPool();
+        }
+        return instance;
+    }
+    
+    /**
+     * Submits a task to be run on a worker thread.
+     * 
+     * @param task the task to run
+     * @return true if the task was accepted, false if it was rejected because
+     *     the backlog of waiting tasks is full
+     */
+    public boolean execute(Runnable task) {
+        if(task == null) {
+            throw new NullPointerException();
+        }
+        synchronized(taskQueue) {
+            if(backlog >= MAX_BACKLOG) {
+                rejectedCount++;
+                EventLogger.logEvent(AppInfo.GUID,
+                        ("WorkerPool rejected task, backlog: " + backlog).getBytes(),
+                        EventLogger.WARNING);
+                return false;
+            }
+            backlog++;
+            enqueue(new BacklogTask(task));
+            return true;
+        }
+    }
+    
+    /**
+     * Submits a task on behalf of a serial lane.  These tasks are never
+     * rejected, since each lane has at most one task in the pool at a time.
+     * 
+     * @param task the task to run
+     */
+    void executeLane(Runnable task) {
+        synchronized(taskQueue) {
+            laneQueue.add(task);
+            dispatch();
+        }
+    }
+    
+    /**
+     * Adds a task to the queue, and makes sure a worker is available to run
+     * it.  This must be called while holding the lock on the task queue.
+     */
+    private void enqueue(Runnable task) {
+        taskQueue.add(task);
+        dispatch();
+    }
+    
+    /**
+     * Makes sure a worker is available for a newly queued task, if there is
+     * capacity for it to run.  This must be called while holding the lock on
+     * the task queue.
+     */
+    private void dispatch() {
+        submittedCount++;
+        int depth = taskQueue.size() + laneQueue.size();
+        if(depth > peakQueueDepth) {
+            peakQueueDepth = depth;
+        }
+        
+        // Only count the lane tasks that could actually start right now
+        int runnable = taskQueue.size()
+            + Math.min(laneQueue.size(), MAX_LANE_WORKERS - laneWorkerCount);
+        if(idleCount >= runnable) {
+            if(runnable > 0) {
+                taskQueue.notify();
+            }
+            else {
+                queuedCount++;
+            }
+        }
+        else if(workerCount < MAX_WORKERS) {
+            workerCount++;
+            (new WorkerThread()).start();
+        }
+        else {
+            queuedCount++;
+        }
+    }
+    
+    /**
+     * Gets the number of worker threads currently alive.
+     * 
+     * @return the worker count
+     */
+    public int getWorkerCount() {
+        synchronized(taskQueue) {
+            return workerCount;
+        }
+    }
+    
+    /**
+     * Gets the number of tasks waiting for a worker.
+     * 
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        synchronized(taskQueue) {
+            return taskQueue.size() + laneQueue.size();
+        }
+    }
+    
+    /**
+     * Gets the number of workers currently running lane tasks.
+     * 
+     * @return the lane worker count
+     */
+    public int getLaneWorkerCount() {
+        synchronized(taskQueue) {
+            return laneWorkerCount;
+        }
+    }
+    
+    /**
+     * Gets the largest number of tasks that have been waiting for a worker
+     * at the same time.
+     * 
+     * @return the peak queue depth
+     */
+    public int getPeakQueueDepth() {
+        synchronized(taskQueue) {
+            return peakQueueDepth;
+        }
+    }
+    
+    /**
+     * Gets the total number of tasks that have been submitted to the pool,
+     * including those submitted by serial lanes.
+     * 
+     * @return the submitted task count
+     */
+    public int getSubmittedCount() {
+        synchronized(taskQueue) {
+            return submittedCount;
+        }
+    }
+    
+    /**
+     * Gets the number of tasks that had to wait because all workers were
+     * busy and no more could be started.
+     * 
+     * @return the queued task count
+     */
+    public int getQueuedCount() {
+        synchronized(taskQueue) {
+            return queuedCount;
+        }
+    }
+    
+    /**
+     * Gets the number of tasks that were rejected because the backlog was
+     * full.
+     * 
+     * @return the rejected task count
+     */
+    public int getRejectedCount() {
+        synchronized(taskQueue) {
+            return rejectedCount;
+        }
+    }
+    
+    /**
+     * Wrapper for directly submitted tasks, which releases their slot in the
+     * backlog once they start running.
+     */
+    private class BacklogTask implements Runnable {
+        private final Runnable task;
+        
+        public BacklogTask(Runnable task) {
+            this.task = task;
+        }
+        
+        public void run() {
+            synchronized(taskQueue) {
+                backlog--;
+            }
+            task.run();
+        }
+    }
+    
+    private class WorkerThread extends Thread {
+        public void run() {
+            while(true) {
+                Runnable task;
+                boolean isLaneTask;
+                synchronized(taskQueue) {
+                    if(!hasRunnableTask()) {
+                        idleCount++;
+                        try {
+                            taskQueue.wait(KEEP_ALIVE);
+                        } catch (InterruptedException e) { }
+                        idleCount--;
+                    }
+                    if(taskQueue.element() != null) {
+                        task = (Runnable)taskQueue.remove();
+                        isLaneTask = false;
+                    }
+                    else if(laneQueue.element() != null && laneWorkerCount < MAX_LANE_WORKERS) {
+                        task = (Runnable)laneQueue.remove();
+                        isLaneTask = true;
+                        laneWorkerCount++;
+                    }
+                    else {
+                        workerCount--;
+                        return;
+                    }
+                }
+                
+                // Nothing is allowed to escape, since that would leave the
+                // worker count out of sync with the live workers
+                try {
+                    task.run();
+                } catch (Throwable exp) {
+                    EventLogger.logEvent(AppInfo.GUID,
+                            ("Worker exception: " + exp.toString()).getBytes(),
+                            EventLogger.ERROR);
+                    AnalyticsDataCollector.getInstance().onApplicationError(
+                            "Worker exception: " + exp.toString());
+                }
+                
+                if(isLaneTask) {
+                    synchronized(taskQueue) {
+                        laneWorkerCount--;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Checks whether a queued task is allowed to start.  This must be called
+     * while holding the lock on the task queue.
+     */
+    private boolean hasRunnableTask() {
+        return taskQueue.element() != null
+            || (laneQueue.element() != null && laneWorkerCount < MAX_LANE_WORKERS);
+    }
+}
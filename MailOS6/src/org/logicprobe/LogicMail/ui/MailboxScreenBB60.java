@@ -30,7 +30,6 @@
  */
 package org.logicprobe.LogicMail.ui;
 
-import net.rim.device.api.ui.Manager;
 import net.rim.device.api.ui.MenuItem;
 import net.rim.device.api.ui.component.Menu;
 import net.rim.device.api.ui.image.Image;
@@ -67,12 +66,11 @@ public class MailboxScreenBB60 extends MailboxScreen {
         
         separatorPreviousItem = new MenuItem( LogicMailResource.MENUITEM_PREVIOUS, 400010, 2000) {
             public void run() {
-                if(currentContextField == null) { return; }
-                Manager manager = currentContextField.getManager();
-                int index = currentContextField.getIndex();
-                for(int i=index - 1; i >= 0; --i) {
-                    if(manager.getField(i) instanceof MessageSeparatorField) {
-                        manager.getField(i).setFocus();
+                if(currentContextIndex == -1) { return; }
+                MailboxListField listField = getMessageListField();
+                for(int i=currentContextIndex - 1; i >= 0; --i) {
+                    if(listField.getRow(i) instanceof MailboxListField.DateSeparator) {
+                        selectMessageRow(i);
                         break;
                     }
                 }
@@ -81,19 +79,18 @@ public class MailboxScreenBB60 extends MailboxScreen {
         
         separatorToTopItem = new MenuItem( LogicMailResource.MENUITEM_TO_TOP, 400020, 2000) {
             public void run() {
-                screen.scroll(Manager.TOPMOST);
+                selectMessageRow(0);
             }
         };
         
         separatorNextItem = new MenuItem( LogicMailResource.MENUITEM_NEXT, 400030, 2000) {
             public void run() {
-                if(currentContextField == null) { return; }
-                Manager manager = currentContextField.getManager();
-                int count = manager.getFieldCount();
-                int index = currentContextField.getIndex();
-                for(int i=index + 1; i < count; i++) {
-                    if(manager.getField(i) instanceof MessageSeparatorField) {
-                        manager.getField(i).setFocus();
+                if(currentContextIndex == -1) { return; }
+                MailboxListField listField = getMessageListField();
+                int count = listField.getSize();
+                for(int i=currentContextIndex + 1; i < count; i++) {
+                    if(listField.getRow(i) instanceof MailboxListField.DateSeparator) {
+                        selectMessageRow(i);
                         break;
                     }
                 }
@@ -101,7 +98,8 @@ public class MailboxScreenBB60 extends MailboxScreen {
         };
         separatorToBottomItem = new MenuItem( LogicMailResource.MENUITEM_TO_BOTTOM, 400040, 2000) {
             public void run() {
-                screen.scroll(Manager.BOTTOMMOST);
+                int count = getMessageListField().getSize();
+                if(count > 0) { selectMessageRow(count - 1); }
             }
         };
         separatorComposeItem = new MenuItem( LogicMailResource.MENUITEM_COMPOSE, 400050, 1010) {
@@ -123,18 +121,18 @@ public class MailboxScreenBB60 extends MailboxScreen {
         separatorMarkPriorOpenedItem.setIcon(separatorMarkPriorOpenedImage);
     }
 
-    protected void makeSeparatorMenu(MessageSeparatorField separatorField, Menu menu, int instance) {
+    protected void makeSeparatorMenu(MailboxListField.DateSeparator separator, Menu menu, int instance) {
         if(instance == Menu.INSTANCE_DEFAULT) {
-            super.makeSeparatorMenu(separatorField, menu, instance);
+            super.makeSeparatorMenu(separator, menu, instance);
         }
         else {
-            Manager manager = separatorField.getManager();
-            int count = manager.getFieldCount();
-            int index = separatorField.getIndex();
+            MailboxListField listField = getMessageListField();
+            int count = listField.getSize();
+            int index = currentContextIndex;
 
             boolean hasPrevious = false;
             for(int i=index - 1; i >= 0; --i) {
-                if(manager.getField(i) instanceof MessageSeparatorField) {
+                if(listField.getRow(i) instanceof MailboxListField.DateSeparator) {
                     hasPrevious = true;
                     break;
                 }
@@ -142,7 +140,7 @@ public class MailboxScreenBB60 extends MailboxScreen {
             
             boolean hasNext = false;
             for(int i=index + 1; i < count; i++) {
-                if(manager.getField(i) instanceof MessageSeparatorField) {
+                if(listField.getRow(i) instanceof MailboxListField.DateSeparator) {
                     hasNext = true;
                     break;
                 }